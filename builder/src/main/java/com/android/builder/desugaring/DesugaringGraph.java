@@ -17,13 +17,29 @@
 package com.android.builder.desugaring;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
+import com.android.builder.utils.FileFormatHeader;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 
 /**
@@ -43,8 +59,14 @@ import java.util.stream.Collectors;
  *   <li>Once the set of dependent types is known, paths that define them are found, and that is the
  *       resulting set of paths.
  * </ul>
+ *
+ * <p>The graph can be persisted between builds using {@link #writeTo(Path)} and {@link
+ * #readFrom(Path)}. In the persisted form, types and paths are written once to string tables, and
+ * the relations between them are written as arrays of indices into those tables.
  */
 public class DesugaringGraph {
+    private static final FileFormatHeader HEADER = new FileFormatHeader("DSGR", 1);
+
     @NonNull
     public static final DesugaringGraph EMPTY =
             new DesugaringGraph(Collections.emptyList()) {
@@ -118,6 +140,148 @@ public class DesugaringGraph {
         return impactedPaths;
     }
 
+    /**
+     * Writes this graph to the given file, which is replaced atomically so that a reader never sees
+     * a partially written graph.
+     */
+    public void writeTo(@NonNull Path file) throws IOException {
+        Map<String, Integer> typeIndices = new HashMap<>();
+        List<String> types = new ArrayList<>();
+        ToIntFunction<String> typeIndex =
+                type ->
+                        typeIndices.computeIfAbsent(
+                                type,
+                                t -> {
+                                    types.add(t);
+                                    return types.size() - 1;
+                                });
+
+        Map<Path, Set<String>> pathToTypes = typePaths.getPathToTypes();
+        Map<String, Set<String>> typeToDependencies = typeDependencies.getTypeToDependencies();
+        List<Path> paths = new ArrayList<>(pathToTypes.size());
+        List<int[]> pathTypes = new ArrayList<>(pathToTypes.size());
+        for (Map.Entry<Path, Set<String>> entry : pathToTypes.entrySet()) {
+            paths.add(entry.getKey());
+            pathTypes.add(entry.getValue().stream().mapToInt(typeIndex).toArray());
+        }
+        List<int[]> dependencies = new ArrayList<>(typeToDependencies.size());
+        for (Map.Entry<String, Set<String>> entry : typeToDependencies.entrySet()) {
+            int[] edges = new int[entry.getValue().size() + 1];
+            edges[0] = typeIndex.applyAsInt(entry.getKey());
+            int i = 1;
+            for (String dependency : entry.getValue()) {
+                edges[i++] = typeIndex.applyAsInt(dependency);
+            }
+            dependencies.add(edges);
+        }
+
+        Files.createDirectories(file.getParent());
+        Path tempFile =
+                Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out =
+                    new DataOutputStream(
+                            new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                HEADER.write(out);
+                out.writeInt(types.size());
+                for (String type : types) {
+                    out.writeUTF(type);
+                }
+                out.writeInt(paths.size());
+                for (int i = 0; i < paths.size(); i++) {
+                    out.writeUTF(paths.get(i).toString());
+                    writeIndices(out, pathTypes.get(i));
+                }
+                out.writeInt(dependencies.size());
+                for (int[] edges : dependencies) {
+                    writeIndices(out, edges);
+                }
+            }
+            Files.move(
+                    tempFile,
+                    file,
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Reads a graph previously written by {@link #writeTo(Path)}, or returns null if the file does
+     * not exist, was written in a different format or is corrupted.
+     */
+    @Nullable
+    static DesugaringGraph readFrom(@NonNull Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (!HEADER.read(in)) {
+                return null;
+            }
+            // Each type is written with at least the two bytes of its length.
+            String[] types = new String[readCount(in, 2)];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = in.readUTF();
+            }
+
+            DesugaringGraph graph = new DesugaringGraph(Collections.emptyList());
+            int pathCount = in.readInt();
+            for (int i = 0; i < pathCount; i++) {
+                Path path = Paths.get(in.readUTF());
+                for (int typeIndex : readIndices(in)) {
+                    graph.typePaths.add(path, types[typeIndex]);
+                }
+            }
+            int dependentCount = in.readInt();
+            for (int i = 0; i < dependentCount; i++) {
+                int[] edges = readIndices(in);
+                Set<String> dependencies = Sets.newHashSetWithExpectedSize(edges.length - 1);
+                for (int j = 1; j < edges.length; j++) {
+                    dependencies.add(types[edges[j]]);
+                }
+                graph.typeDependencies.add(types[edges[0]], dependencies);
+            }
+            return graph;
+        } catch (EOFException | RuntimeException e) {
+            // The file is truncated or corrupted, the graph will be created from the full data.
+            return null;
+        }
+    }
+
+    private static void writeIndices(@NonNull DataOutputStream out, @NonNull int[] indices)
+            throws IOException {
+        out.writeInt(indices.length);
+        for (int index : indices) {
+            out.writeInt(index);
+        }
+    }
+
+    @NonNull
+    private static int[] readIndices(@NonNull DataInputStream in) throws IOException {
+        int[] indices = new int[readCount(in, 4)];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = in.readInt();
+        }
+        return indices;
+    }
+
+    /**
+     * Reads the number of elements of an array, checking that the remaining bytes can hold that
+     * many elements of the given minimum size, so that a corrupted count does not allocate an
+     * arbitrarily large array.
+     */
+    private static int readCount(@NonNull DataInputStream in, int minElementSize)
+            throws IOException {
+        int count = in.readInt();
+        if (count < 0 || (long) count * minElementSize > in.available()) {
+            throw new EOFException("Invalid count " + count);
+        }
+        return count;
+    }
+
     @VisibleForTesting
     @NonNull
     Set<String> getDependents(@NonNull String type) {
@@ -19,6 +19,8 @@ package com.android.builder.desugaring;
 import com.android.annotations.NonNull;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Collection;
 import java.util.function.Supplier;
 
@@ -53,6 +55,36 @@ public final class DesugaringGraphs {
         return graph;
     }
 
+    /**
+     * Get a {@link com.android.builder.desugaring.DesugaringGraph} associated with this key. Key
+     * should be unique for the project and variant e.g. :app:debug. If the graph does not exist in
+     * memory, it is read from the given file, written by {@link DesugaringGraph#writeTo(Path)} at
+     * the end of the previous build, and updated with the incremental data. If that file cannot be
+     * read, the graph is created from the full data.
+     */
+    @NonNull
+    public static DesugaringGraph forVariant(
+            @NonNull String projectVariant,
+            @NonNull Path persistedGraph,
+            @NonNull Supplier<Collection<DesugaringData>> ifFull,
+            @NonNull Supplier<Collection<DesugaringData>> ifIncremental) {
+        DesugaringGraph graph = graphs.getIfPresent(projectVariant);
+        if (graph == null) {
+            try {
+                graph = DesugaringGraph.readFrom(persistedGraph);
+            } catch (IOException e) {
+                graph = null;
+            }
+            if (graph != null) {
+                graphs.put(projectVariant, graph);
+            } else {
+                return forVariant(projectVariant, ifFull.get());
+            }
+        }
+        graph.update(ifIncremental.get());
+        return graph;
+    }
+
     /**
      * Create a {@link com.android.builder.desugaring.DesugaringGraph} associated with this key. Key
      * should be unique for the project and variant e.g. :app:debug. The graph is created fully from
@@ -21,9 +21,11 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 /**
@@ -39,18 +41,31 @@ final class TypeDependencies {
     /** Map from type to types it depends on in the desugaring process. */
     @NonNull private final Map<String, Set<String>> typeToDependencies = Maps.newHashMap();
     /**
-     * Map from type to types that depend on it in the desugaring process. This field should be
-     * accessed only using {@link #reverseMapping()}.
+     * Map from type to types that depend on it in the desugaring process. It is kept in sync with
+     * {@link #typeToDependencies} on every change, so that updates only touch the changed types.
      */
     @NonNull private final Map<String, Set<String>> typeToDependents = Maps.newHashMap();
 
-    boolean isReverseMappingValid = false;
+    /**
+     * Memoized results of {@link #getAllDependents(String)}, valid until the dependencies change.
+     * As the graph is updated once at the beginning of a build and then only queried, this avoids
+     * recomputing the same transitive closure for every changed path.
+     */
+    @NonNull private final Map<String, Set<String>> allDependentsCache = new ConcurrentHashMap<>();
+
+    /** Memoized results of {@link #getAllDependencies(String)}, see {@link #allDependentsCache}. */
+    @NonNull
+    private final Map<String, Set<String>> allDependenciesCache = new ConcurrentHashMap<>();
 
     void add(@NonNull String dependent, @NonNull Set<String> dependencies) {
-        Set<String> myDependencies = typeToDependencies.getOrDefault(dependent, new HashSet<>());
-        myDependencies.addAll(dependencies);
-        typeToDependencies.put(dependent, myDependencies);
-        invalidateReverseMapping();
+        Set<String> myDependencies =
+                typeToDependencies.computeIfAbsent(dependent, k -> new HashSet<>());
+        for (String dependency : dependencies) {
+            if (myDependencies.add(dependency)) {
+                typeToDependents.computeIfAbsent(dependency, k -> new HashSet<>()).add(dependent);
+            }
+        }
+        invalidateClosures();
     }
 
     @NonNull
@@ -60,17 +75,25 @@ final class TypeDependencies {
 
     @NonNull
     Set<String> getDependents(@NonNull String type) {
-        return reverseMapping().getOrDefault(type, ImmutableSet.of());
+        return typeToDependents.getOrDefault(type, ImmutableSet.of());
     }
 
     @NonNull
     Set<String> getAllDependents(@NonNull String type) {
-        return collectNeighbours(type, this::getDependents);
+        return allDependentsCache.computeIfAbsent(
+                type, t -> ImmutableSet.copyOf(collectNeighbours(t, this::getDependents)));
     }
 
     @NonNull
     Set<String> getAllDependencies(@NonNull String type) {
-        return collectNeighbours(type, this::getDependencies);
+        return allDependenciesCache.computeIfAbsent(
+                type, t -> ImmutableSet.copyOf(collectNeighbours(t, this::getDependencies)));
+    }
+
+    /** Returns a read-only view of the map from type to types it depends on. */
+    @NonNull
+    Map<String, Set<String>> getTypeToDependencies() {
+        return Collections.unmodifiableMap(typeToDependencies);
     }
 
     /**
@@ -105,32 +128,25 @@ final class TypeDependencies {
 
     }
 
-    private void invalidateReverseMapping() {
-        isReverseMappingValid = false;
+    private void invalidateClosures() {
+        allDependentsCache.clear();
+        allDependenciesCache.clear();
     }
 
-    @NonNull
-    private Map<String, Set<String>> reverseMapping() {
-        if (isReverseMappingValid) {
-            return typeToDependents;
+    void remove(@NonNull String removedType) {
+        Set<String> dependencies = typeToDependencies.remove(removedType);
+        if (dependencies == null) {
+            return;
         }
-
-        typeToDependents.clear();
-        for (Map.Entry<String, Set<String>> typeToDeps : typeToDependencies.entrySet()) {
-            for (String dependency : typeToDeps.getValue()) {
-                Set<String> myDependents =
-                        typeToDependents.getOrDefault(dependency, Sets.newHashSet());
-                myDependents.add(typeToDeps.getKey());
-                this.typeToDependents.put(dependency, myDependents);
+        for (String dependency : dependencies) {
+            Set<String> dependents = typeToDependents.get(dependency);
+            if (dependents != null) {
+                dependents.remove(removedType);
+                if (dependents.isEmpty()) {
+                    typeToDependents.remove(dependency);
+                }
             }
         }
-
-        isReverseMappingValid = true;
-        return typeToDependents;
-    }
-
-    void remove(@NonNull String removedType) {
-        typeToDependencies.remove(removedType);
-        invalidateReverseMapping();
+        invalidateClosures();
     }
 }
@@ -23,6 +23,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import java.nio.file.Path;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -44,19 +45,18 @@ final class TypePaths {
     @NonNull private final Map<Path, Set<String>> pathToTypes = Maps.newHashMap();
     /**
      * Map from type to paths defining that type. Each type should be defined only in one file, but
-     * there is no mechanism to enforce that. This field should be accessed only using {@link
-     * #reverseMapping()}.
+     * there is no mechanism to enforce that. It is kept in sync with {@link #pathToTypes} on every
+     * change, so that updates only touch the changed paths.
      */
     @NonNull private final Map<String, Set<Path>> typeToPaths = Maps.newHashMap();
 
-    boolean isReverseMappingValid = false;
-
     void add(@NonNull Path path, @NonNull String internalName) {
-        Set<String> types = pathToTypes.getOrDefault(path, getNewSetForPath(path));
-        types.add(internalName);
-        pathToTypes.put(path, types);
-
-        invalidateReverseMapping();
+        Set<String> types = pathToTypes.computeIfAbsent(path, TypePaths::getNewSetForPath);
+        if (types.add(internalName)) {
+            typeToPaths
+                    .computeIfAbsent(internalName, k -> Sets.newHashSetWithExpectedSize(1))
+                    .add(path);
+        }
     }
 
     @NonNull
@@ -75,12 +75,17 @@ final class TypePaths {
             return ImmutableSet.of();
         }
 
-        invalidateReverseMapping();
-
         Set<String> toRemove = new HashSet<>(allInPath.size());
         for (String type : allInPath) {
-            Set<Path> definedInPaths = getPaths(type);
-            if (Sets.difference(definedInPaths, removedPaths).isEmpty()) {
+            Set<Path> definedInPaths = typeToPaths.get(type);
+            if (definedInPaths != null) {
+                definedInPaths.remove(path);
+                if (definedInPaths.isEmpty()) {
+                    typeToPaths.remove(type);
+                }
+            }
+            if (definedInPaths == null
+                    || Sets.difference(definedInPaths, removedPaths).isEmpty()) {
                 // all paths containing this type have been removed
                 toRemove.add(type);
             }
@@ -91,31 +96,13 @@ final class TypePaths {
 
     @NonNull
     Set<Path> getPaths(@NonNull String internalName) {
-        return reverseMapping().getOrDefault(internalName, ImmutableSet.of());
-    }
-
-    private void invalidateReverseMapping() {
-        isReverseMappingValid = false;
+        return typeToPaths.getOrDefault(internalName, ImmutableSet.of());
     }
 
+    /** Returns a read-only view of the map from path to types defined in that path. */
     @NonNull
-    private Map<String, Set<Path>> reverseMapping() {
-        if (isReverseMappingValid) {
-            return typeToPaths;
-        }
-
-        typeToPaths.clear();
-        for (Map.Entry<Path, Set<String>> pathToType : pathToTypes.entrySet()) {
-            for (String type : pathToType.getValue()) {
-                Set<Path> paths =
-                        typeToPaths.getOrDefault(type, Sets.newHashSetWithExpectedSize(1));
-                paths.add(pathToType.getKey());
-
-                typeToPaths.put(type, paths);
-            }
-        }
-        isReverseMappingValid = true;
-        return typeToPaths;
+    Map<Path, Set<String>> getPathToTypes() {
+        return Collections.unmodifiableMap(pathToTypes);
     }
 
     @NonNull
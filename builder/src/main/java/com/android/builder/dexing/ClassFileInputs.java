@@ -49,7 +49,7 @@ public class ClassFileInputs {
     @NonNull
     public static ClassFileInput fromPath(@NonNull Path rootPath) {
         if (jarMatcher.matches(rootPath)) {
-            return new JarClassFileInput(rootPath);
+            return new ZipCentralDirectoryClassFileInput(rootPath);
         } else {
             return new DirectoryBasedClassFileInput(rootPath);
         }
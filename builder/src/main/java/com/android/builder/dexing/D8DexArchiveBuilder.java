@@ -17,6 +17,7 @@
 package com.android.builder.dexing;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.VisibleForTesting;
 import com.android.builder.dexing.r8.ClassFileProviderFactory;
 import com.android.ide.common.blame.Message;
 import com.android.ide.common.blame.MessageReceiver;
@@ -29,6 +30,8 @@ import com.android.tools.r8.OutputMode;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -40,12 +43,20 @@ final class D8DexArchiveBuilder extends DexArchiveBuilder {
     private static final String INVOKE_CUSTOM =
             "Invoke-customs are only supported starting with Android O";
 
+    /**
+     * Minimum number of classes in a single conversion for D8 to process them concurrently.
+     * Smaller conversions run on the calling thread, as the overhead of scheduling is not worth it
+     * and the transform already converts several inputs (and buckets of inputs) in parallel.
+     */
+    @VisibleForTesting static final int DEFAULT_PARALLEL_CONVERSION_THRESHOLD = 1000;
+
     private final int minSdkVersion;
     @NonNull private final CompilationMode compilationMode;
     @NonNull private final ClassFileProviderFactory bootClasspath;
     @NonNull private final ClassFileProviderFactory classpath;
     private final boolean desugaring;
     @NonNull private final MessageReceiver messageReceiver;
+    private final int parallelConversionThreshold;
 
     public D8DexArchiveBuilder(
             int minSdkVersion,
@@ -54,6 +65,26 @@ final class D8DexArchiveBuilder extends DexArchiveBuilder {
             @NonNull ClassFileProviderFactory classpath,
             boolean desugaring,
             @NonNull MessageReceiver messageReceiver) {
+        this(
+                minSdkVersion,
+                isDebuggable,
+                bootClasspath,
+                classpath,
+                desugaring,
+                messageReceiver,
+                DEFAULT_PARALLEL_CONVERSION_THRESHOLD);
+    }
+
+    @VisibleForTesting
+    D8DexArchiveBuilder(
+            int minSdkVersion,
+            boolean isDebuggable,
+            @NonNull ClassFileProviderFactory bootClasspath,
+            @NonNull ClassFileProviderFactory classpath,
+            boolean desugaring,
+            @NonNull MessageReceiver messageReceiver,
+            int parallelConversionThreshold) {
+        this.parallelConversionThreshold = parallelConversionThreshold;
         this.minSdkVersion = minSdkVersion;
         this.compilationMode = isDebuggable ? CompilationMode.DEBUG : CompilationMode.RELEASE;
         this.bootClasspath = bootClasspath;
@@ -96,7 +127,15 @@ final class D8DexArchiveBuilder extends DexArchiveBuilder {
                 builder.setDisableDesugaring(true);
             }
 
-            D8.run(builder.build(), MoreExecutors.newDirectExecutorService());
+            // D8 produces the same output regardless of the executor it runs on, so large inputs
+            // (e.g. a fat library jar) can use idle threads of the shared pool. Joining tasks of
+            // the common pool from one of its own threads helps executing them, so this does not
+            // starve the pool when all of its threads are dexing.
+            ExecutorService executorService =
+                    entryCount.get() >= parallelConversionThreshold
+                            ? ForkJoinPool.commonPool()
+                            : MoreExecutors.newDirectExecutorService();
+            D8.run(builder.build(), executorService);
         } catch (Throwable e) {
             throw getExceptionToRethrow(e, d8DiagnosticsHandler);
         }
@@ -15,103 +15,260 @@
  */
 package com.android.builder.dexing
 
+import com.android.annotations.VisibleForTesting
 import com.android.dex.Dex
 import com.android.dex.DexFormat
-import com.android.dex.FieldId
-import com.android.dex.MethodId
+import com.google.common.base.Preconditions
 import com.google.common.collect.ImmutableList
 import com.google.common.collect.Lists
-import com.google.common.collect.Sets
-import java.util.HashSet
 
 /**
  * Dex merging strategy that tracks field and method references that can be merged. This will
  * account for duplicate references from different DEX files, and will count those as a single
  * reference.
+ *
+ * To keep the memory usage low when merging hundreds of thousands of references, every reference
+ * is encoded as a single long, built from the ids that [ReferenceInterner] assigns to the strings
+ * making up the reference, and references are tracked in primitive [LongHashSet]s. As the ids are
+ * unique, two references get the same encoding only if they are equal, so the packing decisions are
+ * the same as when comparing the strings themselves.
  */
 class ReferenceCountMergingStrategy : DexMergingStrategy {
-    private val fieldRefs = Sets.newHashSet<FieldEvaluated>()
-    private val methodRefs = Sets.newHashSet<MethodEvaluated>()
+    private val interner = ReferenceInterner()
+    private val fieldRefs = LongHashSet()
+    private val methodRefs = LongHashSet()
+    private val pendingFieldRefs = LongHashSet()
+    private val pendingMethodRefs = LongHashSet()
     private val currentDexes = Lists.newArrayList<Dex>()
 
+    /**
+     * Adds the references of the given DEX file if both its fields and its methods fit in the
+     * merged DEX file. Otherwise, leaves the tracked references and the interned strings as they
+     * were before the call.
+     */
     override fun tryToAddForMerging(dexFile: Dex): Boolean {
-        return if (tryAddFields(dexFile) && tryAddMethods(dexFile)) {
-            currentDexes.add(dexFile)
-            true
-        } else {
-            false
+        val internerMark = interner.size()
+        val dexStrings = DexStrings(dexFile, interner)
+        collectFields(dexFile, dexStrings)
+        collectMethods(dexFile, dexStrings)
+        if (!fits(fieldRefs, pendingFieldRefs) || !fits(methodRefs, pendingMethodRefs)) {
+            // forget the strings interned for this DEX file, so that the interner only holds the
+            // strings of the references that have been added
+            interner.rollback(internerMark)
+            return false
         }
+        fieldRefs.addAll(pendingFieldRefs)
+        methodRefs.addAll(pendingMethodRefs)
+        currentDexes.add(dexFile)
+        return true
     }
 
     override fun startNewDex() {
         fieldRefs.clear()
         methodRefs.clear()
         currentDexes.clear()
+        interner.clear()
     }
 
     override fun getAllDexToMerge(): ImmutableList<Dex> = ImmutableList.copyOf(currentDexes)
 
-    private fun tryAddFields(dexFile: Dex): Boolean {
-        val fieldIds = dexFile.fieldIds()
-        val fieldsEvaluated = HashSet<FieldEvaluated>(fieldIds.size)
-        fieldIds.forEach { f -> fieldsEvaluated.add(FieldEvaluated.fromDex(f, dexFile)) }
-        // find how many references are shared, and deduct from the total count
-        val shared = Sets.intersection(fieldsEvaluated, fieldRefs).size
-        return if (fieldRefs.size + fieldsEvaluated.size - shared > DexFormat.MAX_MEMBER_IDX + 1) {
-            false
-        } else {
-            fieldRefs.addAll(fieldsEvaluated)
-            true
+    private fun collectFields(dexFile: Dex, dexStrings: DexStrings) {
+        pendingFieldRefs.clear()
+        for (fieldId in dexFile.fieldIds()) {
+            pendingFieldRefs.add(
+                    pack(
+                            dexStrings.typeId(fieldId.declaringClassIndex),
+                            dexStrings.typeId(fieldId.typeIndex),
+                            dexStrings.stringId(fieldId.nameIndex)))
+        }
+    }
+
+    private fun collectMethods(dexFile: Dex, dexStrings: DexStrings) {
+        pendingMethodRefs.clear()
+        for (methodId in dexFile.methodIds()) {
+            pendingMethodRefs.add(
+                    pack(
+                            dexStrings.typeId(methodId.declaringClassIndex),
+                            dexStrings.stringId(methodId.nameIndex),
+                            dexStrings.protoId(methodId.protoIndex)))
         }
     }
 
-    private fun tryAddMethods(dexFile: Dex): Boolean {
-        val methodIds = dexFile.methodIds()
-        val methodsEvaluated = HashSet<MethodEvaluated>(methodIds.size)
-        methodIds.forEach { f -> methodsEvaluated.add(MethodEvaluated.fromDex(f, dexFile)) }
+    /** Returns whether [refs] and [pendingRefs] together fit in a single DEX file. */
+    private fun fits(refs: LongHashSet, pendingRefs: LongHashSet): Boolean {
         // find how many references are shared, and deduct from the total count
-        val shared = Sets.intersection(methodsEvaluated, methodRefs).size
-        return if (methodRefs.size + methodsEvaluated.size - shared > DexFormat.MAX_MEMBER_IDX + 1) {
-            false
-        } else {
-            methodRefs.addAll(methodsEvaluated)
-            true
+        val shared = pendingRefs.countContainedIn(refs)
+        return refs.size() + pendingRefs.size() - shared <= DexFormat.MAX_MEMBER_IDX + 1
+    }
+
+    /** Lazily maps the string, type and proto indices of a DEX file to interned ids. */
+    private class DexStrings(private val dex: Dex, private val interner: ReferenceInterner) {
+        private val stringIds = IntArray(dex.strings().size)
+        private val protoIds = IntArray(dex.protoIds().size)
+
+        fun stringId(stringIndex: Int): Int {
+            var id = stringIds[stringIndex]
+            if (id == 0) {
+                id = interner.intern(dex.strings()[stringIndex])
+                stringIds[stringIndex] = id
+            }
+            return id
+        }
+
+        fun typeId(typeIndex: Int): Int = stringId(dex.typeIds()[typeIndex])
+
+        fun protoId(protoIndex: Int): Int {
+            var id = protoIds[protoIndex]
+            if (id == 0) {
+                val protoId = dex.protoIds()[protoIndex]
+                id =
+                        interner.intern(
+                                dex.typeNames()[protoId.returnTypeIndex] +
+                                        dex.readTypeList(protoId.parametersOffset).toString())
+                protoIds[protoIndex] = id
+            }
+            return id
         }
     }
 
-    private data class FieldEvaluated(
-            val declaringClass: String,
-            val type: String,
-            val name: String
-    ) {
-        companion object {
-            fun fromDex(fieldId: FieldId, dex: Dex): FieldEvaluated {
-                return FieldEvaluated(
-                        dex.typeNames()[fieldId.declaringClassIndex],
-                        dex.typeNames()[fieldId.typeIndex],
-                        dex.strings()[fieldId.nameIndex])
+    /**
+     * Assigns consecutive ids, starting at 1, to strings. The most recently interned strings can be
+     * forgotten with [rollback].
+     */
+    @VisibleForTesting
+    internal class ReferenceInterner {
+        private val ids = HashMap<String, Int>()
+        private val strings = ArrayList<String>()
+
+        fun intern(string: String): Int {
+            return ids.getOrPut(string) {
+                strings.add(string)
+                Preconditions.checkState(
+                        strings.size <= MAX_ID, "Too many distinct strings in DEX references.")
+                strings.size
+            }
+        }
+
+        fun size(): Int = strings.size
+
+        /** Forgets the strings interned after the interner had the given size. */
+        fun rollback(size: Int) {
+            while (strings.size > size) {
+                ids.remove(strings.removeAt(strings.size - 1))
             }
         }
+
+        fun clear() {
+            ids.clear()
+            strings.clear()
+        }
     }
 
-    private data class MethodEvaluated(
-            val declaringClass: String,
-            val name: String,
-            val protoShorty: String,
-            val protoReturnType: String,
-            val protoParameterTypes: String
-    ) {
+    /** An open-addressing set of non-zero longs. */
+    @VisibleForTesting
+    internal class LongHashSet {
+        private var keys = LongArray(INITIAL_CAPACITY)
+        private var size = 0
+
+        fun size(): Int = size
+
+        fun add(key: Long): Boolean {
+            if ((size + 1) * 2 > keys.size) {
+                rehash(keys.size * 2)
+            }
+            return if (insert(keys, key)) {
+                size++
+                true
+            } else {
+                false
+            }
+        }
+
+        fun contains(key: Long): Boolean {
+            val mask = keys.size - 1
+            var slot = mix(key) and mask
+            while (true) {
+                val existing = keys[slot]
+                if (existing == 0L) {
+                    return false
+                } else if (existing == key) {
+                    return true
+                }
+                slot = (slot + 1) and mask
+            }
+        }
+
+        fun addAll(other: LongHashSet) {
+            for (key in other.keys) {
+                if (key != 0L) {
+                    add(key)
+                }
+            }
+        }
+
+        /** Returns the number of keys of this set that are also contained in the given set. */
+        fun countContainedIn(other: LongHashSet): Int {
+            var count = 0
+            for (key in keys) {
+                if (key != 0L && other.contains(key)) {
+                    count++
+                }
+            }
+            return count
+        }
+
+        fun clear() {
+            if (size > 0) {
+                keys.fill(0L)
+                size = 0
+            }
+        }
+
+        private fun insert(table: LongArray, key: Long): Boolean {
+            val mask = table.size - 1
+            var slot = mix(key) and mask
+            while (true) {
+                val existing = table[slot]
+                if (existing == 0L) {
+                    table[slot] = key
+                    return true
+                } else if (existing == key) {
+                    return false
+                }
+                slot = (slot + 1) and mask
+            }
+        }
+
+        private fun rehash(capacity: Int) {
+            val oldKeys = keys
+            keys = LongArray(capacity)
+            for (key in oldKeys) {
+                if (key != 0L) {
+                    insert(keys, key)
+                }
+            }
+        }
+
         companion object {
-            fun fromDex(methodId: MethodId, dex: Dex): MethodEvaluated {
-                val protoId = dex.protoIds()[methodId.protoIndex]
-                return MethodEvaluated(
-                        dex.typeNames()[methodId.declaringClassIndex],
-                        dex.strings()[methodId.nameIndex],
-                        dex.strings()[protoId.shortyIndex],
-                        dex.typeNames()[protoId.returnTypeIndex],
-                        dex.readTypeList(protoId.parametersOffset).toString()
-                )
+            /** Spreads the bits of the given key, to pick its slot in the table. */
+            @VisibleForTesting
+            internal fun mix(key: Long): Int {
+                val h = key * -0x61c8864680b583ebL
+                return (h xor (h ushr 32)).toInt()
             }
         }
     }
+
+    companion object {
+        /** Number of bits used to encode each interned id of a reference. */
+        private const val ID_BITS = 21
+        private const val MAX_ID = (1 shl ID_BITS) - 1
+        @VisibleForTesting internal const val INITIAL_CAPACITY = 1024
+
+        /** Encodes the three ids that make up a field or method reference as a single long. */
+        private fun pack(first: Int, second: Int, third: Int): Long =
+                (first.toLong() shl (2 * ID_BITS)) or
+                        (second.toLong() shl ID_BITS) or
+                        third.toLong()
+    }
 }
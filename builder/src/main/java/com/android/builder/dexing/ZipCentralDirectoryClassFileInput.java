@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.dexing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A {@link ClassFileInput} for jar files that reads the zip central directory directly instead of
+ * going through {@link java.util.zip.ZipFile}.
+ *
+ * <p>Only the names of the central directory records are decoded, so no {@link
+ * java.util.zip.ZipEntry} is allocated for entries rejected by the filter. The contents of an entry
+ * are read with a single positional read of the compressed data: stored entries are read directly
+ * into an array of the exact size, and deflated entries are inflated into such an array by an
+ * {@link Inflater} reused by the calling thread, avoiding the intermediate stream buffers and array
+ * growth of the {@link java.util.zip.ZipFile} path.
+ *
+ * <p>The file is read through a {@link FileChannel} rather than memory-mapped because mapped files
+ * cannot be deleted on Windows until the mapping is garbage collected, and jars given to the dexer
+ * are frequently overwritten during the same build.
+ *
+ * <p>Archives using features this class does not handle (zip64, encryption, compression methods
+ * other than stored and deflated) are read with {@link JarClassFileInput} instead.
+ */
+final class ZipCentralDirectoryClassFileInput implements ClassFileInput {
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final int CENTRAL_DIRECTORY_RECORD_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_DIRECTORY_RECORD_SIZE = 46;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int FLAG_ENCRYPTED = 1;
+
+    /** Inflaters reused by the threads reading deflated entries. */
+    private static final ThreadLocal<Inflater> INFLATER =
+            ThreadLocal.withInitial(() -> new Inflater(true));
+
+    /** Buffers holding the compressed data of deflated entries, reused by the reading threads. */
+    private static final ThreadLocal<byte[]> COMPRESSED_BUFFER =
+            ThreadLocal.withInitial(() -> new byte[8192]);
+
+    @NonNull private final Path rootPath;
+    @Nullable private FileChannel channel;
+    @Nullable private List<Record> records;
+    @Nullable private JarClassFileInput fallback;
+
+    ZipCentralDirectoryClassFileInput(@NonNull Path rootPath) {
+        this.rootPath = rootPath;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        if (fallback != null) {
+            fallback.close();
+        }
+    }
+
+    @Override
+    @NonNull
+    public Stream<ClassFileEntry> entries(Predicate<String> filter) {
+        if (fallback != null) {
+            return fallback.entries(filter);
+        }
+        if (records == null) {
+            try {
+                channel = FileChannel.open(rootPath, StandardOpenOption.READ);
+                records = readCentralDirectory(channel);
+            } catch (IOException e) {
+                closeQuietly();
+                throw new JarClassFileInput.JarClassFileInputsException(
+                        "Unable to read jar file " + rootPath.toString(), e);
+            }
+            if (records == null) {
+                closeQuietly();
+                fallback = new JarClassFileInput(rootPath);
+                return fallback.entries(filter);
+            }
+        }
+
+        Predicate<String> newFilter = CLASS_MATCHER.and(filter);
+        List<ClassFileEntry> entryList = new ArrayList<>();
+        for (Record record : records) {
+            if (newFilter.test(record.name)) {
+                entryList.add(new Entry(record));
+            }
+        }
+        return entryList.stream();
+    }
+
+    @Override
+    public Path getPath() {
+        return rootPath;
+    }
+
+    private void closeQuietly() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // nothing was read from the channel
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Returns the records of the central directory of the given archive, or null if the archive
+     * uses a feature that is not supported by this class.
+     */
+    @Nullable
+    private static List<Record> readCentralDirectory(@NonNull FileChannel channel)
+            throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < END_OF_CENTRAL_DIRECTORY_SIZE) {
+            throw new IOException("Not a zip file: too small");
+        }
+
+        // The end of central directory record is followed by a comment of at most 64KB
+        int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = readFully(channel, fileSize - tailSize, tailSize);
+        int eocd = -1;
+        for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("Not a zip file: end of central directory not found");
+        }
+
+        int entryCount = Short.toUnsignedInt(tail.getShort(eocd + 10));
+        long directorySize = Integer.toUnsignedLong(tail.getInt(eocd + 12));
+        long directoryOffset = Integer.toUnsignedLong(tail.getInt(eocd + 16));
+        if (entryCount == 0xffff
+                || directorySize == 0xffffffffL
+                || directoryOffset == 0xffffffffL
+                || directoryOffset + directorySize > fileSize) {
+            // Zip64 archive, or prefixed data we do not know how to account for
+            return null;
+        }
+
+        ByteBuffer directory = readFully(channel, directoryOffset, (int) directorySize);
+        List<Record> records = new ArrayList<>(entryCount);
+        int position = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (position + CENTRAL_DIRECTORY_RECORD_SIZE > directorySize
+                    || directory.getInt(position) != CENTRAL_DIRECTORY_RECORD_SIGNATURE) {
+                throw new IOException("Invalid central directory record at index " + i);
+            }
+            int flags = Short.toUnsignedInt(directory.getShort(position + 8));
+            int method = Short.toUnsignedInt(directory.getShort(position + 10));
+            long compressedSize = Integer.toUnsignedLong(directory.getInt(position + 20));
+            long size = Integer.toUnsignedLong(directory.getInt(position + 24));
+            int nameLength = Short.toUnsignedInt(directory.getShort(position + 28));
+            int extraLength = Short.toUnsignedInt(directory.getShort(position + 30));
+            int commentLength = Short.toUnsignedInt(directory.getShort(position + 32));
+            long localHeaderOffset = Integer.toUnsignedLong(directory.getInt(position + 42));
+
+            if ((flags & FLAG_ENCRYPTED) != 0
+                    || (method != METHOD_STORED && method != METHOD_DEFLATED)
+                    || compressedSize == 0xffffffffL
+                    || size >= Integer.MAX_VALUE
+                    || localHeaderOffset == 0xffffffffL) {
+                return null;
+            }
+
+            String name =
+                    new String(
+                            directory.array(),
+                            position + CENTRAL_DIRECTORY_RECORD_SIZE,
+                            nameLength,
+                            StandardCharsets.UTF_8);
+            records.add(new Record(name, method, compressedSize, size, localHeaderOffset));
+            position += CENTRAL_DIRECTORY_RECORD_SIZE + nameLength + extraLength + commentLength;
+        }
+        return records;
+    }
+
+    @NonNull
+    private static ByteBuffer readFully(@NonNull FileChannel channel, long position, int size)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, position, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void readFully(
+            @NonNull FileChannel channel, long position, @NonNull ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of zip file");
+            }
+            position += read;
+        }
+    }
+
+    /** The information of a central directory record needed to read the entry contents. */
+    private static final class Record {
+
+        @NonNull private final String name;
+        private final int method;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+
+        private Record(
+                @NonNull String name,
+                int method,
+                long compressedSize,
+                long size,
+                long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    private final class Entry implements ClassFileEntry {
+
+        @NonNull private final Record record;
+
+        private Entry(@NonNull Record record) {
+            this.record = record;
+        }
+
+        @Override
+        public String name() {
+            return "Zip:" + record.name;
+        }
+
+        @Override
+        public long getSize() {
+            return record.size;
+        }
+
+        @Override
+        public String getRelativePath() {
+            return record.name;
+        }
+
+        @NonNull
+        @Override
+        public ClassFileInput getInput() {
+            return ZipCentralDirectoryClassFileInput.this;
+        }
+
+        @Override
+        public byte[] readAllBytes() throws IOException {
+            byte[] bytes = new byte[(int) record.size];
+            int read = readAllBytes(bytes);
+            if (read != bytes.length) {
+                throw new IOException(
+                        "Entry " + record.name + " is shorter than recorded in the zip file");
+            }
+            return bytes;
+        }
+
+        @Override
+        public int readAllBytes(byte[] bytes) throws IOException {
+            FileChannel fileChannel = ZipCentralDirectoryClassFileInput.this.channel;
+            if (fileChannel == null) {
+                throw new IOException("Jar file " + rootPath + " is closed");
+            }
+            long dataOffset = getDataOffset(fileChannel);
+            int length = (int) Math.min(bytes.length, record.size);
+
+            if (record.method == METHOD_STORED) {
+                readFully(fileChannel, dataOffset, ByteBuffer.wrap(bytes, 0, length));
+                return length;
+            }
+
+            // The inflater may need one extra byte past the compressed data when nowrap is set
+            int compressedSize = (int) record.compressedSize;
+            byte[] compressed = COMPRESSED_BUFFER.get();
+            if (compressed.length < compressedSize + 1) {
+                compressed = new byte[compressedSize + 1];
+                COMPRESSED_BUFFER.set(compressed);
+            }
+            readFully(fileChannel, dataOffset, ByteBuffer.wrap(compressed, 0, compressedSize));
+            compressed[compressedSize] = 0;
+
+            Inflater inflater = INFLATER.get();
+            inflater.reset();
+            inflater.setInput(compressed, 0, compressedSize + 1);
+            try {
+                int read = 0;
+                while (read < length) {
+                    int inflated = inflater.inflate(bytes, read, length - read);
+                    if (inflated == 0) {
+                        // The inflater is finished, or needs more input or a dictionary, which
+                        // only a corrupted entry can lead to
+                        break;
+                    }
+                    read += inflated;
+                }
+                if (read != length) {
+                    throw new IOException(
+                            "Entry " + record.name + " is shorter than recorded in the zip file");
+                }
+                return read;
+            } catch (DataFormatException e) {
+                throw new IOException("Unable to inflate entry " + record.name, e);
+            }
+        }
+
+        private long getDataOffset(@NonNull FileChannel fileChannel) throws IOException {
+            ByteBuffer header = readFully(fileChannel, record.localHeaderOffset, LOCAL_HEADER_SIZE);
+            if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid local header for entry " + record.name);
+            }
+            int nameLength = Short.toUnsignedInt(header.getShort(26));
+            int extraLength = Short.toUnsignedInt(header.getShort(28));
+            return record.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+        }
+    }
+}
@@ -44,9 +44,16 @@ import org.apache.commons.codec.binary.Base64;
  *                        // contents are those of "a" before
  *                        // being modified.
  * </pre>
+ *
+ * <p>Zip files only need to be compared with their previous version entry by entry, so they can be
+ * cached as a {@link ZipSnapshot} of their central directory with {@link #addZip(File)} instead of
+ * being copied.
  */
 public class FileCacheByPath {
 
+    /** Suffix of the files holding zip snapshots, the file name being the key of the zip. */
+    private static final String ZIP_SNAPSHOT_SUFFIX = ".zipsnapshot";
+
     /**
      * The directory where the cache exists.
      */
@@ -80,6 +87,36 @@ public class FileCacheByPath {
 
         String k = key(f);
         Files.copy(f, new File(directory, k));
+        FileUtils.deleteIfExists(new File(directory, k + ZIP_SNAPSHOT_SUFFIX));
+    }
+
+    /**
+     * Adds a snapshot of a zip file to the cache, replacing any file or snapshot that had the exact
+     * same absolute path.
+     *
+     * @param zip the zip file to add, must be a valid, existing zip file
+     * @throws IOException failed to read the zip file or to write the snapshot
+     */
+    public void addZip(@NonNull File zip) throws IOException {
+        addZip(zip, ZipSnapshot.fromZip(zip));
+    }
+
+    /**
+     * Adds a snapshot of a zip file to the cache, replacing any file or snapshot that had the exact
+     * same absolute path.
+     *
+     * @param zip the path of the zip file
+     * @param snapshot the snapshot of the zip file
+     * @throws IOException failed to write the snapshot
+     */
+    void addZip(@NonNull File zip, @NonNull ZipSnapshot snapshot) throws IOException {
+        if (!directory.isDirectory()) {
+            FileUtils.mkdirs(directory);
+        }
+
+        String k = key(zip);
+        snapshot.write(new File(directory, k + ZIP_SNAPSHOT_SUFFIX));
+        FileUtils.deleteIfExists(new File(directory, k));
     }
 
     /**
@@ -99,6 +136,30 @@ public class FileCacheByPath {
         }
     }
 
+    /**
+     * Obtains the snapshot of the cached zip file corresponding to the file with the given path.
+     * The zip may have been cached with either {@link #addZip(File)} or {@link #add(File)}.
+     *
+     * @param zip the path
+     * @return the snapshot, {@code null} if there is no zip in the cache that corresponds to the
+     *     given file
+     * @throws IOException failed to read the cached zip or snapshot
+     */
+    @Nullable
+    public ZipSnapshot getZipSnapshot(@NonNull File zip) throws IOException {
+        File snapshotFile = new File(directory, key(zip) + ZIP_SNAPSHOT_SUFFIX);
+        if (snapshotFile.isFile()) {
+            return ZipSnapshot.read(snapshotFile);
+        }
+
+        File copy = get(zip);
+        if (copy != null) {
+            return ZipSnapshot.fromZip(copy);
+        }
+
+        return null;
+    }
+
     /**
      * Removes any cached version of the given path.
      *
@@ -106,10 +167,9 @@ public class FileCacheByPath {
      * @throws IOException failed to remove the file
      */
     public void remove(@NonNull File f) throws IOException {
-        File toRemove = new File(directory, key(f));
-        if (toRemove.exists()) {
-            FileUtils.delete(toRemove);
-        }
+        String k = key(f);
+        FileUtils.deleteIfExists(new File(directory, k));
+        FileUtils.deleteIfExists(new File(directory, k + ZIP_SNAPSHOT_SUFFIX));
     }
 
     /**
@@ -19,15 +19,11 @@ package com.android.builder.files;
 import com.android.annotations.NonNull;
 import com.android.ide.common.resources.FileStatus;
 import com.android.tools.build.apkzlib.utils.IOExceptionRunnable;
-import com.android.tools.build.apkzlib.zip.StoredEntry;
-import com.android.tools.build.apkzlib.zip.StoredEntryType;
-import com.android.tools.build.apkzlib.zip.ZFile;
 import com.google.common.base.Functions;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import com.google.common.io.Closer;
 import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
@@ -105,13 +101,13 @@ public final class IncrementalRelativeFileSets {
 
     /**
      * Computes the incremental file set that results from comparing a zip file with a possibly
-     * existing cached file. If the cached file does not exist, then the whole zip is reported
-     * as {@link FileStatus#NEW}. If {@code zip} does not exist and a cached file exists, then
-     * the whole zip is reported as {@link FileStatus#REMOVED}. Otherwise, both zips are compared
-     * and the difference returned.
+     * existing cached snapshot of it. If there is no snapshot, then the whole zip is reported as
+     * {@link FileStatus#NEW}. If {@code zip} does not exist and a snapshot exists, then the whole
+     * zip is reported as {@link FileStatus#REMOVED}. Otherwise, the central directory of the zip
+     * is compared with the snapshot and the difference returned.
      *
      * @param zip the zip file to read, must be a valid, existing zip file
-     * @param cache the cache where to find the old version of the zip
+     * @param cache the cache where to find the snapshot of the old version of the zip
      * @param cacheUpdates receives all runnables that will update the cache; running all runnables
      * placed in this set will ensure that a second invocation of this method reports no changes
      * @return the file set
@@ -122,8 +118,8 @@ public final class IncrementalRelativeFileSets {
             @NonNull File zip,
             @NonNull FileCacheByPath cache,
             @NonNull Set<Runnable> cacheUpdates) throws IOException {
-        File oldFile = cache.get(zip);
-        if (oldFile == null) {
+        ZipSnapshot oldSnapshot = cache.getZipSnapshot(zip);
+        if (oldSnapshot == null) {
             /*
              * No old zip in cache. If the zip also doesn't exist, report all empty.
              */
@@ -131,8 +127,14 @@ public final class IncrementalRelativeFileSets {
                 return ImmutableMap.of();
             }
 
-            cacheUpdates.add(IOExceptionRunnable.asRunnable(() -> cache.add(zip)));
-            return fromZip(zip, FileStatus.NEW);
+            ZipSnapshot newSnapshot = ZipSnapshot.fromZip(zip);
+            cacheUpdates.add(IOExceptionRunnable.asRunnable(() -> cache.addZip(zip, newSnapshot)));
+
+            ImmutableMap.Builder<RelativeFile, FileStatus> builder = ImmutableMap.builder();
+            for (String path : newSnapshot.getEntries().keySet()) {
+                builder.put(new RelativeFile(zip, path), FileStatus.NEW);
+            }
+            return builder.build();
         }
 
         if (!zip.isFile()) {
@@ -142,18 +144,10 @@ public final class IncrementalRelativeFileSets {
              */
 
             ImmutableMap.Builder<RelativeFile, FileStatus> builder = ImmutableMap.builder();
-
-            try (ZFile zipReader = ZFile.openReadOnly(oldFile)) {
-                for (StoredEntry entry : zipReader.entries()) {
-                    if (entry.getType() == StoredEntryType.FILE) {
-                        builder.put(
-                                new RelativeFile(zip, entry.getCentralDirectoryHeader().getName()),
-                                FileStatus.REMOVED);
-                    }
-                }
+            for (String path : oldSnapshot.getEntries().keySet()) {
+                builder.put(new RelativeFile(zip, path), FileStatus.REMOVED);
             }
 
-
             cacheUpdates.add(IOExceptionRunnable.asRunnable(() -> cache.remove(zip)));
             return builder.build();
         }
@@ -163,59 +157,36 @@ public final class IncrementalRelativeFileSets {
          */
         Map<RelativeFile, FileStatus> result = Maps.newHashMap();
 
-        Closer closer = Closer.create();
-        try {
-            ZFile newZipReader = closer.register(ZFile.openReadOnly(zip));
-            ZFile oldZipReader = closer.register(ZFile.openReadOnly(oldFile));
+        ZipSnapshot newSnapshot = ZipSnapshot.fromZip(zip);
+        Map<String, ZipSnapshot.Entry> oldEntries = oldSnapshot.getEntries();
+        Map<String, ZipSnapshot.Entry> newEntries = newSnapshot.getEntries();
+
+        /*
+         * Search for new and modified files.
+         */
+        for (Map.Entry<String, ZipSnapshot.Entry> entry : newEntries.entrySet()) {
+            ZipSnapshot.Entry oldEntry = oldEntries.get(entry.getKey());
+            if (oldEntry == null) {
+                result.put(new RelativeFile(zip, entry.getKey()), FileStatus.NEW);
+            } else if (!oldEntry.hasSameContents(entry.getValue())) {
+                result.put(new RelativeFile(zip, entry.getKey()), FileStatus.CHANGED);
+            }
 
             /*
-             * Search for new and modified files.
+             * Otherwise, the file exists in both unmodified.
              */
-            for (StoredEntry entry : newZipReader.entries()) {
-                String path = entry.getCentralDirectoryHeader().getName();
-                if (entry.getType() == StoredEntryType.FILE) {
-                    RelativeFile newRelative = new RelativeFile(zip, path);
-
-                    StoredEntry oldEntry = oldZipReader.get(path);
-                    if (oldEntry == null || oldEntry.getType() != StoredEntryType.FILE) {
-                        result.put(newRelative, FileStatus.NEW);
-                        continue;
-                    }
-
-                    if (oldEntry.getCentralDirectoryHeader().getCrc32()
-                            != entry.getCentralDirectoryHeader().getCrc32()
-                            || oldEntry.getCentralDirectoryHeader().getUncompressedSize()
-                            != entry.getCentralDirectoryHeader().getUncompressedSize()) {
-                        result.put(newRelative, FileStatus.CHANGED);
-                    }
-
-                    /*
-                     * If we get here, then the file exists in both unmodified.
-                     */
-                }
-            }
+        }
 
-            for (StoredEntry entry : oldZipReader.entries()) {
-                String path = entry.getCentralDirectoryHeader().getName();
-                if (entry.getType() == StoredEntryType.FILE) {
-                    RelativeFile oldRelative = new RelativeFile(zip, path);
-
-                    StoredEntry newEntry = newZipReader.get(path);
-                    if (newEntry == null || newEntry.getType() != StoredEntryType.FILE) {
-                        /*
-                         * File does not exist in new. It has been deleted.
-                         */
-                        result.put(oldRelative, FileStatus.REMOVED);
-                    }
-                }
+        for (String path : oldEntries.keySet()) {
+            if (!newEntries.containsKey(path)) {
+                /*
+                 * File does not exist in new. It has been deleted.
+                 */
+                result.put(new RelativeFile(zip, path), FileStatus.REMOVED);
             }
-        } catch (Throwable t) {
-            throw closer.rethrow(t, IOException.class);
-        } finally {
-            closer.close();
         }
 
-        cacheUpdates.add(IOExceptionRunnable.asRunnable(() -> cache.add(zip)));
+        cacheUpdates.add(IOExceptionRunnable.asRunnable(() -> cache.addZip(zip, newSnapshot)));
         return ImmutableMap.copyOf(result);
     }
 
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.files;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.concurrency.Immutable;
+import com.android.builder.utils.FileFormatHeader;
+import com.android.tools.build.apkzlib.zip.CentralDirectoryHeader;
+import com.android.tools.build.apkzlib.zip.StoredEntry;
+import com.android.tools.build.apkzlib.zip.StoredEntryType;
+import com.android.tools.build.apkzlib.zip.ZFile;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+/**
+ * Snapshot of the central directory of a zip file: the name, CRC and sizes of each file in the
+ * zip. A snapshot is enough to tell which files of a zip were added, changed or removed since it
+ * was taken, without keeping a copy of the zip itself.
+ *
+ * <p>Snapshots are saved by {@link FileCacheByPath#addZip(File)} as:
+ *
+ * <pre>
+ * header (see {@link FileFormatHeader}), entry count (int)
+ * per entry: name length (int), name (UTF-8), crc (int), compressed size, size, offset (longs)
+ * </pre>
+ */
+@Immutable
+public final class ZipSnapshot {
+
+    private static final FileFormatHeader HEADER = new FileFormatHeader("ZSNP", 1);
+
+    /** The files in the zip, by name, in the order of the central directory. */
+    @NonNull private final ImmutableMap<String, Entry> entries;
+
+    private ZipSnapshot(@NonNull ImmutableMap<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Takes a snapshot of a zip file.
+     *
+     * @param zip the zip file, must be a valid, existing zip file
+     * @return the snapshot
+     * @throws IOException failed to read the zip file
+     */
+    @NonNull
+    public static ZipSnapshot fromZip(@NonNull File zip) throws IOException {
+        Preconditions.checkArgument(zip.isFile(), "!zip.isFile(): %s", zip);
+
+        ImmutableMap.Builder<String, Entry> entries = ImmutableMap.builder();
+        try (ZFile zipReader = ZFile.openReadOnly(zip)) {
+            for (StoredEntry entry : zipReader.entries()) {
+                if (entry.getType() == StoredEntryType.FILE) {
+                    CentralDirectoryHeader header = entry.getCentralDirectoryHeader();
+                    entries.put(
+                            header.getName(),
+                            new Entry(
+                                    header.getCrc32(),
+                                    header.getCompressedSize(),
+                                    header.getUncompressedSize(),
+                                    header.getOffset()));
+                }
+            }
+        }
+        return new ZipSnapshot(entries.build());
+    }
+
+    /**
+     * Obtains the files in the zip, by name.
+     *
+     * @return the files, in the order of the central directory of the zip
+     */
+    @NonNull
+    public ImmutableMap<String, Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Reads a snapshot saved with {@link #write(File)}.
+     *
+     * @param file the file to read
+     * @return the snapshot, {@code null} if the file does not hold a snapshot in the current format
+     * @throws IOException failed to read the file
+     */
+    @Nullable
+    static ZipSnapshot read(@NonNull File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        try {
+            if (!HEADER.read(buffer)) {
+                return null;
+            }
+
+            int count = buffer.getInt();
+            ImmutableMap.Builder<String, Entry> entries = ImmutableMap.builder();
+            for (int i = 0; i < count; i++) {
+                int nameLength = buffer.getInt();
+                if (nameLength < 0 || nameLength > buffer.remaining()) {
+                    return null;
+                }
+                String name =
+                        new String(
+                                buffer.array(),
+                                buffer.position(),
+                                nameLength,
+                                StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + nameLength);
+                entries.put(
+                        name,
+                        new Entry(
+                                buffer.getInt(),
+                                buffer.getLong(),
+                                buffer.getLong(),
+                                buffer.getLong()));
+            }
+
+            if (buffer.hasRemaining()) {
+                return null;
+            }
+            return new ZipSnapshot(entries.build());
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // The file is truncated or corrupted, e.g. it holds the same name twice.
+            return null;
+        }
+    }
+
+    /**
+     * Writes this snapshot to a file, replacing it if it exists.
+     *
+     * @param file the file to write
+     * @throws IOException failed to write the file
+     */
+    void write(@NonNull File file) throws IOException {
+        try (DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            HEADER.write(out);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+
+                Entry value = entry.getValue();
+                out.writeInt((int) value.crc);
+                out.writeLong(value.compressedSize);
+                out.writeLong(value.size);
+                out.writeLong(value.offset);
+            }
+        }
+    }
+
+    /** A file in a zip, as described by the central directory. */
+    @Immutable
+    public static final class Entry {
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long offset;
+
+        private Entry(long crc, long compressedSize, long size, long offset) {
+            this.crc = crc & 0xffffffffL;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+
+        /** Obtains the CRC32 of the uncompressed data of the file. */
+        public long getCrc() {
+            return crc;
+        }
+
+        /** Obtains the size of the file in the zip. */
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        /** Obtains the uncompressed size of the file. */
+        public long getSize() {
+            return size;
+        }
+
+        /** Obtains the offset in the zip of the local header of the file. */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Checks whether this file has the same contents as another one, as far as the central
+         * directory can tell.
+         */
+        public boolean hasSameContents(@NonNull Entry other) {
+            return crc == other.crc && size == other.size;
+        }
+    }
+}
@@ -45,6 +45,20 @@ abstract class Aapt2Daemon(
     var state: State = State.NEW
         private set
 
+    /** The number of files compiled by this daemon. */
+    var compileRequestCount: Long = 0
+        private set
+
+    /** The number of compile round trips to the daemon process, each compiling one or more files. */
+    var compileRoundTripCount: Long = 0
+        private set
+
+    /**
+     * The maximum number of files sent to the daemon process in a single round trip by
+     * [compileAll].
+     */
+    protected open val compileBatchSize: Int get() = 1
+
     private fun checkStarted() {
         when (state) {
             State.NEW -> {
@@ -77,6 +91,8 @@ abstract class Aapt2Daemon(
 
     override fun compile(request: CompileResourceRequest, logger: ILogger) {
         checkStarted()
+        compileRequestCount++
+        compileRoundTripCount++
         try {
             doCompile(request, logger)
         } catch (e: Aapt2Exception) {
@@ -89,6 +105,41 @@ abstract class Aapt2Daemon(
         }
     }
 
+    /**
+     * Compiles all the given files, sending up to [compileBatchSize] requests to the daemon process
+     * in each round trip.
+     *
+     * Unlike [compile], errors in the users sources do not stop the compilation of the remaining
+     * files: the returned list contains, for each request, the [Aapt2Exception] describing why the
+     * file could not be compiled, or null if it was compiled successfully.
+     */
+    fun compileAll(
+            requests: List<CompileResourceRequest>,
+            logger: ILogger): List<Aapt2Exception?> {
+        val results = ArrayList<Aapt2Exception?>(requests.size)
+        for (batch in requests.chunked(compileBatchSize)) {
+            checkStarted()
+            compileRequestCount += batch.size
+            compileRoundTripCount++
+            val batchResults = try {
+                doCompileBatch(batch, logger)
+            } catch (e: TimeoutException) {
+                handleError(
+                        "Compile of ${batch.size} file(s) from '${batch.first().inputFile}' " +
+                                "timed out", e)
+            } catch (e: Exception) {
+                handleError(
+                        "Unexpected error during compile of ${batch.size} file(s) from " +
+                                "'${batch.first().inputFile}'", e)
+            }
+            check(batchResults.size == batch.size) {
+                "$displayName: Expected ${batch.size} compile results, got ${batchResults.size}"
+            }
+            results.addAll(batchResults)
+        }
+        return results
+    }
+
     /**
      * Implementors must compile the file in the request given.
      *
@@ -97,6 +148,26 @@ abstract class Aapt2Daemon(
     @Throws(TimeoutException::class, Aapt2InternalException::class, Aapt2Exception::class)
     protected abstract fun doCompile(request: CompileResourceRequest, logger: ILogger)
 
+    /**
+     * Implementors may override this to compile the files in the requests given in a single round
+     * trip to the daemon process, returning the error of each request, or null for success.
+     *
+     * The batches are at most [compileBatchSize] requests long. The default implementation compiles
+     * the files one by one using [doCompile].
+     */
+    @Throws(TimeoutException::class, Aapt2InternalException::class)
+    protected open fun doCompileBatch(
+            requests: List<CompileResourceRequest>,
+            logger: ILogger): List<Aapt2Exception?> =
+            requests.map { request ->
+                try {
+                    doCompile(request, logger)
+                    null
+                } catch (e: Aapt2Exception) {
+                    e
+                }
+            }
+
     override fun link(request: AaptPackageConfig, logger: ILogger) {
         checkStarted()
         try {
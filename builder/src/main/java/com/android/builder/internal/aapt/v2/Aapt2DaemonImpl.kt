@@ -139,14 +139,7 @@ class Aapt2DaemonImpl(
         try {
             processOutput.delegate = waitForTask
             Aapt2DaemonUtil.requestCompile(writer, request)
-            // Temporary workaround for b/111629686, manually generate the partial R file for raw and non xml res.
-            request.partialRFile?.apply {
-                if (request.inputDirectoryName.startsWith("raw") || !request.inputFile.path.endsWith(".xml")) {
-                    val type = request.inputDirectoryName.substringBefore('-')
-                    val nameWithoutExtension = request.inputFile.name.substringBefore('.')
-                    Files.write(toPath(), ImmutableList.of("default int $type $nameWithoutExtension"))
-                }
-            }
+            writePartialRFileWorkaround(request)
             val result = waitForTask.future.get(daemonTimeouts.compile, daemonTimeouts.compileUnit)
             when (result) {
                 is WaitForTaskCompletion.Result.Succeeded -> {}
@@ -169,6 +162,55 @@ class Aapt2DaemonImpl(
         }
     }
 
+    override val compileBatchSize: Int get() = COMPILE_BATCH_SIZE
+
+    @Throws(TimeoutException::class, Aapt2InternalException::class)
+    override fun doCompileBatch(
+            requests: List<CompileResourceRequest>,
+            logger: ILogger): List<Aapt2Exception?> {
+        val waitForTasks = requests.map { WaitForTaskCompletion(displayName, logger) }
+        try {
+            processOutput.delegate = WaitForTasksCompletion(displayName, logger, waitForTasks)
+            // The daemon processes the requests in order and reports the end of each of them, so
+            // the results can be matched with the requests without waiting after each one.
+            Aapt2DaemonUtil.requestCompile(writer, requests)
+            requests.forEach { writePartialRFileWorkaround(it) }
+            return requests.mapIndexed { index, request ->
+                val result = waitForTasks[index].future.get(
+                        daemonTimeouts.compile, daemonTimeouts.compileUnit)
+                when (result) {
+                    is WaitForTaskCompletion.Result.Succeeded -> null
+                    is WaitForTaskCompletion.Result.Failed -> {
+                        val args = makeCompileCommand(request).joinToString(" \\\n        ")
+                        Aapt2Exception.create(
+                            logger = logger,
+                            description = "Android resource compilation failed",
+                            output = result.stdErr,
+                            processName = displayName,
+                            command = "$aaptPath compile $args"
+                        )
+                    }
+                    is WaitForTaskCompletion.Result.InternalAapt2Error -> {
+                        throw result.failure
+                    }
+                }
+            }
+        } finally {
+            processOutput.delegate = noOutputExpected
+        }
+    }
+
+    /** Temporary workaround for b/111629686, manually generate the partial R file for raw and non xml res. */
+    private fun writePartialRFileWorkaround(request: CompileResourceRequest) {
+        request.partialRFile?.apply {
+            if (request.inputDirectoryName.startsWith("raw") || !request.inputFile.path.endsWith(".xml")) {
+                val type = request.inputDirectoryName.substringBefore('-')
+                val nameWithoutExtension = request.inputFile.name.substringBefore('.')
+                Files.write(toPath(), ImmutableList.of("default int $type $nameWithoutExtension"))
+            }
+        }
+    }
+
     @Throws(TimeoutException::class, Aapt2InternalException::class, Aapt2Exception::class)
     override fun doLink(request: AaptPackageConfig, logger: ILogger) {
         val waitForTask = WaitForTaskCompletion(displayName, logger)
@@ -235,6 +277,14 @@ class Aapt2DaemonImpl(
         }
     }
 
+    companion object {
+        /**
+         * The maximum number of compile requests sent at once to a daemon process. This bounds the
+         * amount of work started before the daemon can be recycled after a failure.
+         */
+        private const val COMPILE_BATCH_SIZE = 50
+    }
+
     class NoOutputExpected(private val displayName: String,
             val logger: ILogger) : GrabProcessOutput.IProcessOutput {
         override fun out(line: String?) {
@@ -340,6 +390,39 @@ class Aapt2DaemonImpl(
         }
     }
 
+    /**
+     * Forwards the output of the daemon to the [WaitForTaskCompletion] of each request of a batch in
+     * turn, moving on to the next request once the current one is complete.
+     */
+    class WaitForTasksCompletion(
+            private val displayName: String,
+            val logger: ILogger,
+            private val tasks: List<WaitForTaskCompletion>) : GrabProcessOutput.IProcessOutput {
+
+        @Volatile
+        private var current = 0
+
+        override fun out(line: String?) {
+            tasks[minOf(current, tasks.size - 1)].out(line)
+        }
+
+        override fun err(line: String?) {
+            if (current >= tasks.size) {
+                line?.let { logger.error(null, "$displayName: Unexpected error output: $it") }
+                return
+            }
+            val task = tasks[current]
+            task.err(line)
+            if (line == null) {
+                // The process exited, none of the remaining requests will complete.
+                tasks.subList(current + 1, tasks.size).forEach { it.err(null) }
+                current = tasks.size
+            } else if (task.future.isDone) {
+                current++
+            }
+        }
+    }
+
     class AllowShutdown(private val displayName: String,
             val logger: ILogger) : GrabProcessOutput.IProcessOutput {
 
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.internal.aapt.v2
+
+import java.util.concurrent.locks.ReentrantLock
+import javax.annotation.concurrent.GuardedBy
+import javax.annotation.concurrent.ThreadSafe
+import kotlin.concurrent.withLock
+
+/**
+ * Limits the number of AAPT2 daemon processes alive at the same time across all the
+ * [Aapt2DaemonManager]s sharing this limiter, e.g. the pools of the different AAPT2 versions used by
+ * the builds running in the same Gradle daemon.
+ *
+ * When the limit is reached, [Aapt2DaemonManager.leaseDaemon] waits until a daemon is returned to
+ * its pool or shut down, or reclaims an idle daemon from another manager if its own pool is empty.
+ */
+@ThreadSafe
+class Aapt2DaemonLimiter(val maxDaemons: Int) {
+
+    init {
+        require(maxDaemons > 0) { "maxDaemons must be positive, was $maxDaemons" }
+    }
+
+    private val lock = ReentrantLock()
+    private val changed = lock.newCondition()
+
+    @GuardedBy("lock")
+    private var liveDaemons = 0
+
+    /** Incremented whenever a daemon is returned or shut down, so waiters never miss a change. */
+    @GuardedBy("lock")
+    private var generation = 0L
+
+    @GuardedBy("lock")
+    private val managers: MutableSet<Aapt2DaemonManager> = LinkedHashSet()
+
+    /** Takes a slot for a new daemon of the given manager, returns false if none is available. */
+    internal fun tryAcquire(manager: Aapt2DaemonManager): Boolean = lock.withLock {
+        if (liveDaemons >= maxDaemons) {
+            return false
+        }
+        liveDaemons++
+        managers.add(manager)
+        return true
+    }
+
+    /** Gives back the slot of a daemon that is no longer in its pool. */
+    internal fun release() = lock.withLock {
+        check(liveDaemons > 0) { "No AAPT2 daemon to release" }
+        liveDaemons--
+        signal()
+    }
+
+    /** Notifies waiting threads that a daemon has been returned to its pool. */
+    internal fun daemonReturned() = lock.withLock { signal() }
+
+    internal fun unregister(manager: Aapt2DaemonManager) = lock.withLock {
+        managers.remove(manager)
+    }
+
+    /** Returns a token to pass to [awaitChange], to be read before checking for a free daemon. */
+    internal fun currentGeneration(): Long = lock.withLock { generation }
+
+    /** Blocks until a daemon has been returned or shut down since [generation] was read. */
+    internal fun awaitChange(generation: Long) = lock.withLock {
+        while (this.generation == generation) {
+            changed.await()
+        }
+    }
+
+    /**
+     * Shuts down an idle daemon of a manager other than [requester] to make room for a new one.
+     *
+     * Returns false if no other manager has an idle daemon.
+     */
+    internal fun reclaimIdleDaemon(requester: Aapt2DaemonManager): Boolean {
+        // Do not hold the lock while calling the managers, which call back into this limiter.
+        val candidates = lock.withLock { managers.filter { it !== requester } }
+        return candidates.any { it.shutDownIdleDaemon() }
+    }
+
+    @GuardedBy("lock")
+    private fun signal() {
+        generation++
+        changed.signalAll()
+    }
+
+    companion object {
+        /** A limiter that never limits, for managers that do not share a limit with others. */
+        @JvmStatic
+        fun unlimited() = Aapt2DaemonLimiter(Int.MAX_VALUE)
+    }
+}
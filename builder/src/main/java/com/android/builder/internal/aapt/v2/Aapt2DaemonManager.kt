@@ -33,8 +33,9 @@ import javax.annotation.concurrent.ThreadSafe
 /**
  * Maintains a pool of AAPT2 daemon processes.
  *
- * The pool is expanded if all processes are busy when a request is received.
- * No attempt is made to limit the size of the pool.
+ * The pool is expanded if all processes are busy when a request is received, as long as the
+ * [Aapt2DaemonLimiter] shared with the other pools allows it. Once the limit is reached, requests
+ * wait for a daemon to become available.
  * Users of this class are expected to manage the desired concurrency level through the use of
  * gradle workers, a thread pool or similar.
  *
@@ -49,7 +50,8 @@ class Aapt2DaemonManager(
         expiryTime: Long,
         expiryTimeUnit: TimeUnit,
         private val listener: Listener = NoOpListener(),
-        private val timeSource: Ticker = Ticker.systemTicker()) {
+        private val timeSource: Ticker = Ticker.systemTicker(),
+        private val limiter: Aapt2DaemonLimiter = Aapt2DaemonLimiter.unlimited()) {
 
     private val expiryTimeNanoSeconds = expiryTimeUnit.toNanos(expiryTime)
 
@@ -59,10 +61,17 @@ class Aapt2DaemonManager(
     @GuardedBy("this")
     private val pool: MutableList<LeasableAaptDaemon> = mutableListOf()
 
+    @GuardedBy("this")
+    private val metrics = MetricsRecorder()
+
     internal class LeasableAaptDaemon(
             val daemon: Aapt2Daemon,
             var lastUsedNanoSeconds: Long,
             var busy: Boolean = false) {
+        val createdNanoSeconds = lastUsedNanoSeconds
+        var leasedNanoSeconds = 0L
+        var recordedCompileRequests = 0L
+        var recordedCompileRoundTrips = 0L
         fun shutdown() = daemon.shutDown()
     }
 
@@ -70,14 +79,37 @@ class Aapt2DaemonManager(
      * Returns a [LeasedAaptDaemon], either from a pool of started daemons,
      * Or starting a new process if all the existing daemons in the pool are in use
      *
+     * If the limit on the number of daemons has been reached, this method blocks until a daemon
+     * of this pool is returned, or until another pool sharing the same limiter shuts one down.
+     * A pool without any daemon would otherwise have to wait for the daemons of the other pools to
+     * expire, so in that case an idle daemon of another pool is shut down to make room instead.
+     *
      * Blocks until the daemon is ready to receive commands.
      */
-    @Synchronized
     fun leaseDaemon(): LeasedAaptDaemon {
-        val daemon =
-                pool.find { !it.busy } ?: newAaptDaemon()
+        val requestedNanoSeconds = timeSource.read()
+        while (true) {
+            val generation = limiter.currentGeneration()
+            tryLeaseDaemon(requestedNanoSeconds)?.let {
+                return LeasedAaptDaemon(it, this::returnProcess)
+            }
+            if (!(isPoolEmpty() && limiter.reclaimIdleDaemon(this))) {
+                limiter.awaitChange(generation)
+            }
+        }
+    }
+
+    @Synchronized
+    private fun isPoolEmpty() = pool.isEmpty()
+
+    @Synchronized
+    private fun tryLeaseDaemon(requestedNanoSeconds: Long): LeasableAaptDaemon? {
+        val daemon = pool.find { !it.busy }
+                ?: if (limiter.tryAcquire(this)) newAaptDaemon() else return null
         daemon.busy = true
-        return LeasedAaptDaemon(daemon, this::returnProcess)
+        daemon.leasedNanoSeconds = timeSource.read()
+        metrics.recordLease(daemon.leasedNanoSeconds - requestedNanoSeconds)
+        return daemon
     }
 
     /**
@@ -86,7 +118,43 @@ class Aapt2DaemonManager(
     // Not synchronized so that the daemons shutting down does not block other requests.
     fun maintain() {
         val expiredDaemons = takeExpiredDaemonsFromPool()
-        expiredDaemons.forEach { it.shutdown() }
+        expiredDaemons.forEach {
+            try {
+                it.shutdown()
+            } finally {
+                limiter.release()
+            }
+        }
+    }
+
+    /**
+     * Shuts down the least recently used idle daemon of this pool, if any, so that another pool
+     * sharing the same [Aapt2DaemonLimiter] can start a daemon.
+     *
+     * Returns false if all the daemons of this pool are in use.
+     */
+    // Not synchronized so that the daemon shutting down does not block other requests.
+    internal fun shutDownIdleDaemon(): Boolean {
+        val daemon = takeIdleDaemonFromPool() ?: return false
+        try {
+            daemon.shutdown()
+        } finally {
+            limiter.release()
+        }
+        return true
+    }
+
+    @Synchronized
+    private fun takeIdleDaemonFromPool(): LeasableAaptDaemon? {
+        val daemon =
+                pool.filter { !it.busy }.sortedBy { it.lastUsedNanoSeconds }.firstOrNull()
+                        ?: return null
+        pool.remove(daemon)
+        metrics.recordRetirement(daemon, timeSource.read())
+        if (pool.isEmpty()) {
+            listener.lastDaemonStopped()
+        }
+        return daemon
     }
 
     /** Shuts down this AAPT process manager. */
@@ -98,14 +166,32 @@ class Aapt2DaemonManager(
         if (!pool.isEmpty()) {
             listener.lastDaemonStopped()
         }
-        pool.forEach { it.shutdown() }
+        val now = timeSource.read()
+        pool.forEach {
+            metrics.recordRetirement(it, now)
+            try {
+                it.shutdown()
+            } finally {
+                limiter.release()
+            }
+        }
         pool.clear()
+        limiter.unregister(this)
+        val poolMetrics = metrics()
+        if (poolMetrics.leaseCount > 0) {
+            logger.verbose("AAPT2 daemon pool metrics: %1\$s", poolMetrics)
+        }
     }
 
     @GuardedBy("this")  // Only called from leaseDaemon, so already synchronized
     private fun newAaptDaemon(): LeasableAaptDaemon {
         val displayId = latestDisplayId++
-        val process = daemonFactory.invoke(displayId)
+        val process = try {
+            daemonFactory.invoke(displayId)
+        } catch (e: Throwable) {
+            limiter.release()
+            throw e
+        }
         val daemon = LeasableAaptDaemon(process, timeSource.read())
         if (pool.isEmpty()) {
             listener.firstDaemonStarted(this)
@@ -117,30 +203,39 @@ class Aapt2DaemonManager(
     /** Marks the process as returned, and updates when it was last used */
     @Synchronized
     private fun returnProcess(key: LeasableAaptDaemon) {
+        val now = timeSource.read()
+        metrics.recordReturn(key, now)
         if (key.daemon.state != Aapt2Daemon.State.RUNNING) {
             // If the daemon was not started or has stopped there's no point keeping it in the pool.
             // No need to shut it down either, that would have already happened if needed.
             pool.remove(key)
+            metrics.recordRetirement(key, now)
+            limiter.release()
             if (pool.isEmpty()) {
                 listener.lastDaemonStopped()
             }
             return
         }
-        key.lastUsedNanoSeconds = timeSource.read()
+        key.lastUsedNanoSeconds = now
         key.busy = false
+        limiter.daemonReturned()
     }
 
     @Synchronized
     private fun takeExpiredDaemonsFromPool(): List<LeasableAaptDaemon> {
         val expired = mutableListOf<LeasableAaptDaemon>()
-        val expireHorizon = timeSource.read() - expiryTimeNanoSeconds
+        val now = timeSource.read()
+        val expireHorizon = now - expiryTimeNanoSeconds
         val oldPool = ArrayList(pool)
         pool.clear()
         for (daemon in oldPool) {
             when {
             // Daemons that are in use, or have been used recently are kept
                 daemon.busy || daemon.lastUsedNanoSeconds >= expireHorizon -> pool.add(daemon)
-                else -> expired.add(daemon)
+                else -> {
+                    metrics.recordRetirement(daemon, now)
+                    expired.add(daemon)
+                }
             }
         }
         if (pool.isEmpty()) {
@@ -170,6 +265,15 @@ class Aapt2DaemonManager(
             leasableDaemon.daemon.compile(request, logger)
         }
 
+        /** See [Aapt2Daemon.compileAll]. */
+        @Throws(Aapt2InternalException::class)
+        fun compileAll(
+                requests: List<CompileResourceRequest>,
+                logger: ILogger): List<Aapt2Exception?> {
+            Preconditions.checkState(leaseValid, "Leased process is already closed")
+            return leasableDaemon.daemon.compileAll(requests, logger)
+        }
+
         @Throws(Aapt2Exception::class)
         override fun link(request: AaptPackageConfig, logger: ILogger) {
             Preconditions.checkState(leaseValid, "Leased process is already closed")
@@ -208,5 +312,85 @@ class Aapt2DaemonManager(
 
     data class Stats(val poolSize: Int, val busyCount: Int)
 
+    /** Returns the metrics of this pool since it was created. */
+    @Synchronized
+    fun metrics(): Metrics = metrics.snapshot(pool, timeSource.read())
+
+    /**
+     * Usage metrics of a pool of daemons.
+     *
+     * @property leaseCount the number of times a daemon was leased
+     * @property totalLeaseWaitNanoSeconds the time spent waiting for a daemon, either for an idle
+     *     daemon or for the daemon limit to allow a new one
+     * @property maxLeaseWaitNanoSeconds the longest time spent waiting for a single lease
+     * @property busyNanoSeconds the cumulated time daemons spent leased
+     * @property aliveNanoSeconds the cumulated time daemons spent in the pool
+     * @property compileRequestCount the number of files compiled
+     * @property compileRoundTripCount the number of compile round trips to daemon processes
+     */
+    data class Metrics(
+            val leaseCount: Long,
+            val totalLeaseWaitNanoSeconds: Long,
+            val maxLeaseWaitNanoSeconds: Long,
+            val busyNanoSeconds: Long,
+            val aliveNanoSeconds: Long,
+            val compileRequestCount: Long,
+            val compileRoundTripCount: Long) {
+
+        val averageLeaseWaitNanoSeconds: Long
+            get() = if (leaseCount == 0L) 0 else totalLeaseWaitNanoSeconds / leaseCount
+
+        /** The fraction of the lifetime of the daemons during which they were in use. */
+        val utilisation: Double
+            get() = if (aliveNanoSeconds == 0L) 0.0
+                    else busyNanoSeconds.toDouble() / aliveNanoSeconds
+
+        val compileRequestsPerRoundTrip: Double
+            get() = if (compileRoundTripCount == 0L) 0.0
+                    else compileRequestCount.toDouble() / compileRoundTripCount
+    }
+
+    @NotThreadSafe
+    private class MetricsRecorder {
+        private var leaseCount = 0L
+        private var totalLeaseWaitNanoSeconds = 0L
+        private var maxLeaseWaitNanoSeconds = 0L
+        private var busyNanoSeconds = 0L
+        private var retiredAliveNanoSeconds = 0L
+        private var compileRequestCount = 0L
+        private var compileRoundTripCount = 0L
+
+        fun recordLease(waitNanoSeconds: Long) {
+            leaseCount++
+            totalLeaseWaitNanoSeconds += waitNanoSeconds
+            maxLeaseWaitNanoSeconds = maxOf(maxLeaseWaitNanoSeconds, waitNanoSeconds)
+        }
+
+        fun recordReturn(daemon: LeasableAaptDaemon, now: Long) {
+            busyNanoSeconds += now - daemon.leasedNanoSeconds
+            compileRequestCount +=
+                    daemon.daemon.compileRequestCount - daemon.recordedCompileRequests
+            compileRoundTripCount +=
+                    daemon.daemon.compileRoundTripCount - daemon.recordedCompileRoundTrips
+            daemon.recordedCompileRequests = daemon.daemon.compileRequestCount
+            daemon.recordedCompileRoundTrips = daemon.daemon.compileRoundTripCount
+        }
+
+        fun recordRetirement(daemon: LeasableAaptDaemon, now: Long) {
+            retiredAliveNanoSeconds += now - daemon.createdNanoSeconds
+        }
+
+        fun snapshot(pool: List<LeasableAaptDaemon>, now: Long) = Metrics(
+                leaseCount = leaseCount,
+                totalLeaseWaitNanoSeconds = totalLeaseWaitNanoSeconds,
+                maxLeaseWaitNanoSeconds = maxLeaseWaitNanoSeconds,
+                busyNanoSeconds = busyNanoSeconds,
+                aliveNanoSeconds = pool.fold(retiredAliveNanoSeconds) { sum, daemon ->
+                    sum + now - daemon.createdNanoSeconds
+                },
+                compileRequestCount = compileRequestCount,
+                compileRoundTripCount = compileRoundTripCount)
+    }
+
 }
 
@@ -34,6 +34,19 @@ public class Aapt2DaemonUtil {
         request(writer, "c", AaptV2CommandBuilder.makeCompileCommand(command));
     }
 
+    /**
+     * Sends all the given compile requests before flushing the writer, so that the daemon can
+     * process them one after another without waiting for a round trip between each of them.
+     */
+    public static void requestCompile(
+            @NonNull Writer writer, @NonNull Iterable<CompileResourceRequest> commands)
+            throws IOException {
+        for (CompileResourceRequest command : commands) {
+            write(writer, "c", AaptV2CommandBuilder.makeCompileCommand(command));
+        }
+        writer.flush();
+    }
+
     public static void requestLink(@NonNull Writer writer, @NonNull AaptPackageConfig command)
             throws IOException {
         ImmutableList<String> args;
@@ -51,6 +64,12 @@ public class Aapt2DaemonUtil {
 
     private static void request(Writer writer, String command, Iterable<String> args)
             throws IOException {
+        write(writer, command, args);
+        writer.flush();
+    }
+
+    private static void write(Writer writer, String command, Iterable<String> args)
+            throws IOException {
         writer.write(command);
         writer.write('\n');
         for (String s : args) {
@@ -60,6 +79,5 @@ public class Aapt2DaemonUtil {
         // Finish the request
         writer.write('\n');
         writer.write('\n');
-        writer.flush();
     }
 }
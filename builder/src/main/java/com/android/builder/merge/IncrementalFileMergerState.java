@@ -17,9 +17,12 @@
 package com.android.builder.merge;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -35,7 +38,9 @@ import java.util.Set;
  * build using {@link #IncrementalFileMergerState()}.
  *
  * <p>States are serializable so they can be persisted across invocations of merge operations. They
- * are also immutable. The incremental merger will build new instances using {@link Builder}.
+ * are also immutable. The incremental merger will build new instances using {@link Builder}. To
+ * persist states in files, prefer {@link #write(File)} and {@link #read(File)} that use a compact
+ * binary format that is much faster to load than Java serialization.
  *
  * <p>Users of the incremental merger will generally not need to use anything from the state,
  * except providing it to invocations of
@@ -47,7 +52,7 @@ public final class IncrementalFileMergerState implements Serializable {
     /**
      * Version for serialization.
      */
-    private static final long serialVersionUID = 1;
+    private static final long serialVersionUID = 2;
 
     /**
      * Names of all inputs to merge, in order.
@@ -68,7 +73,8 @@ public final class IncrementalFileMergerState implements Serializable {
      * value set of {@link #origin}. For each key in {@link #byInput}, its values are all keys
      * in {@link #origin} whose value contains the key.
      *
-     * <p>However, for performance reasons, this is precomputed.
+     * <p>However, for performance reasons, this is computed once when first needed and is not
+     * serialized. Use {@link #getByInput()} to access it.
      *
      * <p>For example, if we have a structure of:
      * <pre>
@@ -94,8 +100,7 @@ public final class IncrementalFileMergerState implements Serializable {
      * input2 -> path1, path3
      * </pre>
      */
-    @NonNull
-    private final ImmutableMap<String, ImmutableSet<String>> byInput;
+    @Nullable private transient volatile ImmutableMap<String, ImmutableSet<String>> byInput;
 
     /**
      * Creates a new, empty, state. This is useful to create a full build as a full build is an
@@ -135,6 +140,45 @@ public final class IncrementalFileMergerState implements Serializable {
         this.byInput = byInputBuilder.build();
     }
 
+    /**
+     * Creates a new state from already immutable data, computing {@link #byInput} lazily. This is
+     * invoked when reading a state from a file.
+     *
+     * @param inputNames the names of the inputs for the merge
+     * @param origin maps OS-independent paths to the names of the inputs that contributed to the
+     *     merged output path
+     */
+    IncrementalFileMergerState(
+            @NonNull ImmutableList<String> inputNames,
+            @NonNull ImmutableMap<String, ImmutableList<String>> origin) {
+        this.inputNames = inputNames;
+        this.origin = origin;
+    }
+
+    /**
+     * Reads a state written by {@link #write(File)}.
+     *
+     * @param file the file to read
+     * @return the state, {@code null} if the file does not contain a state in a format known by
+     *     this version of the merger, in which case a full merge should be performed
+     * @throws IOException failed to read the file
+     */
+    @Nullable
+    public static IncrementalFileMergerState read(@NonNull File file) throws IOException {
+        return IncrementalFileMergerStateSerializer.read(file);
+    }
+
+    /**
+     * Writes this state to a file, so that it can be read with {@link #read(File)}. The file is
+     * left untouched if it already contains this state.
+     *
+     * @param file the file to write
+     * @throws IOException failed to write the file
+     */
+    public void write(@NonNull File file) throws IOException {
+        IncrementalFileMergerStateSerializer.write(this, file);
+    }
+
     /**
      * Obtains the names of inputs.
      *
@@ -162,6 +206,17 @@ public final class IncrementalFileMergerState implements Serializable {
         }
     }
 
+    /**
+     * Obtains the map of all OS-independent paths, with the names of the inputs that contributed
+     * to them.
+     *
+     * @return the map
+     */
+    @NonNull
+    ImmutableMap<String, ImmutableList<String>> getOrigin() {
+        return origin;
+    }
+
     /**
      * Obtains the set of all OS-independent paths that correspond to an input.
      *
@@ -170,7 +225,7 @@ public final class IncrementalFileMergerState implements Serializable {
      */
     @NonNull
     ImmutableSet<String> filesOf(@NonNull String name) {
-        ImmutableSet<String> files = byInput.get(name);
+        ImmutableSet<String> files = getByInput().get(name);
         if (files == null) {
             return ImmutableSet.of();
         } else {
@@ -178,6 +233,35 @@ public final class IncrementalFileMergerState implements Serializable {
         }
     }
 
+    /**
+     * Obtains {@link #byInput}, computing it from {@link #origin} if needed.
+     *
+     * @return the map of input names to the paths they contain
+     */
+    @NonNull
+    private ImmutableMap<String, ImmutableSet<String>> getByInput() {
+        ImmutableMap<String, ImmutableSet<String>> result = byInput;
+        if (result == null) {
+            Map<String, ImmutableSet.Builder<String>> builders = new HashMap<>();
+            for (Map.Entry<String, ImmutableList<String>> e : origin.entrySet()) {
+                for (String name : e.getValue()) {
+                    builders.computeIfAbsent(name, k -> ImmutableSet.builder()).add(e.getKey());
+                }
+            }
+
+            ImmutableMap.Builder<String, ImmutableSet<String>> byInputBuilder =
+                    ImmutableMap.builder();
+            for (Map.Entry<String, ImmutableSet.Builder<String>> e : builders.entrySet()) {
+                byInputBuilder.put(e.getKey(), e.getValue().build());
+            }
+
+            result = byInputBuilder.build();
+            byInput = result;
+        }
+
+        return result;
+    }
+
     /**
      * Builder used to create a {@link IncrementalFileMergerState}.
      */
@@ -212,7 +296,7 @@ public final class IncrementalFileMergerState implements Serializable {
             }
 
             byInput = new HashMap<>();
-            for (Map.Entry<String, ImmutableSet<String>> e : state.byInput.entrySet()) {
+            for (Map.Entry<String, ImmutableSet<String>> e : state.getByInput().entrySet()) {
                 byInput.put(e.getKey(), new HashSet<>(e.getValue()));
             }
         }
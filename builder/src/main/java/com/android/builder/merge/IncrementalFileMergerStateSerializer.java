@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.merge;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.utils.FileFormatHeader;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes {@link IncrementalFileMergerState} in a compact binary format.
+ *
+ * <p>Merge states can hold hundreds of thousands of paths that share a few directories and are
+ * mostly contributed by a single input. The format therefore stores each input name, path segment
+ * and directory only once, and refers to them by index:
+ *
+ * <pre>
+ * header (see {@link FileFormatHeader})
+ * input names: count, names (strings)
+ * segments: count, segments (strings)
+ * directories: count, (parent directory + 1, segment) per directory, parents first
+ * paths: count, (directory + 1, segment, input count, inputs) per path
+ * </pre>
+ *
+ * <p>All counts and indexes are unsigned varints, and strings are UTF-8 bytes prefixed by their
+ * length, as encoded by {@link CodedOutputStream}. Paths are sorted so that the encoding of a state
+ * does not depend on the order in which it was built, which lets {@link
+ * #write(IncrementalFileMergerState, File)} skip rewriting a file that already holds the same
+ * state.
+ */
+final class IncrementalFileMergerStateSerializer {
+
+    private static final FileFormatHeader HEADER = new FileFormatHeader("IFMS", 1);
+
+    /** Utility class: no constructor. */
+    private IncrementalFileMergerStateSerializer() {}
+
+    /**
+     * Reads a state from a file.
+     *
+     * @param file the file to read
+     * @return the state, {@code null} if the file does not hold a state in the current format
+     * @throws IOException failed to read the file
+     */
+    @Nullable
+    static IncrementalFileMergerState read(@NonNull File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        try {
+            return decode(bytes);
+        } catch (InvalidProtocolBufferException
+                | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            // The file is truncated or corrupted, e.g. it holds the same path twice; a full merge
+            // will rebuild it.
+            return null;
+        }
+    }
+
+    /**
+     * Writes a state to a file, unless the file already holds the same state.
+     *
+     * @param state the state to write
+     * @param file the file to write
+     * @throws IOException failed to write the file
+     */
+    static void write(@NonNull IncrementalFileMergerState state, @NonNull File file)
+            throws IOException {
+        byte[] bytes = encode(state);
+        if (file.isFile()
+                && file.length() == bytes.length
+                && Arrays.equals(Files.readAllBytes(file.toPath()), bytes)) {
+            return;
+        }
+
+        Files.write(file.toPath(), bytes);
+    }
+
+    @Nullable
+    private static IncrementalFileMergerState decode(@NonNull byte[] bytes) throws IOException {
+        if (!HEADER.read(ByteBuffer.wrap(bytes))) {
+            return null;
+        }
+        CodedInputStream in =
+                CodedInputStream.newInstance(
+                        bytes, FileFormatHeader.SIZE, bytes.length - FileFormatHeader.SIZE);
+
+        String[] inputNames = new String[readLength(in, bytes)];
+        // Most paths come from a single input, so their lists are shared.
+        List<ImmutableList<String>> singleInputLists = new ArrayList<>(inputNames.length);
+        for (int i = 0; i < inputNames.length; i++) {
+            inputNames[i] = in.readString();
+            singleInputLists.add(ImmutableList.of(inputNames[i]));
+        }
+
+        String[] segments = new String[readLength(in, bytes)];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = in.readString();
+        }
+
+        String[] directories = new String[readLength(in, bytes)];
+        for (int i = 0; i < directories.length; i++) {
+            int parent = in.readUInt32() - 1;
+            String segment = segments[in.readUInt32()];
+            if (parent < -1 || parent >= i) {
+                return null;
+            }
+            directories[i] = parent < 0 ? segment : directories[parent] + "/" + segment;
+        }
+
+        int pathCount = in.readUInt32();
+        ImmutableMap.Builder<String, ImmutableList<String>> origin = ImmutableMap.builder();
+        for (int i = 0; i < pathCount; i++) {
+            int directory = in.readUInt32() - 1;
+            String segment = segments[in.readUInt32()];
+            String path = directory < 0 ? segment : directories[directory] + "/" + segment;
+
+            int inputCount = in.readUInt32();
+            ImmutableList<String> inputs;
+            if (inputCount == 1) {
+                inputs = singleInputLists.get(in.readUInt32());
+            } else {
+                ImmutableList.Builder<String> builder = ImmutableList.builder();
+                for (int j = 0; j < inputCount; j++) {
+                    builder.add(inputNames[in.readUInt32()]);
+                }
+                inputs = builder.build();
+            }
+            origin.put(path, inputs);
+        }
+
+        if (!in.isAtEnd()) {
+            return null;
+        }
+
+        return new IncrementalFileMergerState(ImmutableList.copyOf(inputNames), origin.build());
+    }
+
+    @NonNull
+    private static byte[] encode(@NonNull IncrementalFileMergerState state) throws IOException {
+        ImmutableList<String> inputNames = state.getInputNames();
+        Map<String, Integer> inputIds = new HashMap<>();
+        for (String name : inputNames) {
+            inputIds.putIfAbsent(name, inputIds.size());
+        }
+
+        List<String> paths = new ArrayList<>(state.getOrigin().keySet());
+        paths.sort(null);
+
+        Interner segments = new Interner();
+        Map<String, Integer> directoryIds = new HashMap<>();
+        List<int[]> directories = new ArrayList<>();
+        int[][] encodedPaths = new int[paths.size()][];
+        for (int i = 0; i < paths.size(); i++) {
+            String path = paths.get(i);
+            int slash = path.lastIndexOf('/');
+            int directory = slash < 0 ? -1 : internDirectory(
+                    path.substring(0, slash), segments, directoryIds, directories);
+            encodedPaths[i] = new int[] {directory, segments.intern(path.substring(slash + 1))};
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        HEADER.write(new DataOutputStream(bytes));
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+
+        out.writeUInt32NoTag(inputNames.size());
+        for (String name : inputNames) {
+            out.writeStringNoTag(name);
+        }
+
+        out.writeUInt32NoTag(segments.values.size());
+        for (String segment : segments.values) {
+            out.writeStringNoTag(segment);
+        }
+
+        out.writeUInt32NoTag(directories.size());
+        for (int[] directory : directories) {
+            out.writeUInt32NoTag(directory[0] + 1);
+            out.writeUInt32NoTag(directory[1]);
+        }
+
+        out.writeUInt32NoTag(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            out.writeUInt32NoTag(encodedPaths[i][0] + 1);
+            out.writeUInt32NoTag(encodedPaths[i][1]);
+
+            ImmutableList<String> inputs = state.inputsFor(paths.get(i));
+            out.writeUInt32NoTag(inputs.size());
+            for (String input : inputs) {
+                Integer id = inputIds.get(input);
+                if (id == null) {
+                    throw new IllegalStateException(
+                            "Path " + paths.get(i) + " has unknown input " + input);
+                }
+                out.writeUInt32NoTag(id);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the index of the given directory, adding it and its parents to the directories if
+     * needed. Parents are always added before their children.
+     */
+    private static int internDirectory(
+            @NonNull String directory,
+            @NonNull Interner segments,
+            @NonNull Map<String, Integer> directoryIds,
+            @NonNull List<int[]> directories) {
+        Integer id = directoryIds.get(directory);
+        if (id != null) {
+            return id;
+        }
+
+        int slash = directory.lastIndexOf('/');
+        int parent = slash < 0 ? -1 : internDirectory(
+                directory.substring(0, slash), segments, directoryIds, directories);
+        directories.add(new int[] {parent, segments.intern(directory.substring(slash + 1))});
+        directoryIds.put(directory, directories.size() - 1);
+        return directories.size() - 1;
+    }
+
+    /**
+     * Reads the length of an array whose elements take at least one byte each in the file, so that
+     * a corrupted length cannot make the array larger than the file.
+     */
+    private static int readLength(@NonNull CodedInputStream in, @NonNull byte[] bytes)
+            throws IOException {
+        int length = in.readUInt32();
+        if (length < 0 || length > bytes.length) {
+            throw new InvalidProtocolBufferException("Invalid length " + length);
+        }
+        return length;
+    }
+
+    /** Assigns consecutive indexes to distinct strings. */
+    private static final class Interner {
+        @NonNull private final Map<String, Integer> ids = new HashMap<>();
+        @NonNull private final List<String> values = new ArrayList<>();
+
+        int intern(@NonNull String value) {
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = values.size();
+                ids.put(value, id);
+                values.add(value);
+            }
+            return id;
+        }
+    }
+}
@@ -21,8 +21,11 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.utils.PathUtils;
 import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.io.ByteStreams;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
@@ -36,14 +39,19 @@ import java.nio.file.attribute.FileTime;
 import java.util.Map;
 import java.util.function.Predicate;
 import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
-/** Jar Merger class. */
+/**
+ * Jar Merger class.
+ *
+ * <p>All the entries of the output jar have the same, fixed timestamps so that the output only
+ * depends on the inputs. The entries added from other jars are copied with their compressed data
+ * as is, without being inflated and compressed again, when the input jars can be read from their
+ * zip central directory (see {@link ZipArchiveReader}).
+ */
 public class JarMerger implements Closeable {
 
     public static final Predicate<String> CLASSES_ONLY =
@@ -73,9 +81,7 @@ public class JarMerger implements Closeable {
 
     public static final FileTime ZERO_TIME = FileTime.fromMillis(0);
 
-    private final byte[] buffer = new byte[8192];
-
-    @NonNull private final JarOutputStream jarOutputStream;
+    @NonNull private final ZipArchiveWriter zipArchiveWriter;
 
     @Nullable private final Predicate<String> filter;
 
@@ -86,8 +92,8 @@ public class JarMerger implements Closeable {
     public JarMerger(@NonNull Path jarFile, @Nullable Predicate<String> filter) throws IOException {
         this.filter = filter;
         Files.createDirectories(jarFile.getParent());
-        jarOutputStream =
-                new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(jarFile)));
+        zipArchiveWriter =
+                new ZipArchiveWriter(new BufferedOutputStream(Files.newOutputStream(jarFile)));
     }
 
     public void addDirectory(@NonNull Path directory) throws IOException {
@@ -127,10 +133,10 @@ public class JarMerger implements Closeable {
                 if (transformer != null) {
                     @Nullable InputStream is2 = transformer.filter(entryPath, is);
                     if (is2 != null) {
-                        write(new JarEntry(entryPath), is2);
+                        zipArchiveWriter.writeEntry(entryPath, is2);
                     }
                 } else {
-                    write(new JarEntry(entryPath), is);
+                    zipArchiveWriter.writeEntry(entryPath, is);
                 }
             }
         }
@@ -145,6 +151,20 @@ public class JarMerger implements Closeable {
             @Nullable Predicate<String> filterOverride,
             @Nullable Relocator relocator)
             throws IOException {
+        try (ZipArchiveReader reader = ZipArchiveReader.open(file)) {
+            if (reader != null) {
+                for (ZipArchiveReader.Entry entry : reader.getEntries()) {
+                    String name = getEntryName(entry.name, filterOverride, relocator);
+                    if (name != null && !entry.isDirectory()) {
+                        // copy the compressed data of the entry as is.
+                        zipArchiveWriter.writeRawEntry(name, entry, reader);
+                    }
+                }
+                return;
+            }
+        }
+
+        // The jar uses zip features that are not handled by ZipArchiveReader.
         try (ZipInputStream zis =
                 new ZipInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
 
@@ -156,50 +176,61 @@ public class JarMerger implements Closeable {
                     continue;
                 }
 
-                // Filter out files, e.g. META-INF folder, not classes.
-                String name = entry.getName();
-                if (filterOverride != null && !filterOverride.test(name)) {
+                String name = getEntryName(entry.getName(), filterOverride, relocator);
+                if (name == null) {
                     continue;
                 }
 
-                if (relocator != null) {
-                    name = relocator.relocate(name);
-                }
-
-                if (name.contains("../")) {
-                    throw new InvalidPathException(name, "Entry name contains invalid characters");
-                }
-                JarEntry newEntry = new JarEntry(name);
-                newEntry.setMethod(entry.getMethod());
-                if (newEntry.getMethod() == ZipEntry.STORED) {
-                    newEntry.setSize(entry.getSize());
-                    newEntry.setCompressedSize(entry.getCompressedSize());
-                    newEntry.setCrc(entry.getCrc());
-                }
-                newEntry.setLastModifiedTime(FileTime.fromMillis(0));
-
                 // read the content of the entry from the input stream, and write it into the
                 // archive.
-                write(newEntry, zis);
+                if (entry.getMethod() == ZipEntry.STORED) {
+                    zipArchiveWriter.writeStoredEntry(name, ByteStreams.toByteArray(zis));
+                } else {
+                    zipArchiveWriter.writeEntry(name, zis);
+                }
             }
         }
     }
 
+    /**
+     * Returns the name of the given entry of a jar in the merged jar, or null if the entry is
+     * filtered out.
+     */
+    @Nullable
+    private static String getEntryName(
+            @NonNull String name,
+            @Nullable Predicate<String> filterOverride,
+            @Nullable Relocator relocator) {
+        // Filter out files, e.g. META-INF folder, not classes.
+        if (filterOverride != null && !filterOverride.test(name)) {
+            return null;
+        }
+
+        if (relocator != null) {
+            name = relocator.relocate(name);
+        }
+
+        if (name.contains("../")) {
+            throw new InvalidPathException(name, "Entry name contains invalid characters");
+        }
+        return name;
+    }
+
     public void addFile(@NonNull String entryPath, @NonNull Path file) throws IOException {
         try (InputStream is = new BufferedInputStream(Files.newInputStream(file))) {
-            write(new JarEntry(entryPath), is);
+            zipArchiveWriter.writeEntry(entryPath, is);
         }
     }
 
     public void addEntry(@NonNull String entryPath, @NonNull InputStream input) throws IOException {
         try (InputStream is = new BufferedInputStream(input)) {
-            write(new JarEntry(entryPath), is);
+            zipArchiveWriter.writeEntry(entryPath, is);
         }
     }
 
     @Override
     public void close() throws IOException {
-        jarOutputStream.close();
+        zipArchiveWriter.close();
     }
 
     public void setManifestProperties(Map<String, String> properties) throws IOException {
@@ -209,29 +240,9 @@ public class JarMerger implements Closeable {
         properties.forEach(
                 (attributeName, attributeValue) ->
                         global.put(new Attributes.Name(attributeName), attributeValue));
-        JarEntry manifestEntry = new JarEntry(JarFile.MANIFEST_NAME);
-        setEntryAttributes(manifestEntry);
-        jarOutputStream.putNextEntry(manifestEntry);
-        try {
-            manifest.write(jarOutputStream);
-        } finally {
-            jarOutputStream.closeEntry();
-        }
-    }
-
-    private void write(@NonNull JarEntry entry, @NonNull InputStream from) throws IOException {
-        setEntryAttributes(entry);
-        jarOutputStream.putNextEntry(entry);
-        int count;
-        while ((count = from.read(buffer)) != -1) {
-            jarOutputStream.write(buffer, 0, count);
-        }
-        jarOutputStream.closeEntry();
-    }
-
-    private void setEntryAttributes(@NonNull JarEntry entry) {
-        entry.setLastModifiedTime(ZERO_TIME);
-        entry.setLastAccessTime(ZERO_TIME);
-        entry.setCreationTime(ZERO_TIME);
+        ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        manifest.write(manifestBytes);
+        zipArchiveWriter.writeEntry(
+                JarFile.MANIFEST_NAME, new ByteArrayInputStream(manifestBytes.toByteArray()));
     }
 }
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.packaging;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.concurrency.Immutable;
+import com.google.common.collect.ImmutableList;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Reads the entries of a zip file from its central directory, giving access to the compressed
+ * data of each entry so that it can be copied to another archive without being inflated.
+ *
+ * <p>Archives using features this class does not handle (zip64, multiple disks, encryption,
+ * compression methods other than stored and deflated) are not opened, see {@link #open(Path)}.
+ */
+final class ZipArchiveReader implements Closeable {
+
+    static final int METHOD_STORED = 0;
+    static final int METHOD_DEFLATED = 8;
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final int CENTRAL_DIRECTORY_RECORD_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_DIRECTORY_RECORD_SIZE = 46;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    private static final int FLAG_ENCRYPTED = 1;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+
+    @NonNull private final SeekableByteChannel channel;
+    @NonNull private final ImmutableList<Entry> entries;
+
+    private ZipArchiveReader(
+            @NonNull SeekableByteChannel channel, @NonNull ImmutableList<Entry> entries) {
+        this.channel = channel;
+        this.entries = entries;
+    }
+
+    /**
+     * Opens the given zip file, or returns null if it uses a feature this class does not handle,
+     * in which case it should be read with {@link java.util.zip.ZipInputStream} instead.
+     */
+    @Nullable
+    static ZipArchiveReader open(@NonNull Path zip) throws IOException {
+        SeekableByteChannel channel = Files.newByteChannel(zip);
+        try {
+            ImmutableList<Entry> entries = readCentralDirectory(channel);
+            if (entries == null) {
+                channel.close();
+                return null;
+            }
+            return new ZipArchiveReader(channel, entries);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** Returns the entries of the archive, in the order of the central directory. */
+    @NonNull
+    ImmutableList<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns the offset in the archive of the compressed data of the given entry, which is
+     * {@link Entry#compressedSize} bytes long.
+     */
+    long getDataOffset(@NonNull Entry entry) throws IOException {
+        ByteBuffer header = read(channel, entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid local header for zip entry " + entry.name);
+        }
+        int nameLength = Short.toUnsignedInt(header.getShort(26));
+        int extraLength = Short.toUnsignedInt(header.getShort(28));
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    /** Returns the channel the compressed data of the entries is read from. */
+    @NonNull
+    SeekableByteChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Nullable
+    private static ImmutableList<Entry> readCentralDirectory(@NonNull SeekableByteChannel channel)
+            throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < END_OF_CENTRAL_DIRECTORY_SIZE) {
+            return null;
+        }
+        int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = read(channel, fileSize - tailSize, tailSize);
+        int eocd = -1;
+        for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            return null;
+        }
+        int diskNumber = Short.toUnsignedInt(tail.getShort(eocd + 4));
+        int centralDirectoryDisk = Short.toUnsignedInt(tail.getShort(eocd + 6));
+        int entriesOnDisk = Short.toUnsignedInt(tail.getShort(eocd + 8));
+        int entryCount = Short.toUnsignedInt(tail.getShort(eocd + 10));
+        long centralDirectorySize = Integer.toUnsignedLong(tail.getInt(eocd + 12));
+        long centralDirectoryOffset = Integer.toUnsignedLong(tail.getInt(eocd + 16));
+        if (diskNumber != 0
+                || centralDirectoryDisk != 0
+                || entriesOnDisk != entryCount
+                || entryCount == 0xffff
+                || centralDirectorySize == ZIP64_MAGIC
+                || centralDirectoryOffset == ZIP64_MAGIC
+                || centralDirectoryOffset + centralDirectorySize > fileSize
+                || centralDirectorySize > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        ByteBuffer centralDirectory =
+                read(channel, centralDirectoryOffset, (int) centralDirectorySize);
+        ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+        int position = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (position + CENTRAL_DIRECTORY_RECORD_SIZE > centralDirectory.limit()
+                    || centralDirectory.getInt(position) != CENTRAL_DIRECTORY_RECORD_SIGNATURE) {
+                return null;
+            }
+            int flags = Short.toUnsignedInt(centralDirectory.getShort(position + 8));
+            int method = Short.toUnsignedInt(centralDirectory.getShort(position + 10));
+            long crc = Integer.toUnsignedLong(centralDirectory.getInt(position + 16));
+            long compressedSize = Integer.toUnsignedLong(centralDirectory.getInt(position + 20));
+            long size = Integer.toUnsignedLong(centralDirectory.getInt(position + 24));
+            int nameLength = Short.toUnsignedInt(centralDirectory.getShort(position + 28));
+            int extraLength = Short.toUnsignedInt(centralDirectory.getShort(position + 30));
+            int commentLength = Short.toUnsignedInt(centralDirectory.getShort(position + 32));
+            long localHeaderOffset = Integer.toUnsignedLong(centralDirectory.getInt(position + 42));
+            if ((flags & FLAG_ENCRYPTED) != 0
+                    || (method != METHOD_STORED && method != METHOD_DEFLATED)
+                    || compressedSize == ZIP64_MAGIC
+                    || size == ZIP64_MAGIC
+                    || localHeaderOffset == ZIP64_MAGIC
+                    || position + CENTRAL_DIRECTORY_RECORD_SIZE + nameLength
+                            > centralDirectory.limit()) {
+                return null;
+            }
+            String name =
+                    new String(
+                            centralDirectory.array(),
+                            centralDirectory.arrayOffset()
+                                    + position
+                                    + CENTRAL_DIRECTORY_RECORD_SIZE,
+                            nameLength,
+                            StandardCharsets.UTF_8);
+            entries.add(new Entry(name, method, crc, compressedSize, size, localHeaderOffset));
+            position += CENTRAL_DIRECTORY_RECORD_SIZE + nameLength + extraLength + commentLength;
+        }
+        return entries.build();
+    }
+
+    @NonNull
+    private static ByteBuffer read(
+            @NonNull SeekableByteChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        channel.position(position);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Unexpected end of zip file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /** An entry of the central directory. */
+    @Immutable
+    static final class Entry {
+        @NonNull final String name;
+        final int method;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+
+        private Entry(
+                @NonNull String name,
+                int method,
+                long crc,
+                long compressedSize,
+                long size,
+                long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+}
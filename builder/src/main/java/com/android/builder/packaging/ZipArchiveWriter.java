@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.packaging;
+
+import com.android.annotations.NonNull;
+import com.google.common.io.CountingOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a jar file whose entries all have the same, fixed timestamps, so that the output only
+ * depends on the names and contents of the entries.
+ *
+ * <p>Unlike {@link java.util.jar.JarOutputStream}, which produces the same output for the same
+ * entries, this writer can copy the compressed data of an entry of another zip file as is (see
+ * {@link #writeRawEntry}), so entries merged from other jars are not inflated and compressed again.
+ *
+ * <p>Entries are deflated with the default compression level, with their CRC and sizes written in a
+ * data descriptor after their data, like {@link java.util.zip.ZipOutputStream} does. Archives that
+ * need zip64 records for their entry count or size are supported; single entries larger than 4GB
+ * are not.
+ */
+final class ZipArchiveWriter implements Closeable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_DIRECTORY_RECORD_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+    private static final int VERSION_ZIP64 = 45;
+
+    /** The DOS date and time of all entries: 1980-01-01 00:00, the earliest DOS timestamp. */
+    private static final int DOS_TIME = (1 << 21) | (1 << 16);
+
+    /** The header ID of the extended timestamp extra field, holding the epoch for all entries. */
+    private static final int EXTENDED_TIMESTAMP_ID = 0x5455;
+    /** The flags of the extended timestamp, indicating modification, access and creation times. */
+    private static final int EXTENDED_TIMESTAMP_FLAGS = 0x7;
+    /** The header ID of the extra field marking the first entry of an executable jar. */
+    private static final int JAR_MAGIC_ID = 0xcafe;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final long MAX_UINT32 = 0xffffffffL;
+    private static final int MAX_UINT16 = 0xffff;
+
+    @NonNull private final CountingOutputStream out;
+    /** The central directory, written to the output when the archive is closed. */
+    @NonNull private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+    @NonNull private final Set<String> names = new HashSet<>();
+    @NonNull private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    @NonNull private final CRC32 crc = new CRC32();
+    @NonNull private final byte[] buffer = new byte[8192];
+    @NonNull private final byte[] deflateBuffer = new byte[8192];
+    private int entryCount = 0;
+    private boolean closed = false;
+
+    ZipArchiveWriter(@NonNull OutputStream out) {
+        this.out = new CountingOutputStream(out);
+    }
+
+    /** Writes an entry with the given contents, deflating them. */
+    void writeEntry(@NonNull String name, @NonNull InputStream contents) throws IOException {
+        byte[] encodedName = checkName(name);
+        long offset = out.getCount();
+        writeLocalHeader(
+                encodedName, FLAG_DATA_DESCRIPTOR, Deflater.DEFLATED, 0, 0, 0, VERSION_DEFLATED);
+
+        crc.reset();
+        deflater.reset();
+        int count;
+        while ((count = contents.read(buffer)) != -1) {
+            crc.update(buffer, 0, count);
+            deflater.setInput(buffer, 0, count);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate();
+        }
+        long compressedSize = deflater.getBytesWritten();
+        long size = deflater.getBytesRead();
+        checkEntrySize(name, compressedSize, size);
+
+        writeInt(out, DATA_DESCRIPTOR_SIGNATURE);
+        writeInt(out, crc.getValue());
+        writeInt(out, compressedSize);
+        writeInt(out, size);
+
+        addCentralDirectoryRecord(
+                encodedName,
+                FLAG_DATA_DESCRIPTOR,
+                Deflater.DEFLATED,
+                crc.getValue(),
+                compressedSize,
+                size,
+                offset);
+    }
+
+    /** Writes an entry with the given contents, without compressing them. */
+    void writeStoredEntry(@NonNull String name, @NonNull byte[] contents) throws IOException {
+        byte[] encodedName = checkName(name);
+        crc.reset();
+        crc.update(contents);
+        long offset = out.getCount();
+        writeLocalHeader(
+                encodedName,
+                0,
+                ZipArchiveReader.METHOD_STORED,
+                crc.getValue(),
+                contents.length,
+                contents.length,
+                VERSION_STORED);
+        out.write(contents);
+        addCentralDirectoryRecord(
+                encodedName,
+                0,
+                ZipArchiveReader.METHOD_STORED,
+                crc.getValue(),
+                contents.length,
+                contents.length,
+                offset);
+    }
+
+    /**
+     * Writes an entry whose compressed data is copied as is from the given zip file.
+     *
+     * @param name the name of the new entry, which can differ from the name of the copied entry
+     * @param entry the entry to copy
+     * @param from the zip file containing the entry
+     */
+    void writeRawEntry(
+            @NonNull String name,
+            @NonNull ZipArchiveReader.Entry entry,
+            @NonNull ZipArchiveReader from)
+            throws IOException {
+        byte[] encodedName = checkName(name);
+        checkEntrySize(name, entry.compressedSize, entry.size);
+        int version =
+                entry.method == ZipArchiveReader.METHOD_STORED ? VERSION_STORED : VERSION_DEFLATED;
+        long offset = out.getCount();
+        writeLocalHeader(
+                encodedName,
+                0,
+                entry.method,
+                entry.crc,
+                entry.compressedSize,
+                entry.size,
+                version);
+
+        SeekableByteChannel channel = from.getChannel();
+        channel.position(from.getDataOffset(entry));
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        long remaining = entry.compressedSize;
+        while (remaining > 0) {
+            byteBuffer.clear();
+            byteBuffer.limit((int) Math.min(buffer.length, remaining));
+            int count = channel.read(byteBuffer);
+            if (count < 0) {
+                throw new EOFException("Unexpected end of zip file for entry " + entry.name);
+            }
+            out.write(buffer, 0, count);
+            remaining -= count;
+        }
+
+        addCentralDirectoryRecord(
+                encodedName,
+                0,
+                entry.method,
+                entry.crc,
+                entry.compressedSize,
+                entry.size,
+                offset);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try (OutputStream ignored = out) {
+            deflater.end();
+            long centralDirectoryOffset = out.getCount();
+            centralDirectory.writeTo(out);
+            long centralDirectorySize = centralDirectory.size();
+
+            if (entryCount >= MAX_UINT16
+                    || centralDirectoryOffset >= MAX_UINT32
+                    || centralDirectorySize >= MAX_UINT32) {
+                long zip64EndOffset = out.getCount();
+                writeInt(out, ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+                writeLong(out, 44); // size of the remaining of the record
+                writeShort(out, VERSION_ZIP64);
+                writeShort(out, VERSION_ZIP64);
+                writeInt(out, 0); // number of this disk
+                writeInt(out, 0); // disk with the central directory
+                writeLong(out, entryCount);
+                writeLong(out, entryCount);
+                writeLong(out, centralDirectorySize);
+                writeLong(out, centralDirectoryOffset);
+
+                writeInt(out, ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE);
+                writeInt(out, 0); // disk with the zip64 end of central directory
+                writeLong(out, zip64EndOffset);
+                writeInt(out, 1); // total number of disks
+            }
+
+            writeInt(out, END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+            writeShort(out, 0); // number of this disk
+            writeShort(out, 0); // disk with the central directory
+            writeShort(out, Math.min(entryCount, MAX_UINT16));
+            writeShort(out, Math.min(entryCount, MAX_UINT16));
+            writeInt(out, Math.min(centralDirectorySize, MAX_UINT32));
+            writeInt(out, Math.min(centralDirectoryOffset, MAX_UINT32));
+            writeShort(out, 0); // comment length
+        }
+    }
+
+    @NonNull
+    private byte[] checkName(@NonNull String name) throws ZipException {
+        if (!names.add(name)) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+        byte[] encodedName = name.getBytes(StandardCharsets.UTF_8);
+        if (encodedName.length > MAX_UINT16) {
+            throw new ZipException("Entry name too long: " + name);
+        }
+        return encodedName;
+    }
+
+    private static void checkEntrySize(@NonNull String name, long compressedSize, long size)
+            throws ZipException {
+        if (compressedSize >= MAX_UINT32 || size >= MAX_UINT32) {
+            throw new ZipException("Entry too large: " + name);
+        }
+    }
+
+    private void deflate() throws IOException {
+        int count = deflater.deflate(deflateBuffer, 0, deflateBuffer.length);
+        if (count > 0) {
+            out.write(deflateBuffer, 0, count);
+        }
+    }
+
+    private void writeLocalHeader(
+            @NonNull byte[] encodedName,
+            int flags,
+            int method,
+            long crc,
+            long compressedSize,
+            long size,
+            int version)
+            throws IOException {
+        writeInt(out, LOCAL_HEADER_SIGNATURE);
+        writeShort(out, version);
+        writeShort(out, flags | FLAG_UTF8);
+        writeShort(out, method);
+        writeInt(out, DOS_TIME);
+        writeInt(out, crc);
+        writeInt(out, compressedSize);
+        writeInt(out, size);
+        writeShort(out, encodedName.length);
+        boolean isFirstEntry = entryCount == 0;
+        writeShort(out, (isFirstEntry ? 4 : 0) + 17);
+        out.write(encodedName);
+        if (isFirstEntry) {
+            writeShort(out, JAR_MAGIC_ID);
+            writeShort(out, 0);
+        }
+        writeShort(out, EXTENDED_TIMESTAMP_ID);
+        writeShort(out, 13);
+        out.write(EXTENDED_TIMESTAMP_FLAGS);
+        writeInt(out, 0); // modification time
+        writeInt(out, 0); // access time
+        writeInt(out, 0); // creation time
+    }
+
+    private void addCentralDirectoryRecord(
+            @NonNull byte[] encodedName,
+            int flags,
+            int method,
+            long crc,
+            long compressedSize,
+            long size,
+            long offset)
+            throws IOException {
+        boolean isFirstEntry = entryCount == 0;
+        boolean needsZip64 = offset >= MAX_UINT32;
+        int version =
+                needsZip64
+                        ? VERSION_ZIP64
+                        : method == ZipArchiveReader.METHOD_STORED
+                                ? VERSION_STORED
+                                : VERSION_DEFLATED;
+        OutputStream record = centralDirectory;
+        writeInt(record, CENTRAL_DIRECTORY_RECORD_SIGNATURE);
+        writeShort(record, version); // version made by
+        writeShort(record, version); // version needed to extract
+        writeShort(record, flags | FLAG_UTF8);
+        writeShort(record, method);
+        writeInt(record, DOS_TIME);
+        writeInt(record, crc);
+        writeInt(record, compressedSize);
+        writeInt(record, size);
+        writeShort(record, encodedName.length);
+        writeShort(record, (isFirstEntry ? 4 : 0) + 9 + (needsZip64 ? 12 : 0));
+        writeShort(record, 0); // comment length
+        writeShort(record, 0); // disk number
+        writeShort(record, 0); // internal attributes
+        writeInt(record, 0); // external attributes
+        writeInt(record, needsZip64 ? MAX_UINT32 : offset);
+        record.write(encodedName);
+        if (isFirstEntry) {
+            writeShort(record, JAR_MAGIC_ID);
+            writeShort(record, 0);
+        }
+        writeShort(record, EXTENDED_TIMESTAMP_ID);
+        writeShort(record, 5);
+        record.write(EXTENDED_TIMESTAMP_FLAGS);
+        writeInt(record, 0); // modification time
+        if (needsZip64) {
+            writeShort(record, ZIP64_EXTRA_ID);
+            writeShort(record, 8);
+            writeLong(record, offset);
+        }
+        entryCount++;
+    }
+
+    private static void writeShort(@NonNull OutputStream out, int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+    }
+
+    private static void writeInt(@NonNull OutputStream out, long value) throws IOException {
+        writeShort(out, (int) (value & 0xffff));
+        writeShort(out, (int) ((value >>> 16) & 0xffff));
+    }
+
+    private static void writeLong(@NonNull OutputStream out, long value) throws IOException {
+        writeInt(out, value & MAX_UINT32);
+        writeInt(out, value >>> 32);
+    }
+}
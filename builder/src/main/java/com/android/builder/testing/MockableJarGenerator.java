@@ -16,17 +16,27 @@
 
 package com.android.builder.testing;
 
+import com.android.annotations.NonNull;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.Uninterruptibles;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Constructor;
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
@@ -41,9 +51,12 @@ import org.objectweb.asm.tree.FieldNode;
 import org.objectweb.asm.tree.InnerClassNode;
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
 import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
 import org.objectweb.asm.tree.TypeInsnNode;
 
 /**
@@ -51,6 +64,9 @@ import org.objectweb.asm.tree.TypeInsnNode;
  * are not final. Optionally makes all methods return "default" values, instead of throwing the
  * infamous "Stub!" exceptions.
  *
+ * <p>Classes are rewritten concurrently, but the entries of the output are always in the same order
+ * as in the input, so that the output only depends on the input.
+ *
  * <p>ATTENTION! If you change this class, please update the gradle tasks to reflect that in the
  * generated file name (e.g. add a "v2"). This will force Gradle to re-generate the jars in
  * existing projects.
@@ -60,6 +76,9 @@ public class MockableJarGenerator {
     private static final String CONSTRUCTOR = "<init>";
     private static final String CLASS_CONSTRUCTOR = "<clinit>";
 
+    /** Maximum number of entries read from the input but not written to the output yet. */
+    private static final int MAX_PENDING_ENTRIES = 1024;
+
     private static final ImmutableSet<String> ENUM_METHODS =  ImmutableSet.of(
             CLASS_CONSTRUCTOR, "valueOf", "values");
 
@@ -67,11 +86,23 @@ public class MockableJarGenerator {
             Type.INT_TYPE, Type.BYTE_TYPE, Type.BOOLEAN_TYPE, Type.CHAR_TYPE, Type.SHORT_TYPE);
 
     private final boolean returnDefaultValues;
+    @NonNull private final ExecutorService executor;
     private final ImmutableSet<String> prefixesToSkip = ImmutableSet.of(
             "java.", "javax.", "org.xml.", "org.w3c.", "junit.", "org.apache.commons.logging");
 
     public MockableJarGenerator(boolean returnDefaultValues) {
+        this(returnDefaultValues, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a generator that rewrites classes using the given executor.
+     *
+     * @param returnDefaultValues whether methods should return default values instead of throwing
+     * @param executor the executor to rewrite classes with
+     */
+    public MockableJarGenerator(boolean returnDefaultValues, @NonNull ExecutorService executor) {
         this.returnDefaultValues = returnDefaultValues;
+        this.executor = executor;
     }
 
     public void createMockableJar(File input, File output) throws IOException {
@@ -80,30 +111,70 @@ public class MockableJarGenerator {
                 "Output file [%s] already exists.",
                 output.getAbsolutePath());
 
+        Deque<Future<OutputEntry>> pendingEntries = new ArrayDeque<>();
         try (JarFile androidJar = new JarFile(input);
                 JarOutputStream outputStream =
                         new JarOutputStream(
                                 new BufferedOutputStream(new FileOutputStream(output)))) {
 
             for (JarEntry entry : Collections.list(androidJar.entries())) {
-                InputStream inputStream = androidJar.getInputStream(entry);
-
                 if (entry.getName().endsWith(".class")) {
                     if (!skipClass(entry.getName().replace("/", "."))) {
-                        rewriteClass(entry, inputStream, outputStream);
+                        byte[] classBytes = readEntry(androidJar, entry);
+                        ZipEntry zipEntry = new ZipEntry(entry.getName());
+                        pendingEntries.add(
+                                executor.submit(
+                                        () -> new OutputEntry(zipEntry, rewriteClass(classBytes))));
                     }
                 } else if (!skipEntry(entry)) {
                     ZipEntry zipEntry = new ZipEntry(entry.getName());
                     zipEntry.setComment(entry.getComment());
-                    outputStream.putNextEntry(zipEntry);
-                    ByteStreams.copy(inputStream, outputStream);
+                    pendingEntries.add(
+                            Futures.immediateFuture(
+                                    new OutputEntry(zipEntry, readEntry(androidJar, entry))));
+                }
+
+                // Bound the memory used by entries read ahead of the output.
+                while (pendingEntries.size() >= MAX_PENDING_ENTRIES) {
+                    writeEntry(pendingEntries.remove(), outputStream);
                 }
+            }
 
-                inputStream.close();
+            while (!pendingEntries.isEmpty()) {
+                writeEntry(pendingEntries.remove(), outputStream);
+            }
+        } finally {
+            // Only non-empty if writing the output failed.
+            for (Future<OutputEntry> pendingEntry : pendingEntries) {
+                pendingEntry.cancel(true);
             }
         }
     }
 
+    @NonNull
+    private static byte[] readEntry(@NonNull JarFile jarFile, @NonNull JarEntry entry)
+            throws IOException {
+        try (InputStream inputStream = jarFile.getInputStream(entry)) {
+            return ByteStreams.toByteArray(inputStream);
+        }
+    }
+
+    /** Writes an entry to the output JAR file, once it is ready. */
+    private static void writeEntry(
+            @NonNull Future<OutputEntry> pendingEntry, @NonNull JarOutputStream outputStream)
+            throws IOException {
+        OutputEntry entry;
+        try {
+            entry = Uninterruptibles.getUninterruptibly(pendingEntry);
+        } catch (ExecutionException e) {
+            Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new IOException(e.getCause());
+        }
+        outputStream.putNextEntry(entry.zipEntry);
+        outputStream.write(entry.content);
+    }
+
     private static boolean skipEntry(JarEntry entry) {
         String name = entry.getName();
         return name.endsWith("/")
@@ -123,24 +194,48 @@ public class MockableJarGenerator {
     }
 
     /**
-     * Writes a modified *.class file to the output JAR file.
+     * Returns a modified version of the given *.class file.
      */
-    private void rewriteClass(
-            JarEntry entry,
-            InputStream inputStream,
-            JarOutputStream outputStream) throws IOException {
-        ClassReader classReader = new ClassReader(inputStream);
+    @NonNull
+    private byte[] rewriteClass(@NonNull byte[] classBytes) {
+        ClassReader classReader = new ClassReader(classBytes);
         ClassNode classNode = new ClassNode(Opcodes.ASM5);
 
         classReader.accept(classNode, EMPTY_FLAGS);
 
         modifyClass(classNode);
 
-        ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+        // Computing frames is by far the most expensive part of the rewriting, and is only needed
+        // for code that branches. Rewritten method bodies are straight-line code, and the frames of
+        // the code that is kept (enum methods, calls to parent constructors) are still valid.
+        int flags = ClassWriter.COMPUTE_MAXS;
+        if (hasBranches(classNode)) {
+            flags |= ClassWriter.COMPUTE_FRAMES;
+        }
+        ClassWriter classWriter = new ClassWriter(flags);
         classNode.accept(classWriter);
 
-        outputStream.putNextEntry(new ZipEntry(entry.getName()));
-        outputStream.write(classWriter.toByteArray());
+        return classWriter.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean hasBranches(@NonNull ClassNode classNode) {
+        for (MethodNode methodNode : (List<MethodNode>) classNode.methods) {
+            if (methodNode.tryCatchBlocks != null && !methodNode.tryCatchBlocks.isEmpty()) {
+                return true;
+            }
+            if (methodNode.instructions == null) {
+                continue;
+            }
+            for (AbstractInsnNode instruction : methodNode.instructions.toArray()) {
+                if (instruction instanceof JumpInsnNode
+                        || instruction instanceof TableSwitchInsnNode
+                        || instruction instanceof LookupSwitchInsnNode) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     /**
@@ -194,6 +289,14 @@ public class MockableJarGenerator {
             methodNode.instructions = instructions;
         }
 
+        // The removed code may have referred to the labels of these.
+        if (methodNode.tryCatchBlocks != null) {
+            methodNode.tryCatchBlocks.clear();
+        }
+        if (methodNode.localVariables != null) {
+            methodNode.localVariables.clear();
+        }
+
         if (methodNode.name.equals(CONSTRUCTOR)) {
             // Keep the call to parent constructor, delete the exception after that.
 
@@ -260,4 +363,15 @@ public class MockableJarGenerator {
             throw new RuntimeException(e);
         }
     }
+
+    /** An entry of the output JAR file. */
+    private static final class OutputEntry {
+        @NonNull private final ZipEntry zipEntry;
+        @NonNull private final byte[] content;
+
+        OutputEntry(@NonNull ZipEntry zipEntry, @NonNull byte[] content) {
+            this.zipEntry = zipEntry;
+            this.content = content;
+        }
+    }
 }
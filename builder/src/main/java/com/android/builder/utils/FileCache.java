@@ -30,16 +30,28 @@ import com.google.common.collect.Maps;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.LinkedHashMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Stream;
 
 /**
@@ -79,6 +91,14 @@ import java.util.stream.Stream;
  * <p>If a cache entry exists but is found to be corrupted, the cache entry will be deleted and
  * recreated.
  *
+ * <p>A cache can optionally be given a size budget (see {@link
+ * #getInstanceWithMultiProcessLocking(File, long)}). In that case, the cache keeps the size and the
+ * last access time of each cache entry in an index file inside the cache directory, and evicts the
+ * least recently used cache entries in the background whenever the cache grows beyond its budget.
+ * Eviction only locks the cache entries being evicted, so other cache entries can still be read
+ * and written while it is running. Cached regular files with identical contents are also
+ * deduplicated into hard links to a single file.
+ *
  * <p>This class is thread-safe.
  */
 @Immutable
@@ -100,17 +120,71 @@ public class FileCache {
         SINGLE_PROCESS
     }
 
+    /** Value of {@link #maxCacheSizeInBytes} indicating that the cache size is not bounded. */
+    private static final long UNBOUNDED_CACHE_SIZE = -1;
+
+    /** The name of the index file of a size-bounded cache, located inside the cache directory. */
+    @NonNull private static final String INDEX_FILE_NAME = ".cache-index";
+
+    /** Executor used to evict cache entries of size-bounded caches in the background. */
+    @NonNull
+    private static final ExecutorService DEFAULT_MAINTENANCE_EXECUTOR =
+            Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("file-cache-maintenance-%d")
+                            .build());
+
+    @NonNull private static final Logger LOGGER = Logger.getLogger(FileCache.class.getName());
+
     @NonNull private final File cacheDirectory;
 
     @NonNull private final LockingScope lockingScope;
 
-    // Additional fields used for testing only
+    /** The size budget of the cache, or {@link #UNBOUNDED_CACHE_SIZE} if it is not bounded. */
+    private final long maxCacheSizeInBytes;
+
+    /** The index of the cache entries, only present if the cache size is bounded. */
+    @Nullable private final FileCacheIndex index;
+
+    /** Whether the cache entries not yet in the index have been added to it. */
+    @NonNull private final AtomicBoolean unindexedEntriesAdded = new AtomicBoolean(false);
+
+    /** The executor on which cache entries are evicted. */
+    @NonNull private final Executor maintenanceExecutor;
+
+    /** Whether a maintenance task is already scheduled on {@link #maintenanceExecutor}. */
+    @NonNull private final AtomicBoolean maintenanceScheduled = new AtomicBoolean(false);
+
     @NonNull private final AtomicInteger missCount = new AtomicInteger(0);
     @NonNull private final AtomicInteger hitCount = new AtomicInteger(0);
-
-    private FileCache(@NonNull File cacheDirectory, @NonNull LockingScope lockingScope) {
+    @NonNull private final AtomicInteger evictionCount = new AtomicInteger(0);
+    @NonNull private final AtomicLong evictedBytes = new AtomicLong(0);
+    @NonNull private final AtomicInteger deduplicationCount = new AtomicInteger(0);
+    @NonNull private final AtomicInteger linkedFileCount = new AtomicInteger(0);
+    @NonNull private final AtomicInteger copiedFileCount = new AtomicInteger(0);
+
+    private FileCache(
+            @NonNull File cacheDirectory,
+            @NonNull LockingScope lockingScope,
+            long maxCacheSizeInBytes,
+            @NonNull Executor maintenanceExecutor) {
+        Preconditions.checkArgument(
+                maxCacheSizeInBytes == UNBOUNDED_CACHE_SIZE || maxCacheSizeInBytes >= 0,
+                "Cache size must not be negative: %s",
+                maxCacheSizeInBytes);
         this.cacheDirectory = cacheDirectory;
         this.lockingScope = lockingScope;
+        this.maxCacheSizeInBytes = maxCacheSizeInBytes;
+        this.index = maxCacheSizeInBytes != UNBOUNDED_CACHE_SIZE ? new FileCacheIndex() : null;
+        this.maintenanceExecutor = maintenanceExecutor;
+    }
+
+    private FileCache(
+            @NonNull File cacheDirectory,
+            @NonNull LockingScope lockingScope,
+            long maxCacheSizeInBytes) {
+        this(cacheDirectory, lockingScope, maxCacheSizeInBytes, DEFAULT_MAINTENANCE_EXECUTOR);
     }
 
     /**
@@ -137,7 +211,26 @@ public class FileCache {
      */
     @NonNull
     public static FileCache getInstanceWithMultiProcessLocking(@NonNull File cacheDirectory) {
-        return new FileCache(cacheDirectory, LockingScope.MULTI_PROCESS);
+        return new FileCache(cacheDirectory, LockingScope.MULTI_PROCESS, UNBOUNDED_CACHE_SIZE);
+    }
+
+    /**
+     * Returns a size-bounded {@code FileCache} instance where synchronization takes effect for
+     * threads both within the same process and across different processes.
+     *
+     * <p>This method is similar to {@link #getInstanceWithMultiProcessLocking(File)}, except that
+     * the least recently used cache entries are evicted in the background once the total size of
+     * the cache exceeds the given budget. Note that the cache may temporarily grow beyond its
+     * budget until the eviction completes.
+     *
+     * @param cacheDirectory the cache directory, which may not yet exist
+     * @param maxCacheSizeInBytes the size budget of the cache, in bytes
+     * @see #getInstanceWithMultiProcessLocking(File)
+     */
+    @NonNull
+    public static FileCache getInstanceWithMultiProcessLocking(
+            @NonNull File cacheDirectory, long maxCacheSizeInBytes) {
+        return new FileCache(cacheDirectory, LockingScope.MULTI_PROCESS, maxCacheSizeInBytes);
     }
 
     /**
@@ -156,7 +249,42 @@ public class FileCache {
      */
     @NonNull
     public static FileCache getInstanceWithSingleProcessLocking(@NonNull File cacheDirectory) {
-        return new FileCache(cacheDirectory, LockingScope.SINGLE_PROCESS);
+        return new FileCache(cacheDirectory, LockingScope.SINGLE_PROCESS, UNBOUNDED_CACHE_SIZE);
+    }
+
+    /**
+     * Returns a size-bounded {@code FileCache} instance where synchronization takes effect for
+     * threads within the same process but not for threads across different processes.
+     *
+     * <p>This method is similar to {@link #getInstanceWithSingleProcessLocking(File)}, except that
+     * the least recently used cache entries are evicted in the background once the total size of
+     * the cache exceeds the given budget.
+     *
+     * @param cacheDirectory the cache directory, which may not yet exist
+     * @param maxCacheSizeInBytes the size budget of the cache, in bytes
+     * @see #getInstanceWithSingleProcessLocking(File)
+     */
+    @NonNull
+    public static FileCache getInstanceWithSingleProcessLocking(
+            @NonNull File cacheDirectory, long maxCacheSizeInBytes) {
+        return new FileCache(cacheDirectory, LockingScope.SINGLE_PROCESS, maxCacheSizeInBytes);
+    }
+
+    /**
+     * Returns a size-bounded {@code FileCache} instance with single-process locking that evicts
+     * cache entries on the given executor.
+     */
+    @NonNull
+    @VisibleForTesting
+    static FileCache getInstanceWithSingleProcessLocking(
+            @NonNull File cacheDirectory,
+            long maxCacheSizeInBytes,
+            @NonNull Executor maintenanceExecutor) {
+        return new FileCache(
+                cacheDirectory,
+                LockingScope.SINGLE_PROCESS,
+                maxCacheSizeInBytes,
+                maintenanceExecutor);
     }
 
     @NonNull
@@ -207,6 +335,7 @@ public class FileCache {
      *     creator (or the file creator was not executed)
      * @throws RuntimeException if a runtime exception occurred, but not during the execution of the
      *     file creator (or the file creator was not executed)
+     * @see #createFile(File, Inputs, ExceptionRunnable, MaterializationStrategy)
      */
     @NonNull
     public QueryResult createFile(
@@ -214,6 +343,38 @@ public class FileCache {
             @NonNull Inputs inputs,
             @NonNull ExceptionRunnable fileCreator)
             throws ExecutionException, IOException {
+        return createFile(outputFile, inputs, fileCreator, MaterializationStrategy.COPY);
+    }
+
+    /**
+     * Creates an output file/directory by either materializing it from the cache, or creating it
+     * first via the given file creator callback function and caching it if the cached
+     * file/directory does not yet exist.
+     *
+     * <p>This method is similar to {@link #createFile(File, Inputs, ExceptionRunnable)}, except
+     * that the client can choose how the output file/directory and the cached file/directory are
+     * materialized from each other (see {@link MaterializationStrategy}).
+     *
+     * @param outputFile the output file/directory
+     * @param inputs all the inputs that affect the creation of the output file/directory
+     * @param fileCreator the callback function to create the output file/directory
+     * @param materializationStrategy how to materialize the output file/directory from the cached
+     *     file/directory and vice versa
+     * @return the result of this query (which does not include the path to the cached output
+     *     file/directory)
+     * @throws ExecutionException if an exception occurred during the execution of the file creator
+     * @throws IOException if an I/O exception occurred, but not during the execution of the file
+     *     creator (or the file creator was not executed)
+     * @throws RuntimeException if a runtime exception occurred, but not during the execution of the
+     *     file creator (or the file creator was not executed)
+     */
+    @NonNull
+    public QueryResult createFile(
+            @NonNull File outputFile,
+            @NonNull Inputs inputs,
+            @NonNull ExceptionRunnable fileCreator,
+            @NonNull MaterializationStrategy materializationStrategy)
+            throws ExecutionException, IOException {
         Preconditions.checkArgument(
                 !FileUtils.isFileInDirectory(outputFile, cacheDirectory),
                 String.format(
@@ -247,7 +408,7 @@ public class FileCache {
                     // Only copy if the cached file exist as file creator may not have produced an
                     // output during the first time this cache is called on the given inputs
                     if (cachedFile.exists()) {
-                        copyFileOrDirectory(cachedFile, outputFile);
+                        materializeFileOrDirectory(cachedFile, outputFile, materializationStrategy);
                     }
                     return null;
                 };
@@ -271,7 +432,7 @@ public class FileCache {
                     // Only copy if the output file exists as file creator is not required to always
                     // produce an output
                     if (outputFile.exists()) {
-                        copyFileOrDirectory(outputFile, cachedFile);
+                        materializeFileOrDirectory(outputFile, cachedFile, materializationStrategy);
                     }
                     return null;
                 };
@@ -407,6 +568,7 @@ public class FileCache {
                             // If the cache entry is HIT, run the given action
                             if (result.getQueryEvent().equals(QueryEvent.HIT)) {
                                 hitCount.incrementAndGet();
+                                recordAccess(cacheEntryDir);
                                 actionIfCacheHit.call();
                             }
                             return result;
@@ -426,6 +588,7 @@ public class FileCache {
                     // If the cache entry is HIT, run the given action and return immediately
                     if (result.getQueryEvent().equals(QueryEvent.HIT)) {
                         hitCount.incrementAndGet();
+                        recordAccess(cacheEntryDir);
                         actionIfCacheHit.call();
                         return result;
                     }
@@ -448,6 +611,10 @@ public class FileCache {
                     // the cache entry anyway.
                     actionIfCacheMissedOrCorrupted.call();
 
+                    // For a size-bounded cache, deduplicate and index the new cache entry before
+                    // it is marked as valid
+                    recordCreation(cacheEntryDir);
+
                     // Write the inputs to the inputs file for diagnostic purposes. We also use it
                     // to check whether a cache entry is corrupted or not.
                     Files.asCharSink(getInputsFile(cacheEntryDir), StandardCharsets.UTF_8)
@@ -472,9 +639,216 @@ public class FileCache {
                 }
             }
             throw new RuntimeException(exception);
+        } finally {
+            scheduleMaintenanceIfNeeded();
+        }
+    }
+
+    /**
+     * Records an access to the given (valid) cache entry in the index of a size-bounded cache. The
+     * cache entry directory should have been guarded with a READ or WRITE lock when this method is
+     * invoked.
+     */
+    private void recordAccess(@NonNull File cacheEntryDir) {
+        if (index == null) {
+            return;
+        }
+        String key = cacheEntryDir.getName();
+        if (index.contains(key)) {
+            index.recordAccess(key, System.currentTimeMillis());
+        } else {
+            // The cache entry was created before the cache was bounded or by another process
+            index.recordCreation(
+                    key,
+                    FileCacheIndex.getSize(getCachedFile(cacheEntryDir)),
+                    System.currentTimeMillis(),
+                    null);
+        }
+    }
+
+    /**
+     * Indexes a newly created cache entry of a size-bounded cache. If the cached output is a
+     * regular file whose contents are identical to those of another cache entry, the cached output
+     * is replaced with a hard link to the other cache entry's output. The cache entry directory
+     * should have been guarded with a WRITE lock when this method is invoked.
+     */
+    private void recordCreation(@NonNull File cacheEntryDir) throws IOException {
+        if (index == null) {
+            return;
+        }
+        String key = cacheEntryDir.getName();
+        File cachedFile = getCachedFile(cacheEntryDir);
+        String contentHash = null;
+        if (cachedFile.isFile()) {
+            contentHash = Inputs.Builder.getFileHash(cachedFile);
+            String duplicateKey = index.findEntryWithContentHash(contentHash, key);
+            if (duplicateKey != null) {
+                File duplicateFile = getCachedFile(new File(cacheDirectory, duplicateKey));
+                if (duplicateFile.length() == cachedFile.length()
+                        && linkToDuplicate(cachedFile, duplicateFile)) {
+                    deduplicationCount.incrementAndGet();
+                }
+            }
+        }
+        index.recordCreation(
+                key, FileCacheIndex.getSize(cachedFile), System.currentTimeMillis(), contentHash);
+    }
+
+    /**
+     * Replaces the given cached file with a hard link to the given duplicate file. Returns {@code
+     * false} (and leaves the cached file untouched) if the hard link cannot be created, e.g. because
+     * the file system does not support hard links or the duplicate file has just been evicted.
+     */
+    private static boolean linkToDuplicate(@NonNull File cachedFile, @NonNull File duplicateFile) {
+        File tempLink = new File(cachedFile.getPath() + ".link");
+        try {
+            FileUtils.deleteIfExists(tempLink);
+            java.nio.file.Files.createLink(tempLink.toPath(), duplicateFile.toPath());
+            java.nio.file.Files.move(
+                    tempLink.toPath(),
+                    cachedFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            try {
+                FileUtils.deleteIfExists(tempLink);
+            } catch (IOException ignored) {
+                // Leftover files are ignored when checking and evicting cache entries
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Schedules the eviction of cache entries in the background if this cache is size-bounded and
+     * its known size exceeds its budget, or if the index has not been loaded yet.
+     */
+    private void scheduleMaintenanceIfNeeded() {
+        if (index == null) {
+            return;
+        }
+        if (unindexedEntriesAdded.get() && index.getTotalSize() <= maxCacheSizeInBytes) {
+            return;
+        }
+        if (maintenanceScheduled.compareAndSet(false, true)) {
+            maintenanceExecutor.execute(
+                    () -> {
+                        maintenanceScheduled.set(false);
+                        try {
+                            evictLeastRecentlyUsedEntries();
+                        } catch (IOException | RuntimeException e) {
+                            // Eviction is best effort, it will be attempted again after the next
+                            // cache miss
+                            LOGGER.log(Level.WARNING, "Unable to evict entries of " + this, e);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Evicts the least recently used cache entries until the cache fits into its size budget, and
+     * persists the index of the cache. This method does nothing if the cache is not size-bounded.
+     *
+     * <p>Eviction is usually performed in the background when the cache grows beyond its budget;
+     * this method allows clients to run it synchronously (e.g., at the end of a build).
+     *
+     * <p>Unlike {@link #deleteOldCacheEntries(long)}, this method does not block threads/processes
+     * accessing other cache entries. It may block if one of the cache entries being evicted is
+     * being accessed by another thread/process.
+     */
+    public void evictLeastRecentlyUsedEntries() throws IOException {
+        if (index == null) {
+            return;
+        }
+        if (lockingScope == LockingScope.MULTI_PROCESS) {
+            if (!FileUtils.parentDirExists(cacheDirectory)) {
+                return;
+            }
+        }
+
+        try {
+            // Guard the cache directory with a READ lock so that other threads/processes can keep
+            // using the cache, but cannot delete it while we are evicting its entries
+            getSynchronizedFile(cacheDirectory)
+                    .read(
+                            sameCacheDirectory -> {
+                                if (!cacheDirectory.exists()) {
+                                    return null;
+                                }
+                                File indexFile = new File(cacheDirectory, INDEX_FILE_NAME);
+                                SynchronizedFile synchronizedIndexFile =
+                                        getSynchronizedFile(indexFile);
+
+                                synchronizedIndexFile.write(
+                                        sameIndexFile -> {
+                                            index.load(indexFile, cacheDirectory);
+                                            if (unindexedEntriesAdded.compareAndSet(false, true)) {
+                                                index.addUnindexedEntries(
+                                                        cacheDirectory,
+                                                        getInputsFile(cacheDirectory).getName());
+                                            }
+                                            return null;
+                                        });
+
+                                long totalSize = index.getTotalSize();
+                                for (String key : index.getKeysInLeastRecentlyUsedOrder()) {
+                                    if (totalSize <= maxCacheSizeInBytes) {
+                                        break;
+                                    }
+                                    totalSize -= evictCacheEntry(key);
+                                }
+
+                                synchronizedIndexFile.write(
+                                        sameIndexFile -> {
+                                            index.flush(indexFile, cacheDirectory);
+                                            return null;
+                                        });
+                                return null;
+                            });
+        } catch (ExecutionException exception) {
+            for (Throwable exceptionInCausalChain : Throwables.getCausalChain(exception)) {
+                if (exceptionInCausalChain instanceof IOException) {
+                    throw new IOException(exception);
+                }
+            }
+            throw new RuntimeException(exception);
         }
     }
 
+    /**
+     * Deletes the given cache entry of a size-bounded cache and returns the number of bytes freed
+     * on disk. The cache directory should have been guarded with a READ lock when this method is
+     * invoked.
+     */
+    private long evictCacheEntry(@NonNull String key) throws ExecutionException {
+        Preconditions.checkNotNull(index);
+        File cacheEntryDir = new File(cacheDirectory, key);
+        // Guard the cache entry directory with a WRITE lock so that we don't delete it while
+        // another thread/process is reading it
+        Long freedBytes =
+                getSynchronizedFile(cacheEntryDir)
+                        .write(
+                                sameCacheEntryDir -> {
+                                    if (!index.contains(key)) {
+                                        return null;
+                                    }
+                                    FileUtils.deletePath(cacheEntryDir);
+                                    // The file is shared with another cache entry if it was
+                                    // deduplicated, in which case deleting it does not free any
+                                    // space
+                                    long bytes = index.remove(key);
+                                    evictionCount.incrementAndGet();
+                                    evictedBytes.addAndGet(bytes);
+                                    return bytes;
+                                });
+        // In the case of MULTI_PROCESS locking, the lock file of the cache entry is left in place:
+        // other processes may be holding or waiting on it, and as only a READ lock guards the cache
+        // directory, deleting it would let another process lock a new file at the same path. The
+        // lock files of evicted entries are deleted by deleteOldCacheEntries() instead.
+        return freedBytes != null ? freedBytes : 0L;
+    }
+
     /**
      * Returns {@code true} if the cache entry for the given list of inputs exists and is not
      * corrupted, and {@code false} otherwise. This method will block if the cache/cache entry is
@@ -649,6 +1023,16 @@ public class FileCache {
                         }
                     }
                 }
+                // Delete the lock files left by the eviction of cache entries, which is safe as no
+                // other thread/process can hold them while the cache directory is WRITE locked
+                if (lockingScope == LockingScope.MULTI_PROCESS) {
+                    for (File fileInDir : Verify.verifyNotNull(cacheDirectory.listFiles())) {
+                        File lockedFile = SynchronizedFile.getSynchronizedFileOfLockFile(fileInDir);
+                        if (lockedFile != null && !lockedFile.exists()) {
+                            FileUtils.deleteIfExists(fileInDir);
+                        }
+                    }
+                }
                 return null;
             });
         } catch (ExecutionException exception) {
@@ -725,11 +1109,25 @@ public class FileCache {
         return hitCount.get();
     }
 
+    /** Returns a snapshot of the statistics of this {@code FileCache} instance. */
+    @NonNull
+    public Statistics getStatistics() {
+        return new Statistics(
+                hitCount.get(),
+                missCount.get(),
+                evictionCount.get(),
+                evictedBytes.get(),
+                deduplicationCount.get(),
+                linkedFileCount.get(),
+                copiedFileCount.get());
+    }
+
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
                 .add("cacheDirectory", cacheDirectory)
                 .add("lockingScope", lockingScope)
+                .add("maxCacheSizeInBytes", maxCacheSizeInBytes)
                 .toString();
     }
 
@@ -757,6 +1155,65 @@ public class FileCache {
         }
     }
 
+    /**
+     * Materializes a file or a directory's contents to another file or directory using the given
+     * strategy. The target file/directory is replaced if it already exists.
+     *
+     * <p>With {@link MaterializationStrategy#HARD_LINK}, each regular file is hard-linked to the
+     * target location; if a hard link cannot be created (e.g., because the source and the target
+     * are on different file stores, or the file system does not support hard links), the file is
+     * copied instead.
+     *
+     * <p>The source file/directory must exist and must not reside in, contain, or be identical to
+     * the target file/directory.
+     */
+    private void materializeFileOrDirectory(
+            @NonNull File from,
+            @NonNull File to,
+            @NonNull MaterializationStrategy materializationStrategy)
+            throws IOException {
+        if (materializationStrategy == MaterializationStrategy.COPY) {
+            copyFileOrDirectory(from, to);
+            return;
+        }
+
+        Preconditions.checkArgument(
+                from.exists(), "Source path " + from.getAbsolutePath() + " does not exist");
+        Preconditions.checkArgument(!FileUtils.isFileInDirectory(from, to));
+        Preconditions.checkArgument(!FileUtils.isFileInDirectory(to, from));
+        Preconditions.checkArgument(!FileUtils.isSameFile(from, to));
+
+        FileUtils.deletePath(to);
+        Files.createParentDirs(to);
+        if (from.isFile()) {
+            linkOrCopyFile(from.toPath(), to.toPath());
+        } else if (from.isDirectory()) {
+            Path fromDir = from.toPath();
+            Path toDir = to.toPath();
+            try (Stream<Path> entries = java.nio.file.Files.walk(fromDir)) {
+                for (Path entry : (Iterable<Path>) entries::iterator) {
+                    Path target = toDir.resolve(fromDir.relativize(entry).toString());
+                    if (java.nio.file.Files.isDirectory(entry)) {
+                        java.nio.file.Files.createDirectories(target);
+                    } else {
+                        linkOrCopyFile(entry, target);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Hard-links the given regular file to the target path, or copies it if linking fails. */
+    private void linkOrCopyFile(@NonNull Path from, @NonNull Path to) throws IOException {
+        try {
+            java.nio.file.Files.createLink(to, from);
+            linkedFileCount.incrementAndGet();
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            java.nio.file.Files.copy(from, to, StandardCopyOption.COPY_ATTRIBUTES);
+            copiedFileCount.incrementAndGet();
+        }
+    }
+
     /**
      * Checked exception thrown when the file creator callback function aborts due to an {@link
      * Exception}. This class is a private sub-class of {@link ExecutionException} and is used to
@@ -809,6 +1266,17 @@ public class FileCache {
         /** Builder of {@link FileCache.Inputs}. */
         public static final class Builder {
 
+            /** The size of the buffers used to hash files. */
+            private static final int HASHING_BUFFER_SIZE = 64 * 1024;
+
+            /**
+             * Per-thread buffers used to hash files. Direct buffers are used so that file contents
+             * are read without an intermediate copy on the heap.
+             */
+            @NonNull
+            private static final ThreadLocal<ByteBuffer> hashingBuffer =
+                    ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HASHING_BUFFER_SIZE));
+
             @NonNull private final Command command;
 
             @NonNull private final CacheSession session;
@@ -836,7 +1304,8 @@ public class FileCache {
                             @Override
                             @NonNull
                             String getRegularFileHash(@NonNull File regularFile) {
-                                return Builder.getFileHash(regularFile);
+                                return FileHashMemo.getInstance()
+                                        .getFileHash(regularFile, Builder::getFileHash);
                             }
                         });
             }
@@ -953,13 +1422,35 @@ public class FileCache {
             @NonNull
             @VisibleForTesting
             static String getFileHash(@NonNull File file) {
+                Hasher hasher = Hashing.sha256().newHasher();
                 try {
-                    return Hashing.sha256()
-                            .hashBytes(java.nio.file.Files.readAllBytes(file.toPath()))
-                            .toString();
+                    putFileContents(hasher, file.toPath());
                 } catch (IOException e) {
                     throw new UncheckedIOException(e);
                 }
+                return hasher.hash().toString();
+            }
+
+            /**
+             * Feeds the contents of the given regular file to the given hasher.
+             *
+             * <p>The file is streamed through a per-thread direct buffer of {@link
+             * #HASHING_BUFFER_SIZE} bytes, so hashing large files (e.g., AARs or fat jars) does not
+             * require loading them on the heap.
+             */
+            private static void putFileContents(@NonNull Hasher hasher, @NonNull Path file)
+                    throws IOException {
+                ByteBuffer buffer = hashingBuffer.get();
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    buffer.clear();
+                    while (channel.read(buffer) != -1) {
+                        buffer.flip();
+                        hasher.putBytes(buffer);
+                        buffer.clear();
+                    }
+                } finally {
+                    buffer.clear();
+                }
             }
 
             /**
@@ -995,7 +1486,7 @@ public class FileCache {
                                 if (java.nio.file.Files.isRegularFile(entry)) {
                                     hasher.putUnencodedChars("$$$DIRECTORY_ENTRY_FILE_CONTENTS$$$");
                                     try {
-                                        hasher.putBytes(java.nio.file.Files.readAllBytes(entry));
+                                        putFileContents(hasher, entry);
                                     } catch (IOException e) {
                                         throw new UncheckedIOException(e);
                                     }
@@ -1071,6 +1562,9 @@ public class FileCache {
 
         /** Fix stack frames. */
         FIX_STACK_FRAMES,
+
+        /** Strip the debug symbols of a native library. */
+        STRIP_NATIVE_LIBRARY,
     }
 
     /**
@@ -1111,6 +1605,32 @@ public class FileCache {
         PATH_SIZE_TIMESTAMP,
     }
 
+    /**
+     * The way an output file/directory is materialized from the cached file/directory (on a cache
+     * hit), and the cached file/directory from the output file/directory (on a cache miss).
+     */
+    public enum MaterializationStrategy {
+
+        /**
+         * The files are copied byte-for-byte.
+         *
+         * <p>This is the default strategy. It is always safe, but it can be slow for large outputs.
+         */
+        COPY,
+
+        /**
+         * The files are hard-linked, so the output file/directory and the cached file/directory
+         * share the same contents on disk. Files are copied instead when a hard link cannot be
+         * created, e.g. when the output and the cache are on different devices.
+         *
+         * <p>WARNING: Since the contents are shared, modifying an output file in place would also
+         * modify (and corrupt) the cached file. This strategy must only be used if the consumers of
+         * the output never modify it in place (deleting or replacing it is fine). Clients that
+         * mutate their outputs must use {@link #COPY} instead.
+         */
+        HARD_LINK,
+    }
+
     /** Properties of a directory to be used when constructing the cache inputs. */
     public enum DirectoryProperties {
 
@@ -1212,6 +1732,100 @@ public class FileCache {
         }
     }
 
+    /**
+     * Statistics of a {@link FileCache} instance, counting the events that happened since the
+     * instance was created. Events caused by other instances or processes using the same cache
+     * directory are not included.
+     */
+    @Immutable
+    public static final class Statistics {
+
+        private final int hits;
+
+        private final int misses;
+
+        private final int evictions;
+
+        private final long evictedBytes;
+
+        private final int deduplications;
+
+        private final int linkedFiles;
+
+        private final int linkFallbacks;
+
+        private Statistics(
+                int hits,
+                int misses,
+                int evictions,
+                long evictedBytes,
+                int deduplications,
+                int linkedFiles,
+                int linkFallbacks) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.evictedBytes = evictedBytes;
+            this.deduplications = deduplications;
+            this.linkedFiles = linkedFiles;
+            this.linkFallbacks = linkFallbacks;
+        }
+
+        /** Returns the number of queries that found a valid cache entry. */
+        public int getHits() {
+            return hits;
+        }
+
+        /** Returns the number of queries that had to create (or recreate) a cache entry. */
+        public int getMisses() {
+            return misses;
+        }
+
+        /** Returns the number of cache entries evicted to keep the cache within its budget. */
+        public int getEvictions() {
+            return evictions;
+        }
+
+        /** Returns the number of bytes freed on disk by evicting cache entries. */
+        public long getEvictedBytes() {
+            return evictedBytes;
+        }
+
+        /** Returns the number of cached files that were replaced with hard links to duplicates. */
+        public int getDeduplications() {
+            return deduplications;
+        }
+
+        /**
+         * Returns the number of files materialized as hard links with {@link
+         * MaterializationStrategy#HARD_LINK}.
+         */
+        public int getLinkedFiles() {
+            return linkedFiles;
+        }
+
+        /**
+         * Returns the number of files that had to be copied with {@link
+         * MaterializationStrategy#HARD_LINK} because a hard link could not be created.
+         */
+        public int getLinkFallbacks() {
+            return linkFallbacks;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("hits", hits)
+                    .add("misses", misses)
+                    .add("evictions", evictions)
+                    .add("evictedBytes", evictedBytes)
+                    .add("deduplications", deduplications)
+                    .add("linkedFiles", linkedFiles)
+                    .add("linkFallbacks", linkFallbacks)
+                    .toString();
+        }
+    }
+
     /**
      * The event that happens when the client queries a cache entry: the cache entry may be hit,
      * missed, or corrupted.
@@ -1233,6 +1847,10 @@ public class FileCache {
      * session allows to factorize some operations, For example file hash are computed only once per
      * session. Files used as input of the cache operations are supposed to stay unchanged during
      * the usage of one {@link CacheSession} instance.
+     *
+     * <p>Across sessions, the hashes of regular files are also remembered by the process-wide
+     * {@link FileHashMemo}, so files whose path, size and timestamp have not changed are not hashed
+     * again.
      */
     public abstract static class CacheSession {
         private CacheSession() {}
@@ -1259,7 +1877,11 @@ public class FileCache {
             @Override
             @NonNull
             String getRegularFileHash(@NonNull File regularFile) {
-                return pathHashes.computeIfAbsent(regularFile, Inputs.Builder::getFileHash);
+                return pathHashes.computeIfAbsent(
+                        regularFile,
+                        file ->
+                                FileHashMemo.getInstance()
+                                        .getFileHash(file, Inputs.Builder::getFileHash));
             }
         };
     }
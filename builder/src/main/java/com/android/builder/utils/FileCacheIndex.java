@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.utils;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.concurrency.Immutable;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * In-memory view of the metadata of the entries of a size-bounded {@link FileCache}, backed by an
+ * index file inside the cache directory.
+ *
+ * <p>For each cache entry (identified by the name of its cache entry directory), the index records
+ * the size in bytes of the cached output, the last time the entry was accessed and, for cached
+ * regular files, the hash of their contents. This information is used to evict the least recently
+ * used entries when the cache grows beyond its size budget, and to deduplicate entries whose
+ * outputs have identical contents.
+ *
+ * <p>The index is updated in memory on every cache access and is only written to disk by {@link
+ * #flush(File, File)}. When flushing, the index is merged with the copy on disk so that several
+ * processes sharing the same cache do not lose each other's access times. The caller is
+ * responsible for synchronizing access to the index file across processes.
+ *
+ * <p>The total size of the indexed entries is kept up to date as entries are added and removed, so
+ * that it can be checked on every cache access.
+ *
+ * <p>This class is thread-safe. Entries are read without locking, and modified while holding the
+ * lock of the index so that the total size stays consistent with them.
+ */
+final class FileCacheIndex {
+
+    /** The header of the index file, used to detect index files written in a different format. */
+    @NonNull private static final String HEADER = "# FileCache index v1";
+
+    /** The placeholder written to the index file for entries without a content hash. */
+    @NonNull private static final String NO_HASH = "-";
+
+    @NonNull private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /** The number of indexed entries with each content hash, guarded by this index. */
+    @NonNull private final Map<String, Integer> contentHashCounts = new HashMap<>();
+
+    /** The result of {@link #getTotalSize()}, guarded by this index. */
+    private long totalSize = 0;
+
+    /** Records that the given cache entry has been accessed at the given time. */
+    synchronized void recordAccess(@NonNull String key, long timestamp) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            // The size and content hash do not change, neither does the total size
+            entries.put(key, new Entry(entry.size, timestamp, entry.contentHash));
+        }
+    }
+
+    /** Records that the given cache entry has been (re)created. */
+    synchronized void recordCreation(
+            @NonNull String key, long size, long timestamp, @Nullable String contentHash) {
+        put(key, new Entry(size, timestamp, contentHash));
+    }
+
+    /**
+     * Forgets about the given cache entry, typically after it was evicted, and returns the number of
+     * bytes it no longer occupies on disk: zero if its output is shared with another entry.
+     */
+    synchronized long remove(@NonNull String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return 0;
+        }
+        if (entry.contentHash != null) {
+            int count = contentHashCounts.getOrDefault(entry.contentHash, 0);
+            if (count > 1) {
+                // Other entries are hard links to the same file
+                contentHashCounts.put(entry.contentHash, count - 1);
+                return 0;
+            }
+            contentHashCounts.remove(entry.contentHash);
+        }
+        totalSize -= entry.size;
+        return entry.size;
+    }
+
+    /** Adds or replaces the given cache entry. Must be called while holding the index lock. */
+    private void put(@NonNull String key, @NonNull Entry entry) {
+        remove(key);
+        entries.put(key, entry);
+        if (entry.contentHash == null) {
+            totalSize += entry.size;
+            return;
+        }
+        int count = contentHashCounts.getOrDefault(entry.contentHash, 0);
+        if (count == 0) {
+            totalSize += entry.size;
+        }
+        contentHashCounts.put(entry.contentHash, count + 1);
+    }
+
+    /** Returns the metadata of the given cache entry, or null if it is not indexed. */
+    @Nullable
+    Entry get(@NonNull String key) {
+        return entries.get(key);
+    }
+
+    boolean contains(@NonNull String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Returns the key of an indexed cache entry (other than the given one) whose cached output has
+     * the given content hash, or null if there is none.
+     */
+    @Nullable
+    String findEntryWithContentHash(@NonNull String contentHash, @NonNull String excludedKey) {
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (contentHash.equals(entry.getValue().contentHash)
+                    && !entry.getKey().equals(excludedKey)) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of bytes the indexed cache entries occupy on disk. Entries sharing the
+     * same content hash are hard links to the same file and are counted only once.
+     */
+    synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    /** Returns the keys of the indexed cache entries, least recently used first. */
+    @NonNull
+    List<String> getKeysInLeastRecentlyUsedOrder() {
+        return entries.entrySet()
+                .stream()
+                .sorted(
+                        Comparator.<Map.Entry<String, Entry>>comparingLong(
+                                        e -> e.getValue().lastAccessTimestamp)
+                                .thenComparing(Map.Entry::getKey))
+                .map(Map.Entry::getKey)
+                .collect(ImmutableList.toImmutableList());
+    }
+
+    /**
+     * Merges the entries of the given index file into this index. For entries known to both, the
+     * most recent access time wins. Entries whose cache entry directory no longer exists in the
+     * given cache directory are dropped.
+     */
+    void load(@NonNull File indexFile, @NonNull File cacheDirectory) throws IOException {
+        if (!indexFile.isFile()) {
+            return;
+        }
+        List<String> lines = Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(HEADER)) {
+            // Unknown format, the index will be rebuilt from the cache directory
+            return;
+        }
+        for (String line : lines.subList(1, lines.size())) {
+            List<String> fields = Splitter.on('\t').splitToList(line);
+            if (fields.size() != 4) {
+                continue;
+            }
+            String key = fields.get(0);
+            if (!new File(cacheDirectory, key).isDirectory()) {
+                continue;
+            }
+            Entry onDisk;
+            try {
+                onDisk =
+                        new Entry(
+                                Long.parseLong(fields.get(1)),
+                                Long.parseLong(fields.get(2)),
+                                fields.get(3).equals(NO_HASH) ? null : fields.get(3));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            synchronized (this) {
+                Entry inMemory = entries.get(key);
+                if (inMemory == null) {
+                    put(key, onDisk);
+                } else if (inMemory.lastAccessTimestamp < onDisk.lastAccessTimestamp) {
+                    entries.put(
+                            key,
+                            new Entry(
+                                    inMemory.size,
+                                    onDisk.lastAccessTimestamp,
+                                    inMemory.contentHash));
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds to this index the cache entries found in the given cache directory that are not yet
+     * indexed (e.g., entries created before the size limit was configured, or by a process that has
+     * not flushed its index yet). Their last access time is approximated by the last modified time
+     * of their cache entry directory.
+     */
+    void addUnindexedEntries(@NonNull File cacheDirectory, @NonNull String inputsFileName) {
+        File[] files = cacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File cacheEntryDir : files) {
+            if (!cacheEntryDir.isDirectory()
+                    || !new File(cacheEntryDir, inputsFileName).isFile()
+                    || entries.containsKey(cacheEntryDir.getName())) {
+                continue;
+            }
+            Entry entry = new Entry(getSize(cacheEntryDir), cacheEntryDir.lastModified(), null);
+            synchronized (this) {
+                if (!entries.containsKey(cacheEntryDir.getName())) {
+                    put(cacheEntryDir.getName(), entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges this index with the given index file and writes the result back to the file. The
+     * file is replaced atomically so that a concurrent reader never sees a partially written index.
+     */
+    void flush(@NonNull File indexFile, @NonNull File cacheDirectory) throws IOException {
+        load(indexFile, cacheDirectory);
+        for (String key : entries.keySet()) {
+            if (!new File(cacheDirectory, key).isDirectory()) {
+                remove(key);
+            }
+        }
+
+        Path tempFile = new File(indexFile.getPath() + ".tmp").toPath();
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry value = entry.getValue();
+                writer.write(
+                        entry.getKey()
+                                + '\t'
+                                + value.size
+                                + '\t'
+                                + value.lastAccessTimestamp
+                                + '\t'
+                                + (value.contentHash != null ? value.contentHash : NO_HASH));
+                writer.newLine();
+            }
+        }
+        Files.move(
+                tempFile,
+                indexFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Returns the total size in bytes of the given file, or of the regular files in a directory. */
+    static long getSize(@NonNull File file) {
+        if (file.isFile()) {
+            return file.length();
+        }
+        if (!file.exists()) {
+            return 0;
+        }
+        try (Stream<Path> paths = Files.walk(file.toPath())) {
+            return paths.filter(Files::isRegularFile)
+                    .collect(Collectors.summingLong(path -> path.toFile().length()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Metadata of a single cache entry. */
+    @Immutable
+    static final class Entry {
+
+        final long size;
+
+        final long lastAccessTimestamp;
+
+        @Nullable final String contentHash;
+
+        Entry(long size, long lastAccessTimestamp, @Nullable String contentHash) {
+            this.size = size;
+            this.lastAccessTimestamp = lastAccessTimestamp;
+            this.contentHash = contentHash;
+        }
+    }
+}
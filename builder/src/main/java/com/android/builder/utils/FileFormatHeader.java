@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.utils;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.concurrency.Immutable;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Preconditions;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Header at the start of the binary files that cache the result of a computation across builds,
+ * telling whether a file was written in the format its reader expects.
+ *
+ * <p>The header is a magic number identifying the kind of file, followed by the version of the
+ * format, both written as big-endian ints. The version must be incremented whenever the format of
+ * the rest of the file changes. Readers ignore files with another header, and compute their content
+ * again.
+ */
+@Immutable
+public final class FileFormatHeader {
+
+    /** Size of the header, in bytes. */
+    public static final int SIZE = 8;
+
+    private final int magic;
+
+    private final int version;
+
+    /**
+     * Creates a header.
+     *
+     * @param magic four ASCII characters identifying the kind of file
+     * @param version the version of the format
+     */
+    public FileFormatHeader(@NonNull String magic, int version) {
+        Preconditions.checkArgument(
+                magic.length() == 4 && CharMatcher.ascii().matchesAllOf(magic),
+                "Magic must be four ASCII characters: %s",
+                magic);
+        this.magic = ByteBuffer.wrap(magic.getBytes(StandardCharsets.US_ASCII)).getInt();
+        this.version = version;
+    }
+
+    /**
+     * Writes this header.
+     *
+     * @param out the output to write to
+     * @throws IOException failed to write the header
+     */
+    public void write(@NonNull DataOutput out) throws IOException {
+        out.writeInt(magic);
+        out.writeInt(version);
+    }
+
+    /**
+     * Reads a header and checks that it is this header.
+     *
+     * @param in the input to read from
+     * @return whether the header read is this header
+     * @throws IOException failed to read the header, e.g. the input is too short
+     */
+    public boolean read(@NonNull DataInput in) throws IOException {
+        return in.readInt() == magic && in.readInt() == version;
+    }
+
+    /**
+     * Reads a header from a buffer and checks that it is this header.
+     *
+     * @param buffer the buffer to read from
+     * @return whether the buffer starts with this header, {@code false} if the buffer is too short
+     */
+    public boolean read(@NonNull ByteBuffer buffer) {
+        return buffer.remaining() >= SIZE && buffer.getInt() == magic && buffer.getInt() == version;
+    }
+}
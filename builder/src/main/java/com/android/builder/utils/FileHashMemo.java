@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.utils;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.annotations.concurrency.Immutable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A memo of the hashes of regular files, keyed by the path, size and timestamp of each file.
+ *
+ * <p>The memo allows {@link FileCache} clients to avoid re-hashing input files (typically library
+ * jars) that have not changed since they were last hashed. A single instance is shared by all the
+ * {@link FileCache.CacheSession}s of a process (see {@link #getInstance()}), so the hashes survive
+ * across builds running in the same Gradle daemon. The memo can also be saved to and loaded from a
+ * file so that it survives across daemons.
+ *
+ * <p>As explained in {@link FileCache.FileProperties#PATH_SIZE_TIMESTAMP}, a file's timestamp may
+ * not change between two consecutive writes because of the granularity of filesystem timestamps.
+ * To avoid returning stale hashes, the memo does not remember the hash of a file that was modified
+ * too recently when it was hashed; such a file is hashed again on the next request.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class FileHashMemo {
+
+    /** The header of the memo files, whose version must change whenever the format changes. */
+    private static final FileFormatHeader HEADER = new FileFormatHeader("FHMM", 1);
+
+    /**
+     * The minimum age of a file's timestamp for its hash to be remembered. Files modified more
+     * recently could be modified again without their timestamp changing.
+     */
+    private static final long MIN_TIMESTAMP_AGE_MILLIS = 2000;
+
+    @NonNull private static final FileHashMemo INSTANCE = new FileHashMemo();
+
+    @NonNull private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /** Files that the memo has already been loaded from, to avoid loading them more than once. */
+    @NonNull private final Map<String, Boolean> loadedFiles = new ConcurrentHashMap<>();
+
+    private volatile boolean modified = false;
+
+    @VisibleForTesting
+    FileHashMemo() {}
+
+    /** Returns the memo shared within the current process. */
+    @NonNull
+    public static FileHashMemo getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the hash of the contents of the given regular file, computing it with the given
+     * function if the file is not in the memo or has changed since it was last hashed.
+     */
+    @NonNull
+    String getFileHash(@NonNull File file, @NonNull Function<File, String> hashFunction) {
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long timestamp = file.lastModified();
+
+        Entry entry = entries.get(path);
+        if (entry != null && entry.size == size && entry.timestamp == timestamp) {
+            return entry.hash;
+        }
+
+        String hash = hashFunction.apply(file);
+        // Only remember the hash if the file was not modified while it was being hashed, and if it
+        // is old enough for its timestamp to be trusted
+        if (file.length() == size
+                && file.lastModified() == timestamp
+                && timestamp != 0
+                && System.currentTimeMillis() - timestamp >= MIN_TIMESTAMP_AGE_MILLIS) {
+            entries.put(path, new Entry(size, timestamp, hash));
+            modified = true;
+        }
+        return hash;
+    }
+
+    /**
+     * Adds the entries stored in the given file to this memo, unless this memo has already been
+     * loaded from that file. Entries already in this memo are not overwritten. A missing,
+     * truncated or corrupted file is ignored entirely.
+     */
+    public void loadFromFile(@NonNull File memoFile) {
+        if (loadedFiles.putIfAbsent(memoFile.getAbsolutePath(), Boolean.TRUE) != null
+                || !memoFile.isFile()) {
+            return;
+        }
+        Map<String, Entry> loadedEntries = new HashMap<>();
+        try (CheckedInputStream checkedIn =
+                        new CheckedInputStream(
+                                new BufferedInputStream(Files.newInputStream(memoFile.toPath())),
+                                new CRC32());
+                DataInputStream in = new DataInputStream(checkedIn)) {
+            if (!HEADER.read(in)) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long timestamp = in.readLong();
+                String hash = in.readUTF();
+                loadedEntries.put(path, new Entry(size, timestamp, hash));
+            }
+            long checksum = checkedIn.getChecksum().getValue();
+            if (in.readLong() != checksum) {
+                return;
+            }
+        } catch (IOException e) {
+            // The memo is only an optimization: files will simply be hashed again
+            return;
+        }
+        loadedEntries.forEach(entries::putIfAbsent);
+    }
+
+    /**
+     * Writes this memo to the given file if it has been modified since it was created or last
+     * saved. Entries of files that no longer exist are dropped.
+     *
+     * <p>The memo is written to a unique temporary file which then atomically replaces the given
+     * file, so that concurrent writers do not interleave and concurrent readers never see a
+     * partially written memo. The file starts with a {@link FileFormatHeader} and ends with a
+     * checksum of its contents, which {@link #loadFromFile(File)} verifies before using any of its
+     * entries.
+     */
+    public void saveToFile(@NonNull File memoFile) throws IOException {
+        if (!modified) {
+            return;
+        }
+        modified = false;
+        entries.keySet().removeIf(path -> !new File(path).isFile());
+
+        Path parentDir = memoFile.getAbsoluteFile().getParentFile().toPath();
+        Files.createDirectories(parentDir);
+        Path tempFile = Files.createTempFile(parentDir, memoFile.getName(), ".tmp");
+        Map<String, Entry> snapshot = new HashMap<>(entries);
+        try {
+            try (CheckedOutputStream checkedOut =
+                            new CheckedOutputStream(
+                                    new BufferedOutputStream(Files.newOutputStream(tempFile)),
+                                    new CRC32());
+                    DataOutputStream out = new DataOutputStream(checkedOut)) {
+                HEADER.write(out);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Entry> entry : snapshot.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue().size);
+                    out.writeLong(entry.getValue().timestamp);
+                    out.writeUTF(entry.getValue().hash);
+                }
+                out.writeLong(checkedOut.getChecksum().getValue());
+            }
+            Files.move(
+                    tempFile,
+                    memoFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /** Returns the memoized hash of the given file regardless of its current state, or null. */
+    @VisibleForTesting
+    @Nullable
+    String getMemoizedHash(@NonNull File file) {
+        Entry entry = entries.get(file.getAbsolutePath());
+        return entry != null ? entry.hash : null;
+    }
+
+    @Immutable
+    private static final class Entry {
+
+        private final long size;
+
+        private final long timestamp;
+
+        @NonNull private final String hash;
+
+        private Entry(long size, long timestamp, @NonNull String hash) {
+            this.size = size;
+            this.timestamp = timestamp;
+            this.hash = hash;
+        }
+    }
+}
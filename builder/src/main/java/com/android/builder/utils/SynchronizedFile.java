@@ -222,6 +222,21 @@ public final class SynchronizedFile {
                 fileToSynchronize.getParent(), fileToSynchronize.getName() + LOCK_FILE_EXTENSION);
     }
 
+    /**
+     * Returns the file whose access is synchronized by the given lock file, or {@code null} if the
+     * given file is not a lock file. This is the reverse of {@link #getLockFile(File)}.
+     */
+    @Nullable
+    static File getSynchronizedFileOfLockFile(@NonNull File lockFile) {
+        String name = lockFile.getName();
+        if (!name.endsWith(LOCK_FILE_EXTENSION) || name.equals(LOCK_FILE_EXTENSION)) {
+            return null;
+        }
+        return new File(
+                lockFile.getParent(),
+                name.substring(0, name.length() - LOCK_FILE_EXTENSION.length()));
+    }
+
     /**
      * Executes an action that reads the file with a SHARED lock.
      *
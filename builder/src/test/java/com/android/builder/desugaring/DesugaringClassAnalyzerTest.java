@@ -29,15 +29,18 @@ import com.android.builder.desugaring.samples.LambdaClass;
 import com.android.builder.desugaring.samples.LambdaOfSubtype;
 import com.android.builder.desugaring.samples.SampleClass;
 import com.android.builder.desugaring.samples.SampleInterface;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -180,6 +183,56 @@ public class DesugaringClassAnalyzerTest {
                 graph);
     }
 
+    @Test
+    public void testPersistedGraph() throws IOException {
+        DesugaringGraph original =
+                analyze(BaseInterface.class, SampleInterface.class, SampleClass.class);
+        Path graphFile = tmp.getRoot().toPath().resolve("graph.bin");
+        original.writeTo(graphFile);
+
+        DesugaringGraph graph = DesugaringGraph.readFrom(graphFile);
+        assertThat(graph).isNotNull();
+        assertDirectDependencyGraph(
+                ImmutableMap.of(
+                        BaseInterface.class, ImmutableSet.of(SampleInterface.class),
+                        SampleInterface.class, ImmutableSet.of(SampleClass.class)),
+                graph);
+        assertFullDependentGraph(
+                BaseInterface.class,
+                ImmutableSet.of(SampleInterface.class, SampleClass.class),
+                graph);
+        assertFullDependenciesGraph(
+                SampleInterface.class, ImmutableSet.of(BaseInterface.class), graph);
+
+        // memoized closures must be recomputed once the graph is updated
+        graph.update(ImmutableList.of(new DesugaringData(getPath(SampleClass.class))));
+        assertFullDependentGraph(
+                BaseInterface.class, ImmutableSet.of(SampleInterface.class), graph);
+    }
+
+    @Test
+    public void testCorruptedPersistedGraph() throws IOException {
+        DesugaringGraph original =
+                analyze(BaseInterface.class, SampleInterface.class, SampleClass.class);
+        Path graphFile = tmp.getRoot().toPath().resolve("graph.bin");
+        original.writeTo(graphFile);
+        byte[] bytes = Files.readAllBytes(graphFile);
+
+        for (int length = 0; length < bytes.length; length++) {
+            Files.write(graphFile, Arrays.copyOf(bytes, length));
+            assertThat(DesugaringGraph.readFrom(graphFile)).isNull();
+        }
+
+        // The number of types follows the header.
+        byte[] corrupted = bytes.clone();
+        ByteBuffer.wrap(corrupted).putInt(8, Integer.MAX_VALUE);
+        Files.write(graphFile, corrupted);
+        assertThat(DesugaringGraph.readFrom(graphFile)).isNull();
+        ByteBuffer.wrap(corrupted).putInt(8, -1);
+        Files.write(graphFile, corrupted);
+        assertThat(DesugaringGraph.readFrom(graphFile)).isNull();
+    }
+
     @Test
     public void testModuleInfoSkipped() throws IOException {
         Path inputDir = tmp.newFolder().toPath();
@@ -26,10 +26,21 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.truth.Truth;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -182,6 +193,105 @@ public class ClassFileInputTest {
         Truth.assertThat(relativePaths).containsExactlyElementsIn(fileNames);
     }
 
+    @Test
+    public void checkStoredAndDeflatedJarEntriesContents() throws IOException {
+        File jarFile = FileUtils.join(temporaryFolder.getRoot(), "input.jar");
+        byte[] compressible = new byte[10_000];
+        Arrays.fill(compressible, (byte) 'a');
+        byte[] incompressible = new byte[10_000];
+        new Random(42).nextBytes(incompressible);
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jarFile))) {
+            writeEntry(zip, "A.class", compressible, ZipEntry.DEFLATED);
+            writeEntry(zip, "dir/B.class", incompressible, ZipEntry.STORED);
+            writeEntry(zip, "dir/C.class", incompressible, ZipEntry.DEFLATED);
+            writeEntry(zip, "D.class", new byte[0], ZipEntry.DEFLATED);
+        }
+
+        try (ClassFileInput input = ClassFileInputs.fromPath(jarFile.toPath())) {
+            Map<String, byte[]> contents =
+                    input.entries(p -> true)
+                            .collect(
+                                    Collectors.toMap(
+                                            ClassFileEntry::getRelativePath,
+                                            entry -> {
+                                                try {
+                                                    return entry.readAllBytes();
+                                                } catch (IOException e) {
+                                                    throw new UncheckedIOException(e);
+                                                }
+                                            }));
+            assertThat(contents.keySet())
+                    .containsExactly("A.class", "dir/B.class", "dir/C.class", "D.class");
+            assertThat(contents.get("A.class")).isEqualTo(compressible);
+            assertThat(contents.get("dir/B.class")).isEqualTo(incompressible);
+            assertThat(contents.get("dir/C.class")).isEqualTo(incompressible);
+            assertThat(contents.get("D.class")).isEmpty();
+
+            ClassFileEntry entry =
+                    input.entries(p -> p.equals("dir/C.class"))
+                            .findFirst()
+                            .orElseThrow(AssertionError::new);
+            byte[] buffer = new byte[(int) entry.getSize()];
+            assertThat(entry.readAllBytes(buffer)).isEqualTo(incompressible.length);
+            assertThat(buffer).isEqualTo(incompressible);
+        }
+    }
+
+    @Test
+    public void checkDeflatedJarEntryShorterThanRecorded() throws IOException {
+        File jarFile = FileUtils.join(temporaryFolder.getRoot(), "input.jar");
+        byte[] content = new byte[10_000];
+        Arrays.fill(content, (byte) 'a');
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jarFile))) {
+            writeEntry(zip, "A.class", content, ZipEntry.DEFLATED);
+        }
+
+        // Record a larger uncompressed size in the central directory than the entry inflates to.
+        byte[] bytes = Files.readAllBytes(jarFile.toPath());
+        ByteBuffer zip = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int record = bytes.length - 4;
+        while (zip.getInt(record) != 0x02014b50) {
+            record--;
+        }
+        zip.putInt(record + 24, 2 * content.length);
+        Files.write(jarFile.toPath(), bytes);
+
+        try (ClassFileInput input = ClassFileInputs.fromPath(jarFile.toPath())) {
+            ClassFileEntry entry =
+                    input.entries(p -> true).findFirst().orElseThrow(AssertionError::new);
+            assertThat(entry.getSize()).isEqualTo(2 * content.length);
+            try {
+                entry.readAllBytes();
+                fail();
+            } catch (IOException e) {
+                // should throw
+            }
+            try {
+                entry.readAllBytes(new byte[(int) entry.getSize()]);
+                fail();
+            } catch (IOException e) {
+                // should throw
+            }
+        }
+    }
+
+    private static void writeEntry(
+            @NonNull ZipOutputStream zip, @NonNull String name, @NonNull byte[] content, int method)
+            throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(entry);
+        zip.write(content);
+        zip.closeEntry();
+    }
+
     private void validateEntries(@NonNull File rootPath, @NonNull List<String> fileNames)
             throws IOException {
         List<String> filesRead =
@@ -25,6 +25,8 @@ import static org.junit.Assert.fail;
 
 import com.android.SdkConstants;
 import com.android.annotations.NonNull;
+import com.android.builder.core.StandardOutErrMessageReceiver;
+import com.android.builder.dexing.r8.ClassFileProviderFactory;
 import com.android.testutils.apk.Dex;
 import com.android.tools.build.apkzlib.zip.ZFile;
 import com.android.utils.PathUtils;
@@ -41,7 +43,10 @@ import java.io.InputStream;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 import org.junit.Assume;
@@ -290,6 +295,49 @@ public class DexArchiveBuilderTest {
         }
     }
 
+    @Test
+    public void checkParallelD8ConversionIsDeterministic() throws Exception {
+        Assume.assumeTrue(dexerTool == DexerTool.D8);
+
+        List<String> classesInInput = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            classesInInput.add("C" + i);
+        }
+        Path input = writeToInput(classesInInput);
+
+        Path sequentialOutput = temporaryFolder.newFolder("sequential").toPath();
+        Path parallelOutput = temporaryFolder.newFolder("parallel").toPath();
+        for (Path output : ImmutableList.of(sequentialOutput, parallelOutput)) {
+            D8DexArchiveBuilder builder =
+                    new D8DexArchiveBuilder(
+                            1,
+                            true,
+                            new ClassFileProviderFactory(Collections.emptyList()),
+                            new ClassFileProviderFactory(Collections.emptyList()),
+                            true,
+                            new StandardOutErrMessageReceiver(),
+                            output == parallelOutput ? 0 : Integer.MAX_VALUE);
+            try (ClassFileInput inputs = ClassFileInputs.fromPath(input)) {
+                builder.convert(
+                        inputs.entries(p -> true), output, outputFormat == DexArchiveFormat.DIR);
+            }
+        }
+
+        List<Path> sequentialFiles =
+                Files.walk(sequentialOutput)
+                        .filter(Files::isRegularFile)
+                        .sorted()
+                        .collect(Collectors.toList());
+        assertThat(sequentialFiles).isNotEmpty();
+        for (Path sequentialFile : sequentialFiles) {
+            Path parallelFile = parallelOutput.resolve(sequentialOutput.relativize(sequentialFile));
+            assertThat(Files.readAllBytes(parallelFile))
+                    .isEqualTo(Files.readAllBytes(sequentialFile));
+        }
+        assertThat(Files.walk(parallelOutput).filter(Files::isRegularFile).count())
+                .isEqualTo(sequentialFiles.size());
+    }
+
     @NonNull
     private Path writeToInput(@NonNull Collection<String> classesInInput) throws Exception {
         Path input;
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.dexing
+
+import com.android.builder.dexing.ReferenceCountMergingStrategy.Companion.INITIAL_CAPACITY
+import com.android.builder.dexing.ReferenceCountMergingStrategy.LongHashSet
+import com.android.builder.dexing.ReferenceCountMergingStrategy.ReferenceInterner
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+
+/** Tests for the collections that [ReferenceCountMergingStrategy] tracks references with. */
+class ReferenceCountMergingStrategyInternalsTest {
+
+    @Test
+    fun testLongHashSetGrowsWithCollidingKeys() {
+        // All the keys start probing from the same slot of the initial table, and there are enough
+        // of them to grow the table a few times.
+        val keys = collidingKeys(4 * INITIAL_CAPACITY)
+        val set = LongHashSet()
+        for (key in keys) {
+            assertThat(set.add(key)).isTrue()
+        }
+        assertThat(set.size()).isEqualTo(keys.size)
+        for (key in keys) {
+            assertThat(set.contains(key)).isTrue()
+            assertThat(set.add(key)).isFalse()
+        }
+        assertThat(set.size()).isEqualTo(keys.size)
+        assertThat(set.contains(keys.last() + 1)).isFalse()
+
+        val other = LongHashSet()
+        other.add(keys.first())
+        other.add(keys.last() + 1)
+        assertThat(other.countContainedIn(set)).isEqualTo(1)
+        set.addAll(other)
+        assertThat(set.size()).isEqualTo(keys.size + 1)
+        assertThat(set.contains(keys.last() + 1)).isTrue()
+
+        set.clear()
+        assertThat(set.size()).isEqualTo(0)
+        for (key in keys) {
+            assertThat(set.contains(key)).isFalse()
+        }
+        assertThat(set.add(keys.first())).isTrue()
+        assertThat(set.size()).isEqualTo(1)
+    }
+
+    @Test
+    fun testInternerAssignsConsecutiveIds() {
+        val interner = ReferenceInterner()
+        assertThat(interner.intern("La/A;")).isEqualTo(1)
+        assertThat(interner.intern("field")).isEqualTo(2)
+        assertThat(interner.intern(String(charArrayOf('L', 'a', '/', 'A', ';')))).isEqualTo(1)
+        assertThat(interner.size()).isEqualTo(2)
+
+        interner.clear()
+        assertThat(interner.size()).isEqualTo(0)
+        assertThat(interner.intern("field")).isEqualTo(1)
+    }
+
+    @Test
+    fun testInternerRollback() {
+        val interner = ReferenceInterner()
+        interner.intern("La/A;")
+        interner.intern("field")
+        val mark = interner.size()
+        assertThat(interner.intern("Lb/B;")).isEqualTo(3)
+        assertThat(interner.intern("method")).isEqualTo(4)
+
+        interner.rollback(mark)
+        assertThat(interner.size()).isEqualTo(mark)
+        assertThat(interner.intern("field")).isEqualTo(2)
+        // The ids of the forgotten strings are assigned again, in the order strings are interned.
+        assertThat(interner.intern("method")).isEqualTo(3)
+        assertThat(interner.intern("Lb/B;")).isEqualTo(4)
+    }
+
+    /** Returns the given number of distinct non-zero keys that map to the same initial slot. */
+    private fun collidingKeys(count: Int): List<Long> {
+        val mask = INITIAL_CAPACITY - 1
+        val keys = ArrayList<Long>(count)
+        var key = 1L
+        while (keys.size < count) {
+            if ((LongHashSet.mix(key) and mask) == 0) {
+                keys.add(key)
+            }
+            key++
+        }
+        return keys
+    }
+}
@@ -90,6 +90,25 @@ public class ReferenceCountMergingStrategyTest {
         assertThat(strategy.tryToAddForMerging(newWithMethods)).isFalse();
     }
 
+    @Test
+    public void testRejectedDexNotCounted() throws Exception {
+        ReferenceCountMergingStrategy strategy = new ReferenceCountMergingStrategy();
+        // leaves room for a single method, e.g. the default constructor of another class
+        strategy.tryToAddForMerging(generateDex("A", 0, 65536 / 2));
+        strategy.tryToAddForMerging(generateDex("B", 0, 65536 / 2 - 4));
+        assertThat(strategy.getAllDexToMerge()).hasSize(2);
+
+        // its fields fit, but its methods don't
+        Dex rejected = generateDex("C", 65536 / 2, 2);
+        assertThat(strategy.tryToAddForMerging(rejected)).isFalse();
+        assertThat(strategy.getAllDexToMerge()).hasSize(2);
+
+        // only fits if the fields of the rejected dex are not counted
+        Dex newWithFields = generateDex("D", 65536 / 2 + 1, 0);
+        assertThat(strategy.tryToAddForMerging(newWithFields)).isTrue();
+        assertThat(strategy.getAllDexToMerge()).hasSize(3);
+    }
+
     @NonNull
     private Dex generateDex(@NonNull String className, int fieldCnt, int methodCnt)
             throws Exception {
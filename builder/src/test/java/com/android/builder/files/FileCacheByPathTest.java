@@ -17,6 +17,7 @@
 package com.android.builder.files;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
@@ -25,8 +26,12 @@ import static org.junit.Assert.assertTrue;
 import com.android.utils.FileUtils;
 import com.google.common.io.Files;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -198,4 +203,93 @@ public class FileCacheByPathTest {
         File ff = cache.get(f);
         assertNotNull(ff);
     }
+
+    private File makeZip(String... namesAndContents) throws Exception {
+        File zip = new File(randomFilesDir, "zip-" + random.nextLong() + ".zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("dir/"));
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                out.putNextEntry(new ZipEntry(namesAndContents[i]));
+                out.write(namesAndContents[i + 1].getBytes());
+            }
+        }
+        return zip;
+    }
+
+    @Test
+    public void addZipStoresSnapshotOnly() throws Exception {
+        File zip = makeZip("dir/a", "foo", "b", "bar");
+
+        cache.addZip(zip);
+        assertNull(cache.get(zip));
+
+        ZipSnapshot snapshot = cache.getZipSnapshot(zip);
+        assertNotNull(snapshot);
+        assertEquals(Arrays.asList("dir/a", "b"), snapshot.getEntries().keySet().asList());
+        assertEquals(3, snapshot.getEntries().get("dir/a").getSize());
+
+        cache.remove(zip);
+        assertNull(cache.getZipSnapshot(zip));
+    }
+
+    @Test
+    public void zipSnapshotDetectsChanges() throws Exception {
+        File zip = makeZip("a", "foo", "b", "bar");
+        cache.addZip(zip);
+        ZipSnapshot oldSnapshot = cache.getZipSnapshot(zip);
+        assertNotNull(oldSnapshot);
+
+        Files.copy(makeZip("a", "foo", "b", "baz"), zip);
+        ZipSnapshot newSnapshot = ZipSnapshot.fromZip(zip);
+        assertTrue(
+                oldSnapshot
+                        .getEntries()
+                        .get("a")
+                        .hasSameContents(newSnapshot.getEntries().get("a")));
+        assertFalse(
+                oldSnapshot
+                        .getEntries()
+                        .get("b")
+                        .hasSameContents(newSnapshot.getEntries().get("b")));
+    }
+
+    @Test
+    public void zipSnapshotOfCopiedZip() throws Exception {
+        File zip = makeZip("a", "foo");
+        cache.add(zip);
+
+        ZipSnapshot snapshot = cache.getZipSnapshot(zip);
+        assertNotNull(snapshot);
+        assertEquals(Arrays.asList("a"), snapshot.getEntries().keySet().asList());
+    }
+
+    @Test
+    public void corruptedZipSnapshot() throws Exception {
+        File zip = makeZip("a", "foo");
+        cache.addZip(zip);
+
+        File[] snapshots = cacheDir.listFiles();
+        assertNotNull(snapshots);
+        assertEquals(1, snapshots.length);
+        byte[] contents = Files.toByteArray(snapshots[0]);
+        Files.write(Arrays.copyOf(contents, contents.length - 1), snapshots[0]);
+
+        assertNull(cache.getZipSnapshot(zip));
+    }
+
+    @Test
+    public void zipSnapshotWithCorruptedNameLength() throws Exception {
+        File zip = makeZip("a", "foo");
+        cache.addZip(zip);
+
+        File[] snapshots = cacheDir.listFiles();
+        assertNotNull(snapshots);
+        assertEquals(1, snapshots.length);
+        byte[] contents = Files.toByteArray(snapshots[0]);
+        // The length of the first name follows the header and the entry count.
+        ByteBuffer.wrap(contents).putInt(12, Integer.MAX_VALUE);
+        Files.write(contents, snapshots[0]);
+
+        assertNull(cache.getZipSnapshot(zip));
+    }
 }
@@ -82,6 +82,34 @@ class Aapt2DaemonImplTest {
                         requests.map { Aapt2RenamingConventions.compilationRename(it.inputFile) })
     }
 
+    @Test
+    fun testCompileAllReportsEachFailure() {
+        val outDir = temporaryFolder.newFolder()
+        val requests = listOf(
+                CompileResourceRequest(
+                        inputFile = valuesFile("strings", "<resources></resources>"),
+                        outputDirectory = outDir),
+                CompileResourceRequest(
+                        inputFile = resourceFile("values", "foo.txt", "content"),
+                        outputDirectory = outDir),
+                CompileResourceRequest(
+                        inputFile = valuesFile("styles", "<resources></resources>"),
+                        outputDirectory = outDir)
+        )
+        val daemon = createDaemon()
+        val failures = daemon.compileAll(requests, logger)
+        assertThat(failures).hasSize(3)
+        assertThat(failures[0]).isNull()
+        assertThat(failures[1]!!.message).contains("foo.txt")
+        assertThat(failures[2]).isNull()
+        assertThat(daemon.compileRoundTripCount).isEqualTo(1)
+        assertThat(outDir.list()).asList()
+                .containsExactly(
+                        Aapt2RenamingConventions.compilationRename(requests[0].inputFile),
+                        Aapt2RenamingConventions.compilationRename(requests[2].inputFile))
+        logger.clear()
+    }
+
     @Test
     fun testPartialR() {
         val outDir = temporaryFolder.newFolder()
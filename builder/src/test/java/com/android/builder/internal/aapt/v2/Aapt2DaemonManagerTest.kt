@@ -238,6 +238,70 @@ class Aapt2DaemonManagerTest {
         Listener.assertStopCountEquals(1)
     }
 
+    @Test
+    fun testDaemonLimitSharedAcrossManagers() {
+        val limiter = Aapt2DaemonLimiter(1)
+        val daemonsA = mutableListOf<TestAapt2Daemon>()
+        val daemonB = TestAapt2Daemon(103)
+        val managerA = createManager(limiter) { TestAapt2Daemon(it).also { daemonsA.add(it) } }
+        val managerB = createManager(limiter) { daemonB }
+        val request = CompileResourceRequest(
+                inputFile = File("in1"),
+                outputDirectory = File("out1"),
+                inputDirectoryName = "values")
+
+        managerA.leaseDaemon().use { it.compile(request, NoErrorsOrWarningsLogger()) }
+        assertThat(managerA.stats().poolSize).isEqualTo(1)
+
+        // The idle daemon of the other manager is shut down to make room for a new one.
+        val lease = managerB.leaseDaemon()
+        lease.compile(request, NoErrorsOrWarningsLogger())
+        assertThat(managerA.stats().poolSize).isEqualTo(0)
+        assertThat(daemonsA.single().state).isEqualTo(Aapt2Daemon.State.SHUTDOWN)
+        assertThat(managerB.stats().poolSize).isEqualTo(1)
+
+        // Busy daemons cannot be reclaimed, so the lease waits until the daemon is returned.
+        val leased = Semaphore(0)
+        val thread = Thread(Runnable {
+            managerA.leaseDaemon().use { leased.release() }
+        })
+        thread.start()
+        assertThat(leased.tryAcquire(200, TimeUnit.MILLISECONDS)).isFalse()
+        lease.close()
+        thread.join()
+        assertThat(leased.availablePermits()).isEqualTo(1)
+        assertThat(daemonsA).hasSize(2)
+        assertThat(daemonB.state).isEqualTo(Aapt2Daemon.State.SHUTDOWN)
+        assertThat(managerB.metrics().compileRequestCount).isEqualTo(1)
+        assertThat(managerA.metrics().leaseCount).isEqualTo(2)
+
+        managerA.shutdown()
+        managerB.shutdown()
+    }
+
+    @Test
+    fun testCompileAll() {
+        val daemon = TestAapt2Daemon(104)
+        val manager = createManager { daemon }
+        val requests = (1..3).map {
+            CompileResourceRequest(
+                    inputFile = File("in$it"),
+                    outputDirectory = File("out1"),
+                    inputDirectoryName = "values")
+        }
+        manager.leaseDaemon().use { process ->
+            assertThat(process.compileAll(requests, NoErrorsOrWarningsLogger()))
+                    .containsExactly(null, null, null)
+        }
+        assertThat(daemon.compileRequests).containsExactlyElementsIn(requests).inOrder()
+        val metrics = manager.metrics()
+        assertThat(metrics.leaseCount).isEqualTo(1)
+        assertThat(metrics.compileRequestCount).isEqualTo(3)
+        // The test daemon does not batch requests.
+        assertThat(metrics.compileRoundTripCount).isEqualTo(3)
+        manager.shutdown()
+    }
+
     class TestAapt2Daemon(displayId: Int) : Aapt2Daemon("Test AAPT Daemon #$displayId",
             NoErrorsOrWarningsLogger()) {
         val compileRequests = mutableListOf<CompileResourceRequest>()
@@ -258,14 +322,17 @@ class Aapt2DaemonManagerTest {
         }
     }
 
-    private fun createManager(daemonFactory: (Int) -> Aapt2Daemon) =
+    private fun createManager(
+            limiter: Aapt2DaemonLimiter = Aapt2DaemonLimiter.unlimited(),
+            daemonFactory: (Int) -> Aapt2Daemon) =
             Aapt2DaemonManager(
                     logger = NoErrorsOrWarningsLogger(),
                     daemonFactory = daemonFactory,
                     expiryTime = 1,
                     expiryTimeUnit = TimeUnit.MINUTES,
                     timeSource = ticker,
-                    listener = Listener)
+                    listener = Listener,
+                    limiter = limiter)
 
     private fun setTime(value: Long, timeUnit: TimeUnit) {
         nanoTime = timeUnit.toNanos(value)
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.merge;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Test cases for {@link IncrementalFileMergerStateSerializer}. */
+public class IncrementalFileMergerStateSerializerTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        IncrementalFileMergerState.Builder builder =
+                new IncrementalFileMergerState.Builder(new IncrementalFileMergerState());
+        builder.setInputNames(ImmutableList.of("input1", "input2", "input3"));
+        builder.set("META-INF/services/a.b.C", ImmutableList.of("input1", "input2"));
+        builder.set("META-INF/services/a.b.D", ImmutableList.of("input2"));
+        builder.set("META-INF/LICENSE", ImmutableList.of("input3"));
+        builder.set("com/example/res.properties", ImmutableList.of("input1"));
+        builder.set("top-level", ImmutableList.of("input3", "input1"));
+        builder.set("/absolute/and//empty/", ImmutableList.of("input2"));
+        IncrementalFileMergerState state = builder.build();
+
+        File file = temporaryFolder.newFile();
+        state.write(file);
+        IncrementalFileMergerState read = IncrementalFileMergerState.read(file);
+
+        assertThat(read).isNotNull();
+        assertThat(read.getInputNames()).containsExactly("input1", "input2", "input3").inOrder();
+        assertThat(read.getOrigin()).isEqualTo(state.getOrigin());
+        assertThat(read.inputsFor("top-level")).containsExactly("input3", "input1").inOrder();
+        assertThat(read.filesOf("input1"))
+                .containsExactly(
+                        "META-INF/services/a.b.C", "com/example/res.properties", "top-level");
+        assertThat(read.filesOf("input2"))
+                .containsExactly(
+                        "META-INF/services/a.b.C",
+                        "META-INF/services/a.b.D",
+                        "/absolute/and//empty/");
+        assertThat(read.filesOf("input3")).containsExactly("META-INF/LICENSE", "top-level");
+        assertThat(read.filesOf("input4")).isEmpty();
+    }
+
+    @Test
+    public void testWriteEmptyState() throws Exception {
+        File file = temporaryFolder.newFile();
+        new IncrementalFileMergerState().write(file);
+        IncrementalFileMergerState read = IncrementalFileMergerState.read(file);
+
+        assertThat(read).isNotNull();
+        assertThat(read.getInputNames()).isEmpty();
+        assertThat(read.getOrigin()).isEmpty();
+    }
+
+    @Test
+    public void testUnchangedStateIsNotRewritten() throws Exception {
+        IncrementalFileMergerState.Builder builder =
+                new IncrementalFileMergerState.Builder(new IncrementalFileMergerState());
+        builder.setInputNames(ImmutableList.of("input"));
+        builder.set("a/b", ImmutableList.of("input"));
+        builder.set("a/c", ImmutableList.of("input"));
+
+        File file = temporaryFolder.newFile();
+        builder.build().write(file);
+        assertThat(file.setLastModified(1000)).isTrue();
+
+        // The same state, built in a different order.
+        builder = new IncrementalFileMergerState.Builder(new IncrementalFileMergerState());
+        builder.setInputNames(ImmutableList.of("input"));
+        builder.set("a/c", ImmutableList.of("input"));
+        builder.set("a/b", ImmutableList.of("input"));
+        builder.build().write(file);
+        assertThat(file.lastModified()).isEqualTo(1000);
+
+        builder.set("a/d", ImmutableList.of("input"));
+        builder.build().write(file);
+        assertThat(file.lastModified()).isNotEqualTo(1000);
+        assertThat(IncrementalFileMergerState.read(file).filesOf("input"))
+                .containsExactly("a/b", "a/c", "a/d");
+    }
+
+    @Test
+    public void testReadUnknownFormat() throws Exception {
+        IncrementalFileMergerState.Builder builder =
+                new IncrementalFileMergerState.Builder(new IncrementalFileMergerState());
+        builder.setInputNames(ImmutableList.of("input"));
+        builder.set("a/b", ImmutableList.of("input"));
+        IncrementalFileMergerState state = builder.build();
+
+        File serialized = temporaryFolder.newFile();
+        try (ObjectOutputStream out =
+                new ObjectOutputStream(Files.newOutputStream(serialized.toPath()))) {
+            out.writeObject(state);
+        }
+        assertThat(IncrementalFileMergerState.read(serialized)).isNull();
+
+        File truncated = temporaryFolder.newFile();
+        state.write(truncated);
+        byte[] bytes = Files.readAllBytes(truncated.toPath());
+        Files.write(truncated.toPath(), Arrays.copyOf(bytes, bytes.length - 2));
+        assertThat(IncrementalFileMergerState.read(truncated)).isNull();
+    }
+
+    @Test
+    public void testReadDuplicatePaths() throws Exception {
+        File corrupted = temporaryFolder.newFile();
+        Files.write(
+                corrupted.toPath(),
+                new byte[] {
+                    'I', 'F', 'M', 'S', 0, 0, 0, 1,
+                    // input names
+                    1, 5, 'i', 'n', 'p', 'u', 't',
+                    // segments
+                    1, 1, 'a',
+                    // directories
+                    0,
+                    // the same path twice
+                    2, 0, 0, 1, 0, 0, 0, 1, 0
+                });
+        assertThat(IncrementalFileMergerState.read(corrupted)).isNull();
+    }
+}
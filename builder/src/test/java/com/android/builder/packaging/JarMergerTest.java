@@ -214,6 +214,61 @@ public class JarMergerTest {
                         "stored.txt[stored]", RESOURCE_CONTENT, "deflated.txt", RESOURCE_CONTENT_2);
     }
 
+    @Test
+    public void copiesCompressedEntriesAsIs() throws IOException {
+        Path root = Jimfs.newFileSystem(Configuration.unix()).getPath("/");
+        Path out = root.resolve("/out/output.jar");
+        Path jar = root.resolve("/in/jar.jar");
+
+        Files.createDirectories(jar.getParent());
+        ImmutableMap.Builder<String, ByteArrayHolder> expected = ImmutableMap.builder();
+        try (JarOutputStream jos =
+                new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(jar)))) {
+            for (int i = 0; i < 10_000; i++) {
+                String name = "com/example/Class" + i + ".class";
+                byte[] content = ("class " + i).getBytes(Charsets.UTF_8);
+                jos.putNextEntry(new ZipEntry(name));
+                jos.write(content);
+                jos.closeEntry();
+                expected.put("relocated/" + name, new ByteArrayHolder(content));
+            }
+        }
+
+        try (JarMerger merger = new JarMerger(out)) {
+            merger.addJar(jar, null, path -> "relocated/" + path);
+        }
+
+        assertThat(getEntries(out)).containsExactlyEntriesIn(expected.build()).inOrder();
+        try (ZipArchiveReader input = ZipArchiveReader.open(jar);
+                ZipArchiveReader output = ZipArchiveReader.open(out)) {
+            assertThat(input).isNotNull();
+            assertThat(output).isNotNull();
+            ZipArchiveReader.Entry inputEntry = input.getEntries().get(0);
+            ZipArchiveReader.Entry outputEntry = output.getEntries().get(0);
+            assertThat(outputEntry.name).isEqualTo("relocated/" + inputEntry.name);
+            assertThat(outputEntry.method).isEqualTo(inputEntry.method);
+            assertThat(outputEntry.crc).isEqualTo(inputEntry.crc);
+            assertThat(outputEntry.compressedSize).isEqualTo(inputEntry.compressedSize);
+        }
+    }
+
+    @Test
+    public void usesFixedTimestamps() throws IOException {
+        Path out = Jimfs.newFileSystem(Configuration.unix()).getPath("/out/output.jar");
+        try (JarMerger merger = new JarMerger(out)) {
+            merger.addDirectory(createDirectoryWithClassAndResource());
+            merger.addJar(createJarWithClass());
+        }
+
+        try (ZipInputStream zipInputStream =
+                new ZipInputStream(new BufferedInputStream(Files.newInputStream(out)))) {
+            ZipEntry entry;
+            while ((entry = zipInputStream.getNextEntry()) != null) {
+                assertThat(entry.getLastModifiedTime()).isEqualTo(JarMerger.ZERO_TIME);
+            }
+        }
+    }
+
     private static Path createDirectoryWithClassAndResource() throws IOException {
         return createDirectoryWithClassAndResource(
                 Jimfs.newFileSystem(Configuration.unix()).getPath("test", "dir"));
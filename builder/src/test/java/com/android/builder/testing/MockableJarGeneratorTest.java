@@ -20,8 +20,15 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertTrue;
 
 import com.android.testutils.TestResources;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
@@ -62,4 +69,52 @@ public class MockableJarGeneratorTest {
                             "FinalClass.class");
         }
     }
+
+    @Test
+    public void testOutputDoesNotDependOnExecutor() throws Exception {
+        File inputJar =
+                TestResources.getFile(
+                        MockableJarGenerator.class, "/testData/testing/non-mockable.jar");
+        File parallelJar = new File(mTemporaryFolder.newFolder(), "parallel.jar");
+        File sequentialJar = new File(mTemporaryFolder.newFolder(), "sequential.jar");
+
+        new MockableJarGenerator(false).createMockableJar(inputJar, parallelJar);
+        new MockableJarGenerator(false, MoreExecutors.newDirectExecutorService())
+                .createMockableJar(inputJar, sequentialJar);
+
+        Map<String, byte[]> parallelEntries = readEntries(parallelJar);
+        Map<String, byte[]> sequentialEntries = readEntries(sequentialJar);
+        assertThat(parallelEntries.keySet())
+                .containsExactlyElementsIn(sequentialEntries.keySet())
+                .inOrder();
+        for (Map.Entry<String, byte[]> entry : parallelEntries.entrySet()) {
+            assertThat(entry.getValue())
+                    .named(entry.getKey())
+                    .isEqualTo(sequentialEntries.get(entry.getKey()));
+        }
+
+        // Entries are written in the order of the input.
+        List<String> inputNames;
+        try (JarFile jarFile = new JarFile(inputJar)) {
+            inputNames =
+                    Collections.list(jarFile.entries())
+                            .stream()
+                            .map(JarEntry::getName)
+                            .filter(parallelEntries::containsKey)
+                            .collect(Collectors.toList());
+        }
+        assertThat(parallelEntries.keySet()).containsExactlyElementsIn(inputNames).inOrder();
+    }
+
+    private static Map<String, byte[]> readEntries(File jar) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (JarFile jarFile = new JarFile(jar)) {
+            for (JarEntry entry : Collections.list(jarFile.entries())) {
+                try (InputStream inputStream = jarFile.getInputStream(entry)) {
+                    entries.put(entry.getName(), ByteStreams.toByteArray(inputStream));
+                }
+            }
+        }
+        return entries;
+    }
 }
@@ -1700,6 +1700,186 @@ public class FileCacheTest {
         assertThat(changedDirKeyWithOtherSession).isNotEqualTo(dirInitialKey);
     }
 
+    @Test
+    public void testSizeBoundedCache_EvictsLeastRecentlyUsedEntries() throws Exception {
+        // Run the eviction synchronously so that the test is deterministic
+        FileCache fileCache =
+                FileCache.getInstanceWithSingleProcessLocking(cacheDir, 13, Runnable::run);
+        File outputFile = new File(outputDir, "output");
+
+        FileCache.Inputs inputsA =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST).putString("file", "A").build();
+        FileCache.Inputs inputsB =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST).putString("file", "B").build();
+        FileCache.Inputs inputsC =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST).putString("file", "C").build();
+
+        // Create two entries of 6 bytes each, the cache is still within its budget
+        fileCache.createFile(outputFile, inputsA, () -> writeStringToFile("AAAAAA", outputFile));
+        Thread.sleep(10);
+        fileCache.createFile(outputFile, inputsB, () -> writeStringToFile("BBBBBB", outputFile));
+        Thread.sleep(10);
+
+        // Access entry A again so that entry B becomes the least recently used entry
+        fileCache.createFile(outputFile, inputsA, () -> fail("Entry A should be cached"));
+        Thread.sleep(10);
+
+        // Create a third entry, the cache exceeds its budget and entry B is evicted
+        fileCache.createFile(outputFile, inputsC, () -> writeStringToFile("CCCCCC", outputFile));
+
+        assertThat(fileCache.cacheEntryExists(inputsA)).isTrue();
+        assertThat(fileCache.cacheEntryExists(inputsB)).isFalse();
+        assertThat(fileCache.cacheEntryExists(inputsC)).isTrue();
+
+        FileCache.Statistics statistics = fileCache.getStatistics();
+        assertThat(statistics.getHits()).isEqualTo(1);
+        assertThat(statistics.getMisses()).isEqualTo(3);
+        assertThat(statistics.getEvictions()).isEqualTo(1);
+        assertThat(statistics.getEvictedBytes()).isEqualTo(6);
+
+        // The index survives across instances of the same cache
+        assertThat(new File(cacheDir, ".cache-index")).exists();
+        FileCache otherFileCache =
+                FileCache.getInstanceWithSingleProcessLocking(cacheDir, 6, Runnable::run);
+        otherFileCache.evictLeastRecentlyUsedEntries();
+        assertThat(otherFileCache.cacheEntryExists(inputsA)).isFalse();
+        assertThat(otherFileCache.cacheEntryExists(inputsC)).isTrue();
+    }
+
+    @Test
+    public void testSizeBoundedCache_DeduplicatesIdenticalEntries() throws Exception {
+        FileCache fileCache =
+                FileCache.getInstanceWithSingleProcessLocking(cacheDir, 1024, Runnable::run);
+
+        FileCache.Inputs inputsA =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST).putString("file", "A").build();
+        FileCache.Inputs inputsB =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST).putString("file", "B").build();
+
+        File cachedFileA =
+                fileCache
+                        .createFileInCacheIfAbsent(
+                                inputsA, file -> writeStringToFile("Same text", file))
+                        .getCachedFile();
+        File cachedFileB =
+                fileCache
+                        .createFileInCacheIfAbsent(
+                                inputsB, file -> writeStringToFile("Same text", file))
+                        .getCachedFile();
+
+        assertNotNull(cachedFileA);
+        assertNotNull(cachedFileB);
+        assertThat(fileCache.getStatistics().getDeduplications()).isEqualTo(1);
+        assertThat(java.nio.file.Files.isSameFile(cachedFileA.toPath(), cachedFileB.toPath()))
+                .isTrue();
+        assertThat(cachedFileB).hasContents("Same text");
+
+        // Deleting one of the entries must not affect the other one
+        File cacheEntryDirA = cachedFileA.getParentFile();
+        assertThat(cacheEntryDirA.setLastModified(1000)).isTrue();
+        fileCache.deleteOldCacheEntries(1000);
+        assertThat(fileCache.cacheEntryExists(inputsA)).isFalse();
+        assertThat(fileCache.cacheEntryExists(inputsB)).isTrue();
+        assertThat(cachedFileB).hasContents("Same text");
+
+        // The space of the shared file is only freed once all the entries linking to it are
+        // evicted
+        FileCache smallerFileCache =
+                FileCache.getInstanceWithSingleProcessLocking(cacheDir, 0, Runnable::run);
+        smallerFileCache.evictLeastRecentlyUsedEntries();
+        assertThat(smallerFileCache.cacheEntryExists(inputsA)).isFalse();
+        assertThat(smallerFileCache.cacheEntryExists(inputsB)).isFalse();
+    }
+
+    @Test
+    public void testSizeBoundedCache_EvictionKeepsLockFiles() throws Exception {
+        FileCache fileCache = FileCache.getInstanceWithMultiProcessLocking(cacheDir, 1024);
+        FileCache.Inputs inputs =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST).putString("file", "A").build();
+
+        fileCache.createFileInCacheIfAbsent(inputs, file -> writeStringToFile("Some text", file));
+        File cacheEntryDir = fileCache.getFileInCache(inputs).getParentFile();
+        File lockFile = SynchronizedFile.getLockFile(cacheEntryDir);
+        assertThat(lockFile).exists();
+
+        // The lock file may be in use by another process, so eviction must not delete it
+        FileCache smallerFileCache = FileCache.getInstanceWithMultiProcessLocking(cacheDir, 0);
+        smallerFileCache.evictLeastRecentlyUsedEntries();
+        assertThat(cacheEntryDir).doesNotExist();
+        assertThat(lockFile).exists();
+
+        // It is deleted once the whole cache directory is locked
+        smallerFileCache.deleteOldCacheEntries(0);
+        assertThat(lockFile).doesNotExist();
+        assertThat(SynchronizedFile.getLockFile(new File(cacheDir, ".cache-index"))).exists();
+    }
+
+    @Test
+    public void testCreateFile_HardLinkMaterialization() throws Exception {
+        FileCache fileCache = FileCache.getInstanceWithSingleProcessLocking(cacheDir);
+        FileCache.Inputs inputs =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("file", "input")
+                        .build();
+        File outputFile = new File(outputDir, "output");
+
+        // Cache miss: the cached file is linked to the output file
+        fileCache.createFile(
+                outputFile,
+                inputs,
+                () -> writeStringToFile("Some text", outputFile),
+                FileCache.MaterializationStrategy.HARD_LINK);
+        File cachedFile = fileCache.getFileInCache(inputs);
+        assertThat(java.nio.file.Files.isSameFile(outputFile.toPath(), cachedFile.toPath()))
+                .isTrue();
+
+        // Cache hit: a new output file is linked to the cached file
+        File otherOutputFile = new File(outputDir, "otherOutput");
+        fileCache.createFile(
+                otherOutputFile,
+                inputs,
+                () -> fail("Entry should be cached"),
+                FileCache.MaterializationStrategy.HARD_LINK);
+        assertThat(otherOutputFile).hasContents("Some text");
+        assertThat(java.nio.file.Files.isSameFile(otherOutputFile.toPath(), cachedFile.toPath()))
+                .isTrue();
+
+        // Deleting an output does not affect the cache
+        FileUtils.delete(outputFile);
+        assertThat(cachedFile).hasContents("Some text");
+        assertThat(fileCache.getStatistics().getLinkedFiles()).isEqualTo(2);
+    }
+
+    @Test
+    public void testCreateFile_HardLinkMaterializationOfDirectory() throws Exception {
+        FileCache fileCache = FileCache.getInstanceWithSingleProcessLocking(cacheDir);
+        FileCache.Inputs inputs =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("directory", "input")
+                        .build();
+        File outputDirectory = new File(outputDir, "output");
+
+        fileCache.createFile(
+                outputDirectory,
+                inputs,
+                () -> writeSampleContentsToDirectory(outputDirectory),
+                FileCache.MaterializationStrategy.HARD_LINK);
+
+        File otherOutputDirectory = new File(outputDir, "otherOutput");
+        fileCache.createFile(
+                otherOutputDirectory,
+                inputs,
+                () -> fail("Entry should be cached"),
+                FileCache.MaterializationStrategy.HARD_LINK);
+
+        assertThat(new File(otherOutputDirectory, "foo/foo1.txt")).hasContents("foo1");
+        assertThat(new File(otherOutputDirectory, "foo/foo2.txt")).hasContents("foo2");
+        assertThat(new File(otherOutputDirectory, "bar")).isDirectory();
+        assertThat(new File(otherOutputDirectory, "baz.txt")).hasContents("baz");
+        assertThat(fileCache.getHits()).isEqualTo(1);
+        assertThat(fileCache.getMisses()).isEqualTo(1);
+    }
+
     private static void writeStringToFile(@NonNull String content, @NonNull File file)
             throws IOException {
         Files.asCharSink(file, StandardCharsets.UTF_8).write(content);
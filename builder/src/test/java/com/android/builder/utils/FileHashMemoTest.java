@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.io.Files;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Test cases for {@link FileHashMemo}. */
+public class FileHashMemoTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testUnchangedFileIsNotHashedAgain() throws Exception {
+        File file = createOldFile("Some text");
+        FileHashMemo memo = new FileHashMemo();
+        CountingHashFunction hashFunction = new CountingHashFunction();
+
+        String hash = memo.getFileHash(file, hashFunction);
+        assertThat(memo.getFileHash(file, hashFunction)).isEqualTo(hash);
+        assertThat(hashFunction.count.get()).isEqualTo(1);
+        assertThat(hash).isEqualTo(FileCache.Inputs.Builder.getFileHash(file));
+    }
+
+    @Test
+    public void testChangedFileIsHashedAgain() throws Exception {
+        File file = createOldFile("Some text");
+        FileHashMemo memo = new FileHashMemo();
+        CountingHashFunction hashFunction = new CountingHashFunction();
+
+        String hash = memo.getFileHash(file, hashFunction);
+        Files.asCharSink(file, StandardCharsets.UTF_8).write("Some other text");
+        assertThat(file.setLastModified(file.lastModified() + 10_000)).isTrue();
+
+        assertThat(memo.getFileHash(file, hashFunction)).isNotEqualTo(hash);
+        assertThat(hashFunction.count.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testRecentlyModifiedFileIsNotMemoized() throws Exception {
+        File file = temporaryFolder.newFile();
+        Files.asCharSink(file, StandardCharsets.UTF_8).write("Some text");
+        FileHashMemo memo = new FileHashMemo();
+
+        memo.getFileHash(file, FileCache.Inputs.Builder::getFileHash);
+        assertThat(memo.getMemoizedHash(file)).isNull();
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        File file = createOldFile("Some text");
+        File memoFile = new File(temporaryFolder.getRoot(), "memo/file-hashes");
+
+        FileHashMemo memo = new FileHashMemo();
+        String hash = memo.getFileHash(file, FileCache.Inputs.Builder::getFileHash);
+        memo.saveToFile(memoFile);
+        assertThat(memoFile.isFile()).isTrue();
+
+        FileHashMemo otherMemo = new FileHashMemo();
+        otherMemo.loadFromFile(memoFile);
+        CountingHashFunction hashFunction = new CountingHashFunction();
+        assertThat(otherMemo.getFileHash(file, hashFunction)).isEqualTo(hash);
+        assertThat(hashFunction.count.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void testLoadCorruptedFile() throws Exception {
+        File memoFile = temporaryFolder.newFile();
+        Files.asCharSink(memoFile, StandardCharsets.UTF_8).write("Not a memo");
+
+        FileHashMemo memo = new FileHashMemo();
+        memo.loadFromFile(memoFile);
+        File file = createOldFile("Some text");
+        assertThat(memo.getMemoizedHash(file)).isNull();
+    }
+
+    @Test
+    public void testLoadTruncatedFile() throws Exception {
+        File file = createOldFile("Some text");
+        File memoFile = new File(temporaryFolder.getRoot(), "memo/file-hashes");
+
+        FileHashMemo memo = new FileHashMemo();
+        memo.getFileHash(file, FileCache.Inputs.Builder::getFileHash);
+        memo.saveToFile(memoFile);
+        assertThat(memoFile.getParentFile().list()).asList().containsExactly("file-hashes");
+
+        // A memo missing its trailing checksum must be ignored entirely
+        byte[] contents = Files.toByteArray(memoFile);
+        Files.write(Arrays.copyOf(contents, contents.length - 1), memoFile);
+        FileHashMemo otherMemo = new FileHashMemo();
+        otherMemo.loadFromFile(memoFile);
+        assertThat(otherMemo.getMemoizedHash(file)).isNull();
+    }
+
+    @Test
+    public void testLoadFileWithoutHeader() throws Exception {
+        File file = createOldFile("Some text");
+        File memoFile = temporaryFolder.newFile();
+
+        // A well-formed memo in the format used before the header was added
+        try (CheckedOutputStream checkedOut =
+                        new CheckedOutputStream(new FileOutputStream(memoFile), new CRC32());
+                DataOutputStream out = new DataOutputStream(checkedOut)) {
+            out.writeInt(2);
+            out.writeInt(1);
+            out.writeUTF(file.getAbsolutePath());
+            out.writeLong(file.length());
+            out.writeLong(file.lastModified());
+            out.writeUTF("Not the hash of the file");
+            out.writeLong(checkedOut.getChecksum().getValue());
+        }
+
+        FileHashMemo memo = new FileHashMemo();
+        memo.loadFromFile(memoFile);
+        assertThat(memo.getMemoizedHash(file)).isNull();
+    }
+
+    /** Creates a file whose timestamp is old enough for its hash to be memoized. */
+    private File createOldFile(String contents) throws Exception {
+        File file = temporaryFolder.newFile();
+        Files.asCharSink(file, StandardCharsets.UTF_8).write(contents);
+        assertThat(file.setLastModified(System.currentTimeMillis() - 60_000)).isTrue();
+        return file;
+    }
+
+    private static final class CountingHashFunction implements Function<File, String> {
+
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public String apply(File file) {
+            count.incrementAndGet();
+            return FileCache.Inputs.Builder.getFileHash(file);
+        }
+    }
+}
@@ -26,6 +26,8 @@ import com.android.build.gradle.options.ProjectOptions;
 import com.android.build.gradle.options.StringOption;
 import com.android.builder.model.Version;
 import com.android.builder.utils.FileCache;
+import com.android.builder.utils.FileHashMemo;
+import com.android.builder.utils.PerformanceUtils;
 import com.android.builder.utils.SynchronizedFile;
 import com.android.ide.common.repository.GradleVersion;
 import com.android.prefs.AndroidLocation;
@@ -86,6 +88,12 @@ public final class BuildCacheUtils {
      */
     @VisibleForTesting static final String CACHE_USE_MARKER_FILE_NAME = ".cache-use-marker";
 
+    /**
+     * The name of the file inside the current private cache directory where the hashes of the
+     * cache inputs are remembered across Gradle daemons (see {@link FileHashMemo}).
+     */
+    private static final String FILE_HASH_MEMO_FILE_NAME = ".file-hashes";
+
     /**
      * Returns a {@link FileCache} instance representing the build cache if the build cache is
      * enabled, or null if it is disabled. If enabled, the build cache directory is set to a
@@ -114,6 +122,7 @@ public final class BuildCacheUtils {
         FileCache buildCache =
                 createBuildCache(
                         projectOptions.get(StringOption.BUILD_CACHE_DIR),
+                        projectOptions.get(StringOption.BUILD_CACHE_MAX_SIZE),
                         project.getRootProject()::file,
                         defaultBuildCacheDirSupplier,
                         Version.ANDROID_GRADLE_PLUGIN_VERSION);
@@ -152,6 +161,13 @@ public final class BuildCacheUtils {
             // 1. Delete old cache entries inside the current private cache directory created by the
             // current plugin version
             deleteOldCacheEntries(buildCache, Duration.ofDays(CACHE_ENTRY_DAYS_TO_LIVE));
+            // If the build cache is size-bounded, also make sure it fits into its budget (this is
+            // otherwise done in the background after cache misses)
+            try {
+                buildCache.evictLeastRecentlyUsedEntries();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
 
             // 2. Delete old private cache directories created by plugin versions 3.1.x and later,
             // but before the current plugin version
@@ -168,13 +184,35 @@ public final class BuildCacheUtils {
         // Mark that the current cache was last used at this point
         updateMarkerFile(new File(buildCache.getCacheDirectory(), CACHE_USE_MARKER_FILE_NAME));
 
+        // Reuse the input file hashes computed by previous daemons, and save the new ones at the
+        // end of the build
+        File fileHashMemoFile = new File(buildCache.getCacheDirectory(), FILE_HASH_MEMO_FILE_NAME);
+        FileHashMemo.getInstance().loadFromFile(fileHashMemoFile);
+        BuildSessionImpl.getSingleton()
+                .executeOnceWhenBuildFinished(
+                        BuildCacheUtils.class.getName(),
+                        "saveFileHashMemo",
+                        () -> {
+                            try {
+                                FileHashMemo.getInstance().saveToFile(fileHashMemoFile);
+                            } catch (IOException e) {
+                                // The memo is only an optimization, hashes will be recomputed
+                            }
+                        });
+
         return buildCache;
     }
 
+    /**
+     * Returns a {@link FileCache} instance representing the build cache. If a maximum size is
+     * given (e.g., "10g", see {@link PerformanceUtils#parseSizeToBytes(String)}), the least
+     * recently used cache entries are evicted once the build cache exceeds that size.
+     */
     @NonNull
     @VisibleForTesting
     static FileCache createBuildCache(
             @Nullable String buildCacheDir,
+            @Nullable String buildCacheMaxSize,
             @NonNull Function<Object, File> pathToFileResolver,
             @NonNull Supplier<File> defaultBuildCacheDirSupplier,
             @NonNull String pluginVersion) {
@@ -184,8 +222,21 @@ public final class BuildCacheUtils {
                         : defaultBuildCacheDirSupplier.get();
         // The actual build cache directory for a given plugin version is
         // <shared-build-cache-dir>/<plugin-version>
+        File privateBuildCacheDir = new File(sharedBuildCacheDir, pluginVersion);
+        if (buildCacheMaxSize == null) {
+            return FileCache.getInstanceWithMultiProcessLocking(privateBuildCacheDir);
+        }
+
+        Long maxCacheSizeInBytes = PerformanceUtils.parseSizeToBytes(buildCacheMaxSize);
+        if (maxCacheSizeInBytes == null || maxCacheSizeInBytes < 0) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "Invalid value '%1$s' for property '%2$s', expected a size such as"
+                                    + " '512m' or '10g'.",
+                            buildCacheMaxSize, StringOption.BUILD_CACHE_MAX_SIZE.getPropertyName()));
+        }
         return FileCache.getInstanceWithMultiProcessLocking(
-                new File(sharedBuildCacheDir, pluginVersion));
+                privateBuildCacheDir, maxCacheSizeInBytes);
     }
 
     /**
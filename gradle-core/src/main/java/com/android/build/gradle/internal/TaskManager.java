@@ -1585,7 +1585,12 @@ public abstract class TaskManager {
                         globalScope.getNdkHandler(),
                         globalScope.getExtension().getPackagingOptions().getDoNotStrip(),
                         scope.getVariantConfiguration().getType().isAar(),
-                        scope.consumesFeatureJars()));
+                        scope.consumesFeatureJars(),
+                        globalScope
+                                        .getProjectOptions()
+                                        .get(BooleanOption.ENABLE_INTERMEDIATE_ARTIFACTS_CACHE)
+                                ? globalScope.getBuildCache()
+                                : null));
     }
 
     /** Creates the tasks to build unit tests. */
@@ -2271,6 +2276,7 @@ public abstract class TaskManager {
                             globalScope.getAndroidBuilder().getJavaProcessExecutor(),
                             project.getLogger().isEnabled(LogLevel.INFO),
                             projectOptions.get(BooleanOption.ENABLE_GRADLE_WORKERS),
+                            projectOptions.get(BooleanOption.ENABLE_DESUGAR_PERSISTENT_WORKERS),
                             variantScope.getGlobalScope().getTmpFolder().toPath(),
                             getProjectVariantId(variantScope),
                             enableDesugarBugFixForJacoco(variantScope));
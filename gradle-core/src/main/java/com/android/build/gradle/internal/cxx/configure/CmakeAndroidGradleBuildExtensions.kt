@@ -148,6 +148,26 @@ fun wrapCmakeListsForCompilerSettingsCaching(
     return result
 }
 
+/**
+ * Returns the compiler settings cache key of a CMake invocation if the compiler settings for it
+ * have not been cached yet, null otherwise (including when caching is disabled).
+ *
+ * Invocations with the same key, for example the same ABI in different build types, can wait for
+ * the first of them to write its compiler settings to the cache instead of all probing the compiler.
+ */
+fun findUncachedCompilerSettingsKey(cacheRootFolder: File, args: List<String>): String? {
+    val commandLine = parseCmakeArguments(args)
+    if (commandLine.getCmakeBooleanProperty(
+            ANDROID_GRADLE_BUILD_COMPILER_SETTINGS_CACHE_ENABLED) == false) {
+        return null
+    }
+    val cacheKey = makeCmakeCompilerCacheKey(commandLine) ?: return null
+    if (CmakeCompilerSettingsCache(cacheRootFolder).tryGetValue(cacheKey) != null) {
+        return null
+    }
+    return cacheKey.toJsonString()
+}
+
 /**
  * Function that modifies a CMake invocation to wrap the toolchain.
  */
@@ -18,6 +18,9 @@ package com.android.build.gradle.internal.cxx.configure
 
 import java.io.File
 import java.io.IOException
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
 
 /**
  * Key-value hash on disk for CMake compiler settings.
@@ -29,6 +32,9 @@ import java.io.IOException
  * a key/value will remain cached over time.
  *
  * No file locking is needed. Instead, a checksum is used to ensure that the value is consistent.
+ * Each file is written to a temporary file first and then moved into place, so readers see either
+ * the previous or the new content of a file, never a partially written one. The checksum is moved
+ * last, so a complete entry is never missing its value.
  */
 class CmakeCompilerSettingsCache(
     cacheRootFolder: File,
@@ -86,15 +92,36 @@ class CmakeCompilerSettingsCache(
             val valueFile = valueFile(keyHash)
             cacheFolder.mkdirs()
             val valueChecksum = hashCodeRadix36Hash(value)
-            checksumFile.writeText(valueChecksum)
-            keyFile.writeText(keyJson)
-            valueFile.writeText(value)
+            writeAtomically(keyFile, keyJson)
+            writeAtomically(valueFile, value)
+            writeAtomically(checksumFile, valueChecksum)
         } catch(e: IOException) {
             // User deleted the cache folder manually
             return
         }
     }
 
+    /**
+     * Write the file in a temporary file and move it in place.
+     */
+    private fun writeAtomically(file: File, text: String) {
+        val tempFile = File.createTempFile(file.name, ".tmp", cacheFolder)
+        try {
+            tempFile.writeText(text)
+            try {
+                Files.move(
+                    tempFile.toPath(),
+                    file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING)
+            } catch (e: AtomicMoveNotSupportedException) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING)
+            }
+        } finally {
+            tempFile.delete()
+        }
+    }
+
     /**
      * The name of the file that holds a key for a particular hash.
      */
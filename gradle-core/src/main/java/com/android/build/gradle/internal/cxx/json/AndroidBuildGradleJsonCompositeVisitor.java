@@ -172,4 +172,9 @@ public class AndroidBuildGradleJsonCompositeVisitor extends AndroidBuildGradleJs
     protected void visitLibraryRuntimeFile(@NonNull String runtimeFile) {
         visitors.forEach(parser -> parser.visitLibraryRuntimeFile(runtimeFile));
     }
+
+    @Override
+    protected void visitLibraryDependency(@NonNull String libraryName) {
+        visitors.forEach(parser -> parser.visitLibraryDependency(libraryName));
+    }
 }
@@ -162,6 +162,9 @@ public class AndroidBuildGradleJsonStreamingParser implements Closeable {
                 case "runtimeFiles":
                     parseLibraryRuntimeFiles();
                     break;
+                case "dependencies":
+                    parseLibraryDependencies();
+                    break;
                 default:
                     parseUnknown();
                     break;
@@ -330,6 +333,14 @@ public class AndroidBuildGradleJsonStreamingParser implements Closeable {
         reader.endArray();
     }
 
+    private void parseLibraryDependencies() throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            visitor.visitLibraryDependency(reader.nextString());
+        }
+        reader.endArray();
+    }
+
     @Override
     public void close() throws IOException {
         reader.close();
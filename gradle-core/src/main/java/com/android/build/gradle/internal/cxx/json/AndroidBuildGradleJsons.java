@@ -19,7 +19,8 @@ package com.android.build.gradle.internal.cxx.json;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.build.gradle.tasks.ExternalNativeBuildTaskUtils;
-import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -29,11 +30,19 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.List;
 
 /** Methods for dealing with files and streams of type android_build_gradle.json. */
 public class AndroidBuildGradleJsons {
+    /** Encoded mini configs of this daemon, by absolute path of the Json they were read from. */
+    private static final Cache<File, byte[]> miniConfigs =
+            CacheBuilder.newBuilder().maximumSize(1000).build();
+
     /**
      * Given a JsonReader that represents an android_build_gradle structure produce a small random
      * access structure called {@link NativeBuildConfigValueMini}
@@ -102,6 +111,11 @@ public class AndroidBuildGradleJsons {
      * Given a File that contains an android_build_gradle structure produce a small random access
      * structure called {@link NativeBuildConfigValueMini}
      *
+     * <p>The mini config is saved next to the Json, in the binary format of {@link
+     * NativeBuildConfigValueMiniSerializer}, and kept in memory for the other tasks of the build
+     * and the following builds of the daemon. The Json is only parsed again once its size or last
+     * modified time changes.
+     *
      * @param json the Json reader
      * @param stats the stats to update
      * @return the mini config
@@ -110,25 +124,74 @@ public class AndroidBuildGradleJsons {
     @NonNull
     public static NativeBuildConfigValueMini getNativeBuildMiniConfig(
             @NonNull File json, @Nullable GradleBuildVariant.Builder stats) throws IOException {
-        File persistedMiniConfig = ExternalNativeBuildTaskUtils.getJsonMiniConfigFile(json);
-        if (ExternalNativeBuildTaskUtils.fileIsUpToDate(json, persistedMiniConfig)) {
-            // The mini json has already been created for us. Just read it instead of parsing
+        BasicFileAttributes attributes =
+                Files.readAttributes(json.toPath(), BasicFileAttributes.class);
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        File key = json.getAbsoluteFile();
+
+        // Each call decodes a new mini config, as callers are free to modify it.
+        byte[] encoded = miniConfigs.getIfPresent(key);
+        NativeBuildConfigValueMini result =
+                encoded == null
+                        ? null
+                        : NativeBuildConfigValueMiniSerializer.decode(encoded, size, lastModified);
+        if (result != null) {
+            return result;
+        }
+
+        File persistedMiniConfig = ExternalNativeBuildTaskUtils.getMiniConfigFile(json);
+        if (persistedMiniConfig.isFile()) {
+            // The mini config has already been created for us. Just read it instead of parsing
             // again.
-            try (JsonReader reader = new JsonReader(new FileReader(persistedMiniConfig))) {
-                return parseToMiniConfig(reader);
+            encoded = Files.readAllBytes(persistedMiniConfig.toPath());
+            result = NativeBuildConfigValueMiniSerializer.decode(encoded, size, lastModified);
+            if (result != null) {
+                miniConfigs.put(key, encoded);
+                return result;
             }
         }
-        NativeBuildConfigValueMini result;
+
         try (JsonReader reader = new JsonReader(new FileReader(json))) {
             result =
                     stats == null
                             ? parseToMiniConfig(reader)
                             : parseToMiniConfigAndGatherStatistics(reader, stats);
         }
-        writeNativeBuildMiniConfigValueToJsonFile(persistedMiniConfig, result);
+        encoded = NativeBuildConfigValueMiniSerializer.encode(result, size, lastModified);
+        writeNativeBuildMiniConfig(persistedMiniConfig, encoded);
+        miniConfigs.put(key, encoded);
         return result;
     }
 
+    /**
+     * Writes an encoded mini config, replacing the file at once so that tasks reading it
+     * concurrently never see partial data. Each write goes through its own temporary file, so that
+     * concurrent writes of the same config do not interleave.
+     *
+     * @throws IOException I/O failure
+     */
+    private static void writeNativeBuildMiniConfig(
+            @NonNull File outputFile, @NonNull byte[] encoded) throws IOException {
+        Path output = outputFile.getAbsoluteFile().toPath();
+        Path temp =
+                Files.createTempFile(output.getParent(), output.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, encoded);
+            try {
+                Files.move(
+                        temp,
+                        output,
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
     /**
      * Writes the given object as JSON to the given json file.
      *
@@ -149,23 +212,6 @@ public class AndroidBuildGradleJsons {
         }
     }
 
-    /**
-     * Writes the given object as JSON to the given json file.
-     *
-     * @throws IOException I/O failure
-     */
-    private static void writeNativeBuildMiniConfigValueToJsonFile(
-            @NonNull File outputJson, @NonNull NativeBuildConfigValueMini miniConfig)
-            throws IOException {
-        String actualResult =
-                new GsonBuilder()
-                        .registerTypeAdapter(File.class, new PlainFileGsonTypeAdaptor())
-                        .setPrettyPrinting()
-                        .create()
-                        .toJson(miniConfig);
-        Files.write(outputJson.toPath(), actualResult.getBytes(Charsets.UTF_8));
-    }
-
     /**
      * Streams over android_build_gradle.json and produces a random-access but small structure
      * called a NativeBuildConfigValueMini.
@@ -216,6 +262,12 @@ public class AndroidBuildGradleJsons {
             miniConfig.libraries.get(libraryName).output = new File(output);
         }
 
+        @Override
+        protected void visitLibraryDependency(@NonNull String dependency) {
+            super.visitLibraryDependency(dependency);
+            miniConfig.libraries.get(libraryName).dependencies.add(dependency);
+        }
+
         @Override
         protected void visitBuildFile(@NonNull String buildFile) {
             super.visitBuildFile(buildFile);
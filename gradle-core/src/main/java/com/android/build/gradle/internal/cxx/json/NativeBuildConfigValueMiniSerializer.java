@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal.cxx.json;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.utils.FileFormatHeader;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes {@link NativeBuildConfigValueMini} in a compact binary format, so that it can be read
+ * back without parsing JSON.
+ *
+ * <p>Strings are deduplicated with a {@link StringTable} and referred to by index:
+ *
+ * <pre>
+ * header (see {@link FileFormatHeader}), size and last modified time of the JSON (longs)
+ * strings: count, strings (UTF-8 bytes prefixed by their length)
+ * build files: count, strings
+ * clean commands: count, strings
+ * libraries: count, (name, artifact name + 1, build command + 1, abi + 1, output + 1,
+ *     dependency count, dependencies) per library
+ * </pre>
+ *
+ * <p>Nullable strings are stored as their index plus one, zero meaning null. All counts and indexes
+ * are unsigned varints, as encoded by {@link CodedOutputStream}. The size and last modified time of
+ * the JSON the config was read from are recorded so that a config is not used once the JSON
+ * changes.
+ */
+final class NativeBuildConfigValueMiniSerializer {
+
+    private static final FileFormatHeader HEADER = new FileFormatHeader("NBCM", 1);
+
+    /** Utility class: no constructor. */
+    private NativeBuildConfigValueMiniSerializer() {}
+
+    /**
+     * Encodes a config.
+     *
+     * @param config the config to encode
+     * @param jsonSize the size of the JSON the config was read from
+     * @param jsonLastModified the last modified time of the JSON the config was read from
+     * @return the encoded config
+     */
+    @NonNull
+    static byte[] encode(
+            @NonNull NativeBuildConfigValueMini config, long jsonSize, long jsonLastModified) {
+        Map<Integer, String> strings = new HashMap<>();
+        StringTable table = new StringTable(strings);
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            CodedOutputStream out = CodedOutputStream.newInstance(body);
+            out.writeUInt32NoTag(config.buildFiles.size());
+            for (File buildFile : config.buildFiles) {
+                out.writeUInt32NoTag(table.intern(buildFile.getPath()));
+            }
+
+            writeStrings(out, table, config.cleanCommands);
+
+            out.writeUInt32NoTag(config.libraries.size());
+            for (Map.Entry<String, NativeLibraryValueMini> entry : config.libraries.entrySet()) {
+                NativeLibraryValueMini library = entry.getValue();
+                out.writeUInt32NoTag(table.intern(entry.getKey()));
+                writeNullableString(out, table, library.artifactName);
+                writeNullableString(out, table, library.buildCommand);
+                writeNullableString(out, table, library.abi);
+                writeNullableString(
+                        out, table, library.output == null ? null : library.output.getPath());
+                writeStrings(out, table, library.dependencies);
+            }
+            out.flush();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.size() * 2);
+            DataOutputStream header = new DataOutputStream(bytes);
+            HEADER.write(header);
+            header.writeLong(jsonSize);
+            header.writeLong(jsonLastModified);
+            CodedOutputStream stringsOut = CodedOutputStream.newInstance(bytes);
+            stringsOut.writeUInt32NoTag(strings.size());
+            for (int i = 0; i < strings.size(); i++) {
+                stringsOut.writeStringNoTag(strings.get(i));
+            }
+            stringsOut.flush();
+            body.writeTo(bytes);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Writing to memory does not fail.
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decodes a config.
+     *
+     * @param bytes the encoded config
+     * @param jsonSize the current size of the JSON the config was read from
+     * @param jsonLastModified the current last modified time of the JSON
+     * @return the config, {@code null} if the bytes do not hold a config in the current format, or
+     *     if the config was read from a different version of the JSON
+     */
+    @Nullable
+    static NativeBuildConfigValueMini decode(
+            @NonNull byte[] bytes, long jsonSize, long jsonLastModified) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (!HEADER.read(buffer)
+                || buffer.remaining() < 16
+                || buffer.getLong() != jsonSize
+                || buffer.getLong() != jsonLastModified) {
+            return null;
+        }
+        try {
+            CodedInputStream in =
+                    CodedInputStream.newInstance(bytes, buffer.position(), buffer.remaining());
+            int stringCount = in.readUInt32();
+            // Each string takes at least one byte.
+            if (stringCount < 0 || stringCount > bytes.length) {
+                return null;
+            }
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readString();
+            }
+
+            NativeBuildConfigValueMini config = new NativeBuildConfigValueMini();
+            int buildFileCount = in.readUInt32();
+            for (int i = 0; i < buildFileCount; i++) {
+                config.buildFiles.add(new File(strings[in.readUInt32()]));
+            }
+
+            readStrings(in, strings, config.cleanCommands);
+
+            int libraryCount = in.readUInt32();
+            for (int i = 0; i < libraryCount; i++) {
+                String name = strings[in.readUInt32()];
+                NativeLibraryValueMini library = new NativeLibraryValueMini();
+                library.artifactName = readNullableString(in, strings);
+                library.buildCommand = readNullableString(in, strings);
+                library.abi = readNullableString(in, strings);
+                String output = readNullableString(in, strings);
+                library.output = output == null ? null : new File(output);
+                readStrings(in, strings, library.dependencies);
+                config.libraries.put(name, library);
+            }
+
+            return in.isAtEnd() ? config : null;
+        } catch (IOException | IndexOutOfBoundsException e) {
+            // Truncated or corrupted.
+            return null;
+        }
+    }
+
+    private static void writeStrings(
+            @NonNull CodedOutputStream out,
+            @NonNull StringTable table,
+            @NonNull List<String> values)
+            throws IOException {
+        out.writeUInt32NoTag(values.size());
+        for (String value : values) {
+            out.writeUInt32NoTag(table.intern(value));
+        }
+    }
+
+    private static void readStrings(
+            @NonNull CodedInputStream in, @NonNull String[] strings, @NonNull List<String> values)
+            throws IOException {
+        int count = in.readUInt32();
+        for (int i = 0; i < count; i++) {
+            values.add(strings[in.readUInt32()]);
+        }
+    }
+
+    private static void writeNullableString(
+            @NonNull CodedOutputStream out, @NonNull StringTable table, @Nullable String value)
+            throws IOException {
+        out.writeUInt32NoTag(value == null ? 0 : table.intern(value) + 1);
+    }
+
+    @Nullable
+    private static String readNullableString(
+            @NonNull CodedInputStream in, @NonNull String[] strings) throws IOException {
+        int index = in.readUInt32();
+        return index == 0 ? null : strings[index - 1];
+    }
+}
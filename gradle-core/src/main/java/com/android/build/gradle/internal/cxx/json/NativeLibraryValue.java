@@ -35,4 +35,9 @@ public class NativeLibraryValue {
     @Nullable public Collection<NativeHeaderFileValue> headers;
     @Nullable public File output;
     @Nullable public Collection<File> runtimeFiles;
+    /**
+     * The names, as keys of {@link NativeBuildConfigValue#libraries}, of the libraries this
+     * library links against and that must be built before it.
+     */
+    @Nullable public Collection<String> dependencies;
 }
@@ -16,8 +16,11 @@
 
 package com.android.build.gradle.internal.cxx.json;
 
+import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.google.common.collect.Lists;
 import java.io.File;
+import java.util.List;
 
 /**
  * Subset of normal NativeBuildConfigValue that does not include potentially large structures like
@@ -31,4 +34,5 @@ public class NativeLibraryValueMini {
     @Nullable public String buildCommand;
     @Nullable public String abi;
     @Nullable public File output;
+    @NonNull public List<String> dependencies = Lists.newArrayList();
 }
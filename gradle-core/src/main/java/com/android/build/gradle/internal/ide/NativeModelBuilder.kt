@@ -224,6 +224,9 @@ class NativeModelBuilder(
                     "Thread was interrupted while native build JSON generation was in progress.",
                     e
                 )
+            } finally {
+                // Each sync creates a new executor, don't leak its threads.
+                nativeJsonGenExecutor.shutdown()
             }
 
         } else {
@@ -79,6 +79,20 @@ public class BuildInfoWriterTask extends AndroidVariantTask {
             throw new RuntimeException("Exception while saving build-info.xml", e);
         }
 
+        // The build history only saves the next build from parsing build-info.xml, so failing to
+        // save it must not fail the build.
+        try {
+            buildContext.saveBuildHistory(buildInfoFile);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to save the build history of build-info.xml", e);
+            try {
+                buildContext.deleteBuildHistory(buildInfoFile);
+            } catch (IOException deleteException) {
+                logger.warn(
+                        "Failed to delete the build history of build-info.xml", deleteException);
+            }
+        }
+
         // Record instant run status in analytics for this build
         ProcessProfileWriter.getGlobalProperties()
                 .setInstantRunStatus(
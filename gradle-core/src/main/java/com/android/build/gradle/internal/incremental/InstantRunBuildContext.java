@@ -24,6 +24,7 @@ import com.android.build.gradle.tasks.InstantRunResourcesApkBuilder;
 import com.android.builder.model.Version;
 import com.android.ide.common.xml.XmlPrettyPrinter;
 import com.android.sdklib.AndroidVersion;
+import com.android.utils.FileUtils;
 import com.android.utils.XmlUtils;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.CaseFormat;
@@ -31,8 +32,11 @@ import com.google.common.base.Charsets;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
@@ -193,6 +197,42 @@ public class InstantRunBuildContext {
             return build;
         }
 
+        /** Writes this build as a record of {@link InstantRunBuildHistory}. */
+        void writeTo(@NonNull DataOutput out) throws IOException {
+            out.writeLong(buildId);
+            out.writeUTF(verifierStatus.name());
+            out.writeUTF(buildMode.name());
+            out.writeUTF(eligibilityStatus == null ? "" : eligibilityStatus.name());
+            out.writeInt(artifacts.size());
+            for (Artifact artifact : artifacts) {
+                out.writeUTF(artifact.fileType.name());
+                out.writeUTF(artifact.location.getAbsolutePath());
+            }
+        }
+
+        /** Reads a build written by {@link #writeTo(DataOutput)}. */
+        @NonNull
+        static Build readFrom(@NonNull DataInput in) throws IOException {
+            long buildId = in.readLong();
+            InstantRunVerifierStatus verifierStatus = InstantRunVerifierStatus.valueOf(in.readUTF());
+            InstantRunBuildMode buildMode = InstantRunBuildMode.valueOf(in.readUTF());
+            String eligibility = in.readUTF();
+            Build build =
+                    new Build(
+                            buildId,
+                            verifierStatus,
+                            buildMode,
+                            eligibility.isEmpty()
+                                    ? null
+                                    : InstantRunVerifierStatus.valueOf(eligibility));
+            int artifactCount = in.readInt();
+            for (int i = 0; i < artifactCount; i++) {
+                build.artifacts.add(
+                        new Artifact(FileType.valueOf(in.readUTF()), new File(in.readUTF())));
+            }
+            return build;
+        }
+
         public long getBuildId() {
             return buildId;
         }
@@ -284,6 +324,11 @@ public class InstantRunBuildContext {
     @NonNull private final AtomicLong token = new AtomicLong(0);
     @NonNull private final AtomicBoolean buildHasFailed = new AtomicBoolean(false);
 
+    /** The builds written to build-info.xml by the last call to {@link #toXml()}. */
+    @NonNull private Collection<Build> buildsInBuildInfo = ImmutableList.of();
+
+    @Nullable private InstantRunBuildHistory buildHistory;
+
     public InstantRunBuildContext(
             boolean isInstantRunMode,
             @NonNull AndroidVersion androidVersion,
@@ -769,9 +814,57 @@ public class InstantRunBuildContext {
             setVerifierStatus(InstantRunVerifierStatus.INITIAL_BUILD);
             return;
         }
+        // Use the builds saved by saveBuildHistory if they are still up to date, it is much
+        // faster than parsing the xml once many builds have accumulated.
+        InstantRunBuildHistory.Snapshot snapshot =
+                getBuildHistory(persistedState).read(persistedState);
+        if (snapshot != null) {
+            loadFromSnapshot(snapshot);
+            return;
+        }
         loadFromDocument(XmlUtils.parseUtfXmlFile(persistedState, false));
     }
 
+    private synchronized void loadFromSnapshot(@NonNull InstantRunBuildHistory.Snapshot snapshot) {
+        if (snapshot.hasToken) {
+            token.set(snapshot.token);
+        }
+        for (Build build : snapshot.builds) {
+            previousBuilds.put(build.buildId, build);
+        }
+    }
+
+    /**
+     * Saves the builds written to build-info.xml by the last call to {@link #toXml()}, so that the
+     * next build can load them in {@link #loadFromXmlFile(File)} without parsing build-info.xml.
+     *
+     * @param buildInfo the build-info.xml file, already written
+     */
+    public synchronized void saveBuildHistory(@NonNull File buildInfo) throws IOException {
+        getBuildHistory(buildInfo)
+                .write(buildInfo, isInInstantRunMode(), token.get(), buildsInBuildInfo);
+    }
+
+    /**
+     * Deletes the builds saved by {@link #saveBuildHistory(File)}, e.g. after failing to save them,
+     * so that the next build loads them from build-info.xml instead.
+     *
+     * @param buildInfo the build-info.xml file
+     */
+    public synchronized void deleteBuildHistory(@NonNull File buildInfo) throws IOException {
+        buildHistory = null;
+        FileUtils.deleteIfExists(InstantRunBuildHistory.getHistoryFile(buildInfo));
+    }
+
+    @NonNull
+    private InstantRunBuildHistory getBuildHistory(@NonNull File buildInfo) {
+        File historyFile = InstantRunBuildHistory.getHistoryFile(buildInfo);
+        if (buildHistory == null || !buildHistory.getFile().equals(historyFile)) {
+            buildHistory = new InstantRunBuildHistory(historyFile);
+        }
+        return buildHistory;
+    }
+
     /** {@link #loadFromXmlFile(File)} but using a String */
     @VisibleForTesting
     public void loadFromXml(@NonNull String persistedState) throws IOException, SAXException {
@@ -949,17 +1042,25 @@ public class InstantRunBuildContext {
         instantRun.setAttribute(ATTR_FORMAT, CURRENT_FORMAT);
         instantRun.setAttribute(ATTR_PLUGIN_VERSION, Version.ANDROID_GRADLE_PLUGIN_VERSION);
 
+        // The builds loadFromDocument will read back, for saveBuildHistory.
+        TreeMap<Long, Build> persistedBuilds = new TreeMap<>();
+        persistedBuilds.put(currentBuild.buildId, currentBuild);
         switch (persistenceMode) {
             case FULL_BUILD:
                 // only include the last build.
                 if (!previousBuilds.isEmpty()) {
-                    instantRun.appendChild(previousBuilds.lastEntry().getValue().toXml(document));
+                    Build lastBuild = previousBuilds.lastEntry().getValue();
+                    instantRun.appendChild(lastBuild.toXml(document));
+                    persistedBuilds.put(lastBuild.buildId, lastBuild);
                 }
+                buildsInBuildInfo = persistedBuilds.values();
                 break;
             case INCREMENTAL_BUILD:
                 for (Build build : previousBuilds.values()) {
                     instantRun.appendChild(build.toXml(document));
+                    persistedBuilds.put(build.buildId, build);
                 }
+                buildsInBuildInfo = persistedBuilds.values();
                 break;
             case TEMP_BUILD:
                 break;
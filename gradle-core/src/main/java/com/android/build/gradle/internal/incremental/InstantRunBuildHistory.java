@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal.incremental;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.build.gradle.internal.incremental.InstantRunBuildContext.Build;
+import com.android.builder.model.Version;
+import com.android.builder.utils.FileFormatHeader;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Record-oriented store of the builds persisted in build-info.xml, so that the next build can load
+ * them without parsing the XML.
+ *
+ * <p>build-info.xml is read by the IDE and is rewritten entirely on each build. This store is
+ * written next to it and is append-only: each build appends the builds that were added or changed
+ * (e.g. by purging their superseded artifacts) since they were loaded, followed by a state record
+ * listing the builds now in build-info.xml. The last state record is the index of the store, the
+ * builds it does not list are never decoded. Once the file reaches {@link #COMPACTION_THRESHOLD}
+ * and is more than twice the size of the builds it lists, it is rewritten with only those builds.
+ *
+ * <pre>
+ * header: see {@link FileFormatHeader}, plugin version (UTF)
+ * records: length (int), type (byte), payload of (length - 1) bytes
+ *   build: see {@link Build#writeTo}
+ *   state: size and last modified time of build-info.xml (longs), has token (boolean),
+ *       token (long), build count (int), build ids (longs)
+ * </pre>
+ *
+ * <p>The store is only used if build-info.xml has not changed since the last state record was
+ * written, otherwise build-info.xml is parsed and the store is rewritten by the next build.
+ */
+final class InstantRunBuildHistory {
+
+    private static final FileFormatHeader HEADER = new FileFormatHeader("IRBH", 1);
+
+    private static final byte RECORD_BUILD = 1;
+    private static final byte RECORD_STATE = 2;
+
+    /** Size under which the file is never compacted. */
+    @VisibleForTesting static final int COMPACTION_THRESHOLD = 64 * 1024;
+
+    @NonNull private final File file;
+
+    /**
+     * Payloads of the build records listed by the last state record of the file, by build id, or
+     * null if the content of the file is not known.
+     */
+    @Nullable private Map<Long, byte[]> persistedBuilds;
+
+    /** End of the last state record of the file. */
+    private long endOfLastState;
+
+    InstantRunBuildHistory(@NonNull File file) {
+        this.file = file;
+    }
+
+    /** Returns the file of the store kept next to the given build-info.xml. */
+    @NonNull
+    static File getHistoryFile(@NonNull File buildInfo) {
+        String name = com.google.common.io.Files.getNameWithoutExtension(buildInfo.getName());
+        return new File(buildInfo.getParentFile(), name + "-history.bin");
+    }
+
+    @NonNull
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads the builds of build-info.xml.
+     *
+     * @param buildInfo the build-info.xml file
+     * @return the builds, or null if the store does not exist, is in another format, was written
+     *     by another plugin version or is not up to date with build-info.xml
+     * @throws IOException failed to read the store
+     */
+    @Nullable
+    Snapshot read(@NonNull File buildInfo) throws IOException {
+        persistedBuilds = null;
+        if (!file.isFile()) {
+            return null;
+        }
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try {
+            DataInputStream header = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (!HEADER.read(header)
+                    || !Version.ANDROID_GRADLE_PLUGIN_VERSION.equals(header.readUTF())) {
+                return null;
+            }
+
+            // Index the build records, and the ones listed by the last complete state record.
+            // Records after that were not completely written and are ignored.
+            Map<Long, int[]> buildRecords = new HashMap<>();
+            Map<Long, int[]> stateBuildRecords = null;
+            DataInputStream state = null;
+            int position = bytes.length - header.available();
+            while (bytes.length - position > 4) {
+                int length = buffer.getInt(position);
+                int start = position + 4;
+                if (length < 1 || length > bytes.length - start) {
+                    break;
+                }
+                int[] payload = {start + 1, length - 1};
+                if (bytes[start] == RECORD_BUILD) {
+                    buildRecords.put(buffer.getLong(payload[0]), payload);
+                } else if (bytes[start] == RECORD_STATE) {
+                    state =
+                            new DataInputStream(
+                                    new ByteArrayInputStream(bytes, payload[0], payload[1]));
+                    stateBuildRecords = new HashMap<>(buildRecords);
+                    endOfLastState = start + length;
+                } else {
+                    break;
+                }
+                position = start + length;
+            }
+            if (state == null) {
+                return null;
+            }
+
+            if (state.readLong() != buildInfo.length()
+                    || state.readLong() != buildInfo.lastModified()) {
+                // build-info.xml was written without this store.
+                return null;
+            }
+            boolean hasToken = state.readBoolean();
+            long token = state.readLong();
+            int buildCount = state.readInt();
+            Map<Long, byte[]> builds = new LinkedHashMap<>();
+            ImmutableList.Builder<Build> decodedBuilds = ImmutableList.builder();
+            for (int i = 0; i < buildCount; i++) {
+                int[] payload = stateBuildRecords.get(state.readLong());
+                if (payload == null) {
+                    return null;
+                }
+                Build build =
+                        Build.readFrom(
+                                new DataInputStream(
+                                        new ByteArrayInputStream(bytes, payload[0], payload[1])));
+                decodedBuilds.add(build);
+                builds.put(
+                        build.getBuildId(),
+                        Arrays.copyOfRange(bytes, payload[0], payload[0] + payload[1]));
+            }
+
+            persistedBuilds = builds;
+            return new Snapshot(hasToken, token, decodedBuilds.build());
+        } catch (IOException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            // The file is truncated or corrupted.
+            return null;
+        }
+    }
+
+    /**
+     * Records the builds just written to build-info.xml.
+     *
+     * @param buildInfo the build-info.xml file, already written
+     * @param hasToken whether build-info.xml holds a token
+     * @param token the token
+     * @param builds the builds of build-info.xml
+     * @throws IOException failed to write the store
+     */
+    void write(
+            @NonNull File buildInfo,
+            boolean hasToken,
+            long token,
+            @NonNull Collection<Build> builds)
+            throws IOException {
+        Map<Long, byte[]> encodedBuilds = new LinkedHashMap<>();
+        for (Build build : builds) {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(payload)) {
+                build.writeTo(out);
+            }
+            encodedBuilds.put(build.getBuildId(), payload.toByteArray());
+        }
+
+        ByteArrayOutputStream statePayload = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(statePayload)) {
+            out.writeLong(buildInfo.length());
+            out.writeLong(buildInfo.lastModified());
+            out.writeBoolean(hasToken);
+            out.writeLong(token);
+            out.writeInt(encodedBuilds.size());
+            for (long buildId : encodedBuilds.keySet()) {
+                out.writeLong(buildId);
+            }
+        }
+
+        // Only append the builds that are not already in the file.
+        ByteArrayOutputStream appended = new ByteArrayOutputStream();
+        long liveSize = 0;
+        try (DataOutputStream out = new DataOutputStream(appended)) {
+            for (Map.Entry<Long, byte[]> build : encodedBuilds.entrySet()) {
+                liveSize += build.getValue().length + 5;
+                byte[] persisted =
+                        persistedBuilds == null ? null : persistedBuilds.get(build.getKey());
+                if (!Arrays.equals(persisted, build.getValue())) {
+                    writeRecord(out, RECORD_BUILD, build.getValue());
+                }
+            }
+            writeRecord(out, RECORD_STATE, statePayload.toByteArray());
+        }
+        liveSize += statePayload.size() + 5;
+
+        long newSize = endOfLastState + appended.size();
+        if (persistedBuilds == null
+                || file.length() < endOfLastState
+                || (newSize > COMPACTION_THRESHOLD && newSize > 2 * liveSize)) {
+            compact(encodedBuilds, statePayload.toByteArray());
+        } else {
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                // Drop any incomplete records left by a previous write.
+                out.setLength(endOfLastState);
+                out.seek(endOfLastState);
+                out.write(appended.toByteArray());
+            }
+            endOfLastState = newSize;
+        }
+        persistedBuilds = encodedBuilds;
+    }
+
+    /** Rewrites the file with only the given builds. */
+    private void compact(@NonNull Map<Long, byte[]> encodedBuilds, @NonNull byte[] statePayload)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            HEADER.write(out);
+            out.writeUTF(Version.ANDROID_GRADLE_PLUGIN_VERSION);
+            for (byte[] build : encodedBuilds.values()) {
+                writeRecord(out, RECORD_BUILD, build);
+            }
+            writeRecord(out, RECORD_STATE, statePayload);
+        }
+
+        Path tempFile =
+                Files.createTempFile(
+                        file.getAbsoluteFile().getParentFile().toPath(), file.getName(), ".tmp");
+        try {
+            Files.write(tempFile, bytes.toByteArray());
+            Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        endOfLastState = bytes.size();
+    }
+
+    private static void writeRecord(
+            @NonNull DataOutputStream out, byte type, @NonNull byte[] payload) throws IOException {
+        out.writeInt(payload.length + 1);
+        out.writeByte(type);
+        out.write(payload);
+    }
+
+    /** The content of build-info.xml, as recorded by the store. */
+    static final class Snapshot {
+        final boolean hasToken;
+        final long token;
+        @NonNull final List<Build> builds;
+
+        Snapshot(boolean hasToken, long token, @NonNull List<Build> builds) {
+            this.hasToken = hasToken;
+            this.token = token;
+            this.builds = builds;
+        }
+    }
+}
@@ -64,7 +64,7 @@ fun toIncrementalInput(
 ): IncrementalFileMergerInput {
     val jarFile = jarInput.file
     if (jarFile.isFile) {
-        cacheUpdate.add(IOExceptionRunnable.asRunnable { zipCache.add(jarFile) })
+        cacheUpdate.add(IOExceptionRunnable.asRunnable { zipCache.addZip(jarFile) })
     } else {
         cacheUpdate.add(IOExceptionRunnable.asRunnable { zipCache.remove(jarFile) })
     }
@@ -126,7 +126,7 @@ fun toNonIncrementalInput(
         return null
     }
 
-    cacheUpdate.add(IOExceptionRunnable.asRunnable { zipCache.add(jarFile) })
+    cacheUpdate.add(IOExceptionRunnable.asRunnable { zipCache.addZip(jarFile) })
 
     val input = LazyIncrementalFileMergerInputs.fromNew(
         jarFile.absolutePath,
@@ -184,12 +184,16 @@ private fun computeUpdates(
                 FileStatus.NEW
             )
             Status.REMOVED -> {
-                val cached = zipCache.get(jarInput.file) ?: throw RuntimeException(
+                val cached = zipCache.getZipSnapshot(jarInput.file) ?: throw RuntimeException(
                     "File '" + jarInput.file + "' was "
                             + "deleted, but previous version not found in cache"
                 )
 
-                return IncrementalRelativeFileSets.fromZip(cached, FileStatus.REMOVED)
+                val builder = ImmutableMap.builder<RelativeFile, FileStatus>()
+                for (path in cached.entries.keys) {
+                    builder.put(RelativeFile(jarInput.file, path), FileStatus.REMOVED)
+                }
+                return builder.build()
             }
             Status.CHANGED -> return IncrementalRelativeFileSets.fromZip(
                 jarInput.file,
@@ -72,7 +72,12 @@ public final class ProfilerInitializer {
                     project.getRootProject().getProjectDir(),
                     project.getGradle().getGradleVersion(),
                     new LoggerWrapper(project.getLogger()),
-                    projectOptions.get(BooleanOption.ENABLE_PROFILE_JSON));
+                    projectOptions.get(BooleanOption.ENABLE_PROFILE_JSON),
+                    resolveFile(
+                            project, projectOptions.get(StringOption.PROFILE_STREAMING_TRACE_FILE)),
+                    resolveFile(
+                            project,
+                            projectOptions.get(StringOption.PROFILE_STREAMING_METRICS_FILE)));
             recordingBuildListener = new RecordingBuildListener(ProcessProfileWriter.get());
             project.getGradle().addListener(recordingBuildListener);
         }
@@ -85,6 +90,11 @@ public final class ProfilerInitializer {
                                 projectOptions.get(BooleanOption.ENABLE_PROFILE_JSON)));
     }
 
+    @Nullable
+    private static Path resolveFile(@NonNull Project project, @Nullable String path) {
+        return path != null ? project.getRootProject().file(path).toPath() : null;
+    }
+
     private static final class ProfileShutdownListener extends BuildAdapter
             implements BuildCompletionListener {
 
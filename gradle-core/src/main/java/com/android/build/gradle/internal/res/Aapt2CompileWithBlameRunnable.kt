@@ -19,7 +19,6 @@ package com.android.build.gradle.internal.res
 import com.android.build.gradle.internal.LoggerWrapper
 import com.android.build.gradle.internal.res.namespaced.Aapt2ServiceKey
 import com.android.build.gradle.internal.res.namespaced.useAaptDaemon
-import com.android.builder.internal.aapt.v2.Aapt2Exception
 import com.android.ide.common.resources.CompileResourceRequest
 import org.gradle.api.logging.Logging
 import java.io.Serializable
@@ -32,11 +31,10 @@ class Aapt2CompileWithBlameRunnable @Inject constructor(
     override fun run() {
         val logger = LoggerWrapper(Logging.getLogger(this::class.java))
         useAaptDaemon(params.aapt2ServiceKey) { daemon ->
-            params.requests.forEach { request ->
-                try {
-                    daemon.compile(request, logger)
-                } catch (e: Aapt2Exception) {
-                    throw rewriteCompileException(e, request)
+            val failures = daemon.compileAll(params.requests, logger)
+            failures.forEachIndexed { index, failure ->
+                if (failure != null) {
+                    throw rewriteCompileException(failure, params.requests[index])
                 }
             }
         }
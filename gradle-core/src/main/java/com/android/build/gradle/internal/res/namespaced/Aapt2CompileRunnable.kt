@@ -29,7 +29,7 @@ class Aapt2CompileRunnable @Inject constructor(
     override fun run() {
         val logger = LoggerWrapper(Logging.getLogger(this::class.java))
         useAaptDaemon(params.aapt2ServiceKey) { daemon ->
-            params.requests.forEach { daemon.compile(it, logger) }
+            daemon.compileAll(params.requests, logger).firstOrNull { it != null }?.let { throw it }
         }
     }
 
@@ -22,6 +22,7 @@ import com.android.SdkConstants
 import com.android.annotations.concurrency.GuardedBy
 import com.android.build.gradle.internal.workeractions.WorkerActionServiceRegistry
 import com.android.builder.internal.aapt.v2.Aapt2DaemonImpl
+import com.android.builder.internal.aapt.v2.Aapt2DaemonLimiter
 import com.android.builder.internal.aapt.v2.Aapt2DaemonManager
 import com.android.builder.internal.aapt.v2.Aapt2DaemonTimeouts
 import com.android.ide.common.process.ProcessException
@@ -47,6 +48,12 @@ private val daemonTimeouts = Aapt2DaemonTimeouts()
 private val daemonExpiryTimeSeconds = TimeUnit.MINUTES.toSeconds(3)
 private val maintenanceIntervalSeconds = TimeUnit.MINUTES.toSeconds(1)
 
+/**
+ * Limits the number of AAPT2 daemons across all the AAPT2 versions used by the builds running in
+ * this process, as each of them would otherwise start one daemon per concurrent worker.
+ */
+private val daemonLimiter = Aapt2DaemonLimiter(Runtime.getRuntime().availableProcessors())
+
 sealed class Aapt2ServiceKey : WorkerActionServiceRegistry.ServiceKey<Aapt2DaemonManager> {
     final override val type: Class<Aapt2DaemonManager> get() = Aapt2DaemonManager::class.java
 }
@@ -124,7 +131,8 @@ fun registerAaptService(
                 },
                 expiryTime = daemonExpiryTimeSeconds,
                 expiryTimeUnit = TimeUnit.SECONDS,
-                listener = Aapt2DaemonManagerMaintainer())
+                listener = Aapt2DaemonManagerMaintainer(),
+                limiter = daemonLimiter)
         RegisteredAaptService(manager)
     })
     return key
@@ -22,6 +22,7 @@ import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.build.gradle.internal.LoggerWrapper;
+import com.android.build.gradle.internal.incremental.ClassHierarchyIndex;
 import com.android.build.gradle.internal.workeractions.WorkerActionServiceRegistry;
 import com.android.builder.utils.ExceptionRunnable;
 import com.android.builder.utils.FileCache;
@@ -29,7 +30,6 @@ import com.android.builder.utils.ZipEntryUtils;
 import com.android.ide.common.resources.FileStatus;
 import com.android.ide.common.workers.WorkerExecutorFacade;
 import com.android.utils.FileUtils;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
@@ -39,9 +39,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLClassLoader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
@@ -76,44 +73,25 @@ import org.objectweb.asm.ClassWriter;
  */
 public class FixStackFramesDelegate {
 
-    /** ASM class writer that uses specified class loader to resolve types. */
+    /** ASM class writer that uses the specified class hierarchy to resolve types. */
     private static class FixFramesVisitor extends ClassWriter {
 
-        @NonNull private final URLClassLoader classLoader;
+        @NonNull private final ClassHierarchyIndex classHierarchy;
 
-        public FixFramesVisitor(int flags, @NonNull URLClassLoader classLoader) {
+        public FixFramesVisitor(int flags, @NonNull ClassHierarchyIndex classHierarchy) {
             super(flags);
-            this.classLoader = classLoader;
+            this.classHierarchy = classHierarchy;
         }
 
         @Override
         protected String getCommonSuperClass(String type1, String type2) {
-            Class<?> c;
-            Class<?> d;
-            ClassLoader classLoader = this.classLoader;
-            try {
-                c = Class.forName(type1.replace('/', '.'), false, classLoader);
-                d = Class.forName(type2.replace('/', '.'), false, classLoader);
-            } catch (Exception e) {
+            String commonSuperClass = classHierarchy.getCommonSuperClass(type1, type2);
+            if (commonSuperClass == null) {
                 throw new RuntimeException(
                         String.format(
-                                "Unable to find common supper type for %s and %s.", type1, type2),
-                        e);
-            }
-            if (c.isAssignableFrom(d)) {
-                return type1;
-            }
-            if (d.isAssignableFrom(c)) {
-                return type2;
-            }
-            if (c.isInterface() || d.isInterface()) {
-                return "java/lang/Object";
-            } else {
-                do {
-                    c = c.getSuperclass();
-                } while (!c.isAssignableFrom(d));
-                return c.getName().replace('.', '/');
+                                "Unable to find common supper type for %s and %s.", type1, type2));
             }
+            return commonSuperClass;
         }
     }
 
@@ -147,22 +125,10 @@ public class FixStackFramesDelegate {
     }
 
     @NonNull
-    private URLClassLoader createClassLoader() throws MalformedURLException {
-        ImmutableList.Builder<URL> urls = new ImmutableList.Builder<>();
-        for (File file : bootClasspath) {
-            if (file.exists()) {
-                urls.add(file.toURI().toURL());
-            }
-        }
-        for (File file : Iterables.concat(classesToFix, referencedClasses)) {
-            if (file.isDirectory() || file.isFile()) {
-                urls.add(file.toURI().toURL());
-            }
-        }
-
-        ImmutableList<URL> allUrls = urls.build();
-        URL[] classLoaderUrls = allUrls.toArray(new URL[0]);
-        return new URLClassLoader(classLoaderUrls);
+    private ClassHierarchyIndex createClassHierarchy() throws IOException {
+        // The class hierarchy of jars is shared with the other variants and transforms.
+        return ClassHierarchyIndex.create(
+                Iterables.concat(bootClasspath, classesToFix, referencedClasses));
     }
 
     private String getUniqueName(@NonNull File input) {
@@ -175,9 +141,10 @@ public class FixStackFramesDelegate {
             @NonNull WorkerExecutorFacade workers, @NonNull Map<File, FileStatus> changedInput)
             throws IOException {
         try (WorkerExecutorFacade facade = workers;
-                URLClassLoader classLoader = createClassLoader();
-                Manager<URLClassLoader, ClassLoaderKey> classLoaderManager =
-                        new Manager<>(classLoader, new ClassLoaderKey("classLoader" + hashCode()));
+                Manager<ClassHierarchyIndex, ClassHierarchyKey> classHierarchyManager =
+                        new Manager<>(
+                                createClassHierarchy(),
+                                new ClassHierarchyKey("classHierarchy" + hashCode()));
                 Manager<FileCache, CacheKey> cacheManager =
                         new Manager<>(userCache, new CacheKey("userCache" + hashCode()))) {
             for (Map.Entry<File, FileStatus> entry : changedInput.entrySet()) {
@@ -191,7 +158,7 @@ public class FixStackFramesDelegate {
                             new Params(
                                     entry.getKey(),
                                     out,
-                                    classLoaderManager.getKey(),
+                                    classHierarchyManager.getKey(),
                                     cacheManager.getKey()));
                 }
             }
@@ -253,16 +220,16 @@ public class FixStackFramesDelegate {
         }
     }
 
-    static class ClassLoaderKey extends BaseKey
-            implements WorkerActionServiceRegistry.ServiceKey<URLClassLoader> {
-        public ClassLoaderKey(@NonNull String name) {
+    static class ClassHierarchyKey extends BaseKey
+            implements WorkerActionServiceRegistry.ServiceKey<ClassHierarchyIndex> {
+        public ClassHierarchyKey(@NonNull String name) {
             super(name);
         }
 
         @NonNull
         @Override
-        public Class<URLClassLoader> getType() {
-            return URLClassLoader.class;
+        public Class<ClassHierarchyIndex> getType() {
+            return ClassHierarchyIndex.class;
         }
     }
 
@@ -283,17 +250,17 @@ public class FixStackFramesDelegate {
     private static class Params implements Serializable {
         @NonNull private final File input;
         @NonNull private final File output;
-        @NonNull private final ClassLoaderKey classLoaderKey;
+        @NonNull private final ClassHierarchyKey classHierarchyKey;
         @Nullable private final CacheKey cacheKey;
 
         private Params(
                 @NonNull File input,
                 @NonNull File output,
-                @NonNull ClassLoaderKey classLoaderKey,
+                @NonNull ClassHierarchyKey classHierarchyKey,
                 @Nullable CacheKey cacheKey) {
             this.input = input;
             this.output = output;
-            this.classLoaderKey = classLoaderKey;
+            this.classHierarchyKey = classHierarchyKey;
             this.cacheKey = cacheKey;
         }
     }
@@ -309,9 +276,9 @@ public class FixStackFramesDelegate {
         @Override
         public void run() {
             try {
-                URLClassLoader classLoader =
+                ClassHierarchyIndex classHierarchy =
                         WorkerActionServiceRegistry.INSTANCE
-                                .getService(params.classLoaderKey)
+                                .getService(params.classHierarchyKey)
                                 .getService();
                 FileCache userCache =
                         params.cacheKey != null
@@ -321,7 +288,7 @@ public class FixStackFramesDelegate {
                                 : null;
 
                 ExceptionRunnable fileCreator =
-                        createFile(params.input, params.output, classLoader);
+                        createFile(params.input, params.output, classHierarchy);
                 if (userCache != null) {
                     FileCache.Inputs key =
                             new FileCache.Inputs.Builder(FileCache.Command.FIX_STACK_FRAMES)
@@ -331,7 +298,12 @@ public class FixStackFramesDelegate {
                                             FileCache.FileProperties.PATH_SIZE_TIMESTAMP)
                                     .putLong("version", CACHE_VERSION)
                                     .build();
-                    userCache.createFile(params.output, key, fileCreator);
+                    // The output jars are only read by the desugaring step, never modified in place
+                    userCache.createFile(
+                            params.output,
+                            key,
+                            fileCreator,
+                            FileCache.MaterializationStrategy.HARD_LINK);
                 } else {
                     fileCreator.run();
                 }
@@ -342,7 +314,9 @@ public class FixStackFramesDelegate {
 
         @NonNull
         private static ExceptionRunnable createFile(
-                @NonNull File input, @NonNull File output, @NonNull URLClassLoader classLoader) {
+                @NonNull File input,
+                @NonNull File output,
+                @NonNull ClassHierarchyIndex classHierarchy) {
             return () -> {
                 try (ZipFile inputZip = new ZipFile(input);
                      ZipOutputStream outputZip =
@@ -363,7 +337,7 @@ public class FixStackFramesDelegate {
                                 new BufferedInputStream(inputZip.getInputStream(entry));
                         ZipEntry outEntry = new ZipEntry(entry.getName());
 
-                        byte[] newEntryContent = getFixedClass(originalFile, classLoader);
+                        byte[] newEntryContent = getFixedClass(originalFile, classHierarchy);
 
                         CRC32 crc32 = new CRC32();
                         crc32.update(newEntryContent);
@@ -385,13 +359,13 @@ public class FixStackFramesDelegate {
 
         @NonNull
         private static byte[] getFixedClass(
-                @NonNull InputStream originalFile, @NonNull URLClassLoader classLoader)
+                @NonNull InputStream originalFile, @NonNull ClassHierarchyIndex classHierarchy)
                 throws IOException {
             byte[] bytes = ByteStreams.toByteArray(originalFile);
             try {
                 ClassReader classReader = new ClassReader(bytes);
                 ClassWriter classWriter =
-                        new FixFramesVisitor(ClassWriter.COMPUTE_FRAMES, classLoader);
+                        new FixFramesVisitor(ClassWriter.COMPUTE_FRAMES, classHierarchy);
                 classReader.accept(classWriter, ClassReader.SKIP_FRAMES);
                 return classWriter.toByteArray();
             } catch (Throwable t) {
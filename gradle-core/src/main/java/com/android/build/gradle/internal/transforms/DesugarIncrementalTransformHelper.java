@@ -38,6 +38,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collection;
@@ -54,6 +55,9 @@ import java.util.function.Supplier;
  */
 class DesugarIncrementalTransformHelper {
 
+    /** Name of the file the graph is persisted to between builds, in the task temporary dir. */
+    @NonNull private static final String GRAPH_FILE_NAME = "desugaring_graph.bin";
+
     @NonNull
     private static final LoggerWrapper logger =
             LoggerWrapper.getLogger(DesugarIncrementalTransformHelper.class);
@@ -61,6 +65,7 @@ class DesugarIncrementalTransformHelper {
     @NonNull private final String projectVariant;
     @NonNull private final TransformInvocation invocation;
     @NonNull private final WaitableExecutor executor;
+    @NonNull private final Path graphFile;
 
     @NonNull
     private final Supplier<Set<Path>> changedPaths = Suppliers.memoize(this::findChangedPaths);
@@ -74,14 +79,20 @@ class DesugarIncrementalTransformHelper {
         this.projectVariant = projectVariant;
         this.invocation = invocation;
         this.executor = executor;
+        this.graphFile =
+                new File(invocation.getContext().getTemporaryDir(), GRAPH_FILE_NAME).toPath();
         DesugaringGraph graph;
         if (!invocation.isIncremental()) {
             DesugaringGraphs.invalidate(projectVariant);
+            deletePersistedGraph();
             graph = null;
         } else {
             graph =
                     DesugaringGraphs.updateVariant(
                             projectVariant, () -> getIncrementalData(changedPaths, executor));
+            if (graph != null) {
+                persistGraph(graph);
+            }
         }
         desugaringGraph =
                 graph != null ? () -> graph : Suppliers.memoize(this::makeDesugaringGraph);
@@ -124,15 +135,43 @@ class DesugarIncrementalTransformHelper {
 
     @NonNull
     private DesugaringGraph makeDesugaringGraph() {
+        DesugaringGraph graph;
         if (!invocation.isIncremental()) {
             // Rebuild totally the graph whatever the cache status
-            return DesugaringGraphs.forVariant(
-                    projectVariant, getInitalGraphData(invocation, executor));
+            graph =
+                    DesugaringGraphs.forVariant(
+                            projectVariant, getInitalGraphData(invocation, executor));
+        } else {
+            graph =
+                    DesugaringGraphs.forVariant(
+                            projectVariant,
+                            graphFile,
+                            () -> getInitalGraphData(invocation, executor),
+                            () -> getIncrementalData(changedPaths, executor));
+        }
+        persistGraph(graph);
+        return graph;
+    }
+
+    /**
+     * Saves the graph so that the next incremental build in a new daemon can update it instead of
+     * analyzing all the inputs again.
+     */
+    private void persistGraph(@NonNull DesugaringGraph graph) {
+        try {
+            graph.writeTo(graphFile);
+        } catch (IOException e) {
+            logger.warning("Unable to save the desugaring graph: %s", e.getMessage());
+            deletePersistedGraph();
+        }
+    }
+
+    private void deletePersistedGraph() {
+        try {
+            Files.deleteIfExists(graphFile);
+        } catch (IOException e) {
+            logger.warning("Unable to delete the desugaring graph: %s", e.getMessage());
         }
-        return DesugaringGraphs.forVariant(
-                projectVariant,
-                () -> getInitalGraphData(invocation, executor),
-                () -> getIncrementalData(changedPaths, executor));
     }
 
     @NonNull
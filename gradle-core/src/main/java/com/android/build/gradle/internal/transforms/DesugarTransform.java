@@ -157,6 +157,7 @@ public class DesugarTransform extends Transform {
     @NonNull private final WaitableExecutor waitableExecutor;
     private boolean verbose;
     private final boolean enableGradleWorkers;
+    private final boolean enablePersistentWorkers;
     @NonNull private final String projectVariant;
     // If a flag should be passed to handle http://b/62623509, for JaCoCo older than 0.7.8
     private final boolean enableBugFixForJacoco;
@@ -170,6 +171,7 @@ public class DesugarTransform extends Transform {
             @NonNull JavaProcessExecutor executor,
             boolean verbose,
             boolean enableGradleWorkers,
+            boolean enablePersistentWorkers,
             @NonNull Path tmpDir,
             @NonNull String projectVariant,
             boolean enableBugFixForJacoco) {
@@ -180,6 +182,7 @@ public class DesugarTransform extends Transform {
                 executor,
                 verbose,
                 enableGradleWorkers,
+                enablePersistentWorkers,
                 tmpDir,
                 projectVariant,
                 WaitableExecutor.useGlobalSharedThreadPool(),
@@ -194,6 +197,7 @@ public class DesugarTransform extends Transform {
             @NonNull JavaProcessExecutor executor,
             boolean verbose,
             boolean enableGradleWorkers,
+            boolean enablePersistentWorkers,
             @NonNull Path tmpDir,
             @NonNull String projectVariant,
             @NonNull WaitableExecutor waitableExecutor,
@@ -205,6 +209,7 @@ public class DesugarTransform extends Transform {
         this.waitableExecutor = waitableExecutor;
         this.verbose = verbose;
         this.enableGradleWorkers = enableGradleWorkers;
+        this.enablePersistentWorkers = enablePersistentWorkers;
         this.tmpDir = tmpDir;
         this.projectVariant = projectVariant;
         this.enableBugFixForJacoco = enableBugFixForJacoco;
@@ -267,6 +272,8 @@ public class DesugarTransform extends Transform {
             if (enableGradleWorkers) {
                 processNonCachedOnesWithGradleExecutor(
                         transformInvocation.getContext().getWorkerExecutor(), processArgs);
+            } else if (enablePersistentWorkers) {
+                processNonCachedOnesWithPersistentWorkers(processArgs);
             } else {
                 processNonCachedOnes(processArgs);
             }
@@ -456,6 +463,24 @@ public class DesugarTransform extends Transform {
         waitableExecutor.waitForTasksWithQuickFail(true);
     }
 
+    private void processNonCachedOnesWithPersistentWorkers(
+            @NonNull List<DesugarProcessArgs> args) throws InterruptedException {
+        DesugarWorkerPool workerPool = DesugarWorkerPool.getInstance(desugarJar.get());
+        for (DesugarProcessArgs arg : args) {
+            waitableExecutor.execute(
+                    () -> {
+                        // Arguments are sent to the worker, not on a command line, so they do not
+                        // need to go through a file on Windows.
+                        String output = workerPool.execute(arg.getArgs(false));
+                        if (!output.isEmpty()) {
+                            logger.info(output);
+                        }
+                        return null;
+                    });
+        }
+        waitableExecutor.waitForTasksWithQuickFail(true);
+    }
+
     @SuppressWarnings("MethodMayBeStatic")
     private void processNonCachedOnesWithGradleExecutor(
             @NonNull WorkerExecutor workerExecutor, @NonNull List<DesugarProcessArgs> processArgs)
@@ -575,7 +600,9 @@ public class DesugarTransform extends Transform {
                                     cacheKey,
                                     () -> {
                                         throw new AssertionError("Entry should exist.");
-                                    });
+                                    },
+                                    // Desugared jars are never modified in place
+                                    FileCache.MaterializationStrategy.HARD_LINK);
 
                     if (result.getQueryEvent().equals(FileCache.QueryEvent.CORRUPTED)) {
                         Objects.requireNonNull(result.getCauseOfCorruption());
@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal.transforms;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.annotations.VisibleForTesting;
+import com.android.build.gradle.internal.LoggerWrapper;
+import com.android.ide.common.process.ProcessException;
+import com.android.utils.PathUtils;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of long-lived desugar processes, shared by all the builds run by the same Gradle daemon.
+ *
+ * <p>Starting a JVM for desugar, loading its classes and warming up its JIT often takes longer
+ * than desugaring the few classes changed by an incremental build. The processes of this pool run
+ * desugar as a persistent worker instead: they read requests holding the desugar arguments (any
+ * number of inputs and outputs) from their standard input, and write the exit code and output of
+ * each request to their standard output, as length-delimited {@code WorkRequest} and {@code
+ * WorkResponse} protocol buffers of the Bazel worker protocol.
+ *
+ * <p>Idle workers are kept for later requests, up to one per processor. Workers are replaced after
+ * {@link #MAX_REQUESTS_PER_WORKER} requests, to bound the memory they retain over time, and when
+ * they exit, e.g. after running out of heap, in which case the request is retried once. Workers
+ * exit by themselves when their standard input is closed, including when the daemon exits.
+ *
+ * <p>Each worker dumps the lambda proxy classes it generates in its own temporary directory, like
+ * the desugar processes started by the Gradle workers, as workers running concurrently name their
+ * proxies alike. The directory is deleted when the worker is destroyed.
+ */
+final class DesugarWorkerPool {
+
+    private static final String DESUGAR_MAIN = "com.google.devtools.build.android.desugar.Desugar";
+    private static final String PERSISTENT_WORKER_FLAG = "--persistent_worker";
+
+    /** Number of requests after which a worker is replaced. */
+    private static final int MAX_REQUESTS_PER_WORKER = 200;
+
+    /** Time given to a worker to exit by itself before it is killed. */
+    private static final long WORKER_EXIT_TIMEOUT_MILLIS = 1000;
+
+    private static final int WORK_REQUEST_ARGUMENTS = 1;
+    private static final int WORK_RESPONSE_EXIT_CODE = 1;
+    private static final int WORK_RESPONSE_OUTPUT = 2;
+
+    private static final LoggerWrapper logger = LoggerWrapper.getLogger(DesugarWorkerPool.class);
+
+    /** The pools of this daemon, per desugar jar. */
+    private static final Map<Path, DesugarWorkerPool> pools = new ConcurrentHashMap<>();
+
+    /** The command starting a worker, the java executable first. */
+    @NonNull private final ImmutableList<String> command;
+    private final int maxIdleWorkers;
+    private final int maxRequestsPerWorker;
+
+    /** Workers waiting for requests, the most recently used first. */
+    @NonNull private final Deque<Worker> idleWorkers = new ArrayDeque<>();
+
+    @VisibleForTesting
+    DesugarWorkerPool(
+            @NonNull List<String> command, int maxIdleWorkers, int maxRequestsPerWorker) {
+        this.command = ImmutableList.copyOf(command);
+        this.maxIdleWorkers = maxIdleWorkers;
+        this.maxRequestsPerWorker = maxRequestsPerWorker;
+    }
+
+    /** Returns the pool of workers running the given desugar jar. */
+    @NonNull
+    static DesugarWorkerPool getInstance(@NonNull Path desugarJar) {
+        return pools.computeIfAbsent(
+                desugarJar,
+                jar -> {
+                    boolean isWindows =
+                            SdkConstants.currentPlatform() == SdkConstants.PLATFORM_WINDOWS;
+                    Path java =
+                            Paths.get(
+                                    System.getProperty("java.home"),
+                                    "bin",
+                                    isWindows ? "java.exe" : "java");
+                    return new DesugarWorkerPool(
+                            ImmutableList.of(
+                                    java.toString(),
+                                    "-Xmx64m",
+                                    "-cp",
+                                    jar.toString(),
+                                    DESUGAR_MAIN,
+                                    PERSISTENT_WORKER_FLAG),
+                            Runtime.getRuntime().availableProcessors(),
+                            MAX_REQUESTS_PER_WORKER);
+                });
+    }
+
+    /**
+     * Runs desugar with the given arguments in an idle worker, starting one if there is none.
+     *
+     * @param args the desugar arguments
+     * @return the output of desugar
+     * @throws ProcessException if desugar failed, or no worker could run the request
+     */
+    @NonNull
+    String execute(@NonNull List<String> args) throws ProcessException {
+        Worker worker = acquire();
+        Response response;
+        try {
+            response = worker.process(args);
+        } catch (IOException e) {
+            // The worker exited, most likely because it ran out of memory. Try a new one.
+            logger.verbose("Desugar worker failed, retrying in a new one: %s", e);
+            worker.destroy();
+            try {
+                worker = startWorker();
+                response = worker.process(args);
+            } catch (IOException retryException) {
+                worker.destroy();
+                throw new ProcessException("Failed to run desugar worker", retryException);
+            }
+        }
+        release(worker);
+
+        if (response.exitCode != 0) {
+            throw new ProcessException(
+                    String.format(
+                            "Desugar failed with exit code %d:%n%s",
+                            response.exitCode, response.output));
+        }
+        return response.output;
+    }
+
+    /** Stops all idle workers. */
+    @VisibleForTesting
+    void shutdown() {
+        List<Worker> workers;
+        synchronized (idleWorkers) {
+            workers = new ArrayList<>(idleWorkers);
+            idleWorkers.clear();
+        }
+        // Destroying a worker waits for it to exit, so it is done without holding the lock.
+        for (Worker worker : workers) {
+            worker.destroy();
+        }
+    }
+
+    @VisibleForTesting
+    int getIdleWorkerCount() {
+        synchronized (idleWorkers) {
+            return idleWorkers.size();
+        }
+    }
+
+    @NonNull
+    private Worker acquire() throws ProcessException {
+        List<Worker> exitedWorkers = new ArrayList<>();
+        Worker idleWorker = null;
+        synchronized (idleWorkers) {
+            while (idleWorker == null && !idleWorkers.isEmpty()) {
+                Worker worker = idleWorkers.removeFirst();
+                if (worker.isAlive()) {
+                    idleWorker = worker;
+                } else {
+                    exitedWorkers.add(worker);
+                }
+            }
+        }
+        for (Worker worker : exitedWorkers) {
+            worker.destroy();
+        }
+        if (idleWorker != null) {
+            return idleWorker;
+        }
+        try {
+            return startWorker();
+        } catch (IOException e) {
+            throw new ProcessException("Failed to start desugar worker", e);
+        }
+    }
+
+    private void release(@NonNull Worker worker) {
+        if (worker.requestCount < maxRequestsPerWorker && worker.isAlive()) {
+            synchronized (idleWorkers) {
+                if (idleWorkers.size() < maxIdleWorkers) {
+                    idleWorkers.addFirst(worker);
+                    return;
+                }
+            }
+        }
+        worker.destroy();
+    }
+
+    @NonNull
+    private Worker startWorker() throws IOException {
+        Path lambdaDumpDir = PathUtils.createTmpDirToRemoveOnShutdown("gradle_lambdas");
+        List<String> workerCommand = new ArrayList<>(command.size() + 1);
+        workerCommand.add(command.get(0));
+        workerCommand.add("-Djdk.internal.lambda.dumpProxyClasses=" + lambdaDumpDir);
+        workerCommand.addAll(command.subList(1, command.size()));
+
+        Process process;
+        try {
+            process = new ProcessBuilder(workerCommand).start();
+        } catch (IOException e) {
+            PathUtils.deleteRecursivelyIfExists(lambdaDumpDir);
+            throw e;
+        }
+        Thread errorLogger =
+                new Thread(
+                        () -> logErrors(process.getErrorStream()),
+                        "desugar worker stderr");
+        errorLogger.setDaemon(true);
+        errorLogger.start();
+        return new Worker(process, lambdaDumpDir);
+    }
+
+    /** Logs what a worker writes to its standard error, until it exits. */
+    private static void logErrors(@NonNull InputStream errors) {
+        try (BufferedReader reader =
+                new BufferedReader(new InputStreamReader(errors, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                logger.info(line);
+            }
+        } catch (IOException e) {
+            // The worker was destroyed.
+        }
+    }
+
+    /** Writes a length-delimited {@code WorkRequest}. */
+    @VisibleForTesting
+    static void writeRequest(@NonNull OutputStream stream, @NonNull List<String> args)
+            throws IOException {
+        int size = 0;
+        for (String arg : args) {
+            size += CodedOutputStream.computeStringSize(WORK_REQUEST_ARGUMENTS, arg);
+        }
+        CodedOutputStream out = CodedOutputStream.newInstance(stream);
+        out.writeUInt32NoTag(size);
+        for (String arg : args) {
+            out.writeString(WORK_REQUEST_ARGUMENTS, arg);
+        }
+        out.flush();
+    }
+
+    /** Reads a length-delimited {@code WorkResponse}. */
+    @VisibleForTesting
+    @NonNull
+    static Response readResponse(@NonNull InputStream stream) throws IOException {
+        int firstByte = stream.read();
+        if (firstByte == -1) {
+            throw new EOFException("Desugar worker exited");
+        }
+        byte[] message = new byte[CodedInputStream.readRawVarint32(firstByte, stream)];
+        ByteStreams.readFully(stream, message);
+
+        CodedInputStream in = CodedInputStream.newInstance(message);
+        int exitCode = 0;
+        String output = "";
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case WORK_RESPONSE_EXIT_CODE:
+                    exitCode = in.readInt32();
+                    break;
+                case WORK_RESPONSE_OUTPUT:
+                    output = in.readString();
+                    break;
+                default:
+                    in.skipField(tag);
+            }
+        }
+        return new Response(exitCode, output);
+    }
+
+    /** A desugar process, processing one request at a time. */
+    private static final class Worker {
+        @NonNull private final Process process;
+        @NonNull private final Path lambdaDumpDir;
+        @NonNull private final OutputStream requests;
+        @NonNull private final InputStream responses;
+        private int requestCount = 0;
+
+        Worker(@NonNull Process process, @NonNull Path lambdaDumpDir) {
+            this.process = process;
+            this.lambdaDumpDir = lambdaDumpDir;
+            this.requests = new BufferedOutputStream(process.getOutputStream());
+            this.responses = new BufferedInputStream(process.getInputStream());
+        }
+
+        @NonNull
+        Response process(@NonNull List<String> args) throws IOException {
+            requestCount++;
+            writeRequest(requests, args);
+            requests.flush();
+            return readResponse(responses);
+        }
+
+        boolean isAlive() {
+            return process.isAlive();
+        }
+
+        void destroy() {
+            try {
+                // Lets the worker exit by itself.
+                requests.close();
+                if (!process.waitFor(WORKER_EXIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    process.destroy();
+                }
+            } catch (IOException e) {
+                // The worker already exited.
+                process.destroy();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                process.destroy();
+            }
+            try {
+                PathUtils.deleteRecursivelyIfExists(lambdaDumpDir);
+            } catch (IOException e) {
+                // The directory is deleted when the daemon exits otherwise.
+                logger.verbose("Failed to delete %s: %s", lambdaDumpDir, e);
+            }
+        }
+    }
+
+    /** The result of a request. */
+    @VisibleForTesting
+    static final class Response {
+        final int exitCode;
+        @NonNull final String output;
+
+        Response(int exitCode, @NonNull String output) {
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+    }
+}
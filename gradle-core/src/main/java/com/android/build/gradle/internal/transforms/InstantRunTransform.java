@@ -35,6 +35,8 @@ import com.android.build.api.transform.TransformInput;
 import com.android.build.api.transform.TransformInvocation;
 import com.android.build.api.transform.TransformOutputProvider;
 import com.android.build.gradle.internal.LoggerWrapper;
+import com.android.build.gradle.internal.incremental.AsmClassNodeCache;
+import com.android.build.gradle.internal.incremental.ClassHierarchyIndex;
 import com.android.build.gradle.internal.incremental.IncrementalChangeVisitor;
 import com.android.build.gradle.internal.incremental.IncrementalSupportVisitor;
 import com.android.build.gradle.internal.incremental.IncrementalVisitor;
@@ -56,11 +58,11 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
-import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
@@ -68,6 +70,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import org.gradle.api.logging.Logging;
 import org.objectweb.asm.ClassWriter;
@@ -82,10 +85,18 @@ public class InstantRunTransform extends Transform {
 
     protected static final ILogger LOGGER =
             new LoggerWrapper(Logging.getLogger(InstantRunTransform.class));
-    private final ImmutableList.Builder<String> generatedClasses3Names = ImmutableList.builder();
+    /** The names of the classes.3 classes, added concurrently by the work items. */
+    private final Set<String> generatedClasses3Names = ConcurrentHashMap.newKeySet();
     private final InstantRunVariantScope transformScope;
     private final AndroidVersion targetPlatformApi;
     private final WaitableExecutor executor;
+    /** The class hierarchy of the classes being transformed, set at the start of a transform. */
+    @Nullable private volatile ClassHierarchyIndex classHierarchy;
+    /**
+     * The super classes parsed by the work items, shared by all the work items of a transform so
+     * that the ancestors common to the classes of the project are only parsed once.
+     */
+    @Nullable private volatile AsmClassNodeCache classNodeCache;
 
     public InstantRunTransform(WaitableExecutor executor, InstantRunVariantScope transformScope) {
         this.transformScope = transformScope;
@@ -283,15 +294,19 @@ public class InstantRunTransform extends Transform {
             }
         }
 
-        // first get all referenced input to construct a class loader capable of loading those
-        // classes. This is useful for ASM as it needs to load classes
-        List<URL> referencedInputUrls = getAllClassesLocations(
-                invocation.getInputs(), invocation.getReferencedInputs());
+        // first get all referenced input to construct a class loader capable of reading those
+        // classes, and an index of their hierarchy. This is useful for ASM as it needs to read
+        // the parent classes of the instrumented classes, and to compute their stack frames.
+        List<File> referencedInputs =
+                getAllClassesLocations(invocation.getInputs(), invocation.getReferencedInputs());
+        List<URL> referencedInputUrls = new ArrayList<>(referencedInputs.size());
+        for (File file : referencedInputs) {
+            referencedInputUrls.add(file.toURI().toURL());
+        }
+        // The class hierarchy of jars is shared with the other variants and transforms.
+        classHierarchy = ClassHierarchyIndex.create(referencedInputs);
+        classNodeCache = new AsmClassNodeCache();
 
-        // This class loader could be optimized a bit, first we could create a parent class loader
-        // with the android.jar only that could be stored in the GlobalScope for reuse. This
-        // class loader could also be store in the VariantScope for potential reuse if some
-        // other transform need to load project's classes.
         try (URLClassLoader urlClassLoader = new NonDelegatingUrlClassloader(referencedInputUrls)) {
             workItems.forEach(
                     workItem ->
@@ -319,6 +334,8 @@ public class InstantRunTransform extends Transform {
             } catch (Exception e) {
                 throw new TransformException(e);
             }
+        } finally {
+            classNodeCache = null;
         }
 
         // If our classes.2 transformations indicated that a cold swap was necessary,
@@ -340,7 +357,10 @@ public class InstantRunTransform extends Transform {
             return;
         }
         // otherwise, generate the patch file and add it to the list of files to process next.
-        ImmutableList<String> generatedClassNames = generatedClasses3Names.build();
+        // The classes are sorted as they are generated in parallel, so that the patch file does
+        // not change when the same classes are generated again.
+        ImmutableList<String> generatedClassNames =
+                Ordering.natural().immutableSortedCopy(generatedClasses3Names);
         if (!generatedClassNames.isEmpty()) {
             writePatchFileContents(
                     generatedClassNames,
@@ -351,46 +371,42 @@ public class InstantRunTransform extends Transform {
 
 
     /**
-     * Calculate a list of {@link URL} that represent all the directories containing classes
-     * either directly belonging to this project or referencing it.
+     * Calculate a list of {@link File} that represent all the directories and jars containing
+     * classes either directly belonging to this project or referencing it.
      *
      * @param inputs the project's inputs
      * @param referencedInputs the project's referenced inputs
-     * @return a {@link List} or {@link URL} for all the locations.
-     * @throws MalformedURLException if once the locatio
+     * @return a {@link List} or {@link File} for all the locations.
      */
     @NonNull
-    private List<URL> getAllClassesLocations(
+    private List<File> getAllClassesLocations(
             @NonNull Collection<TransformInput> inputs,
-            @NonNull Collection<TransformInput> referencedInputs) throws MalformedURLException {
+            @NonNull Collection<TransformInput> referencedInputs) {
 
-        List<URL> referencedInputUrls = new ArrayList<>();
+        List<File> classesLocations = new ArrayList<>();
 
         // add the bootstrap classpath for jars like android.jar
-        for (File file : transformScope.getInstantRunBootClasspath()) {
-            referencedInputUrls.add(file.toURI().toURL());
-        }
+        classesLocations.addAll(transformScope.getInstantRunBootClasspath());
 
         // now add the project dependencies.
         for (TransformInput referencedInput : referencedInputs) {
-            addAllClassLocations(referencedInput, referencedInputUrls);
+            addAllClassLocations(referencedInput, classesLocations);
         }
 
         // and finally add input folders.
         for (TransformInput input : inputs) {
-            addAllClassLocations(input, referencedInputUrls);
+            addAllClassLocations(input, classesLocations);
         }
-        return referencedInputUrls;
+        return classesLocations;
     }
 
-    private static void addAllClassLocations(TransformInput transformInput, List<URL> into)
-            throws MalformedURLException {
+    private static void addAllClassLocations(TransformInput transformInput, List<File> into) {
 
         for (DirectoryInput directoryInput : transformInput.getDirectoryInputs()) {
-            into.add(directoryInput.getFile().toURI().toURL());
+            into.add(directoryInput.getFile());
         }
         for (JarInput jarInput : transformInput.getJarInputs()) {
-            into.add(jarInput.getFile().toURI().toURL());
+            into.add(jarInput.getFile());
         }
     }
 
@@ -417,7 +433,9 @@ public class InstantRunTransform extends Transform {
                     inputFile,
                     outputDir,
                     IncrementalSupportVisitor.VISITOR_BUILDER,
-                    LOGGER);
+                    LOGGER,
+                    Preconditions.checkNotNull(classHierarchy),
+                    Preconditions.checkNotNull(classNodeCache));
         }
         return null;
     }
@@ -460,7 +478,9 @@ public class InstantRunTransform extends Transform {
                         inputFile,
                         outputDir,
                         IncrementalChangeVisitor.VISITOR_BUILDER,
-                        LOGGER);
+                        LOGGER,
+                        Preconditions.checkNotNull(classHierarchy),
+                        Preconditions.checkNotNull(classNodeCache));
 
         // if the visitor returned null, that means the class cannot be hot swapped or more likely
         // that it was disabled for InstantRun, we don't add it to our collection of generated
@@ -54,11 +54,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -190,7 +186,7 @@ public class MergeJavaResourcesTransform extends Transform {
     /**
      * Loads the incremental state.
      *
-     * @return {@code null} if the state is not defined
+     * @return {@code null} if the state is not defined or was saved in a different format
      * @throws IOException failed to load the incremental state
      */
     @Nullable
@@ -200,11 +196,7 @@ public class MergeJavaResourcesTransform extends Transform {
             return null;
         }
 
-        try (ObjectInputStream i = new ObjectInputStream(new FileInputStream(incrementalFile))) {
-            return (IncrementalFileMergerState) i.readObject();
-        } catch (ClassNotFoundException e) {
-            throw new IOException(e);
-        }
+        return IncrementalFileMergerState.read(incrementalFile);
     }
 
     /**
@@ -217,9 +209,7 @@ public class MergeJavaResourcesTransform extends Transform {
         File incrementalFile = incrementalStateFile();
 
         FileUtils.mkdirs(incrementalFile.getParentFile());
-        try (ObjectOutputStream o = new ObjectOutputStream(new FileOutputStream(incrementalFile))) {
-            o.writeObject(state);
-        }
+        state.write(incrementalFile);
     }
 
     @Override
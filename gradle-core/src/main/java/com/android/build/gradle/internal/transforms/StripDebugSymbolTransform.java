@@ -22,6 +22,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
 import com.android.build.api.transform.DirectoryInput;
 import com.android.build.api.transform.Format;
 import com.android.build.api.transform.JarInput;
@@ -41,12 +42,15 @@ import com.android.build.gradle.internal.ndk.NdkHandler;
 import com.android.build.gradle.internal.pipeline.ExtendedContentType;
 import com.android.build.gradle.internal.pipeline.TransformManager;
 import com.android.build.gradle.internal.process.GradleProcessExecutor;
+import com.android.builder.utils.FileCache;
+import com.android.ide.common.internal.WaitableExecutor;
 import com.android.ide.common.process.LoggedProcessOutputHandler;
 import com.android.ide.common.process.ProcessInfoBuilder;
 import com.android.ide.common.process.ProcessResult;
 import com.android.utils.FileUtils;
 import com.android.utils.ILogger;
 import com.android.utils.ImmutableCollectors;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableSet;
 import java.io.File;
 import java.io.IOException;
@@ -56,17 +60,38 @@ import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.util.Collection;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 import org.gradle.api.Project;
 
 /**
  * Transform to remove debug symbols from native libraries.
+ *
+ * <p>Libraries are stripped concurrently. When a build cache is available, the stripped native
+ * libraries coming from dependencies are cached, so that a prebuilt library is only stripped once
+ * per machine rather than once per build and variant.
  */
 public class StripDebugSymbolTransform extends Transform {
+
+    private enum FileCacheInputParams {
+
+        /** The native library to strip. */
+        FILE,
+
+        /** The ABI of the native library. */
+        ABI,
+
+        /** The strip tool used to strip the native library. */
+        STRIP_TOOL,
+    }
+
     @NonNull
     private final Project project;
 
+    @Nullable private final FileCache buildCache;
+
     @NonNull private final SymbolStripExecutableFinder stripToolFinder;
 
     @NonNull
@@ -79,7 +104,8 @@ public class StripDebugSymbolTransform extends Transform {
             @NonNull NdkHandler ndkHandler,
             @NonNull Set<String> excludePattern,
             boolean isLibrary,
-            boolean includeFeaturesInScopes) {
+            boolean includeFeaturesInScopes,
+            @Nullable FileCache buildCache) {
 
         this.excludeMatchers = excludePattern.stream()
                 .map(StripDebugSymbolTransform::compileGlob)
@@ -89,6 +115,7 @@ public class StripDebugSymbolTransform extends Transform {
         stripToolFinder = createSymbolStripExecutableFinder(ndkHandler);
         this.project = project;
         this.includeFeaturesInScopes = includeFeaturesInScopes;
+        this.buildCache = buildCache;
     }
 
     @NonNull
@@ -145,6 +172,7 @@ public class StripDebugSymbolTransform extends Transform {
         if (!isIncremental) {
             outputProvider.deleteAll();
         }
+        WaitableExecutor executor = WaitableExecutor.useGlobalSharedThreadPool();
         for (TransformInput transformInput : transformInvocation.getInputs()) {
             for (DirectoryInput directoryInput : transformInput.getDirectoryInputs()) {
                 File folder = directoryInput.getFile();
@@ -154,6 +182,10 @@ public class StripDebugSymbolTransform extends Transform {
                                 getInputTypes(),
                                 directoryInput.getScopes(),
                                 Format.DIRECTORY);
+                // Only cache the libraries of dependencies, which are likely to be shared across
+                // variants and projects.
+                FileCache cache =
+                        directoryInput.getScopes().contains(Scope.PROJECT) ? null : buildCache;
                 if (isIncremental) {
                     for (Map.Entry<File, Status> fileStatus
                             : directoryInput.getChangedFiles().entrySet()) {
@@ -175,7 +207,11 @@ public class StripDebugSymbolTransform extends Transform {
                                     FileUtils.mkdirs(strippedLib.getParentFile());
                                     FileUtils.copyFile(input, strippedLib);
                                 } else {
-                                    stripFile(input, strippedLib, abi);
+                                    executor.execute(
+                                            () -> {
+                                                stripFile(input, strippedLib, abi, cache);
+                                                return null;
+                                            });
                                 }
                                 break;
                             case REMOVED:
@@ -199,7 +235,11 @@ public class StripDebugSymbolTransform extends Transform {
                             FileUtils.mkdirs(strippedLib.getParentFile());
                             FileUtils.copyFile(input, strippedLib);
                         } else {
-                            stripFile(input, strippedLib, abi);
+                            executor.execute(
+                                    () -> {
+                                        stripFile(input, strippedLib, abi, cache);
+                                        return null;
+                                    });
                         }
                     }
                 }
@@ -225,9 +265,21 @@ public class StripDebugSymbolTransform extends Transform {
                 }
             }
         }
+
+        try {
+            executor.waitForTasksWithQuickFail(true);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new TransformException(e);
+        }
     }
 
-    private void stripFile(@NonNull File input, @NonNull File output, @Nullable Abi abi)
+    private void stripFile(
+            @NonNull File input,
+            @NonNull File output,
+            @Nullable Abi abi,
+            @Nullable FileCache cache)
             throws IOException {
         FileUtils.mkdirs(output.getParentFile());
         ILogger logger = new LoggerWrapper(project.getLogger());
@@ -244,10 +296,106 @@ public class StripDebugSymbolTransform extends Transform {
             // The strip executable couldn't be found and a message about the failure was reported
             // in getPathToStripExecutable.
             // Fall back to copying the file to the output location
+            FileUtils.deleteIfExists(output);
             FileUtils.copyFile(input, output);
             return;
         }
 
+        stripOrCopyFile(
+                input,
+                output,
+                abi,
+                exe,
+                cache,
+                (libToStrip, strippedLib) -> stripFile(libToStrip, strippedLib, exe, logger),
+                logger);
+    }
+
+    /**
+     * Strips the given native library with the given strip tool, or copies it as is if it cannot be
+     * stripped. If a cache is given, the stripped library is cached, and libraries that could not
+     * be stripped are not.
+     */
+    @VisibleForTesting
+    static void stripOrCopyFile(
+            @NonNull File input,
+            @NonNull File output,
+            @Nullable Abi abi,
+            @NonNull File exe,
+            @Nullable FileCache cache,
+            @NonNull StripTool stripTool,
+            @NonNull ILogger logger)
+            throws IOException {
+        // The output of a previous build may be a hard link to a cached library, which must not
+        // be written through.
+        FileUtils.deleteIfExists(output);
+        if (cache == null) {
+            if (!stripTool.strip(input, output)) {
+                FileUtils.copyFile(input, output);
+            }
+            return;
+        }
+
+        FileCache.Inputs cacheInputs =
+                new FileCache.Inputs.Builder(FileCache.Command.STRIP_NATIVE_LIBRARY)
+                        .putFile(
+                                FileCacheInputParams.FILE.name(),
+                                input,
+                                FileCache.FileProperties.HASH)
+                        .putString(
+                                FileCacheInputParams.ABI.name(),
+                                abi != null ? abi.getName() : "")
+                        .putFile(
+                                FileCacheInputParams.STRIP_TOOL.name(),
+                                exe,
+                                FileCache.FileProperties.PATH_SIZE_TIMESTAMP)
+                        .build();
+        try {
+            FileCache.QueryResult result =
+                    cache.createFile(
+                            output,
+                            cacheInputs,
+                            () -> {
+                                // Don't cache the library as is if it could not be stripped
+                                if (!stripTool.strip(input, output)) {
+                                    throw new StripFailedException();
+                                }
+                            },
+                            // Stripped libraries are never modified in place
+                            FileCache.MaterializationStrategy.HARD_LINK);
+            if (result.getQueryEvent().equals(FileCache.QueryEvent.CORRUPTED)) {
+                Objects.requireNonNull(result.getCauseOfCorruption());
+                logger.verbose(
+                        "The build cache at '%1$s' contained an invalid cache entry.\n"
+                                + "Cause: %2$s\n"
+                                + "We have recreated the cache entry.\n",
+                        cache.getCacheDirectory().getAbsolutePath(),
+                        Throwables.getStackTraceAsString(result.getCauseOfCorruption()));
+            }
+        } catch (ExecutionException e) {
+            // The exception of the file creator is wrapped by the cache.
+            if (Throwables.getCausalChain(e)
+                    .stream()
+                    .noneMatch(cause -> cause instanceof StripFailedException)) {
+                throw new IOException(
+                        String.format(
+                                "Unable to strip '%1$s' using the build cache at '%2$s'.",
+                                input.getAbsolutePath(),
+                                cache.getCacheDirectory().getAbsolutePath()),
+                        e);
+            }
+            FileUtils.deleteIfExists(output);
+            FileUtils.copyFile(input, output);
+        }
+    }
+
+    /**
+     * Strips the given native library with the given strip tool.
+     *
+     * @return true if the library was stripped, false if the strip tool failed
+     */
+    private boolean stripFile(
+            @NonNull File input, @NonNull File output, @NonNull File exe, @NonNull ILogger logger) {
         ProcessInfoBuilder builder = new ProcessInfoBuilder();
         builder.setExecutable(exe);
         builder.addArgs("--strip-unneeded");
@@ -262,10 +410,25 @@ public class StripDebugSymbolTransform extends Transform {
                     "Unable to strip library '%s' due to error %s returned "
                             + "from '%s', packaging it as is.",
                     result.getExitValue(), exe, input.getAbsolutePath());
-            FileUtils.copyFile(input, output);
+            return false;
         }
+        return true;
+    }
+
+    /** Strips a native library. */
+    @VisibleForTesting
+    interface StripTool {
+
+        /**
+         * Strips the given native library.
+         *
+         * @return true if the library was stripped, false if it could not be stripped
+         */
+        boolean strip(@NonNull File input, @NonNull File output) throws IOException;
     }
 
+    /** Thrown when a native library to cache could not be stripped. */
+    private static final class StripFailedException extends Exception {}
 
     @NonNull
     private static PathMatcher compileGlob(@NonNull String pattern) {
@@ -62,6 +62,13 @@ enum class IntegerOption(
      * Maximum number of dynamic features that can be allocated before Oreo platforms.
      */
     PRE_O_MAX_NUMBER_OF_FEATURES("android.maxNumberOfFeaturesBeforeOreo"),
+
+    /**
+     * Maximum number of external native build commands run concurrently. Commands sharing a build
+     * folder (e.g. the targets of the same ABI) always run one after another. Defaults to the
+     * number of available processors.
+     */
+    NATIVE_BUILD_MAX_PARALLEL_JOBS("android.native.buildMaxParallelJobs"),
     ;
 
     override fun parse(value: Any): Int {
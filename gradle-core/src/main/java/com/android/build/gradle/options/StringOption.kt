@@ -25,6 +25,8 @@ enum class StringOption(
     override val status: Option.Status = EXPERIMENTAL
 ) : Option<String> {
     BUILD_CACHE_DIR("android.buildCacheDir", status = STABLE),
+    // Maximum size of the build cache (e.g. "10g"), least recently used entries are evicted beyond it
+    BUILD_CACHE_MAX_SIZE("android.buildCacheMaxSize"),
 
     IDE_BUILD_TARGET_DENSITY(AndroidProject.PROPERTY_BUILD_DENSITY, status = STABLE),
     IDE_BUILD_TARGET_ABI(AndroidProject.PROPERTY_BUILD_ABI, status = STABLE),
@@ -58,6 +60,10 @@ enum class StringOption(
     // Testing
     DEVICE_POOL_SERIAL("com.android.test.devicepool.serial"),
     PROFILE_OUTPUT_DIR("android.advanced.profileOutputDir"),
+    // Files to which spans (chrome tracing format) and task/transform duration histograms
+    // (OpenMetrics text format) are exported while the build runs
+    PROFILE_STREAMING_TRACE_FILE("android.advanced.profileStreamingTraceFile"),
+    PROFILE_STREAMING_METRICS_FILE("android.advanced.profileStreamingMetricsFile"),
 
     BUILD_ARTIFACT_REPORT_FILE("android.buildartifact.reportfile"),
 
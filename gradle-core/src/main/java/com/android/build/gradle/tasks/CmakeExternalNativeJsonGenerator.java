@@ -16,12 +16,14 @@
 
 package com.android.build.gradle.tasks;
 
+import static com.android.build.gradle.internal.cxx.configure.CmakeAndroidGradleBuildExtensionsKt.findUncachedCompilerSettingsKey;
 import static com.android.build.gradle.internal.cxx.configure.CmakeAndroidGradleBuildExtensionsKt.wrapCmakeListsForCompilerSettingsCaching;
 import static com.android.build.gradle.internal.cxx.configure.CmakeAndroidGradleBuildExtensionsKt.writeCompilerSettingsToCache;
 import static com.android.build.gradle.internal.cxx.configure.LoggingEnvironmentKt.error;
 import static com.google.common.base.Preconditions.checkState;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.build.gradle.internal.core.Abi;
 import com.android.build.gradle.internal.cxx.configure.JsonGenerationAbiConfiguration;
@@ -132,6 +134,22 @@ abstract class CmakeExternalNativeJsonGenerator extends ExternalNativeJsonGenera
     @VisibleForTesting
     @NonNull
     List<String> getProcessBuilderArgs(@NonNull JsonGenerationAbiConfiguration abiConfig) {
+        List<String> processBuilderArgs = getUnwrappedProcessBuilderArgs(abiConfig);
+        if (config.enableCmakeCompilerSettingsCache) {
+            return wrapCmakeListsForCompilerSettingsCaching(
+                            config.compilerSettingsCacheFolder,
+                            abiConfig,
+                            getMakefile().getParentFile(),
+                            processBuilderArgs)
+                    .getArgs();
+        }
+        return processBuilderArgs;
+    }
+
+    /** Returns the arguments to be passed to CMake, before wrapping for the settings cache. */
+    @NonNull
+    private List<String> getUnwrappedProcessBuilderArgs(
+            @NonNull JsonGenerationAbiConfiguration abiConfig) {
         List<String> processBuilderArgs = Lists.newArrayList();
         // CMake requires a folder. Trim the filename off.
         File cmakeListsFolder = getMakefile().getParentFile();
@@ -141,17 +159,19 @@ abstract class CmakeExternalNativeJsonGenerator extends ExternalNativeJsonGenera
 
         // Add user provided build arguments
         processBuilderArgs.addAll(getBuildArguments());
-        if (config.enableCmakeCompilerSettingsCache) {
-            return wrapCmakeListsForCompilerSettingsCaching(
-                            config.compilerSettingsCacheFolder,
-                            abiConfig,
-                            cmakeListsFolder,
-                            processBuilderArgs)
-                    .getArgs();
-        }
         return processBuilderArgs;
     }
 
+    @Nullable
+    @Override
+    String getUncachedCompilerSettingsKey(@NonNull JsonGenerationAbiConfiguration abiConfig) {
+        if (!config.enableCmakeCompilerSettingsCache) {
+            return null;
+        }
+        return findUncachedCompilerSettingsKey(
+                config.compilerSettingsCacheFolder, getUnwrappedProcessBuilderArgs(abiConfig));
+    }
+
     /**
      * Returns a list of default cache arguments that the implementations may use.
      *
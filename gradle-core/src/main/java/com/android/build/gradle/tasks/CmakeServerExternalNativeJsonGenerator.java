@@ -61,6 +61,8 @@ import com.android.build.gradle.internal.cxx.json.StringTable;
 import com.android.builder.core.AndroidBuilder;
 import com.android.ide.common.process.ProcessException;
 import com.android.utils.ILogger;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -467,6 +469,7 @@ class CmakeServerExternalNativeJsonGenerator extends CmakeExternalNativeJsonGene
         // Fill in the required fields in NativeBuildConfigValue from the code model obtained from
         // Cmake server.
         for (Configuration config : codeModel.configurations) {
+            Map<String, Target> configTargets = Maps.newHashMap();
             for (Project project : config.projects) {
                 for (Target target : project.targets) {
                     // Ignore targets that aren't valid.
@@ -485,8 +488,10 @@ class CmakeServerExternalNativeJsonGenerator extends CmakeExternalNativeJsonGene
                             target.name + "-" + config.name + "-" + abiConfig.getAbiName();
                     assert nativeBuildConfigValue.libraries != null;
                     nativeBuildConfigValue.libraries.put(libraryName, nativeLibraryValue);
+                    configTargets.put(libraryName, target);
                 } // target
             } // project
+            addLibraryDependencies(configTargets, nativeBuildConfigValue.libraries);
         }
         return nativeBuildConfigValue;
     }
@@ -631,6 +636,45 @@ class CmakeServerExternalNativeJsonGenerator extends CmakeExternalNativeJsonGene
         return flags.toString();
     }
 
+    /**
+     * Records in each of the given libraries the other libraries it links against, so that they
+     * can be built first. CMake lists the libraries of the project a target links against by the
+     * path of their artifact, so they are found by matching the file names in the link libraries
+     * of each target with the file names of the library outputs.
+     *
+     * @param targets the targets of a single configuration, by library name
+     * @param libraries the libraries of the JSON, by library name
+     */
+    @VisibleForTesting
+    static void addLibraryDependencies(
+            @NonNull Map<String, Target> targets,
+            @NonNull Map<String, NativeLibraryValue> libraries) {
+        Map<String, String> librariesByOutputName = Maps.newHashMap();
+        for (String libraryName : targets.keySet()) {
+            NativeLibraryValue library = libraries.get(libraryName);
+            if (library != null && library.output != null) {
+                librariesByOutputName.put(library.output.getName(), libraryName);
+            }
+        }
+        for (Map.Entry<String, Target> entry : targets.entrySet()) {
+            NativeLibraryValue library = libraries.get(entry.getKey());
+            if (library == null) {
+                continue;
+            }
+            Set<String> dependencies = Sets.newTreeSet();
+            String linkLibraries = Strings.nullToEmpty(entry.getValue().linkLibraries);
+            for (String token : Splitter.on(CharMatcher.whitespace()).split(linkLibraries)) {
+                String path = CharMatcher.is('"').trimFrom(token);
+                int separator = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+                String dependency = librariesByOutputName.get(path.substring(separator + 1));
+                if (dependency != null && !dependency.equals(entry.getKey())) {
+                    dependencies.add(dependency);
+                }
+            }
+            library.dependencies = Lists.newArrayList(dependencies);
+        }
+    }
+
     /**
      * Helper function that returns true if the Target object is valid to be added to native
      * library.
@@ -26,6 +26,7 @@ import static com.google.common.base.Preconditions.checkState;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
 import com.android.build.gradle.internal.core.Abi;
 import com.android.build.gradle.internal.cxx.configure.GradleBuildLoggingEnvironment;
 import com.android.build.gradle.internal.cxx.json.AndroidBuildGradleJsons;
@@ -38,6 +39,7 @@ import com.android.build.gradle.internal.scope.VariantScope;
 import com.android.build.gradle.internal.tasks.AndroidBuilderTask;
 import com.android.build.gradle.internal.tasks.factory.VariantTaskCreationAction;
 import com.android.build.gradle.internal.variant.BaseVariantData;
+import com.android.build.gradle.options.IntegerOption;
 import com.android.builder.core.AndroidBuilder;
 import com.android.builder.errors.EvalIssueReporter;
 import com.android.ide.common.process.BuildCommandException;
@@ -46,8 +48,10 @@ import com.android.utils.FileUtils;
 import com.android.utils.StringHelper;
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import com.google.wireless.android.sdk.stats.GradleBuildVariant;
@@ -57,6 +61,14 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import org.gradle.api.GradleException;
 import org.gradle.api.Task;
@@ -83,6 +95,8 @@ public class ExternalNativeBuildTask extends AndroidBuilderTask {
 
     private GradleBuildVariant.Builder stats;
 
+    private int maxParallelJobs;
+
     @TaskAction
     void build() throws BuildCommandException, IOException {
         try (GradleBuildLoggingEnvironment ignore =
@@ -98,9 +112,8 @@ public class ExternalNativeBuildTask extends AndroidBuilderTask {
         List<NativeBuildConfigValueMini> miniConfigs = getNativeBuildConfigValueMinis();
         info("done reading expected JSONs");
 
-        List<String> buildCommands = Lists.newArrayList();
-        List<String> libraryNames = Lists.newArrayList();
-        List<File> outputFolders = Lists.newArrayList();
+        List<List<BuildStep>> buildStepsPerConfig = Lists.newArrayList();
+        Set<String> libraryNames = Sets.newHashSet();
         if (targets.isEmpty()) {
             info("executing build commands for targets that produce .so files or executables");
         } else {
@@ -135,6 +148,8 @@ public class ExternalNativeBuildTask extends AndroidBuilderTask {
 
         for (int miniConfigIndex = 0; miniConfigIndex < miniConfigs.size(); ++miniConfigIndex) {
             NativeBuildConfigValueMini config = miniConfigs.get(miniConfigIndex);
+            List<BuildStep> buildSteps = Lists.newArrayList();
+            buildStepsPerConfig.add(buildSteps);
             info("evaluate miniconfig");
             if (config.libraries.isEmpty()) {
                 info("no libraries");
@@ -188,15 +203,22 @@ public class ExternalNativeBuildTask extends AndroidBuilderTask {
                     }
                 }
 
-                buildCommands.add(libraryValue.buildCommand);
-                libraryNames.add(libraryValue.artifactName + " " + libraryValue.abi);
-                outputFolders.add(
-                        nativeBuildConfigurationsJsons.get(miniConfigIndex).getParentFile());
+                String displayName = libraryValue.artifactName + " " + libraryValue.abi;
+                buildSteps.add(
+                        new BuildStep(
+                                libraryName,
+                                displayName,
+                                libraryValue.buildCommand,
+                                nativeBuildConfigurationsJsons
+                                        .get(miniConfigIndex)
+                                        .getParentFile(),
+                                libraryValue.dependencies));
+                libraryNames.add(displayName);
                 info("about to build %s", libraryValue.buildCommand);
             }
         }
 
-        executeProcessBatch(libraryNames, buildCommands, outputFolders);
+        executeBuildSteps(buildStepsPerConfig);
 
         info("check expected build outputs");
         for (NativeBuildConfigValueMini config : miniConfigs) {
@@ -296,32 +318,118 @@ public class ExternalNativeBuildTask extends AndroidBuilderTask {
     }
 
     /**
-     * Given a list of build commands, execute each. If there is a failure, processing is stopped at
-     * that point.
+     * Executes the build steps of each native build configuration. The build steps of a
+     * configuration share the same build folder, so they are run one after another with the
+     * dependencies of each library built first. The build steps of different configurations (i.e.
+     * of different ABIs) are run concurrently, up to {@link #maxParallelJobs} at a time. If there
+     * is a failure, no further build steps are started.
+     */
+    private void executeBuildSteps(@NonNull List<List<BuildStep>> buildStepsPerConfig)
+            throws BuildCommandException, IOException {
+        List<List<BuildStep>> orderedBuildSteps =
+                buildStepsPerConfig
+                        .stream()
+                        .filter(buildSteps -> !buildSteps.isEmpty())
+                        .map(ExternalNativeBuildTask::getBuildOrder)
+                        .collect(Collectors.toList());
+        Map<String, Long> durations = new ConcurrentHashMap<>();
+        int jobs = Math.min(maxParallelJobs, orderedBuildSteps.size());
+        if (jobs <= 1) {
+            for (List<BuildStep> buildSteps : orderedBuildSteps) {
+                executeProcessBatch(buildSteps, durations);
+            }
+        } else {
+            info("building %s native build configurations with %s jobs",
+                    orderedBuildSteps.size(), jobs);
+            ExecutorService executor = Executors.newFixedThreadPool(jobs);
+            List<Future<Void>> futures = Lists.newArrayListWithCapacity(orderedBuildSteps.size());
+            try {
+                CompletionService<Void> completionService =
+                        new ExecutorCompletionService<>(executor);
+                for (List<BuildStep> buildSteps : orderedBuildSteps) {
+                    futures.add(
+                            completionService.submit(
+                                    () -> {
+                                        // The logging environment is held in thread-local storage.
+                                        try (GradleBuildLoggingEnvironment ignore =
+                                                new GradleBuildLoggingEnvironment(
+                                                        getLogger(), getVariantName())) {
+                                            executeProcessBatch(buildSteps, durations);
+                                        }
+                                        return null;
+                                    }));
+                }
+                for (int i = 0; i < orderedBuildSteps.size(); i++) {
+                    completionService.take().get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GradleException("Interrupted while building native targets", e);
+            } catch (ExecutionException e) {
+                Throwables.propagateIfPossible(
+                        e.getCause(), BuildCommandException.class, IOException.class);
+                throw new RuntimeException(e.getCause());
+            } finally {
+                // Don't start the remaining builds after a failure, but wait for the running ones
+                // so that no build process is still writing to the output folders when the task
+                // completes.
+                for (Future<Void> future : futures) {
+                    future.cancel(false);
+                }
+                executor.shutdown();
+                awaitTermination(executor);
+            }
+        }
+
+        durations
+                .entrySet()
+                .stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .forEach(entry -> info("build of %s took %s ms", entry.getKey(), entry.getValue()));
+    }
+
+    /**
+     * Waits for the tasks of the given executor, which must have been shut down, to complete. If
+     * the current thread is interrupted, the tasks are interrupted too, the wait goes on, and the
+     * interrupted status of the thread is restored before returning.
+     */
+    private static void awaitTermination(@NonNull ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+                executor.shutdownNow();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Given a list of build steps, execute each. If there is a failure, processing is stopped at
+     * that point. The duration of each build step is recorded in the given map.
      */
     private void executeProcessBatch(
-            @NonNull List<String> libraryNames,
-            @NonNull List<String> commands,
-            @NonNull List<File> output)
+            @NonNull List<BuildStep> buildSteps, @NonNull Map<String, Long> durations)
             throws BuildCommandException, IOException {
-        // Order of building doesn't matter to final result but building in reverse order causes
-        // the dependencies to be built first for CMake and ndk-build. This gives better progress
-        // visibility to the user because they will see "building XXXXX.a" before
-        // "building XXXXX.so". Nicer still would be to have the dependency information in the JSON
-        // so we can build in toposort order.
-        for (int library = libraryNames.size() - 1; library >= 0; --library) {
-            String libraryName = libraryNames.get(library);
+        for (BuildStep buildStep : buildSteps) {
+            String libraryName = buildStep.displayName;
             getLogger().lifecycle(String.format("Build %s", libraryName));
-            String command = commands.get(library);
-            List<String> tokens = StringHelper.tokenizeCommandLineToEscaped(command);
+            List<String> tokens = StringHelper.tokenizeCommandLineToEscaped(buildStep.command);
             ProcessInfoBuilder processBuilder = new ProcessInfoBuilder();
             processBuilder.setExecutable(tokens.get(0));
             for (int i = 1; i < tokens.size(); ++i) {
                 processBuilder.addArgs(tokens.get(i));
             }
             info("%s", processBuilder);
+            long startTime = System.currentTimeMillis();
             createProcessOutputJunction(
-                            output.get(library),
+                            buildStep.outputFolder,
                             "android_gradle_build_" + libraryName.replace(" ", "_"),
                             processBuilder,
                             getBuilder(),
@@ -329,6 +437,73 @@ public class ExternalNativeBuildTask extends AndroidBuilderTask {
                     .logStderrToInfo()
                     .logStdoutToInfo()
                     .execute();
+            durations.put(libraryName, System.currentTimeMillis() - startTime);
+        }
+    }
+
+    /**
+     * Returns the given build steps ordered so that the libraries each library depends on are
+     * built before it. Building the dependencies first also gives better progress visibility to
+     * the user, who will see "building XXXXX.a" before "building XXXXX.so". Build steps that don't
+     * depend on each other are kept in reverse order, which builds the dependencies first for
+     * CMake and ndk-build when the JSON has no dependency information.
+     */
+    @VisibleForTesting
+    @NonNull
+    static List<BuildStep> getBuildOrder(@NonNull List<BuildStep> buildSteps) {
+        Map<String, BuildStep> buildStepsByLibrary = Maps.newHashMap();
+        for (BuildStep buildStep : buildSteps) {
+            buildStepsByLibrary.put(buildStep.libraryName, buildStep);
+        }
+        Set<String> visited = Sets.newHashSet();
+        List<BuildStep> ordered = Lists.newArrayListWithCapacity(buildSteps.size());
+        for (BuildStep buildStep : Lists.reverse(buildSteps)) {
+            addInBuildOrder(buildStep, buildStepsByLibrary, visited, ordered);
+        }
+        return ordered;
+    }
+
+    private static void addInBuildOrder(
+            @NonNull BuildStep buildStep,
+            @NonNull Map<String, BuildStep> buildStepsByLibrary,
+            @NonNull Set<String> visited,
+            @NonNull List<BuildStep> ordered) {
+        // Marking the library as visited before its dependencies breaks dependency cycles.
+        if (!visited.add(buildStep.libraryName)) {
+            return;
+        }
+        for (String dependency : buildStep.dependencies) {
+            // Dependencies that are not built explicitly are built by the dependent's command.
+            BuildStep dependencyStep = buildStepsByLibrary.get(dependency);
+            if (dependencyStep != null) {
+                addInBuildOrder(dependencyStep, buildStepsByLibrary, visited, ordered);
+            }
+        }
+        ordered.add(buildStep);
+    }
+
+    /** The build command of a single library of a native build configuration. */
+    @VisibleForTesting
+    static final class BuildStep {
+        /** The name of the library, as a key of {@link NativeBuildConfigValueMini#libraries}. */
+        @NonNull final String libraryName;
+        /** The name shown to the user, made of the artifact name and ABI of the library. */
+        @NonNull final String displayName;
+        @NonNull final String command;
+        @NonNull final File outputFolder;
+        @NonNull final List<String> dependencies;
+
+        BuildStep(
+                @NonNull String libraryName,
+                @NonNull String displayName,
+                @NonNull String command,
+                @NonNull File outputFolder,
+                @NonNull List<String> dependencies) {
+            this.libraryName = libraryName;
+            this.displayName = displayName;
+            this.command = command;
+            this.outputFolder = outputFolder;
+            this.dependencies = dependencies;
         }
     }
 
@@ -440,6 +615,14 @@ public class ExternalNativeBuildTask extends AndroidBuilderTask {
             task.setSoFolder(generator.getSoFolder());
             task.setObjFolder(generator.getObjFolder());
             task.stats = generator.stats;
+            Integer maxParallelJobs =
+                    scope.getGlobalScope()
+                            .getProjectOptions()
+                            .get(IntegerOption.NATIVE_BUILD_MAX_PARALLEL_JOBS);
+            task.maxParallelJobs =
+                    maxParallelJobs != null
+                            ? maxParallelJobs
+                            : Runtime.getRuntime().availableProcessors();
             if (Strings.isNullOrEmpty(buildTargetAbi)) {
                 task.setNativeBuildConfigurationsJsons(
                         generator.getNativeBuildConfigurationsJsons());
@@ -76,12 +76,12 @@ public class ExternalNativeBuildTaskUtils {
     }
 
     /**
-     * The json mini-config file contains a subset of the regular json file that is much smaller and
-     * less memory-intensive to read.
+     * The mini-config file contains a subset of the regular json file, in a binary format that is
+     * much smaller and faster to read.
      */
     @NonNull
-    public static File getJsonMiniConfigFile(@NonNull File originalJson) {
-        return new File(originalJson.getParent(), "android_gradle_build_mini.json");
+    public static File getMiniConfigFile(@NonNull File originalJson) {
+        return new File(originalJson.getParent(), "android_gradle_build_mini.bin");
     }
 
     /**
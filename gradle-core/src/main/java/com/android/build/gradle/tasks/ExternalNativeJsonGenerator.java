@@ -66,6 +66,7 @@ import com.android.utils.FileUtils;
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Striped;
 import com.google.gson.Gson;
 import com.google.gson.stream.JsonReader;
 import com.google.wireless.android.sdk.stats.GradleBuildVariant;
@@ -84,6 +85,7 @@ import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.locks.Lock;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 import org.gradle.api.GradleException;
@@ -97,6 +99,12 @@ import org.gradle.api.tasks.OutputFiles;
  * Base class for generation of native JSON.
  */
 public abstract class ExternalNativeJsonGenerator {
+    /**
+     * Locks held while probing compiler settings, by compiler settings key, shared by all the
+     * generators of the daemon as the same settings are probed for each variant.
+     */
+    private static final Striped<Lock> compilerSettingsLocks = Striped.lazyWeakLock(64);
+
     @NonNull final JsonGenerationVariantConfiguration config;
     @NonNull final Set<String> configurationFailures;
     @NonNull protected final AndroidBuilder androidBuilder;
@@ -312,16 +320,38 @@ public abstract class ExternalNativeJsonGenerator {
                     info("created folder '%s'", configuration.getExternalNativeBuildFolder());
                 }
 
-                info("executing %s %s", getNativeBuildSystem().getName(), processBuilder);
-                String buildOutput = executeProcess(configuration);
-                info("done executing %s", getNativeBuildSystem().getName());
-
-                // Write the captured process output to a file for diagnostic purposes.
-                info("write build output %s", configuration.getBuildOutputFile().getAbsolutePath());
-                Files.write(
-                        configuration.getBuildOutputFile().toPath(),
-                        buildOutput.getBytes(Charsets.UTF_8));
-                processBuildOutput(buildOutput, configuration);
+                // If another configuration is already probing the same compiler settings, wait
+                // for it to cache them rather than probing them again.
+                String compilerSettingsKey = getUncachedCompilerSettingsKey(configuration);
+                Lock compilerSettingsLock =
+                        compilerSettingsKey == null
+                                ? null
+                                : compilerSettingsLocks.get(compilerSettingsKey);
+                if (compilerSettingsLock != null) {
+                    compilerSettingsLock.lock();
+                }
+                try {
+                    info("executing %s %s", getNativeBuildSystem().getName(), processBuilder);
+                    long executionStartTime = System.currentTimeMillis();
+                    String buildOutput = executeProcess(configuration);
+                    info(
+                            "done executing %s in %d ms",
+                            getNativeBuildSystem().getName(),
+                            System.currentTimeMillis() - executionStartTime);
+
+                    // Write the captured process output to a file for diagnostic purposes.
+                    info(
+                            "write build output %s",
+                            configuration.getBuildOutputFile().getAbsolutePath());
+                    Files.write(
+                            configuration.getBuildOutputFile().toPath(),
+                            buildOutput.getBytes(Charsets.UTF_8));
+                    processBuildOutput(buildOutput, configuration);
+                } finally {
+                    if (compilerSettingsLock != null) {
+                        compilerSettingsLock.unlock();
+                    }
+                }
 
                 if (!configuration.getJsonFile().exists()) {
                     throw new GradleException(
@@ -430,6 +460,17 @@ public abstract class ExternalNativeJsonGenerator {
     abstract ProcessInfoBuilder getProcessBuilder(
             @NonNull JsonGenerationAbiConfiguration abiConfig);
 
+    /**
+     * Returns a key identifying the compiler settings that executing the process for the given
+     * configuration will probe and cache, or null if they are already cached or not cached at all.
+     * Configurations with equal keys are executed one at a time, so that only the first one probes
+     * the compiler and the others use its cached settings.
+     */
+    @Nullable
+    String getUncachedCompilerSettingsKey(@NonNull JsonGenerationAbiConfiguration abiConfig) {
+        return null;
+    }
+
     /**
      * Executes the JSON generation process. Return the combination of STDIO and STDERR from running
      * the process.
@@ -843,7 +843,7 @@ public abstract class PackageAndroidArtifact extends IncrementalTask {
                 .forEach(
                         (File f) -> {
                             try {
-                                cacheByPath.add(f);
+                                cacheByPath.addZip(f);
                             } catch (IOException e) {
                                 throw new IOExceptionWrapper(e);
                             }
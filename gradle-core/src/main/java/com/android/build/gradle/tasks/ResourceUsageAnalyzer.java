@@ -49,12 +49,12 @@ import com.android.utils.Pair;
 import com.android.utils.XmlUtils;
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
-import com.google.common.io.Closeables;
 import com.google.common.io.Files;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -62,24 +62,30 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 import java.util.jar.JarOutputStream;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 import javax.xml.parsers.ParserConfigurationException;
 import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.ClassReader;
@@ -294,18 +300,38 @@ public class ResourceUsageAnalyzer {
     }
 
     public void analyze() throws IOException, ParserConfigurationException, SAXException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
         gatherResourceValues(mResourceClassDir);
         recordMapping(mProguardMapping);
+        reportPhaseTime("Resource class and mapping pass", stopwatch);
+
+        recordClassUsages(mClasses);
+        reportPhaseTime("Class usages pass", stopwatch);
 
-        for (File jarOrDir : mClasses) {
-            recordClassUsages(jarOrDir);
-        }
         recordManifestUsages(mMergedManifest);
+        reportPhaseTime("Manifest pass", stopwatch);
+
         recordResources(mResourceDirs);
+        reportPhaseTime("Resources pass", stopwatch);
+
         keepPossiblyReferencedResources();
         dumpReferences();
         mModel.processToolsAttributes();
         mUnused = mModel.findUnused();
+        reportPhaseTime("Reachability pass", stopwatch);
+    }
+
+    /** In verbose mode, reports the time spent in an analysis phase and restarts the stopwatch. */
+    private void reportPhaseTime(@NonNull String phase, @NonNull Stopwatch stopwatch) {
+        if (isVerbose()) {
+            String message =
+                    phase + " took " + stopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms";
+            System.out.println(message);
+            if (mDebugPrinter != null) {
+                mDebugPrinter.println(message);
+            }
+        }
+        stopwatch.reset().start();
     }
 
     public boolean isDryRun() {
@@ -936,14 +962,19 @@ public class ResourceUsageAnalyzer {
 
         int shortest = Integer.MAX_VALUE;
         Set<String> names = Sets.newHashSetWithExpectedSize(50);
-        for (Resource resource : mModel.getResources()) {
+        List<Resource> resources = mModel.getResources();
+        List<String> resourceNames = new ArrayList<>(resources.size());
+        for (Resource resource : resources) {
             String name = resource.name;
             names.add(name);
+            resourceNames.add(name);
             int length = name.length();
             if (length < shortest) {
                 shortest = length;
             }
         }
+        // Used instead of testing every string against every resource name
+        ResourceNameIndex nameIndex = new ResourceNameIndex(resourceNames);
 
         for (String string : mStrings) {
             if (string.length() < shortest) {
@@ -1019,14 +1050,13 @@ public class ResourceUsageAnalyzer {
 
                 // Check for a simple prefix match, e.g. as in
                 // getResources().getIdentifier("ic_video_codec_" + codecName, "drawable", ...)
-                for (Resource resource : mModel.getResources()) {
-                    if (resource.name.startsWith(name)) {
-                        if (mDebugPrinter != null) {
-                            mDebugPrinter.println("Marking " + resource + " used because its "
-                                    + "prefix matches string pool constant " + string);
-                        }
-                        ResourceUsageModel.markReachable(resource);
+                for (int index : nameIndex.findWithPrefix(name)) {
+                    Resource resource = resources.get(index);
+                    if (mDebugPrinter != null) {
+                        mDebugPrinter.println("Marking " + resource + " used because its "
+                                + "prefix matches string pool constant " + string);
                     }
+                    ResourceUsageModel.markReachable(resource);
                 }
             } else if (!haveSlash) {
                 if (formatting) {
@@ -1035,8 +1065,16 @@ public class ResourceUsageAnalyzer {
                     //   int res = getContext().getResources().getIdentifier(name, "drawable", ...)
 
                     try {
-                        Pattern pattern = Pattern.compile(convertFormatStringToRegexp(string));
-                        for (Resource resource : mModel.getResources()) {
+                        String regexp = convertFormatStringToRegexp(string);
+                        if (regexp.equals(NO_MATCH)) {
+                            continue;
+                        }
+                        Pattern pattern = Pattern.compile(regexp);
+                        // Everything before the first % is matched literally, so only the
+                        // resources starting with it can match
+                        String prefix = string.substring(0, string.indexOf('%'));
+                        for (int index : nameIndex.findWithPrefix(prefix)) {
+                            Resource resource = resources.get(index);
                             if (pattern.matcher(resource.name).matches()) {
                                 if (mDebugPrinter != null) {
                                     mDebugPrinter.println("Marking " + resource + " used because "
@@ -1109,6 +1147,60 @@ public class ResourceUsageAnalyzer {
         }
     }
 
+    /**
+     * Index of resource names sorted alphabetically, used to find the resources whose name starts
+     * with a given prefix without testing every resource.
+     */
+    @VisibleForTesting
+    static final class ResourceNameIndex {
+        /** The resource names, sorted alphabetically. */
+        @NonNull private final String[] sortedNames;
+        /** For each of {@link #sortedNames}, its index in the list given to the constructor. */
+        @NonNull private final int[] originalIndices;
+
+        ResourceNameIndex(@NonNull List<String> names) {
+            Integer[] order = new Integer[names.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparing(names::get));
+
+            sortedNames = new String[order.length];
+            originalIndices = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                sortedNames[i] = names.get(order[i]);
+                originalIndices[i] = order[i];
+            }
+        }
+
+        /**
+         * Returns the indices, in the list given to the constructor, of the names starting with
+         * the given prefix, in increasing order.
+         */
+        @NonNull
+        int[] findWithPrefix(@NonNull String prefix) {
+            // Names starting with the prefix form a contiguous range starting at the first name
+            // that is not smaller than the prefix
+            int from = 0;
+            int high = sortedNames.length;
+            while (from < high) {
+                int middle = (from + high) >>> 1;
+                if (sortedNames[middle].compareTo(prefix) < 0) {
+                    from = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            int to = from;
+            while (to < sortedNames.length && sortedNames[to].startsWith(prefix)) {
+                to++;
+            }
+            int[] indices = Arrays.copyOfRange(originalIndices, from, to);
+            Arrays.sort(indices);
+            return indices;
+        }
+    }
+
     // Copied from StringFormatDetector
     // See java.util.Formatter docs
     public static final Pattern FORMAT = Pattern.compile(
@@ -1397,11 +1489,26 @@ public class ResourceUsageAnalyzer {
     private boolean mFoundWebContent;
 
     private void referencedString(@NonNull String string) {
+        if (!isPossibleResourceReference(string)) {
+            return;
+        }
+
+        if (mStrings == null) {
+            mStrings = Sets.newHashSetWithExpectedSize(300);
+        }
+        mStrings.add(string);
+
+        if (!mFoundWebContent && string.contains(ANDROID_RES)) {
+            mFoundWebContent = true;
+        }
+    }
+
+    private static boolean isPossibleResourceReference(@NonNull String string) {
         // See if the string is at all eligible; ignore strings that aren't
         // identifiers (has java identifier chars and nothing but .:/), or are empty or too long
         // We also allow "%", used for formatting strings.
         if (string.isEmpty() || string.length() > 80) {
-            return;
+            return false;
         }
         boolean haveIdentifierChar = false;
         for (int i = 0, n = string.length(); i < n; i++) {
@@ -1410,77 +1517,119 @@ public class ResourceUsageAnalyzer {
             if (!identifierChar && c != '.' && c != ':' && c != '/' && c != '%') {
                 // .:/ are for the fully qualified resource names, or for resource URLs or
                 // relative file names
-                return;
+                return false;
             } else if (identifierChar) {
                 haveIdentifierChar = true;
             }
         }
-        if (!haveIdentifierChar) {
-            return;
+        return haveIdentifierChar;
+    }
+
+    /**
+     * Records the resource references made by the given class and dex files, jars and directories.
+     *
+     * <p>Files are scanned concurrently, and so are the entries of each jar. Each class or dex file
+     * records its references into its own {@link ClassUsages}, which are then applied to the model
+     * on the calling thread in the order of the inputs, so the result (including the debug report)
+     * is the same as if the files had been scanned sequentially.
+     */
+    private void recordClassUsages(@NonNull Iterable<File> files) throws IOException {
+        List<File> inputs = new ArrayList<>();
+        for (File file : files) {
+            collectClassInputs(file, inputs);
         }
 
-        if (mStrings == null) {
-            mStrings = Sets.newHashSetWithExpectedSize(300);
+        List<List<ClassUsages>> usages;
+        try {
+            usages =
+                    inputs.parallelStream()
+                            .map(
+                                    input -> {
+                                        try {
+                                            return recordClassUsages(input);
+                                        } catch (IOException e) {
+                                            throw new UncheckedIOException(e);
+                                        }
+                                    })
+                            .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        mStrings.add(string);
 
-        if (!mFoundWebContent && string.contains(ANDROID_RES)) {
-            mFoundWebContent = true;
+        for (List<ClassUsages> usagesInInput : usages) {
+            for (ClassUsages classUsages : usagesInInput) {
+                classUsages.apply();
+            }
         }
     }
 
-    private void recordClassUsages(File file) throws IOException {
+    /** Adds the class, dex and jar files found under the given file, in directory order. */
+    private static void collectClassInputs(@NonNull File file, @NonNull List<File> inputs) {
         if (file.isDirectory()) {
             File[] children = file.listFiles();
             if (children != null) {
                 for (File child : children) {
-                    recordClassUsages(child);
+                    collectClassInputs(child, inputs);
                 }
             }
         } else if (file.isFile()) {
-            if (file.getPath().endsWith(DOT_CLASS) || file.getPath().endsWith(DOT_DEX)) {
-                byte[] bytes = Files.toByteArray(file);
-                recordClassUsages(file, file.getName(), bytes);
-            } else if (file.getPath().endsWith(DOT_JAR)) {
-                ZipInputStream zis = null;
-                try {
-                    FileInputStream fis = new FileInputStream(file);
-                    try {
-                        zis = new ZipInputStream(fis);
-                        ZipEntry entry = zis.getNextEntry();
-                        while (entry != null) {
-                            String name = entry.getName();
-                            if ((name.endsWith(DOT_CLASS)
-                                            &&
-                                            // Skip resource type classes like R$drawable; they will
-                                            // reference the integer id's we're looking for, but
-                                            // these aren't actual usages we need to track;
-                                            // if somebody references the field elsewhere, we'll
-                                            // catch that
-                                            !isResourceClass(name))
-                                    || name.endsWith(DOT_DEX)) {
-                                byte[] bytes = ByteStreams.toByteArray(zis);
-                                if (bytes != null) {
-                                    recordClassUsages(file, name, bytes);
-                                }
-                            }
+            String path = file.getPath();
+            if (path.endsWith(DOT_CLASS) || path.endsWith(DOT_DEX) || path.endsWith(DOT_JAR)) {
+                inputs.add(file);
+            }
+        }
+    }
 
-                            entry = zis.getNextEntry();
-                        }
-                    } finally {
-                        Closeables.close(fis, true);
-                    }
-                } finally {
-                    Closeables.close(zis, true);
+    @NonNull
+    private List<ClassUsages> recordClassUsages(@NonNull File file) throws IOException {
+        if (!file.getPath().endsWith(DOT_JAR)) {
+            byte[] bytes = Files.toByteArray(file);
+            return Collections.singletonList(recordClassUsages(file, file.getName(), bytes));
+        }
+
+        try (ZipFile zipFile = new ZipFile(file)) {
+            List<ZipEntry> entries = new ArrayList<>();
+            Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry entry = zipEntries.nextElement();
+                String name = entry.getName();
+                if ((name.endsWith(DOT_CLASS)
+                                &&
+                                // Skip resource type classes like R$drawable; they will
+                                // reference the integer id's we're looking for, but
+                                // these aren't actual usages we need to track;
+                                // if somebody references the field elsewhere, we'll
+                                // catch that
+                                !isResourceClass(name))
+                        || name.endsWith(DOT_DEX)) {
+                    entries.add(entry);
                 }
             }
+
+            try {
+                return entries.parallelStream()
+                        .map(
+                                entry -> {
+                                    try (InputStream is = zipFile.getInputStream(entry)) {
+                                        return recordClassUsages(
+                                                file, entry.getName(), ByteStreams.toByteArray(is));
+                                    } catch (IOException e) {
+                                        throw new UncheckedIOException(e);
+                                    }
+                                })
+                        .collect(Collectors.toList());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
         }
     }
 
-    private void recordClassUsages(File file, String name, byte[] bytes) {
+    @NonNull
+    private ClassUsages recordClassUsages(File file, String name, byte[] bytes) {
+        ClassUsages usages = new ClassUsages();
         if (name.endsWith(DOT_CLASS)) {
             ClassReader classReader = new ClassReader(bytes);
-            classReader.accept(new UsageVisitor(file, name), SKIP_DEBUG | SKIP_FRAMES);
+            classReader.accept(new UsageVisitor(file, name, usages), SKIP_DEBUG | SKIP_FRAMES);
         } else {
             assert name.endsWith(DOT_DEX);
             AnalysisCallback callback =
@@ -1492,21 +1641,18 @@ public class ResourceUsageAnalyzer {
 
                         @Override
                         public void referencedInt(int value) {
-                            ResourceUsageAnalyzer.this.referencedInt("dex", value, file, name);
+                            usages.referencedInt("dex", value, file, name);
                         }
 
                         @Override
                         public void referencedString(@NonNull String value) {
-                            ResourceUsageAnalyzer.this.referencedString(value);
+                            usages.referencedString(value);
                         }
 
                         @Override
                         public void referencedStaticField(
                                 @NonNull String internalName, @NonNull String fieldName) {
-                            Resource resource = getResourceFromCode(internalName, fieldName);
-                            if (resource != null) {
-                                ResourceUsageModel.markReachable(resource);
-                            }
+                            usages.referencedStaticField(internalName, fieldName);
                         }
 
                         @Override
@@ -1514,7 +1660,7 @@ public class ResourceUsageAnalyzer {
                                 @NonNull String internalName,
                                 @NonNull String methodName,
                                 @NonNull String methodDescriptor) {
-                            ResourceUsageAnalyzer.this.referencedMethodInvocation(
+                            usages.referencedMethodInvocation(
                                     internalName,
                                     methodName,
                                     methodDescriptor,
@@ -1523,6 +1669,7 @@ public class ResourceUsageAnalyzer {
                     };
             R8ResourceShrinker.runResourceShrinkerAnalysis(bytes, file, callback);
         }
+        return usages;
     }
 
     /** Returns whether the given class file name points to an aapt-generated compiled R class */
@@ -1709,11 +1856,13 @@ public class ResourceUsageAnalyzer {
     private class UsageVisitor extends ClassVisitor {
         private final File mJarFile;
         private final String mCurrentClass;
+        private final ClassUsages mUsages;
 
-        public UsageVisitor(File jarFile, String name) {
+        public UsageVisitor(File jarFile, String name, ClassUsages usages) {
             super(Opcodes.ASM5);
             mJarFile = jarFile;
             mCurrentClass = name;
+            mUsages = usages;
         }
 
         @Override
@@ -1728,10 +1877,7 @@ public class ResourceUsageAnalyzer {
                 @Override
                 public void visitFieldInsn(int opcode, String owner, String name, String desc) {
                     if (opcode == Opcodes.GETSTATIC) {
-                        Resource resource = getResourceFromCode(owner, name);
-                        if (resource != null) {
-                            ResourceUsageModel.markReachable(resource);
-                        }
+                        mUsages.referencedStaticField(owner, name);
                     }
                 }
 
@@ -1739,7 +1885,7 @@ public class ResourceUsageAnalyzer {
                 public void visitMethodInsn(
                         int opcode, String owner, String name, String desc, boolean itf) {
                     super.visitMethodInsn(opcode, owner, name, desc, itf);
-                    referencedMethodInvocation(owner, name, desc, mCurrentClass);
+                    mUsages.referencedMethodInvocation(owner, name, desc, mCurrentClass);
                 }
 
                 @Override
@@ -1803,58 +1949,113 @@ public class ResourceUsageAnalyzer {
         private void handleCodeConstant(@Nullable Object cst, @NonNull String context) {
             if (cst instanceof Integer) {
                 Integer value = (Integer) cst;
-                referencedInt(context, value, mJarFile, mCurrentClass);
+                mUsages.referencedInt(context, value, mJarFile, mCurrentClass);
             } else if (cst instanceof int[]) {
                 int[] values = (int[]) cst;
                 for (int value : values) {
-                    referencedInt(context, value, mJarFile, mCurrentClass);
+                    mUsages.referencedInt(context, value, mJarFile, mCurrentClass);
                 }
             } else if (cst instanceof String) {
                 String string = (String) cst;
-                referencedString(string);
+                mUsages.referencedString(string);
             }
         }
     }
 
-    private void referencedInt(@NonNull String context, int value, File file, String currentClass) {
-        Resource resource = mModel.getResource(value);
-        if (ResourceUsageModel.markReachable(resource) && mDebug) {
-            assert mDebugPrinter != null : "mDebug is true, but mDebugPrinter is null.";
-            mDebugPrinter.println(
-                    "Marking "
-                            + resource
-                            + " reachable: referenced from "
-                            + context
-                            + " in "
-                            + file
-                            + ":"
-                            + currentClass);
+    /**
+     * The resource references made by a single class or dex file. They are recorded while the file
+     * is scanned, possibly concurrently with other files, without modifying the model, and are
+     * applied to the model later by {@link #apply()}.
+     */
+    private final class ClassUsages {
+        /** The resources referenced by the file, in the order in which they were found. */
+        private final List<Resource> mReferencedResources = new ArrayList<>();
+        /**
+         * For each of {@link #mReferencedResources}, the description of the reference printed in
+         * debug mode, or null if the reference is not reported.
+         */
+        private final List<String> mReferenceDescriptions = new ArrayList<>();
+        /** The string constants of the file that might be resource references. */
+        private final List<String> mCandidateStrings = new ArrayList<>();
+        private boolean mFoundGetIdentifier;
+        private boolean mFoundWebContent;
+
+        private void referencedInt(
+                @NonNull String context, int value, File file, String currentClass) {
+            Resource resource = mModel.getResource(value);
+            if (resource != null) {
+                mReferencedResources.add(resource);
+                mReferenceDescriptions.add(
+                        mDebug
+                                ? " reachable: referenced from "
+                                        + context
+                                        + " in "
+                                        + file
+                                        + ":"
+                                        + currentClass
+                                : null);
+            }
         }
-    }
 
-    private void referencedMethodInvocation(
-            @NonNull String owner,
-            @NonNull String name,
-            @NonNull String desc,
-            @NonNull String currentClass) {
-        if (owner.equals("android/content/res/Resources")
-                && name.equals("getIdentifier")
-                && desc.equals("(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)I")) {
-
-            if (currentClass.equals(mResourcesWrapper)
-                    || currentClass.equals(mSuggestionsAdapter)) {
-                // "benign" usages: don't trigger reflection mode just because
-                // the user has included appcompat
-                return;
+        private void referencedStaticField(@NonNull String owner, @NonNull String name) {
+            Resource resource = getResourceFromCode(owner, name);
+            if (resource != null) {
+                mReferencedResources.add(resource);
+                mReferenceDescriptions.add(null);
             }
+        }
 
-            mFoundGetIdentifier = true;
-            // TODO: Check previous instruction and see if we can find a literal
-            // String; if so, we can more accurately dispatch the resource here
-            // rather than having to check the whole string pool!
+        private void referencedString(@NonNull String string) {
+            if (isPossibleResourceReference(string)) {
+                mCandidateStrings.add(string);
+            }
         }
-        if (owner.equals("android/webkit/WebView") && name.startsWith("load")) {
-            mFoundWebContent = true;
+
+        private void referencedMethodInvocation(
+                @NonNull String owner,
+                @NonNull String name,
+                @NonNull String desc,
+                @NonNull String currentClass) {
+            if (owner.equals("android/content/res/Resources")
+                    && name.equals("getIdentifier")
+                    && desc.equals("(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)I")) {
+
+                if (currentClass.equals(mResourcesWrapper)
+                        || currentClass.equals(mSuggestionsAdapter)) {
+                    // "benign" usages: don't trigger reflection mode just because
+                    // the user has included appcompat
+                    return;
+                }
+
+                mFoundGetIdentifier = true;
+                // TODO: Check previous instruction and see if we can find a literal
+                // String; if so, we can more accurately dispatch the resource here
+                // rather than having to check the whole string pool!
+            }
+            if (owner.equals("android/webkit/WebView") && name.startsWith("load")) {
+                mFoundWebContent = true;
+            }
+        }
+
+        /** Records the references made by the file into the model. */
+        private void apply() {
+            for (int i = 0; i < mReferencedResources.size(); i++) {
+                Resource resource = mReferencedResources.get(i);
+                String description = mReferenceDescriptions.get(i);
+                if (ResourceUsageModel.markReachable(resource) && mDebug && description != null) {
+                    assert mDebugPrinter != null : "mDebug is true, but mDebugPrinter is null.";
+                    mDebugPrinter.println("Marking " + resource + description);
+                }
+            }
+            for (String string : mCandidateStrings) {
+                ResourceUsageAnalyzer.this.referencedString(string);
+            }
+            if (mFoundGetIdentifier) {
+                ResourceUsageAnalyzer.this.mFoundGetIdentifier = true;
+            }
+            if (mFoundWebContent) {
+                ResourceUsageAnalyzer.this.mFoundWebContent = true;
+            }
         }
     }
 
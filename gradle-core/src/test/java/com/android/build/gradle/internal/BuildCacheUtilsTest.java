@@ -64,6 +64,7 @@ public class BuildCacheUtilsTest {
         FileCache buildCache =
                 BuildCacheUtils.createBuildCache(
                         buildCacheDir.getPath(),
+                        null,
                         pathToFileResolver,
                         defaultBuildCacheDirSupplier,
                         fakePluginVersion);
@@ -83,11 +84,31 @@ public class BuildCacheUtilsTest {
 
         FileCache buildCache =
                 BuildCacheUtils.createBuildCache(
-                        null, pathToFileResolver, defaultBuildCacheDirSupplier, fakePluginVersion);
+                        null,
+                        null,
+                        pathToFileResolver,
+                        defaultBuildCacheDirSupplier,
+                        fakePluginVersion);
         assertThat(buildCache.getCacheDirectory())
                 .isEqualTo(new File(defaultBuildCacheDir, fakePluginVersion));
     }
 
+    @Test
+    public void testCreateBuildCache_InvalidMaxSize() throws IOException {
+        File buildCacheDir = testDir.newFolder();
+        try {
+            BuildCacheUtils.createBuildCache(
+                    buildCacheDir.getPath(),
+                    "tenGigabytes",
+                    (path) -> new File(path.toString()),
+                    () -> buildCacheDir,
+                    fakePluginVersion);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).contains("android.buildCacheMaxSize");
+        }
+    }
+
     @Test
     public void testShouldRunCacheEviction() throws Exception {
         File cacheDir = testDir.newFolder();
@@ -79,6 +79,37 @@ class CmakeCompilerSettingsCacheTest {
         cache.saveKeyValue(key2, "ABD")
     }
 
+    @Test
+    fun concurrentReadsSeeCompleteValues() {
+        val cacheFolder = cacheFolder("concurrentReadsSeeCompleteValues")
+        val cache = CmakeCompilerSettingsCache(cacheFolder)
+        val key = makeKey("abc")
+        val values = (0 until 10).map { "Value $it ".repeat(1000) }
+        val inconsistentReads = AtomicInteger()
+
+        val writers = (0 until 2).map {
+            thread {
+                repeat(50) { i -> cache.saveKeyValue(key, values[i % values.size]) }
+            }
+        }
+        val readers = (0 until 2).map {
+            thread {
+                repeat(200) {
+                    val value = cache.tryGetValue(key)
+                    if (value != null && !values.contains(value)) {
+                        inconsistentReads.incrementAndGet()
+                    }
+                }
+            }
+        }
+        (writers + readers).forEach { it.join() }
+
+        assertThat(inconsistentReads.get()).isEqualTo(0)
+        assertThat(values).contains(cache.tryGetValue(key))
+        // No temporary files are left behind.
+        assertThat(cacheFolder.walk().filter { it.name.endsWith(".tmp") }.toList()).isEmpty()
+    }
+
     private fun cacheFolder(subFolder : String): File {
         val cacheFile = File(tmpFolder.root,"my-cache/$subFolder")
         cacheFile.deleteRecursively()
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal.cxx.json;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.build.gradle.tasks.ExternalNativeBuildTaskUtils;
+import com.google.gson.GsonBuilder;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for {@link NativeBuildConfigValueMiniSerializer}. */
+public class NativeBuildConfigValueMiniSerializerTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() {
+        NativeBuildConfigValueMini config = createConfig();
+        NativeBuildConfigValueMini decoded =
+                NativeBuildConfigValueMiniSerializer.decode(
+                        NativeBuildConfigValueMiniSerializer.encode(config, 10, 20), 10, 20);
+
+        assertThat(decoded).isNotNull();
+        assertThat(toJson(decoded)).isEqualTo(toJson(config));
+        assertThat(decoded.libraries.get("empty").output).isNull();
+        assertThat(decoded.libraries.get("empty").abi).isNull();
+    }
+
+    @Test
+    public void testDifferentJsonIsNotDecoded() {
+        byte[] encoded = NativeBuildConfigValueMiniSerializer.encode(createConfig(), 10, 20);
+
+        assertThat(NativeBuildConfigValueMiniSerializer.decode(encoded, 11, 20)).isNull();
+        assertThat(NativeBuildConfigValueMiniSerializer.decode(encoded, 10, 21)).isNull();
+    }
+
+    @Test
+    public void testCorruptedBytesAreNotDecoded() {
+        byte[] encoded = NativeBuildConfigValueMiniSerializer.encode(createConfig(), 10, 20);
+
+        assertThat(NativeBuildConfigValueMiniSerializer.decode(new byte[0], 10, 20)).isNull();
+        for (int length = 1; length < encoded.length; length++) {
+            assertThat(
+                            NativeBuildConfigValueMiniSerializer.decode(
+                                    Arrays.copyOf(encoded, length), 10, 20))
+                    .isNull();
+        }
+        assertThat(
+                        NativeBuildConfigValueMiniSerializer.decode(
+                                Arrays.copyOf(encoded, encoded.length + 1), 10, 20))
+                .isNull();
+    }
+
+    @Test
+    public void testMiniConfigIsPersistedAndRefreshed() throws Exception {
+        File json = temporaryFolder.newFile("android_gradle_build.json");
+        Files.write(
+                json.toPath(),
+                "{\"buildFiles\": [\"a.mk\"], \"cleanCommands\": [\"clean\"]}"
+                        .getBytes(StandardCharsets.UTF_8));
+
+        NativeBuildConfigValueMini config =
+                AndroidBuildGradleJsons.getNativeBuildMiniConfig(json, null);
+        assertThat(config.buildFiles).containsExactly(new File("a.mk"));
+        assertThat(ExternalNativeBuildTaskUtils.getMiniConfigFile(json)).exists();
+
+        // Callers get their own copy.
+        config.cleanCommands.clear();
+        assertThat(AndroidBuildGradleJsons.getNativeBuildMiniConfig(json, null).cleanCommands)
+                .containsExactly("clean");
+
+        Files.write(
+                json.toPath(),
+                "{\"buildFiles\": [\"b.mk\"], \"cleanCommands\": [\"clean\"]}"
+                        .getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(
+                json.toPath(), FileTime.fromMillis(json.lastModified() + 2000));
+        assertThat(AndroidBuildGradleJsons.getNativeBuildMiniConfig(json, null).buildFiles)
+                .containsExactly(new File("b.mk"));
+    }
+
+    private static NativeBuildConfigValueMini createConfig() {
+        NativeBuildConfigValueMini config = new NativeBuildConfigValueMini();
+        config.buildFiles.add(new File("/project/CMakeLists.txt"));
+        config.buildFiles.add(new File("/project/\u00e9/CMakeLists.txt"));
+        config.cleanCommands.add("cmake --build /project --target clean");
+
+        NativeLibraryValueMini library = new NativeLibraryValueMini();
+        library.artifactName = "native-lib";
+        library.buildCommand = "cmake --build /project --target native-lib";
+        library.abi = "x86";
+        library.output = new File("/project/x86/libnative-lib.so");
+        library.dependencies.add("/project/x86/libother.so");
+        config.libraries.put("native-lib-Debug-x86", library);
+        config.libraries.put("empty", new NativeLibraryValueMini());
+        return config;
+    }
+
+    private static String toJson(NativeBuildConfigValueMini config) {
+        return new GsonBuilder()
+                .registerTypeAdapter(File.class, new PlainFileGsonTypeAdaptor())
+                .create()
+                .toJson(config);
+    }
+}
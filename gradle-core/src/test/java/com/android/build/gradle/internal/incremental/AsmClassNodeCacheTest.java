@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal.incremental;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.utils.ILogger;
+import com.android.utils.NullLogger;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+
+/** Tests for the {@link AsmClassNodeCache} class. */
+public class AsmClassNodeCacheTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final ILogger logger = new NullLogger();
+
+    @Test
+    public void testClassNodesAreCachedByContent() throws IOException {
+        AsmClassNodeCache cache = new AsmClassNodeCache();
+        String parentName = Type.getInternalName(Parent.class);
+
+        // A copy of the class in another directory has the same content.
+        File otherFolder = temporaryFolder.newFolder();
+        File parentFile = new File(otherFolder, parentName + ".class");
+        Files.createParentDirs(parentFile);
+        try (InputStream is =
+                getClass().getClassLoader().getResourceAsStream(parentName + ".class")) {
+            Files.write(ByteStreams.toByteArray(is), parentFile);
+        }
+
+        ClassNode parent =
+                cache.getClassNodeProvider(temporaryFolder.getRoot())
+                        .loadClassNode(parentName, logger);
+        assertThat(parent).isNotNull();
+        assertThat(parent.name).isEqualTo(parentName);
+        assertThat(cache.getClassNodeProvider(otherFolder).loadClassNode(parentName, logger))
+                .isSameAs(parent);
+        assertThat(
+                        cache.getClassNodeProvider(temporaryFolder.getRoot())
+                                .loadClassNode("com/example/Missing", logger))
+                .isNull();
+    }
+
+    @Test
+    public void testSuperClassHierarchiesAreShared() throws IOException {
+        AsmClassNodeCache cache = new AsmClassNodeCache();
+        AsmUtils.ClassNodeProvider provider = cache.getClassNodeProvider(temporaryFolder.getRoot());
+
+        AsmClassNode childA = loadClass(ChildA.class, provider, cache);
+        AsmClassNode childB = loadClass(ChildB.class, provider, cache);
+
+        assertThat(childA.getClassNode()).isNotSameAs(childB.getClassNode());
+        assertThat(childA.getParent()).isSameAs(childB.getParent());
+        assertThat(childA.getParent().getClassNode().name)
+                .isEqualTo(Type.getInternalName(Parent.class));
+        assertThat(childA.getParent().getParent().getClassNode().name)
+                .isEqualTo(Type.getInternalName(AbstractList.class));
+
+        // The instrumented classes are parsed again, as they are modified by the visitors.
+        assertThat(loadClass(ChildA.class, provider, cache).getClassNode())
+                .isNotSameAs(childA.getClassNode());
+    }
+
+    private AsmClassNode loadClass(
+            Class<?> clazz, AsmUtils.ClassNodeProvider provider, AsmClassNodeCache cache)
+            throws IOException {
+        ClassNode classNode =
+                AsmUtils.readClass(clazz.getClassLoader(), Type.getInternalName(clazz));
+        AsmClassNode asmClassNode = AsmUtils.loadClass(logger, provider, classNode, 21, cache);
+        assertThat(asmClassNode).isNotNull();
+        return asmClassNode;
+    }
+
+    private static class Parent extends AbstractList<String> {
+        @Override
+        public String get(int index) {
+            return null;
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+    }
+
+    private static class ChildA extends Parent implements Runnable {
+        @Override
+        public void run() {}
+    }
+
+    private static class ChildB extends Parent implements Comparable<ChildB> {
+        @Override
+        public int compareTo(ChildB other) {
+            return 0;
+        }
+    }
+}
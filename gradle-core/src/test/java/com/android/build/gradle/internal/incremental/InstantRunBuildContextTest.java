@@ -33,10 +33,13 @@ import com.google.common.collect.Iterables;
 import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 import java.util.stream.Collectors;
 import javax.xml.parsers.ParserConfigurationException;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -48,6 +51,8 @@ public class InstantRunBuildContextTest {
 
     private static final InstantRunBuildContext.BuildIdAllocator idAllocator = System::nanoTime;
 
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
     public void testTaskDurationRecording() {
         InstantRunBuildContext buildContext =
@@ -1181,6 +1186,118 @@ public class InstantRunBuildContextTest {
         assertThat(splitArtifact.getLocation().getName()).isEqualTo("sp'lit.apk");
     }
 
+    @Test
+    public void testLoadingFromBuildHistory() throws Exception {
+        File buildInfo = temporaryFolder.newFile("build-info.xml");
+        File history = InstantRunBuildHistory.getHistoryFile(buildInfo);
+        long maxHistorySize = 0;
+        for (int i = 0; i < 300; i++) {
+            InstantRunBuildContext context =
+                    new InstantRunBuildContext(
+                            idAllocator, true, new AndroidVersion(23, null), null, null, true);
+            if (i == 0) {
+                context.setSecretToken(12345L);
+            } else {
+                context.loadFromXmlFile(buildInfo);
+
+                // Loading from the history gives the same builds as parsing build-info.xml.
+                InstantRunBuildContext fromXml =
+                        new InstantRunBuildContext(
+                                idAllocator, true, new AndroidVersion(23, null), null, null, true);
+                fromXml.loadFromXml(Files.asCharSource(buildInfo, Charsets.UTF_8).read());
+                assertThat(describe(context.getPreviousBuilds()))
+                        .isEqualTo(describe(fromXml.getPreviousBuilds()));
+                assertThat(context.getSecretToken()).isEqualTo(12345L);
+            }
+            if (i % 50 == 0) {
+                context.setVerifierStatus(InstantRunVerifierStatus.METHOD_ADDED);
+                context.addChangedFile(FileType.SPLIT, new File("/tmp/split" + i % 3 + ".apk"));
+            } else {
+                context.addChangedFile(FileType.RELOAD_DEX, new File("/tmp/reload" + i + ".dex"));
+            }
+            context.close();
+            saveBuildInfo(context, buildInfo);
+            context.saveBuildHistory(buildInfo);
+            maxHistorySize = Math.max(maxHistorySize, history.length());
+        }
+
+        // The history is compacted as builds are purged.
+        assertThat(maxHistorySize).isLessThan(2L * InstantRunBuildHistory.COMPACTION_THRESHOLD);
+    }
+
+    @Test
+    public void testOutdatedBuildHistoryIsIgnored() throws Exception {
+        File buildInfo = temporaryFolder.newFile("build-info.xml");
+        InstantRunBuildContext context =
+                new InstantRunBuildContext(
+                        idAllocator, true, new AndroidVersion(23, null), null, null, true);
+        context.addChangedFile(FileType.MAIN, new File("/tmp/main.apk"));
+        context.close();
+        saveBuildInfo(context, buildInfo);
+        context.saveBuildHistory(buildInfo);
+
+        // build-info.xml is written without updating the history.
+        context =
+                new InstantRunBuildContext(
+                        idAllocator, true, new AndroidVersion(23, null), null, null, true);
+        context.addChangedFile(FileType.MAIN, new File("/tmp/other.apk"));
+        context.close();
+        saveBuildInfo(context, buildInfo);
+        assertThat(buildInfo.setLastModified(buildInfo.lastModified() + 10_000)).isTrue();
+
+        context =
+                new InstantRunBuildContext(
+                        idAllocator, true, new AndroidVersion(23, null), null, null, true);
+        context.loadFromXmlFile(buildInfo);
+        assertThat(context.getPreviousBuilds()).hasSize(1);
+        assertThat(context.getLastBuild().getArtifacts().get(0).getLocation().getName())
+                .isEqualTo("other.apk");
+    }
+
+    @Test
+    public void testDeletedBuildHistory() throws Exception {
+        File buildInfo = temporaryFolder.newFile("build-info.xml");
+        File history = InstantRunBuildHistory.getHistoryFile(buildInfo);
+        InstantRunBuildContext context =
+                new InstantRunBuildContext(
+                        idAllocator, true, new AndroidVersion(23, null), null, null, true);
+        context.addChangedFile(FileType.MAIN, new File("/tmp/main.apk"));
+        context.close();
+        saveBuildInfo(context, buildInfo);
+        context.saveBuildHistory(buildInfo);
+        assertThat(history.isFile()).isTrue();
+
+        context.deleteBuildHistory(buildInfo);
+        assertThat(history.exists()).isFalse();
+
+        // The builds are loaded from build-info.xml instead.
+        InstantRunBuildContext nextContext =
+                new InstantRunBuildContext(
+                        idAllocator, true, new AndroidVersion(23, null), null, null, true);
+        nextContext.loadFromXmlFile(buildInfo);
+        assertThat(nextContext.getPreviousBuilds()).hasSize(1);
+        assertThat(nextContext.getLastBuild().getArtifacts().get(0).getLocation().getName())
+                .isEqualTo("main.apk");
+
+        // The history can be saved again.
+        context.saveBuildHistory(buildInfo);
+        assertThat(history.isFile()).isTrue();
+    }
+
+    private static String describe(Collection<Build> builds) {
+        return builds.stream()
+                .map(
+                        build ->
+                                build.getBuildId()
+                                        + " "
+                                        + build.getVerifierStatus()
+                                        + " "
+                                        + build.getBuildMode()
+                                        + " "
+                                        + build.getArtifacts())
+                .collect(Collectors.joining("\n"));
+    }
+
     private static List<Element> getElementsByName(Node parent, String nodeName) {
         ImmutableList.Builder<Element> builder = ImmutableList.builder();
         NodeList childNodes = parent.getChildNodes();
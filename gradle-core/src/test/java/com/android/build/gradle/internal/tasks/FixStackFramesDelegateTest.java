@@ -235,14 +235,14 @@ public class FixStackFramesDelegateTest {
     }
 
     @Test
-    public void testClassLoaderKeySerializable() throws IOException, ClassNotFoundException {
-        FixStackFramesDelegate.ClassLoaderKey key =
-                new FixStackFramesDelegate.ClassLoaderKey("foo");
+    public void testClassHierarchyKeySerializable() throws IOException, ClassNotFoundException {
+        FixStackFramesDelegate.ClassHierarchyKey key =
+                new FixStackFramesDelegate.ClassHierarchyKey("foo");
 
         byte[] bytes = Serialization.serialize(key);
 
-        FixStackFramesDelegate.ClassLoaderKey deserializedKey =
-                (FixStackFramesDelegate.ClassLoaderKey) Serialization.deserialize(bytes);
+        FixStackFramesDelegate.ClassHierarchyKey deserializedKey =
+                (FixStackFramesDelegate.ClassHierarchyKey) Serialization.deserialize(bytes);
 
         assertThat(deserializedKey).isEqualTo(key);
     }
@@ -330,6 +330,7 @@ class DesugarTransformTest {
             processExecutor,
             true,
             false,
+            false,
             tmp.newFolder().toPath(),
             "debug",
             executor,
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal.transforms;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.android.ide.common.process.ProcessException;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for the {@link DesugarWorkerPool} class. */
+public class DesugarWorkerPoolTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final List<DesugarWorkerPool> pools = new ArrayList<>();
+
+    @After
+    public void shutdownPools() {
+        pools.forEach(DesugarWorkerPool::shutdown);
+    }
+
+    @Test
+    public void testProtocol() throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        DesugarWorkerPool.writeRequest(request, ImmutableList.of("--input", "\u00e9.jar"));
+        assertThat(FakeWorker.readRequest(new ByteArrayInputStream(request.toByteArray())))
+                .containsExactly("--input", "\u00e9.jar")
+                .inOrder();
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        FakeWorker.writeResponse(response, 2, "output");
+        DesugarWorkerPool.Response parsed =
+                DesugarWorkerPool.readResponse(new ByteArrayInputStream(response.toByteArray()));
+        assertThat(parsed.exitCode).isEqualTo(2);
+        assertThat(parsed.output).isEqualTo("output");
+    }
+
+    @Test
+    public void testWorkersAreReused() throws Exception {
+        DesugarWorkerPool pool = createPool(10);
+
+        assertThat(pool.execute(ImmutableList.of("a"))).isEqualTo("1: a");
+        assertThat(pool.getIdleWorkerCount()).isEqualTo(1);
+        assertThat(pool.execute(ImmutableList.of("b", "c"))).isEqualTo("2: b c");
+        assertThat(pool.getIdleWorkerCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testWorkersAreRecycled() throws Exception {
+        DesugarWorkerPool pool = createPool(2);
+
+        assertThat(pool.execute(ImmutableList.of("a"))).isEqualTo("1: a");
+        assertThat(pool.execute(ImmutableList.of("b"))).isEqualTo("2: b");
+        assertThat(pool.getIdleWorkerCount()).isEqualTo(0);
+        assertThat(pool.execute(ImmutableList.of("c"))).isEqualTo("1: c");
+    }
+
+    @Test
+    public void testFailedRequest() throws Exception {
+        DesugarWorkerPool pool = createPool(10);
+
+        try {
+            pool.execute(ImmutableList.of(FakeWorker.FAIL));
+            fail("Expected the request to fail");
+        } catch (ProcessException e) {
+            assertThat(e.getMessage()).contains("exit code 1");
+        }
+        // The worker is still usable.
+        assertThat(pool.execute(ImmutableList.of("a"))).isEqualTo("2: a");
+    }
+
+    @Test
+    public void testRequestIsRetriedWhenWorkerExits() throws Exception {
+        DesugarWorkerPool pool = createPool(10);
+        Path marker = temporaryFolder.getRoot().toPath().resolve("exited");
+
+        assertThat(pool.execute(ImmutableList.of(FakeWorker.EXIT_ONCE, marker.toString())))
+                .isEqualTo("1: " + FakeWorker.EXIT_ONCE + " " + marker);
+        assertThat(Files.exists(marker)).isTrue();
+    }
+
+    @Test
+    public void testEachWorkerHasItsOwnLambdaDumpDirectory() throws Exception {
+        DesugarWorkerPool pool = createPool(1);
+
+        Path firstDir = Paths.get(pool.execute(ImmutableList.of(FakeWorker.LAMBDA_DIR)));
+        Path secondDir = Paths.get(pool.execute(ImmutableList.of(FakeWorker.LAMBDA_DIR)));
+        assertThat(secondDir).isNotEqualTo(firstDir);
+        // The workers were replaced after their only request, and their directories deleted.
+        assertThat(Files.exists(firstDir)).isFalse();
+        assertThat(Files.exists(secondDir)).isFalse();
+    }
+
+    private DesugarWorkerPool createPool(int maxRequestsPerWorker) {
+        DesugarWorkerPool pool =
+                new DesugarWorkerPool(
+                        ImmutableList.of(
+                                Paths.get(System.getProperty("java.home"), "bin", "java")
+                                        .toString(),
+                                "-cp",
+                                System.getProperty("java.class.path"),
+                                FakeWorker.class.getName()),
+                        1,
+                        maxRequestsPerWorker);
+        pools.add(pool);
+        return pool;
+    }
+
+    /** Worker answering requests with their arguments, prefixed by the number of requests. */
+    public static final class FakeWorker {
+        static final String FAIL = "fail";
+        static final String EXIT_ONCE = "exit-once";
+        static final String LAMBDA_DIR = "lambda-dir";
+
+        public static void main(String[] args) throws IOException {
+            int requestCount = 0;
+            while (true) {
+                List<String> request = readRequest(System.in);
+                if (request == null) {
+                    return;
+                }
+                requestCount++;
+                if (request.get(0).equals(EXIT_ONCE)) {
+                    Path marker = Paths.get(request.get(1));
+                    if (!Files.exists(marker)) {
+                        Files.createFile(marker);
+                        System.exit(1);
+                    }
+                }
+                if (request.get(0).equals(LAMBDA_DIR)) {
+                    writeResponse(
+                            System.out,
+                            0,
+                            System.getProperty("jdk.internal.lambda.dumpProxyClasses"));
+                } else {
+                    writeResponse(
+                            System.out,
+                            request.get(0).equals(FAIL) ? 1 : 0,
+                            requestCount + ": " + String.join(" ", request));
+                }
+                System.out.flush();
+            }
+        }
+
+        static List<String> readRequest(InputStream stream) throws IOException {
+            int firstByte = stream.read();
+            if (firstByte == -1) {
+                return null;
+            }
+            byte[] message = new byte[CodedInputStream.readRawVarint32(firstByte, stream)];
+            ByteStreams.readFully(stream, message);
+
+            CodedInputStream in = CodedInputStream.newInstance(message);
+            List<String> args = new ArrayList<>();
+            while (in.readTag() != 0) {
+                args.add(in.readString());
+            }
+            return args;
+        }
+
+        static void writeResponse(OutputStream stream, int exitCode, String output)
+                throws IOException {
+            CodedOutputStream out = CodedOutputStream.newInstance(stream);
+            out.writeUInt32NoTag(
+                    CodedOutputStream.computeInt32Size(1, exitCode)
+                            + CodedOutputStream.computeStringSize(2, output));
+            out.writeInt32(1, exitCode);
+            out.writeString(2, output);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal.transforms;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.build.gradle.internal.core.Abi;
+import com.android.builder.utils.FileCache;
+import com.android.utils.ILogger;
+import com.android.utils.NullLogger;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for the library stripping of {@link StripDebugSymbolTransform}. */
+public class StripDebugSymbolTransformTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final ILogger logger = new NullLogger();
+    private final AtomicInteger stripCount = new AtomicInteger();
+
+    private File input;
+    private File exe;
+    private FileCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        input = temporaryFolder.newFile("libfoo.so");
+        Files.asCharSink(input, Charsets.UTF_8).write("unstripped");
+        exe = temporaryFolder.newFile("strip");
+        cache =
+                FileCache.getInstanceWithSingleProcessLocking(
+                        temporaryFolder.newFolder("cache"));
+    }
+
+    @Test
+    public void testStrippedLibraryIsCached() throws IOException {
+        File output = new File(temporaryFolder.newFolder(), "libfoo.so");
+        StripDebugSymbolTransform.stripOrCopyFile(
+                input, output, Abi.ARMEABI_V7A, exe, cache, this::strip, logger);
+        assertThat(Files.asCharSource(output, Charsets.UTF_8).read()).isEqualTo("stripped");
+
+        File otherOutput = new File(temporaryFolder.newFolder(), "libfoo.so");
+        StripDebugSymbolTransform.stripOrCopyFile(
+                input, otherOutput, Abi.ARMEABI_V7A, exe, cache, this::strip, logger);
+        assertThat(Files.asCharSource(otherOutput, Charsets.UTF_8).read()).isEqualTo("stripped");
+        assertThat(stripCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testLibraryThatCannotBeStrippedIsCopiedAndNotCached() throws IOException {
+        File output = new File(temporaryFolder.newFolder(), "libfoo.so");
+        StripDebugSymbolTransform.stripOrCopyFile(
+                input, output, Abi.ARMEABI_V7A, exe, cache, this::failToStrip, logger);
+        assertThat(Files.asCharSource(output, Charsets.UTF_8).read()).isEqualTo("unstripped");
+
+        // The failure is not cached, the library is stripped again.
+        StripDebugSymbolTransform.stripOrCopyFile(
+                input, output, Abi.ARMEABI_V7A, exe, cache, this::strip, logger);
+        assertThat(Files.asCharSource(output, Charsets.UTF_8).read()).isEqualTo("stripped");
+        assertThat(stripCount.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testCachedLibraryIsNotOverwritten() throws IOException {
+        File output = new File(temporaryFolder.newFolder(), "libfoo.so");
+        StripDebugSymbolTransform.stripOrCopyFile(
+                input, output, Abi.ARMEABI_V7A, exe, cache, this::strip, logger);
+
+        // A library of the project is stripped without the cache to the same output.
+        StripDebugSymbolTransform.stripOrCopyFile(
+                input, output, Abi.ARMEABI_V7A, exe, null, this::failToStrip, logger);
+        assertThat(Files.asCharSource(output, Charsets.UTF_8).read()).isEqualTo("unstripped");
+
+        File otherOutput = new File(temporaryFolder.newFolder(), "libfoo.so");
+        StripDebugSymbolTransform.stripOrCopyFile(
+                input, otherOutput, Abi.ARMEABI_V7A, exe, cache, this::strip, logger);
+        assertThat(Files.asCharSource(otherOutput, Charsets.UTF_8).read()).isEqualTo("stripped");
+    }
+
+    private boolean strip(File libToStrip, File strippedLib) throws IOException {
+        stripCount.incrementAndGet();
+        Files.asCharSink(strippedLib, Charsets.UTF_8).write("stripped");
+        return true;
+    }
+
+    private boolean failToStrip(File libToStrip, File strippedLib) {
+        stripCount.incrementAndGet();
+        return false;
+    }
+}
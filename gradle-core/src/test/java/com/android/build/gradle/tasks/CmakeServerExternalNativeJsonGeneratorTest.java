@@ -514,6 +514,37 @@ public class CmakeServerExternalNativeJsonGeneratorTest {
                         "--target=x86_64-none-linux-android --gcc-toolchain=/usr/local/google/home/jomof/Android/Sdk/ndk-bundle/toolchains/x86_64-4.9/prebuilt/linux-x86_64 --sysroot=/usr/local/google/home/jomof/Android/Sdk/ndk-bundle/platforms/android-21/arch-x86_64 -g -DANDROID -ffunction-sections -funwind-tables -fstack-protector-strong -no-canonical-prefixes -Wa,--noexecstack -Wformat -Werror=format-security -g -DANDROID -ffunction-sections -funwind-tables -fstack-protector-strong -no-canonical-prefixes -Wa,--noexecstack -Wformat -Werror=format-security -O0 -fno-limit-debug-info -O0 -fno-limit-debug-info -fPIC");
     }
 
+    @Test
+    public void testAddLibraryDependencies() {
+        Map<String, NativeLibraryValue> libraries = Maps.newHashMap();
+        libraries.put("app-Debug-x86", getTestLibrary("/out/x86/libapp.so"));
+        libraries.put("foo-Debug-x86", getTestLibrary("/out/x86/libfoo.a"));
+        libraries.put("bar-Debug-x86", getTestLibrary("/out/x86/libbar.so"));
+        // Built for another configuration, so not a dependency even if its file name matches.
+        libraries.put("other-Debug-x86", getTestLibrary("/other/x86/libother.so"));
+
+        Map<String, Target> targets = Maps.newHashMap();
+        targets.put(
+                "app-Debug-x86",
+                getTestTarget(
+                        "{\"name\":\"app\",\"linkLibraries\":"
+                                + "\"-Wl,--no-undefined libfoo.a \\\"../../x86/libbar.so\\\" "
+                                + "libother.so -landroid -llog\"}"));
+        targets.put("foo-Debug-x86", getTestTarget("{\"name\":\"foo\"}"));
+        targets.put(
+                "bar-Debug-x86",
+                getTestTarget("{\"name\":\"bar\",\"linkLibraries\":\"libbar.so libfoo.a\"}"));
+
+        CmakeServerExternalNativeJsonGenerator.addLibraryDependencies(targets, libraries);
+
+        assertThat(libraries.get("app-Debug-x86").dependencies)
+                .containsExactly("bar-Debug-x86", "foo-Debug-x86")
+                .inOrder();
+        assertThat(libraries.get("foo-Debug-x86").dependencies).isEmpty();
+        assertThat(libraries.get("bar-Debug-x86").dependencies).containsExactly("foo-Debug-x86");
+        assertThat(libraries.get("other-Debug-x86").dependencies).isNull();
+    }
+
     /** Returns InteractiveMessage object from the given message string. */
     private static InteractiveMessage getInteractiveMessageFromString(@NonNull String messageStr) {
         Gson gson = new GsonBuilder().create();
@@ -576,6 +607,12 @@ public class CmakeServerExternalNativeJsonGeneratorTest {
         return gson.fromJson(targetStr, Target.class);
     }
 
+    private static NativeLibraryValue getTestLibrary(@NonNull String output) {
+        NativeLibraryValue library = new NativeLibraryValue();
+        library.output = new File(output);
+        return library;
+    }
+
     /**
      * Returns the test json folder.
      *
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.tasks;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.annotations.NonNull;
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Test;
+
+public class ExternalNativeBuildTaskTest {
+
+    @Test
+    public void testBuildOrderWithoutDependencies() {
+        assertThat(buildOrder(step("a"), step("b"), step("c")))
+                .containsExactly("c", "b", "a")
+                .inOrder();
+    }
+
+    @Test
+    public void testBuildOrderBuildsDependenciesFirst() {
+        assertThat(
+                        buildOrder(
+                                step("app", "core", "util"),
+                                step("util"),
+                                step("core", "util")))
+                .containsExactly("util", "core", "app")
+                .inOrder();
+    }
+
+    @Test
+    public void testBuildOrderIgnoresDependenciesNotBuilt() {
+        assertThat(buildOrder(step("app", "prebuilt"), step("core")))
+                .containsExactly("core", "app")
+                .inOrder();
+    }
+
+    @Test
+    public void testBuildOrderWithDependencyCycle() {
+        assertThat(buildOrder(step("a", "b"), step("b", "a"))).containsExactly("a", "b");
+    }
+
+    @NonNull
+    private static List<String> buildOrder(@NonNull ExternalNativeBuildTask.BuildStep... steps) {
+        return ExternalNativeBuildTask.getBuildOrder(ImmutableList.copyOf(steps))
+                .stream()
+                .map(step -> step.libraryName)
+                .collect(Collectors.toList());
+    }
+
+    @NonNull
+    private static ExternalNativeBuildTask.BuildStep step(
+            @NonNull String libraryName, @NonNull String... dependencies) {
+        return new ExternalNativeBuildTask.BuildStep(
+                libraryName,
+                libraryName + " x86",
+                "build " + libraryName,
+                new File("build"),
+                ImmutableList.copyOf(dependencies));
+    }
+}
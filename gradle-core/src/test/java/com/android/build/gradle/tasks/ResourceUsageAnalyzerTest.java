@@ -43,6 +43,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -1251,6 +1252,61 @@ public class ResourceUsageAnalyzerTest {
         }
     }
 
+    @Test
+    public void testResourceNameIndex() {
+        List<String> names =
+                Arrays.asList(
+                        "ic_video_codec_h264",
+                        "abc_action_bar",
+                        "ic_video",
+                        "my_prefix_1",
+                        "ic_video_codec_vp8",
+                        "my_prefix_12",
+                        "abc_action_bar",
+                        "my_prefix_x",
+                        "ic_audio",
+                        "a",
+                        "my_prefix_07");
+        ResourceUsageAnalyzer.ResourceNameIndex index =
+                new ResourceUsageAnalyzer.ResourceNameIndex(names);
+
+        // Prefix lookups must find the same resources, in the same order, as a linear scan
+        for (String prefix :
+                Arrays.asList(
+                        "", "a", "abc_action_bar", "ic_video", "ic_video_codec_", "my", "z", "b")) {
+            List<Integer> expected = Lists.newArrayList();
+            for (int i = 0; i < names.size(); i++) {
+                if (names.get(i).startsWith(prefix)) {
+                    expected.add(i);
+                }
+            }
+            List<Integer> actual = Lists.newArrayList();
+            for (int i : index.findWithPrefix(prefix)) {
+                actual.add(i);
+            }
+            assertEquals(prefix, expected, actual);
+        }
+
+        // Format strings are only matched against the names starting with their literal prefix
+        for (String format : Arrays.asList("my_prefix_%d", "ic_video_codec_%s", "%s_action_bar")) {
+            Pattern pattern = Pattern.compile(convertFormatStringToRegexp(format));
+            List<Integer> expected = Lists.newArrayList();
+            for (int i = 0; i < names.size(); i++) {
+                if (pattern.matcher(names.get(i)).matches()) {
+                    expected.add(i);
+                }
+            }
+            List<Integer> actual = Lists.newArrayList();
+            for (int i : index.findWithPrefix(format.substring(0, format.indexOf('%')))) {
+                if (pattern.matcher(names.get(i)).matches()) {
+                    actual.add(i);
+                }
+            }
+            assertFalse(format, expected.isEmpty());
+            assertEquals(format, expected, actual);
+        }
+    }
+
     @Test
     public void testIsResourceClass() throws Exception {
         File dummy = new File("dummy");
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal.incremental;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.utils.ILogger;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+
+/**
+ * Cache of the classes parsed while instrumenting the classes of a project, shared by all the
+ * classes instrumented by the same transform invocation.
+ *
+ * <p>Instrumenting a class requires the {@link ClassNode} of all its super classes and implemented
+ * interfaces, and most classes of a project share the same ancestors, e.g. all the activities of an
+ * application extend the same framework classes. Class nodes are cached by the content hash of
+ * their class file, and the {@link AsmClassNode} hierarchy of each super class is cached by its
+ * class node, so that each ancestor is parsed and resolved once, however many classes extend it
+ * and however many threads instrument them.
+ *
+ * <p>The cached class nodes are shared between threads and must not be modified. Classes being
+ * instrumented are parsed again for each instrumentation, since their class node is modified and
+ * visiting a {@link ClassNode} is not thread-safe.
+ *
+ * <p>Like {@link AsmUtils.DirectoryBasedClassReader}, classes are looked up in the directory of
+ * the instrumented class, then in the resources of the thread context class loader. The hierarchy
+ * of a class is therefore assumed to be the same for all the classes instrumented with a cache.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class AsmClassNodeCache {
+
+    @NonNull private final Map<HashCode, ClassNode> classNodes = new ConcurrentHashMap<>();
+
+    /** The hierarchies of the super classes, by class node identity. */
+    @NonNull
+    private final Map<ClassNode, AsmClassNode> classHierarchies = new ConcurrentHashMap<>();
+
+    /**
+     * Returns a provider of cached class nodes, looking up classes in the given directory first.
+     */
+    @NonNull
+    AsmUtils.ClassNodeProvider getClassNodeProvider(@NonNull File binaryFolder) {
+        return (className, logger) -> {
+            byte[] classBytes = readClassBytes(binaryFolder, className, logger);
+            return classBytes != null ? getClassNode(classBytes) : null;
+        };
+    }
+
+    /** Returns the package-info class of the package containing the given class file, if any. */
+    @Nullable
+    ClassNode getPackageInfo(@NonNull File inputFile) throws IOException {
+        File packageInfoClass = new File(inputFile.getParentFile(), "package-info.class");
+        return packageInfoClass.isFile()
+                ? getClassNode(Files.toByteArray(packageInfoClass))
+                : null;
+    }
+
+    @Nullable
+    AsmClassNode getClassHierarchy(@NonNull ClassNode classNode) {
+        return classHierarchies.get(classNode);
+    }
+
+    @NonNull
+    AsmClassNode putClassHierarchy(@NonNull ClassNode classNode, @NonNull AsmClassNode hierarchy) {
+        AsmClassNode existing = classHierarchies.putIfAbsent(classNode, hierarchy);
+        return existing != null ? existing : hierarchy;
+    }
+
+    @NonNull
+    private ClassNode getClassNode(@NonNull byte[] classBytes) {
+        HashCode hash = Hashing.sha256().hashBytes(classBytes);
+        ClassNode classNode = classNodes.get(hash);
+        if (classNode == null) {
+            classNode = AsmUtils.readClass(new ClassReader(classBytes));
+            ClassNode existing = classNodes.putIfAbsent(hash, classNode);
+            if (existing != null) {
+                classNode = existing;
+            }
+        }
+        return classNode;
+    }
+
+    @Nullable
+    private static byte[] readClassBytes(
+            @NonNull File binaryFolder, @NonNull String className, @NonNull ILogger logger)
+            throws IOException {
+        File classFile = new File(binaryFolder, className + SdkConstants.DOT_CLASS);
+        if (classFile.isFile()) {
+            logger.verbose("Parsing %s", classFile);
+            try {
+                return Files.toByteArray(classFile);
+            } catch (IOException e) {
+                logger.error(e, "Cannot parse %s", className);
+            }
+        }
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        try (InputStream is = classLoader.getResourceAsStream(className + SdkConstants.DOT_CLASS)) {
+            return is != null ? ByteStreams.toByteArray(is) : null;
+        }
+    }
+}
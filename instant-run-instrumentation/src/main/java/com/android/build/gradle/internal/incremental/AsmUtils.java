@@ -175,6 +175,19 @@ public class AsmUtils {
             int targetApi,
             @NonNull ILogger logger)
             throws IOException {
+        return readClassAndInterfaces(
+                classReaderProvider, parentClassName, childClassName, targetApi, logger, null);
+    }
+
+    @Nullable
+    private static AsmClassNode readClassAndInterfaces(
+            @NonNull ClassNodeProvider classReaderProvider,
+            @NonNull String parentClassName,
+            @NonNull String childClassName,
+            int targetApi,
+            @NonNull ILogger logger,
+            @Nullable AsmClassNodeCache cache)
+            throws IOException {
         ClassNode classNode = loadClass(classReaderProvider, parentClassName, logger);
         if (classNode == null) {
             // Could not locate parent class. This is as far as we can go locating parents.
@@ -187,6 +200,12 @@ public class AsmUtils {
                     parentClassName, childClassName, targetApi);
             return null;
         }
+        if (cache != null) {
+            AsmClassNode cachedClassNode = cache.getClassHierarchy(classNode);
+            if (cachedClassNode != null) {
+                return cachedClassNode;
+            }
+        }
         // read the parent.
         AsmClassNode parentClassNode =
                 classNode.superName != null
@@ -195,7 +214,8 @@ public class AsmUtils {
                                 classNode.superName,
                                 childClassName,
                                 targetApi,
-                                logger)
+                                logger,
+                                cache)
                         : null;
 
         // now read all implemented interfaces.
@@ -204,7 +224,11 @@ public class AsmUtils {
             // if we cannot read any implemented interfaces, return null;
             return null;
         }
-        return new AsmClassNode(classNode, parentClassNode, interfaces.build());
+        AsmClassNode asmClassNode =
+                new AsmClassNode(classNode, parentClassNode, interfaces.build());
+        // hierarchies that cannot be read are not cached, so that the warning is logged for each
+        // class that is not eligible for hot swap.
+        return cache != null ? cache.putClassHierarchy(classNode, asmClassNode) : asmClassNode;
     }
 
     /**
@@ -285,6 +309,26 @@ public class AsmUtils {
             @NonNull ClassNode classNode,
             int targetApi)
             throws IOException {
+        return loadClass(logger, classBytesReader, classNode, targetApi, null);
+    }
+
+    /**
+     * Loads the hierarchy of the given class, reusing the hierarchies of its super classes already
+     * present in the given cache.
+     *
+     * @param classBytesReader provider of the class nodes of the ancestors, which should be
+     *     provided by the cache so that they are parsed only once
+     * @param classNode the class to load the hierarchy of, which is not cached
+     * @param cache the cache of super class hierarchies, or null to load all of them
+     */
+    @Nullable
+    public static AsmClassNode loadClass(
+            @NonNull ILogger logger,
+            @NonNull ClassNodeProvider classBytesReader,
+            @NonNull ClassNode classNode,
+            int targetApi,
+            @Nullable AsmClassNodeCache cache)
+            throws IOException {
 
         AsmClassNode parentedClassNode =
                 classNode.superName != null
@@ -293,7 +337,8 @@ public class AsmUtils {
                                 classNode.superName,
                                 classNode.name,
                                 targetApi,
-                                logger)
+                                logger,
+                                cache)
                         : null;
 
         // read interfaces
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal.incremental;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.annotations.concurrency.Immutable;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Index of the class hierarchy of a classpath, used to find the common super class of two types
+ * when ASM computes stack frames, without loading any class in the JVM.
+ *
+ * <p>Only the headers of the class files (access flags, super class and interfaces) are read. The
+ * headers of all the classes of a jar are read at once, and are shared by all the indexes of the
+ * process that contain a jar with the same contents, so that e.g. android.jar is only indexed once
+ * per Gradle daemon. The classes of directories and class loaders are read lazily when needed.
+ *
+ * <p>Classes that are not found in the classpath are looked up in the classes of the JDK.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class ClassHierarchyIndex {
+
+    public static final String OBJECT = "java/lang/Object";
+
+    /** The class headers of the jars indexed by this process, by jar content hash. */
+    private static final Cache<HashCode, Map<String, ClassHeader>> jarIndexes =
+            CacheBuilder.newBuilder().softValues().build();
+
+    /** The content hashes of the jars indexed by this process, to avoid hashing them again. */
+    private static final Map<File, JarHash> jarHashes = new ConcurrentHashMap<>();
+
+    @NonNull private final List<ClassHeaderProvider> providers;
+
+    @NonNull
+    private final Map<String, Optional<ClassHeader>> classHeaders = new ConcurrentHashMap<>();
+
+    @NonNull private final Map<String, Optional<Set<String>>> supertypes = new ConcurrentHashMap<>();
+
+    private ClassHierarchyIndex(@NonNull List<ClassHeaderProvider> providers) {
+        this.providers =
+                ImmutableList.<ClassHeaderProvider>builder()
+                        .addAll(providers)
+                        .add(new ClassLoaderProvider(getJdkClassLoader()))
+                        .build();
+    }
+
+    /**
+     * Creates the index of the given classpath, made of jars and directories. Classes are looked up
+     * in the order of the classpath. Missing files are ignored.
+     */
+    @NonNull
+    public static ClassHierarchyIndex create(@NonNull Iterable<File> classpath)
+            throws IOException {
+        ImmutableList.Builder<ClassHeaderProvider> providers = ImmutableList.builder();
+        for (File file : classpath) {
+            if (file.isDirectory()) {
+                providers.add(new DirectoryProvider(file));
+            } else if (file.isFile()) {
+                Map<String, ClassHeader> jarIndex = getJarIndex(file);
+                providers.add(jarIndex::get);
+            }
+        }
+        return new ClassHierarchyIndex(providers.build());
+    }
+
+    /**
+     * Creates an index that reads the class headers from the resources of the given class loader.
+     */
+    @NonNull
+    public static ClassHierarchyIndex create(@NonNull ClassLoader classLoader) {
+        return new ClassHierarchyIndex(
+                Collections.singletonList(new ClassLoaderProvider(classLoader)));
+    }
+
+    /**
+     * Returns the common super class of the two given types, as defined by {@link
+     * org.objectweb.asm.ClassWriter#getCommonSuperClass(String, String)}, or null if the hierarchy
+     * of one of the types is not fully known.
+     *
+     * @param type1 the internal name of a class
+     * @param type2 the internal name of another class
+     */
+    @Nullable
+    public String getCommonSuperClass(@NonNull String type1, @NonNull String type2) {
+        Set<String> supertypes1 = getSupertypes(type1);
+        Set<String> supertypes2 = getSupertypes(type2);
+        if (supertypes1 == null || supertypes2 == null) {
+            return null;
+        }
+        if (supertypes2.contains(type1)) {
+            return type1;
+        }
+        if (supertypes1.contains(type2)) {
+            return type2;
+        }
+        // Both headers are known since the supertypes of both types are known.
+        ClassHeader header = getClassHeader(type1);
+        ClassHeader header2 = getClassHeader(type2);
+        if (header == null || header2 == null || header.isInterface() || header2.isInterface()) {
+            return OBJECT;
+        }
+        do {
+            if (header.superName == null) {
+                return OBJECT;
+            }
+            header = getClassHeader(header.superName);
+        } while (header != null && !supertypes2.contains(header.name));
+        return header != null ? header.name : OBJECT;
+    }
+
+    /**
+     * Returns the given type and all its super classes and interfaces, or null if the hierarchy of
+     * the type is not fully known.
+     */
+    @VisibleForTesting
+    @Nullable
+    Set<String> getSupertypes(@NonNull String type) {
+        Optional<Set<String>> result = supertypes.get(type);
+        if (result == null) {
+            result = Optional.ofNullable(computeSupertypes(type));
+            supertypes.putIfAbsent(type, result);
+        }
+        return result.orElse(null);
+    }
+
+    @Nullable
+    private Set<String> computeSupertypes(@NonNull String type) {
+        Set<String> result = new LinkedHashSet<>();
+        Deque<String> toVisit = new ArrayDeque<>();
+        toVisit.add(type);
+        while (!toVisit.isEmpty()) {
+            String current = toVisit.remove();
+            if (!result.add(current)) {
+                continue;
+            }
+            ClassHeader header = getClassHeader(current);
+            if (header == null) {
+                return null;
+            }
+            if (header.superName != null) {
+                toVisit.add(header.superName);
+            }
+            toVisit.addAll(Arrays.asList(header.interfaces));
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    @Nullable
+    private ClassHeader getClassHeader(@NonNull String type) {
+        Optional<ClassHeader> result = classHeaders.get(type);
+        if (result == null) {
+            result = Optional.ofNullable(findClassHeader(type));
+            classHeaders.putIfAbsent(type, result);
+        }
+        return result.orElse(null);
+    }
+
+    @Nullable
+    private ClassHeader findClassHeader(@NonNull String type) {
+        try {
+            for (ClassHeaderProvider provider : providers) {
+                ClassHeader header = provider.find(type);
+                if (header != null) {
+                    return header;
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Returns the headers of the classes of the given jar, by class name. */
+    @NonNull
+    private static Map<String, ClassHeader> getJarIndex(@NonNull File jar) throws IOException {
+        long size = jar.length();
+        long timestamp = jar.lastModified();
+        JarHash jarHash = jarHashes.get(jar);
+        if (jarHash == null || jarHash.size != size || jarHash.timestamp != timestamp) {
+            jarHash =
+                    new JarHash(size, timestamp, Files.asByteSource(jar).hash(Hashing.sha256()));
+            jarHashes.put(jar, jarHash);
+        }
+        try {
+            return jarIndexes.get(jarHash.hash, () -> readJarIndex(jar));
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to index " + jar, e.getCause());
+        }
+    }
+
+    @NonNull
+    private static Map<String, ClassHeader> readJarIndex(@NonNull File jar) throws IOException {
+        Map<String, ClassHeader> index = new HashMap<>();
+        try (ZipFile zipFile = new ZipFile(jar)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()
+                        || !entry.getName().endsWith(SdkConstants.DOT_CLASS)
+                        || entry.getName().startsWith("META-INF/")) {
+                    continue;
+                }
+                try (InputStream is = zipFile.getInputStream(entry)) {
+                    ClassHeader header = ClassHeader.read(ByteStreams.toByteArray(is));
+                    index.putIfAbsent(header.name, header);
+                } catch (IllegalArgumentException e) {
+                    // Not a class file ASM can read, it can't be a super type of a class it can.
+                }
+            }
+        }
+        return ImmutableMap.copyOf(index);
+    }
+
+    @NonNull
+    private static ClassLoader getJdkClassLoader() {
+        // The parent of the system class loader only sees the classes of the JDK.
+        ClassLoader systemClassLoader = ClassLoader.getSystemClassLoader();
+        return systemClassLoader.getParent() != null
+                ? systemClassLoader.getParent()
+                : systemClassLoader;
+    }
+
+    /** Finds the header of a class, given its internal name. */
+    private interface ClassHeaderProvider {
+        @Nullable
+        ClassHeader find(@NonNull String type) throws IOException;
+    }
+
+    private static final class DirectoryProvider implements ClassHeaderProvider {
+        @NonNull private final File directory;
+
+        private DirectoryProvider(@NonNull File directory) {
+            this.directory = directory;
+        }
+
+        @Nullable
+        @Override
+        public ClassHeader find(@NonNull String type) throws IOException {
+            File classFile = new File(directory, type + SdkConstants.DOT_CLASS);
+            if (!classFile.isFile()) {
+                return null;
+            }
+            return ClassHeader.read(Files.toByteArray(classFile));
+        }
+    }
+
+    private static final class ClassLoaderProvider implements ClassHeaderProvider {
+        @NonNull private final ClassLoader classLoader;
+
+        private ClassLoaderProvider(@NonNull ClassLoader classLoader) {
+            this.classLoader = classLoader;
+        }
+
+        @Nullable
+        @Override
+        public ClassHeader find(@NonNull String type) throws IOException {
+            try (InputStream is = classLoader.getResourceAsStream(type + SdkConstants.DOT_CLASS)) {
+                return is != null ? ClassHeader.read(ByteStreams.toByteArray(is)) : null;
+            }
+        }
+    }
+
+    @Immutable
+    private static final class JarHash {
+        private final long size;
+        private final long timestamp;
+        @NonNull private final HashCode hash;
+
+        private JarHash(long size, long timestamp, @NonNull HashCode hash) {
+            this.size = size;
+            this.timestamp = timestamp;
+            this.hash = hash;
+        }
+    }
+
+    /** The part of a class file that describes its place in the class hierarchy. */
+    @Immutable
+    private static final class ClassHeader {
+        @NonNull private final String name;
+        private final int access;
+        @Nullable private final String superName;
+        @NonNull private final String[] interfaces;
+
+        private ClassHeader(
+                @NonNull String name,
+                int access,
+                @Nullable String superName,
+                @NonNull String[] interfaces) {
+            this.name = name;
+            this.access = access;
+            this.superName = superName;
+            this.interfaces = interfaces;
+        }
+
+        @NonNull
+        static ClassHeader read(@NonNull byte[] classBytes) {
+            // The ClassReader constructor only parses the constant pool, not the class body.
+            ClassReader reader = new ClassReader(classBytes);
+            return new ClassHeader(
+                    reader.getClassName(),
+                    reader.getAccess(),
+                    reader.getSuperName(),
+                    reader.getInterfaces());
+        }
+
+        boolean isInterface() {
+            return (access & Opcodes.ACC_INTERFACE) != 0;
+        }
+    }
+}
@@ -236,6 +236,12 @@ public class IncrementalVisitor extends ClassVisitor {
         return (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_BRIDGE | Opcodes.ACC_NATIVE)) == 0;
     }
 
+    /**
+     * Instruments the given class, resolving the class hierarchy from the thread context class
+     * loader.
+     *
+     * @see #instrumentClass(int, File, File, File, VisitorBuilder, ILogger, ClassHierarchyIndex)
+     */
     @Nullable
     public static File instrumentClass(
             int targetApiLevel,
@@ -244,6 +250,60 @@ public class IncrementalVisitor extends ClassVisitor {
             @NonNull File outputDirectory,
             @NonNull VisitorBuilder visitorBuilder,
             @NonNull ILogger logger) throws IOException {
+        return instrumentClass(
+                targetApiLevel,
+                inputRootDirectory,
+                inputFile,
+                outputDirectory,
+                visitorBuilder,
+                logger,
+                ClassHierarchyIndex.create(Thread.currentThread().getContextClassLoader()));
+    }
+
+    /**
+     * Instruments the given class, using the given class hierarchy to compute the stack frames of
+     * the instrumented methods.
+     *
+     * @see #instrumentClass(int, File, File, File, VisitorBuilder, ILogger, ClassHierarchyIndex,
+     *     AsmClassNodeCache)
+     */
+    @Nullable
+    public static File instrumentClass(
+            int targetApiLevel,
+            @NonNull File inputRootDirectory,
+            @NonNull File inputFile,
+            @NonNull File outputDirectory,
+            @NonNull VisitorBuilder visitorBuilder,
+            @NonNull ILogger logger,
+            @NonNull ClassHierarchyIndex classHierarchy)
+            throws IOException {
+        return instrumentClass(
+                targetApiLevel,
+                inputRootDirectory,
+                inputFile,
+                outputDirectory,
+                visitorBuilder,
+                logger,
+                classHierarchy,
+                new AsmClassNodeCache());
+    }
+
+    /**
+     * Instruments the given class, using the given class hierarchy to compute the stack frames of
+     * the instrumented methods, and reading its super classes and interfaces from the given cache.
+     * The cache can be shared by concurrent instrumentations of the classes of a project.
+     */
+    @Nullable
+    public static File instrumentClass(
+            int targetApiLevel,
+            @NonNull File inputRootDirectory,
+            @NonNull File inputFile,
+            @NonNull File outputDirectory,
+            @NonNull VisitorBuilder visitorBuilder,
+            @NonNull ILogger logger,
+            @NonNull ClassHierarchyIndex classHierarchy,
+            @NonNull AsmClassNodeCache classNodeCache)
+            throws IOException {
 
         byte[] classBytes;
         String path = FileUtils.relativePath(inputFile, inputRootDirectory);
@@ -262,40 +322,20 @@ public class IncrementalVisitor extends ClassVisitor {
         }
         classBytes = Files.toByteArray(inputFile);
         ClassReader classReader = new ClassReader(classBytes);
-        // override the getCommonSuperClass to use the thread context class loader instead of
-        // the system classloader. This is useful as ASM needs to load classes from the project
-        // which the system classloader does not have visibility upon.
-        // TODO: investigate if there is not a simpler way than overriding.
+        // override the getCommonSuperClass to use the class hierarchy of the project instead of
+        // loading classes with the system classloader, which does not have visibility upon the
+        // classes of the project.
         ClassWriter classWriter = new ClassWriter(classReader, ClassWriter.COMPUTE_FRAMES) {
             @Override
             protected String getCommonSuperClass(final String type1, final String type2) {
-                Class<?> c, d;
-                ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
-                try {
-                    c = Class.forName(type1.replace('/', '.'), false, classLoader);
-                    d = Class.forName(type2.replace('/', '.'), false, classLoader);
-                } catch (ClassNotFoundException e) {
+                String commonSuperClass = classHierarchy.getCommonSuperClass(type1, type2);
+                if (commonSuperClass == null) {
                     // This may happen if we're processing class files which reference APIs not
                     // available on the target device. In this case return a dummy value, since this
                     // is ignored during dx compilation.
                     return "instant/run/NoCommonSuperClass";
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-                if (c.isAssignableFrom(d)) {
-                    return type1;
-                }
-                if (d.isAssignableFrom(c)) {
-                    return type2;
-                }
-                if (c.isInterface() || d.isInterface()) {
-                    return "java/lang/Object";
-                } else {
-                    do {
-                        c = c.getSuperclass();
-                    } while (!c.isAssignableFrom(d));
-                    return c.getName().replace('.', '/');
                 }
+                return commonSuperClass;
             }
         };
 
@@ -324,13 +364,14 @@ public class IncrementalVisitor extends ClassVisitor {
             }
         }
 
-        AsmUtils.DirectoryBasedClassReader directoryClassReader =
-                new AsmUtils.DirectoryBasedClassReader(getBinaryFolder(inputFile, classNode));
+        AsmUtils.ClassNodeProvider classNodeProvider =
+                classNodeCache.getClassNodeProvider(getBinaryFolder(inputFile, classNode));
 
         AsmClassNode parentedClassNode = null;
         try {
             parentedClassNode =
-                    AsmUtils.loadClass(logger, directoryClassReader, classNode, targetApiLevel);
+                    AsmUtils.loadClass(
+                            logger, classNodeProvider, classNode, targetApiLevel, classNodeCache);
         } catch (AsmUtils.ByteCodeNotFoundException e) {
             logger.verbose(
                     "unable to load byte code for %s, skipping instrumentation of this class for instant run",
@@ -338,7 +379,7 @@ public class IncrementalVisitor extends ClassVisitor {
         }
 
         // if we could not determine the parent hierarchy, disable instant run.
-        if (parentedClassNode == null || isPackageInstantRunDisabled(inputFile)) {
+        if (parentedClassNode == null || isPackageInstantRunDisabled(inputFile, classNodeCache)) {
             if (visitorBuilder.getOutputType() == OutputType.INSTRUMENT) {
                 Files.createParentDirs(outputFile);
                 Files.write(classBytes, outputFile);
@@ -396,9 +437,11 @@ public class IncrementalVisitor extends ClassVisitor {
                 inputFile.getAbsolutePath().length() - (classNode.name.length() + ".class".length())));
     }
 
-    private static boolean isPackageInstantRunDisabled(@NonNull File inputFile) throws IOException {
+    private static boolean isPackageInstantRunDisabled(
+            @NonNull File inputFile, @NonNull AsmClassNodeCache classNodeCache)
+            throws IOException {
 
-        ClassNode packageInfoClass =  AsmUtils.parsePackageInfo(inputFile);
+        ClassNode packageInfoClass = classNodeCache.getPackageInfo(inputFile);
         if (packageInfoClass != null) {
             //noinspection unchecked
             List<AnnotationNode> annotations = packageInfoClass.invisibleAnnotations;
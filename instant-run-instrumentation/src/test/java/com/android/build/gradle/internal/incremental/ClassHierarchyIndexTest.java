@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal.incremental;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+public class ClassHierarchyIndexTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ClassHierarchyIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        File jar = temporaryFolder.newFile("lib.jar");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(jar.toPath()))) {
+            writeClass(out, "lib/Base", "java/lang/Object", Opcodes.ACC_PUBLIC);
+            writeClass(out, "lib/Api", null, Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE);
+            writeClass(out, "lib/Missing", "lib/DoesNotExist", Opcodes.ACC_PUBLIC);
+        }
+        File classes = temporaryFolder.newFolder("classes");
+        File appClasses = new File(classes, "app");
+        assertThat(appClasses.mkdir()).isTrue();
+        Files.write(
+                new File(appClasses, "A.class").toPath(),
+                createClass("app/A", "lib/Base", Opcodes.ACC_PUBLIC, "lib/Api"));
+        Files.write(
+                new File(appClasses, "B.class").toPath(),
+                createClass("app/B", "lib/Base", Opcodes.ACC_PUBLIC));
+        Files.write(
+                new File(appClasses, "C.class").toPath(),
+                createClass("app/C", "app/A", Opcodes.ACC_PUBLIC));
+
+        index = ClassHierarchyIndex.create(ImmutableList.of(jar, classes));
+    }
+
+    @Test
+    public void testCommonSuperClass() {
+        assertThat(index.getCommonSuperClass("app/A", "app/B")).isEqualTo("lib/Base");
+        assertThat(index.getCommonSuperClass("app/C", "app/B")).isEqualTo("lib/Base");
+        assertThat(index.getCommonSuperClass("app/C", "app/A")).isEqualTo("app/A");
+        assertThat(index.getCommonSuperClass("lib/Base", "app/C")).isEqualTo("lib/Base");
+    }
+
+    @Test
+    public void testCommonSuperClassWithInterface() {
+        assertThat(index.getCommonSuperClass("lib/Api", "app/C")).isEqualTo("lib/Api");
+        assertThat(index.getCommonSuperClass("lib/Api", "app/B"))
+                .isEqualTo(ClassHierarchyIndex.OBJECT);
+    }
+
+    @Test
+    public void testCommonSuperClassOfJdkClasses() {
+        assertThat(index.getCommonSuperClass("java/util/ArrayList", "java/util/LinkedList"))
+                .isEqualTo("java/util/AbstractList");
+        assertThat(index.getCommonSuperClass("app/A", "java/lang/String"))
+                .isEqualTo(ClassHierarchyIndex.OBJECT);
+    }
+
+    @Test
+    public void testUnknownHierarchy() {
+        assertThat(index.getCommonSuperClass("app/A", "app/DoesNotExist")).isNull();
+        assertThat(index.getCommonSuperClass("app/A", "lib/Missing")).isNull();
+        assertThat(index.getSupertypes("lib/Missing")).isNull();
+        assertThat(index.getSupertypes("app/C"))
+                .containsExactly("app/C", "app/A", "lib/Base", "lib/Api", "java/lang/Object");
+    }
+
+    private static void writeClass(
+            @NonNull ZipOutputStream out,
+            @NonNull String name,
+            @Nullable String superName,
+            int access)
+            throws IOException {
+        out.putNextEntry(new ZipEntry(name + ".class"));
+        out.write(createClass(name, superName, access));
+        out.closeEntry();
+    }
+
+    @NonNull
+    private static byte[] createClass(
+            @NonNull String name,
+            @Nullable String superName,
+            int access,
+            @NonNull String... interfaces) {
+        ClassWriter cw = new ClassWriter(0);
+        if ((access & Opcodes.ACC_INTERFACE) != 0) {
+            access |= Opcodes.ACC_ABSTRACT;
+            superName = "java/lang/Object";
+        }
+        cw.visit(Opcodes.V1_8, access, name, null, superName, interfaces);
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+}
@@ -678,7 +678,7 @@ public class NativeModelTest {
         AssumeUtil.assumeNotWindowsBot(); // https://issuetracker.google.com/70931936
         assumeNotCMakeOnWindows();
         File jsonFile = getJsonFile("debug", "x86_64");
-        File miniConfigFile = ExternalNativeBuildTaskUtils.getJsonMiniConfigFile(jsonFile);
+        File miniConfigFile = ExternalNativeBuildTaskUtils.getMiniConfigFile(jsonFile);
 
         // Build should be incremental where it is possible. CMake in particular is supposed to
         // be able to regenerate the ninja build system in-place. Use this file to check whether
@@ -39,13 +39,16 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
@@ -53,6 +56,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -1133,8 +1137,10 @@ public class ManifestMerger2 {
             @Nullable String mainManifestPackageName)
             throws MergeFailureException {
 
-        ImmutableList.Builder<LoadedManifestInfo> loadedLibraryDocuments = ImmutableList.builder();
-
+        // read the library manifests in order on the calling thread, as file stream providers
+        // are not required to be thread-safe.
+        List<ManifestInfo> manifestInfos = new ArrayList<>();
+        List<byte[]> manifestContents = new ArrayList<>();
         for (Pair<String, File> libraryFile : Sets.newLinkedHashSet(mLibraryFiles)) {
             mLogger.verbose("Loading library manifest " + libraryFile.getSecond().getPath());
             ManifestInfo manifestInfo =
@@ -1143,47 +1149,53 @@ public class ManifestMerger2 {
                             libraryFile.getSecond(),
                             XmlDocument.Type.LIBRARY,
                             Optional.fromNullable(mainManifestPackageName));
-            File xmlFile = manifestInfo.mLocation;
-            XmlDocument libraryDocument;
-            try {
-                InputStream inputStream = mFileStreamProvider.getInputStream(xmlFile);
-                libraryDocument =
-                        XmlLoader.load(
-                                selectors,
-                                mSystemPropertyResolver,
-                                manifestInfo.mName,
-                                xmlFile,
-                                inputStream,
-                                XmlDocument.Type.LIBRARY,
-                                Optional.absent(), /* mainManifestPackageName */
-                                mModel);
+            try (InputStream inputStream =
+                    mFileStreamProvider.getInputStream(manifestInfo.mLocation)) {
+                manifestContents.add(ByteStreams.toByteArray(inputStream));
             } catch (Exception e) {
                 throw new MergeFailureException(e);
             }
+            manifestInfos.add(manifestInfo);
+        }
+
+        // parse and pre-process the library manifests in parallel, each library document is
+        // only reachable from its own task until all of them are loaded.
+        List<LoadedLibrary> loadedLibraries =
+                IntStream.range(0, manifestInfos.size())
+                        .parallel()
+                        .mapToObj(
+                                i ->
+                                        loadLibrary(
+                                                selectors,
+                                                mergingReportBuilder,
+                                                manifestInfos.get(i),
+                                                manifestContents.get(i)))
+                        .collect(Collectors.toList());
+
+        // finally record the results in the library order, so that the selectors and the logs
+        // are the same as if the libraries had been loaded one after another.
+        ImmutableList.Builder<LoadedManifestInfo> loadedLibraryDocuments = ImmutableList.builder();
+        for (LoadedLibrary loadedLibrary : loadedLibraries) {
+            if (loadedLibrary.mFailure != null) {
+                throw new MergeFailureException(loadedLibrary.mFailure);
+            }
+            XmlDocument libraryDocument = loadedLibrary.mXmlDocument;
             // extract the package name...
             String libraryPackage = libraryDocument.getRootNode().getXml().getAttribute("package");
             // save it in the selector instance.
             if (!Strings.isNullOrEmpty(libraryPackage)) {
-                selectors.addSelector(libraryPackage, libraryFile.getFirst());
+                selectors.addSelector(libraryPackage, loadedLibrary.mManifestInfo.getName());
             }
 
-            // perform placeholder substitution, this is useful when the library is using
-            // a placeholder in a key element, we however do not need to record these
-            // substitutions so feed it with a fake merging report.
-            MergingReport.Builder builder =
-                    new MergingReport.Builder(mergingReportBuilder.getLogger());
-            builder.getActionRecorder().recordAddedNodeAction(libraryDocument.getRootNode(), false);
-            performPlaceHolderSubstitution(
-                    manifestInfo, libraryDocument, builder, MergingReport.Record.Severity.INFO);
-            if (builder.hasErrors()) {
+            if (loadedLibrary.mReportBuilder.hasErrors()) {
                 // we log the errors but continue, in case the error is of no consequence
                 // to the application consuming the library.
-                builder.build().log(mLogger);
+                loadedLibrary.mReportBuilder.build().log(mLogger);
             }
 
             LoadedManifestInfo info =
                     new LoadedManifestInfo(
-                            manifestInfo,
+                            loadedLibrary.mManifestInfo,
                             Optional.fromNullable(libraryDocument.getPackageName()),
                             libraryDocument);
 
@@ -1193,6 +1205,43 @@ public class ManifestMerger2 {
         return loadedLibraryDocuments.build();
     }
 
+    /**
+     * Parses a library manifest and performs its placeholder substitution. This method may be
+     * called concurrently for different libraries and does not modify any shared state: failures
+     * are returned rather than thrown, so that they are reported in the library order.
+     */
+    @NonNull
+    private LoadedLibrary loadLibrary(
+            @NonNull SelectorResolver selectors,
+            @NonNull MergingReport.Builder mergingReportBuilder,
+            @NonNull ManifestInfo manifestInfo,
+            @NonNull byte[] manifestContents) {
+        XmlDocument libraryDocument;
+        try {
+            libraryDocument =
+                    XmlLoader.load(
+                            selectors,
+                            mSystemPropertyResolver,
+                            manifestInfo.mName,
+                            manifestInfo.mLocation,
+                            new ByteArrayInputStream(manifestContents),
+                            XmlDocument.Type.LIBRARY,
+                            Optional.absent(), /* mainManifestPackageName */
+                            mModel);
+        } catch (Exception e) {
+            return new LoadedLibrary(manifestInfo, null, null, e);
+        }
+
+        // perform placeholder substitution, this is useful when the library is using
+        // a placeholder in a key element, we however do not need to record these
+        // substitutions so feed it with a fake merging report.
+        MergingReport.Builder builder = new MergingReport.Builder(mergingReportBuilder.getLogger());
+        builder.getActionRecorder().recordAddedNodeAction(libraryDocument.getRootNode(), false);
+        performPlaceHolderSubstitution(
+                manifestInfo, libraryDocument, builder, MergingReport.Record.Severity.INFO);
+        return new LoadedLibrary(manifestInfo, libraryDocument, builder, null);
+    }
+
     private void checkUniquePackageName(
             @NonNull LoadedManifestInfo mainPackage,
             @NonNull List<LoadedManifestInfo> libraries,
@@ -1869,6 +1918,26 @@ public class ManifestMerger2 {
         }
     }
 
+    /** The outcome of loading a single library manifest, see {@link #loadLibrary}. */
+    private static class LoadedLibrary {
+
+        @NonNull private final ManifestInfo mManifestInfo;
+        private final XmlDocument mXmlDocument;
+        private final MergingReport.Builder mReportBuilder;
+        @Nullable private final Exception mFailure;
+
+        private LoadedLibrary(
+                @NonNull ManifestInfo manifestInfo,
+                @Nullable XmlDocument xmlDocument,
+                @Nullable MergingReport.Builder reportBuilder,
+                @Nullable Exception failure) {
+            mManifestInfo = manifestInfo;
+            mXmlDocument = xmlDocument;
+            mReportBuilder = reportBuilder;
+            mFailure = failure;
+        }
+    }
+
     private static class LoadedManifestInfo extends ManifestInfo {
 
         @NonNull private final XmlDocument mXmlDocument;
@@ -114,6 +114,15 @@ public class ChromeTracingProfileConverter {
     }
 
     public static void toJson(@NonNull Path protoFile) throws IOException, AbnormalExitException {
+        toJson(protoFile, ImmutableMap.of());
+    }
+
+    /**
+     * Converts the given profile to chrome tracing format, using the given details for the spans
+     * that have some instead of the millisecond timings of the profile.
+     */
+    static void toJson(@NonNull Path protoFile, @NonNull Map<Long, SpanDetails> spanDetails)
+            throws IOException, AbnormalExitException {
         GradleBuildProfile profile;
         try {
             profile = GradleBuildProfile
@@ -163,6 +172,15 @@ public class ChromeTracingProfileConverter {
                 ImmutableMap.Builder<String, Object> args = ImmutableMap.builder();
 
                 args.put("span_id", span.getId());
+                SpanDetails details = spanDetails.get(span.getId());
+                if (details != null) {
+                    if (details.cpuTimeInUs != SpanBuffer.UNSUPPORTED) {
+                        args.put("cpu_time_us", details.cpuTimeInUs);
+                    }
+                    if (details.allocatedBytes != SpanBuffer.UNSUPPORTED) {
+                        args.put("allocated_bytes", details.allocatedBytes);
+                    }
+                }
                 ProjectHolder projectHolder = projects.get(span.getProject());
                 if (projectHolder != null ) {
                     args.put("project", projectHolder.project);
@@ -196,11 +214,23 @@ public class ChromeTracingProfileConverter {
                     writer.name(entry.getKey()).value(entry.getValue().toString());
                 }
                 writer.endObject();
-                long duration = span.getDurationInMs() * 1000;
+                long start;
+                long duration;
+                if (details != null) {
+                    start = details.startTimeInUs;
+                    duration = details.durationInUs;
+                } else {
+                    start = span.getStartTimeInMs() * 1000;
+                    duration = span.getDurationInMs() * 1000;
+                }
+                if (duration == 0) {
+                    // Make the span visible.
+                    duration = details != null ? 1 : 100;
+                }
                 writer
                         .name("ph").value("X")
-                        .name("ts").value(span.getStartTimeInMs() * 1000)
-                        .name("dur").value(duration == 0 ? 100 : duration)
+                        .name("ts").value(start)
+                        .name("dur").value(duration)
                         .endObject();
             }
             writer.endArray();
@@ -208,6 +238,21 @@ public class ChromeTracingProfileConverter {
 
     }
 
+    /** Timings and resource usage of a span that are more precise than the build profile's. */
+    static final class SpanDetails {
+        final long startTimeInUs;
+        final long durationInUs;
+        final long cpuTimeInUs;
+        final long allocatedBytes;
+
+        SpanDetails(long startTimeInUs, long durationInUs, long cpuTimeInUs, long allocatedBytes) {
+            this.startTimeInUs = startTimeInUs;
+            this.durationInUs = durationInUs;
+            this.cpuTimeInUs = cpuTimeInUs;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
     static final class ProjectHolder {
         final GradleBuildProject project;
         final Map<Long, GradleBuildVariant> variants;
@@ -222,15 +267,25 @@ public class ChromeTracingProfileConverter {
 
     @NonNull
     private static String taskName(@NonNull GradleBuildProfileSpan span) {
-        return pretty(GradleTaskExecutionType.forNumber(span.getTask().getType()));
+        return taskName(span.getTask().getType());
+    }
+
+    @NonNull
+    static String taskName(int taskType) {
+        return pretty(GradleTaskExecutionType.forNumber(taskType));
     }
 
     @NonNull
     private static String transformName(@NonNull GradleBuildProfileSpan span) {
-        return pretty(GradleTransformExecutionType.forNumber(span.getTransform().getType()));
+        return transformName(span.getTransform().getType());
+    }
+
+    @NonNull
+    static String transformName(int transformType) {
+        return pretty(GradleTransformExecutionType.forNumber(transformType));
     }
 
-    private static String pretty(Enum theEnum) {
+    static String pretty(Enum theEnum) {
         return theEnum.toString().toLowerCase(Locale.US).replace('_', ' ');
     }
 
@@ -20,6 +20,7 @@ import static com.google.common.base.Preconditions.checkState;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.annotations.concurrency.GuardedBy;
 import com.android.tools.analytics.CommonMetricsData;
 import com.android.tools.analytics.UsageTracker;
 import com.google.common.base.Preconditions;
@@ -42,11 +43,19 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Records profile information for a build.
@@ -56,7 +65,9 @@ import java.util.concurrent.atomic.AtomicLong;
  * per build and finalizes it at the end of the build.
  *
  * <p>The methods implemented from {@link ProfileRecordWriter} will be called from multiple threads
- * during the build, storing execution spans.
+ * during the build, storing execution spans. {@link ThreadRecorder} instead records its spans in a
+ * {@link SpanBuffer} per thread, which are only converted to protobuf messages when the build is
+ * finished.
  */
 public final class ProcessProfileWriter implements ProfileRecordWriter {
 
@@ -79,6 +90,22 @@ public final class ProcessProfileWriter implements ProfileRecordWriter {
 
     private final ConcurrentLinkedQueue<GradleBuildProfileSpan> spans;
 
+    private final ConcurrentMap<Thread, SpanBuffer> spanBuffers = new ConcurrentHashMap<>();
+
+    /** Wall clock time and {@link System#nanoTime()} at the same instant, to convert the latter. */
+    private final long originTimeInMs;
+
+    private final long originNanos;
+
+    /** Exports spans while the build runs, if enabled. */
+    @Nullable private volatile StreamingProfileExporter exporter;
+
+    /** Spans written with writeRecord() that were not exported yet. */
+    private final ConcurrentLinkedQueue<RecordedSpan> spansToExport = new ConcurrentLinkedQueue<>();
+
+    /** The number of spans of each buffer that were exported. */
+    private final Map<SpanBuffer, Integer> exportedSpanCounts = new HashMap<>();
+
     private final List<java.util.function.Supplier<String>> applicationIdSuppliers =
             Collections.synchronizedList(new ArrayList<>());
 
@@ -94,12 +121,109 @@ public final class ProcessProfileWriter implements ProfileRecordWriter {
 
 
     ProcessProfileWriter(boolean enableChromeTracingOutput) {
+        this(enableChromeTracingOutput, null, null);
+    }
+
+    ProcessProfileWriter(
+            boolean enableChromeTracingOutput,
+            @Nullable Path streamingTraceFile,
+            @Nullable Path streamingMetricsFile) {
         mEnableChromeTracingOutput = enableChromeTracingOutput;
         mNameAnonymizer = new NameAnonymizer();
         mBuild = GradleBuildProfile.newBuilder();
         mStartMemoryStats = createAndRecordMemorySample();
         mProjects = CacheBuilder.newBuilder().build(new ProjectCacheLoader(mNameAnonymizer));
         spans = new ConcurrentLinkedQueue<>();
+        originTimeInMs = System.currentTimeMillis();
+        originNanos = System.nanoTime();
+        if (streamingTraceFile != null || streamingMetricsFile != null) {
+            try {
+                exporter =
+                        new StreamingProfileExporter(
+                                streamingTraceFile,
+                                streamingMetricsFile,
+                                originTimeInMs,
+                                originNanos);
+            } catch (IOException e) {
+                logExportFailure(e);
+            }
+        }
+    }
+
+    /** Returns whether spans should be exported with {@link #exportSpans()} while the build runs. */
+    synchronized boolean isStreamingExportEnabled() {
+        return exporter != null;
+    }
+
+    /**
+     * Exports the spans ended since the last call, if streaming export is enabled. Exporting is
+     * disabled if it fails.
+     */
+    synchronized void exportSpans() {
+        if (exporter == null) {
+            return;
+        }
+        try {
+            exportSpans(exporter);
+            exporter.flush();
+        } catch (IOException e) {
+            logExportFailure(e);
+            try {
+                exporter.close();
+            } catch (IOException ignored) {
+                // Already failing.
+            }
+            exporter = null;
+        }
+    }
+
+    @GuardedBy("this")
+    private void exportSpans(@NonNull StreamingProfileExporter exporter) throws IOException {
+        RecordedSpan recordedSpan;
+        while ((recordedSpan = spansToExport.poll()) != null) {
+            exporter.export(recordedSpan.project, recordedSpan.variant, recordedSpan.span);
+        }
+        for (SpanBuffer buffer : spanBuffers.values()) {
+            int from = exportedSpanCounts.getOrDefault(buffer, 0);
+            IOException[] failure = new IOException[1];
+            int exported =
+                    buffer.forEachSpan(
+                            from,
+                            span -> {
+                                if (failure[0] == null) {
+                                    try {
+                                        exporter.export(span);
+                                    } catch (IOException e) {
+                                        failure[0] = e;
+                                    }
+                                }
+                            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            exportedSpanCounts.put(buffer, exported);
+        }
+    }
+
+    private static void logExportFailure(@NonNull IOException e) {
+        Logger.getLogger(ProcessProfileWriter.class.getName())
+                .log(Level.WARNING, "Failed to export build profile spans", e);
+    }
+
+    /**
+     * Returns the buffer of the spans of the current thread, creating it if needed.
+     *
+     * @param threadId supplies the id of the current thread in the profile
+     */
+    @NonNull
+    SpanBuffer getSpanBuffer(@NonNull LongSupplier threadId) {
+        Thread thread = Thread.currentThread();
+        SpanBuffer buffer = spanBuffers.get(thread);
+        if (buffer == null) {
+            buffer = new SpanBuffer(threadId.getAsLong());
+            spanBuffers.put(thread, buffer);
+        }
+        return buffer;
     }
 
     /** Append a span record to the build profile. Thread safe. */
@@ -109,9 +233,21 @@ public final class ProcessProfileWriter implements ProfileRecordWriter {
             @Nullable String variant,
             @NonNull final GradleBuildProfileSpan.Builder executionRecord) {
 
+        GradleBuildProfileSpan span = toSpan(project, variant, executionRecord);
+        spans.add(span);
+        if (exporter != null) {
+            spansToExport.add(new RecordedSpan(project, variant, span));
+        }
+    }
+
+    @NonNull
+    private GradleBuildProfileSpan toSpan(
+            @NonNull String project,
+            @Nullable String variant,
+            @NonNull GradleBuildProfileSpan.Builder executionRecord) {
         executionRecord.setProject(mNameAnonymizer.anonymizeProjectPath(project));
         executionRecord.setVariant(mNameAnonymizer.anonymizeVariant(project, variant));
-        spans.add(executionRecord.build());
+        return executionRecord.build();
     }
 
     /** Appends a generic event (e.g. test execution record) to be uploaded. */
@@ -130,7 +266,7 @@ public final class ProcessProfileWriter implements ProfileRecordWriter {
      * <p>Either finishAndWrite or finish() should be called exactly once
      */
     synchronized void finishAndWrite(@NonNull Path outputFile) {
-        finish();
+        List<SpanBuffer.Span> bufferedSpans = finishInternal();
 
         // Write benchmark file into build directory
         try {
@@ -142,7 +278,7 @@ public final class ProcessProfileWriter implements ProfileRecordWriter {
             }
 
             if (mEnableChromeTracingOutput) {
-                ChromeTracingProfileConverter.toJson(outputFile);
+                ChromeTracingProfileConverter.toJson(outputFile, getSpanDetails(bufferedSpans));
             }
         } catch (IOException e) {
             throw new UncheckedIOException(e);
@@ -156,12 +292,64 @@ public final class ProcessProfileWriter implements ProfileRecordWriter {
      * <p>Either finishAndWrite or finish() should be called exactly once
      */
     synchronized void finish() {
+        finishInternal();
+    }
+
+    /** Finishes the build profile, returning the spans recorded by {@link ThreadRecorder}. */
+    @NonNull
+    private List<SpanBuffer.Span> finishInternal() {
         checkState(!finished, "Already finished");
         finished = true;
 
+        if (exporter != null) {
+            exportSpans();
+            if (exporter != null) {
+                try {
+                    exporter.close();
+                } catch (IOException e) {
+                    logExportFailure(e);
+                }
+                exporter = null;
+            }
+        }
+        exportedSpanCounts.clear();
+
         // This will not throw ConcurrentModificationException if writeRecord() calls are still
         // happening. ConcurrentLinkedQueue iterators are instead weakly consistent.
         mBuild.addAllSpan(spans);
+
+        // Spans that are still open when the build finishes are not recorded.
+        List<SpanBuffer.Span> bufferedSpans = new ArrayList<>();
+        for (SpanBuffer buffer : spanBuffers.values()) {
+            buffer.forEachSpan(0, bufferedSpans::add);
+        }
+        // Order spans the way they were ended, like spans written with writeRecord(). The sort is
+        // stable and each buffer is already in that order.
+        bufferedSpans.sort(
+                Comparator.comparingLong((SpanBuffer.Span span) -> span.endNanos)
+                        .thenComparingLong(span -> span.threadId));
+        for (SpanBuffer.Span span : bufferedSpans) {
+            GradleBuildProfileSpan.Builder builder =
+                    GradleBuildProfileSpan.newBuilder()
+                            .setId(span.id)
+                            .setType(span.type)
+                            .setThreadId(span.threadId)
+                            .setStartTimeInMs(
+                                    originTimeInMs
+                                            + TimeUnit.NANOSECONDS.toMillis(
+                                                    span.startNanos - originNanos))
+                            .setDurationInMs(
+                                    TimeUnit.NANOSECONDS.toMillis(span.endNanos - span.startNanos));
+            if (span.parentId != 0) {
+                builder.setParentId(span.parentId);
+            }
+            if (span.transform != null) {
+                builder.setTransform(span.transform);
+            }
+            mBuild.addSpan(toSpan(span.project, span.variant, builder));
+        }
+        spanBuffers.clear();
+
         GradleBuildMemorySample memoryStats = createAndRecordMemorySample();
         mBuild.setBuildTime(
                 memoryStats.getTimestamp() - mStartMemoryStats.getTimestamp());
@@ -193,6 +381,32 @@ public final class ProcessProfileWriter implements ProfileRecordWriter {
         for (AndroidStudioEvent.Builder otherEvent : otherEvents) {
             UsageTracker.log(otherEvent);
         }
+        return bufferedSpans;
+    }
+
+    /**
+     * Returns the precise timings and resource usage of spans recorded by {@link ThreadRecorder},
+     * which are not part of the build profile, by span id.
+     */
+    @NonNull
+    private Map<Long, ChromeTracingProfileConverter.SpanDetails> getSpanDetails(
+            @NonNull List<SpanBuffer.Span> bufferedSpans) {
+        Map<Long, ChromeTracingProfileConverter.SpanDetails> details =
+                new HashMap<>(bufferedSpans.size() * 2);
+        long originTimeInUs = TimeUnit.MILLISECONDS.toMicros(originTimeInMs);
+        for (SpanBuffer.Span span : bufferedSpans) {
+            details.put(
+                    span.id,
+                    new ChromeTracingProfileConverter.SpanDetails(
+                            originTimeInUs
+                                    + TimeUnit.NANOSECONDS.toMicros(span.startNanos - originNanos),
+                            TimeUnit.NANOSECONDS.toMicros(span.endNanos - span.startNanos),
+                            span.cpuNanos == SpanBuffer.UNSUPPORTED
+                                    ? SpanBuffer.UNSUPPORTED
+                                    : TimeUnit.NANOSECONDS.toMicros(span.cpuNanos),
+                            span.allocatedBytes));
+        }
+        return details;
     }
 
     @NonNull
@@ -274,6 +488,21 @@ public final class ProcessProfileWriter implements ProfileRecordWriter {
         }
     }
 
+    private static final class RecordedSpan {
+        @NonNull final String project;
+        @Nullable final String variant;
+        @NonNull final GradleBuildProfileSpan span;
+
+        RecordedSpan(
+                @NonNull String project,
+                @Nullable String variant,
+                @NonNull GradleBuildProfileSpan span) {
+            this.project = project;
+            this.variant = variant;
+            this.span = span;
+        }
+    }
+
     private static class Project {
 
         Project(long id) {
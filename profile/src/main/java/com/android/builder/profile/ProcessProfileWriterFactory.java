@@ -36,6 +36,7 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -50,6 +51,9 @@ public final class ProcessProfileWriterFactory {
 
     private static final Object LOCK = new Object();
 
+    /** How often spans are exported while the build runs, if streaming export is enabled. */
+    private static final long STREAMING_EXPORT_PERIOD_MS = 1000;
+
     @GuardedBy("LOCK")
     @Nullable
     private static ProcessProfileWriterFactory sINSTANCE;
@@ -69,6 +73,18 @@ public final class ProcessProfileWriterFactory {
     @GuardedBy("this")
     private boolean enableChromeTracingOutput;
 
+    @GuardedBy("this")
+    @Nullable
+    private Path streamingTraceFile = null;
+
+    @GuardedBy("this")
+    @Nullable
+    private Path streamingMetricsFile = null;
+
+    @GuardedBy("this")
+    @Nullable
+    private ScheduledFuture<?> streamingExport = null;
+
     private ProcessProfileWriterFactory() {}
 
     /**
@@ -81,21 +97,55 @@ public final class ProcessProfileWriterFactory {
             @NonNull String gradleVersion,
             @NonNull ILogger logger,
             boolean enableChromeTracingOutput) {
+        initialize(
+                rootProjectDirectoryPath,
+                gradleVersion,
+                logger,
+                enableChromeTracingOutput,
+                null,
+                null);
+    }
+
+    /**
+     * Set up the the ProcessProfileWriter, exporting spans while the build runs.
+     *
+     * <p>Idempotent for multi-project builds, where the arguments are ignored for subsequent calls.
+     *
+     * @param streamingTraceFile the file to stream spans to in chrome tracing format, if any
+     * @param streamingMetricsFile the file to periodically write task and transform duration
+     *     histograms to in OpenMetrics text format, if any
+     */
+    public static void initialize(
+            @NonNull File rootProjectDirectoryPath,
+            @NonNull String gradleVersion,
+            @NonNull ILogger logger,
+            boolean enableChromeTracingOutput,
+            @Nullable Path streamingTraceFile,
+            @Nullable Path streamingMetricsFile) {
         getFactory()
                 .initializeInternal(
-                        rootProjectDirectoryPath, gradleVersion, logger, enableChromeTracingOutput);
+                        rootProjectDirectoryPath,
+                        gradleVersion,
+                        logger,
+                        enableChromeTracingOutput,
+                        streamingTraceFile,
+                        streamingMetricsFile);
     }
 
     private synchronized void initializeInternal(
             @NonNull File rootProjectDirectoryPath,
             @NonNull String gradleVersion,
             @NonNull ILogger logger,
-            boolean enableChromeTracingOutput) {
+            boolean enableChromeTracingOutput,
+            @Nullable Path streamingTraceFile,
+            @Nullable Path streamingMetricsFile) {
         if (isInitialized()) {
             return;
         }
         this.mLogger = logger;
         this.enableChromeTracingOutput = enableChromeTracingOutput;
+        this.streamingTraceFile = streamingTraceFile;
+        this.streamingMetricsFile = streamingMetricsFile;
         ProcessProfileWriter recorder = get();
         setGlobalProperties(recorder, rootProjectDirectoryPath, gradleVersion, logger);
     }
@@ -164,6 +214,10 @@ public final class ProcessProfileWriterFactory {
     @NonNull
     private synchronized Future<Void> shutdownAndMaybeWriteInternal(@Nullable Path outputFile) {
         Future<Void> shutdownAction;
+        if (streamingExport != null) {
+            streamingExport.cancel(false);
+            streamingExport = null;
+        }
         if (isInitialized()) {
             ProcessProfileWriter processProfileWriter = verifyNotNull(this.processProfileWriter);
             if (outputFile == null) {
@@ -187,6 +241,8 @@ public final class ProcessProfileWriterFactory {
             shutdownAction = CompletableFuture.completedFuture(null);
         }
         this.processProfileWriter = null;
+        this.streamingTraceFile = null;
+        this.streamingMetricsFile = null;
         return shutdownAction;
     }
 
@@ -196,7 +252,18 @@ public final class ProcessProfileWriterFactory {
                 mLogger = new StdLogger(StdLogger.Level.INFO);
             }
             initializeAnalytics(mLogger, getScheduledExecutorService());
-            processProfileWriter = new ProcessProfileWriter(enableChromeTracingOutput);
+            processProfileWriter =
+                    new ProcessProfileWriter(
+                            enableChromeTracingOutput, streamingTraceFile, streamingMetricsFile);
+            if (processProfileWriter.isStreamingExportEnabled()) {
+                streamingExport =
+                        getScheduledExecutorService()
+                                .scheduleWithFixedDelay(
+                                        processProfileWriter::exportSpans,
+                                        STREAMING_EXPORT_PERIOD_MS,
+                                        STREAMING_EXPORT_PERIOD_MS,
+                                        TimeUnit.MILLISECONDS);
+            }
         }
         return processProfileWriter;
     }
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.profile;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.wireless.android.sdk.stats.GradleBuildProfileSpan.ExecutionType;
+import com.google.wireless.android.sdk.stats.GradleTransformExecution;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Records the spans of a single thread as fixed-size records, without allocating per span.
+ *
+ * <p>Spans are timed with {@link System#nanoTime()}, and also record the CPU time and the bytes
+ * allocated by the thread while they were open, when the JVM supports it. Records are stored in
+ * chunks that are only allocated when the previous ones are full, and are converted to protobuf
+ * messages by {@link ProcessProfileWriter} at the end of the build.
+ *
+ * <p>Only the thread that owns the buffer may start and end spans. Other threads can read the
+ * spans that were ended with {@link #forEachSpan(int, Consumer)}, in the order they were ended.
+ */
+final class SpanBuffer {
+
+    /** Value of the resource counters when they are not supported by the JVM. */
+    static final long UNSUPPORTED = -1;
+
+    private static final int ID = 0;
+    private static final int PARENT_ID = 1;
+    private static final int START_NANOS = 2;
+    private static final int END_NANOS = 3;
+    private static final int CPU_NANOS = 4;
+    private static final int ALLOCATED_BYTES = 5;
+    private static final int RECORD_SIZE = 6;
+
+    private static final int TYPE = 0;
+    private static final int TRANSFORM = 1;
+    private static final int PROJECT = 2;
+    private static final int VARIANT = 3;
+    private static final int REFERENCES_SIZE = 4;
+
+    private static final int RECORDS_PER_CHUNK = 512;
+
+    @NonNull private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    private static final boolean CPU_TIME_SUPPORTED =
+            THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()
+                    && THREAD_MX_BEAN.isThreadCpuTimeEnabled();
+
+    @Nullable
+    private static final com.sun.management.ThreadMXBean ALLOCATION_MX_BEAN = getAllocationBean();
+
+    private final long threadId;
+
+    // Written by the owner thread only, and published to readers through endedCount.
+    @NonNull private long[][] records = new long[0][];
+    @NonNull private Object[][] references = new Object[0][];
+    /** The ended spans, in the order they were ended. */
+    @NonNull private int[][] endedSpans = new int[0][];
+
+    private volatile int endedCount = 0;
+
+    // Only accessed by the owner thread.
+    private int allocated = 0;
+    @NonNull private int[] stack = new int[16];
+    private int depth = 0;
+
+    SpanBuffer(long threadId) {
+        this.threadId = threadId;
+    }
+
+    long getThreadId() {
+        return threadId;
+    }
+
+    /** Returns the id of the innermost open span of this thread, or 0 if there is none. */
+    long getCurrentSpanId() {
+        if (depth == 0) {
+            return 0;
+        }
+        int span = stack[depth - 1];
+        return chunkOf(span)[offsetOf(span) + ID];
+    }
+
+    /**
+     * Opens a new span, child of the innermost open span.
+     *
+     * @return the handle of the span, to pass to {@link #end(int, String, String)}
+     */
+    int start(
+            long id,
+            @NonNull ExecutionType executionType,
+            @Nullable GradleTransformExecution transform) {
+        int span = allocated;
+        if (span / RECORDS_PER_CHUNK == records.length) {
+            addChunk();
+        }
+        allocated++;
+
+        long[] chunk = chunkOf(span);
+        int offset = offsetOf(span);
+        chunk[offset + ID] = id;
+        chunk[offset + PARENT_ID] = getCurrentSpanId();
+        chunk[offset + CPU_NANOS] = currentThreadCpuTime();
+        chunk[offset + ALLOCATED_BYTES] = currentThreadAllocatedBytes();
+
+        Object[] refs = references[span / RECORDS_PER_CHUNK];
+        int refsOffset = (span % RECORDS_PER_CHUNK) * REFERENCES_SIZE;
+        refs[refsOffset + TYPE] = executionType;
+        refs[refsOffset + TRANSFORM] = transform;
+
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+        stack[depth++] = span;
+
+        // Read the clock last so that the span does not include the time spent recording it.
+        chunk[offset + START_NANOS] = System.nanoTime();
+        return span;
+    }
+
+    /**
+     * Closes a span opened by {@link #start(long, ExecutionType, GradleTransformExecution)}.
+     *
+     * @return false if the span was not the innermost open span, in which case the stack of spans
+     *     is now inconsistent
+     */
+    boolean end(int span, @NonNull String project, @Nullable String variant) {
+        long endNanos = System.nanoTime();
+        long[] chunk = chunkOf(span);
+        int offset = offsetOf(span);
+        chunk[offset + CPU_NANOS] = delta(currentThreadCpuTime(), chunk[offset + CPU_NANOS]);
+        chunk[offset + ALLOCATED_BYTES] =
+                delta(currentThreadAllocatedBytes(), chunk[offset + ALLOCATED_BYTES]);
+        chunk[offset + END_NANOS] = endNanos;
+
+        Object[] refs = references[span / RECORDS_PER_CHUNK];
+        int refsOffset = (span % RECORDS_PER_CHUNK) * REFERENCES_SIZE;
+        refs[refsOffset + PROJECT] = project;
+        refs[refsOffset + VARIANT] = variant;
+
+        int ended = endedCount;
+        if (ended / RECORDS_PER_CHUNK == endedSpans.length) {
+            int[][] newEndedSpans = Arrays.copyOf(endedSpans, endedSpans.length + 1);
+            newEndedSpans[endedSpans.length] = new int[RECORDS_PER_CHUNK];
+            endedSpans = newEndedSpans;
+        }
+        endedSpans[ended / RECORDS_PER_CHUNK][ended % RECORDS_PER_CHUNK] = span;
+
+        boolean consistent = depth > 0 && stack[depth - 1] == span;
+        if (depth > 0) {
+            depth--;
+        }
+        // Publishes the span to other threads.
+        endedCount = ended + 1;
+        return consistent;
+    }
+
+    /**
+     * Passes the spans ended so far to the given consumer, in the order they were ended, skipping
+     * the given number of spans.
+     *
+     * @param from the number of spans to skip, e.g. the value returned by a previous call
+     * @param consumer the consumer of the spans
+     * @return the number of spans ended so far
+     */
+    int forEachSpan(int from, @NonNull Consumer<Span> consumer) {
+        int count = endedCount;
+        long[][] records = this.records;
+        Object[][] references = this.references;
+        int[][] endedSpans = this.endedSpans;
+        for (int i = from; i < count; i++) {
+            int span = endedSpans[i / RECORDS_PER_CHUNK][i % RECORDS_PER_CHUNK];
+            long[] chunk = records[span / RECORDS_PER_CHUNK];
+            int offset = offsetOf(span);
+            Object[] refs = references[span / RECORDS_PER_CHUNK];
+            int refsOffset = (span % RECORDS_PER_CHUNK) * REFERENCES_SIZE;
+            consumer.accept(
+                    new Span(
+                            chunk[offset + ID],
+                            chunk[offset + PARENT_ID],
+                            threadId,
+                            (ExecutionType) refs[refsOffset + TYPE],
+                            (GradleTransformExecution) refs[refsOffset + TRANSFORM],
+                            (String) refs[refsOffset + PROJECT],
+                            (String) refs[refsOffset + VARIANT],
+                            chunk[offset + START_NANOS],
+                            chunk[offset + END_NANOS],
+                            chunk[offset + CPU_NANOS],
+                            chunk[offset + ALLOCATED_BYTES]));
+        }
+        return count;
+    }
+
+    private void addChunk() {
+        long[][] newRecords = Arrays.copyOf(records, records.length + 1);
+        newRecords[records.length] = new long[RECORDS_PER_CHUNK * RECORD_SIZE];
+        Object[][] newReferences = Arrays.copyOf(references, references.length + 1);
+        newReferences[references.length] = new Object[RECORDS_PER_CHUNK * REFERENCES_SIZE];
+        records = newRecords;
+        references = newReferences;
+    }
+
+    @NonNull
+    private long[] chunkOf(int span) {
+        return records[span / RECORDS_PER_CHUNK];
+    }
+
+    private static int offsetOf(int span) {
+        return (span % RECORDS_PER_CHUNK) * RECORD_SIZE;
+    }
+
+    private static long delta(long end, long start) {
+        return end == UNSUPPORTED || start == UNSUPPORTED ? UNSUPPORTED : end - start;
+    }
+
+    private static long currentThreadCpuTime() {
+        return CPU_TIME_SUPPORTED ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : UNSUPPORTED;
+    }
+
+    private static long currentThreadAllocatedBytes() {
+        return ALLOCATION_MX_BEAN != null
+                ? ALLOCATION_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId())
+                : UNSUPPORTED;
+    }
+
+    @Nullable
+    private static com.sun.management.ThreadMXBean getAllocationBean() {
+        try {
+            if (THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean bean =
+                        (com.sun.management.ThreadMXBean) THREAD_MX_BEAN;
+                if (bean.isThreadAllocatedMemorySupported()
+                        && bean.isThreadAllocatedMemoryEnabled()) {
+                    return bean;
+                }
+            }
+        } catch (LinkageError e) {
+            // Not a HotSpot based JVM.
+        }
+        return null;
+    }
+
+    /** A span that was ended, read from a {@link SpanBuffer}. */
+    static final class Span {
+        final long id;
+        final long parentId;
+        final long threadId;
+        @NonNull final ExecutionType type;
+        @Nullable final GradleTransformExecution transform;
+        @NonNull final String project;
+        @Nullable final String variant;
+        final long startNanos;
+        final long endNanos;
+        /** CPU time used by the thread during the span, or {@link #UNSUPPORTED}. */
+        final long cpuNanos;
+        /** Bytes allocated by the thread during the span, or {@link #UNSUPPORTED}. */
+        final long allocatedBytes;
+
+        private Span(
+                long id,
+                long parentId,
+                long threadId,
+                @NonNull ExecutionType type,
+                @Nullable GradleTransformExecution transform,
+                @NonNull String project,
+                @Nullable String variant,
+                long startNanos,
+                long endNanos,
+                long cpuNanos,
+                long allocatedBytes) {
+            this.id = id;
+            this.parentId = parentId;
+            this.threadId = threadId;
+            this.type = type;
+            this.transform = transform;
+            this.project = project;
+            this.variant = variant;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+}
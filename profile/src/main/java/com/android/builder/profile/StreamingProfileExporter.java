@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.profile;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.gson.stream.JsonWriter;
+import com.google.wireless.android.sdk.stats.GradleBuildProfileSpan;
+import com.google.wireless.android.sdk.stats.GradleBuildProfileSpan.ExecutionType;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports the spans of a build while it runs, instead of once it is finished.
+ *
+ * <p>Spans are appended to a trace file in the chrome tracing JSON array format, which can be
+ * opened in chrome://tracing at any time, as the closing bracket of the array is optional. The
+ * duration of the tasks and transforms is also aggregated in histograms, written in the OpenMetrics
+ * text format to a file that monitoring agents can scrape (e.g. the Prometheus node exporter
+ * textfile collector).
+ *
+ * <p>Spans are only held until they are written, and histograms have a fixed size per task and
+ * transform type, so the memory used does not grow with the length of the build.
+ *
+ * <p>This class is not thread-safe, {@link ProcessProfileWriter} serializes calls to it.
+ */
+final class StreamingProfileExporter implements Closeable {
+
+    /** Upper bounds of the histogram buckets, in seconds. */
+    private static final double[] BUCKETS = {
+        0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300
+    };
+
+    private static final String TASK_METRIC = "android_gradle_task_duration_seconds";
+    private static final String TRANSFORM_METRIC = "android_gradle_transform_duration_seconds";
+
+    @Nullable private final JsonWriter traceWriter;
+    @Nullable private final Path metricsFile;
+
+    /** Wall clock time and {@link System#nanoTime()} at the same instant, to convert the latter. */
+    private final long originTimeInUs;
+
+    private final long originNanos;
+
+    @NonNull private final Map<String, Histogram> taskHistograms = new TreeMap<>();
+    @NonNull private final Map<String, Histogram> transformHistograms = new TreeMap<>();
+    private boolean metricsChanged = true;
+
+    /**
+     * Creates a new exporter.
+     *
+     * @param traceFile the file to write spans to, or null to not write them
+     * @param metricsFile the file to write histograms to, or null to not write them
+     * @param originTimeInMs the wall clock time at {@code originNanos}
+     * @param originNanos the value of {@link System#nanoTime()} at {@code originTimeInMs}
+     */
+    StreamingProfileExporter(
+            @Nullable Path traceFile,
+            @Nullable Path metricsFile,
+            long originTimeInMs,
+            long originNanos)
+            throws IOException {
+        this.metricsFile = metricsFile;
+        this.originTimeInUs = TimeUnit.MILLISECONDS.toMicros(originTimeInMs);
+        this.originNanos = originNanos;
+        if (traceFile != null) {
+            Files.createDirectories(traceFile.toAbsolutePath().getParent());
+            Writer writer = Files.newBufferedWriter(traceFile, StandardCharsets.UTF_8);
+            traceWriter = new JsonWriter(writer);
+            traceWriter.beginArray();
+        } else {
+            traceWriter = null;
+        }
+    }
+
+    /** Exports a span recorded by {@link ThreadRecorder}. */
+    void export(@NonNull SpanBuffer.Span span) throws IOException {
+        long startTimeInUs =
+                originTimeInUs + TimeUnit.NANOSECONDS.toMicros(span.startNanos - originNanos);
+        long durationInUs = TimeUnit.NANOSECONDS.toMicros(span.endNanos - span.startNanos);
+        String name = ChromeTracingProfileConverter.pretty(span.type);
+        if (span.transform != null) {
+            String transformName =
+                    ChromeTracingProfileConverter.transformName(span.transform.getType());
+            if (span.type == ExecutionType.TASK_TRANSFORM) {
+                name = "transform: " + transformName;
+                record(transformHistograms, transformName, durationInUs);
+            } else if (span.type == ExecutionType.TASK_TRANSFORM_PREPARATION) {
+                name = "transform prep: " + transformName;
+            }
+        }
+        if (traceWriter != null) {
+            beginEvent(span.id, span.threadId, name, span.project, span.variant);
+            if (span.cpuNanos != SpanBuffer.UNSUPPORTED) {
+                traceWriter
+                        .name("cpu_time_us")
+                        .value(TimeUnit.NANOSECONDS.toMicros(span.cpuNanos));
+            }
+            if (span.allocatedBytes != SpanBuffer.UNSUPPORTED) {
+                traceWriter.name("allocated_bytes").value(span.allocatedBytes);
+            }
+            endEvent(startTimeInUs, durationInUs);
+        }
+    }
+
+    /** Exports a span written with {@link ProfileRecordWriter#writeRecord}. */
+    void export(
+            @NonNull String project,
+            @Nullable String variant,
+            @NonNull GradleBuildProfileSpan span)
+            throws IOException {
+        long durationInUs = TimeUnit.MILLISECONDS.toMicros(span.getDurationInMs());
+        String name = ChromeTracingProfileConverter.pretty(span.getType());
+        if (span.getType() == ExecutionType.TASK_EXECUTION) {
+            String taskName = ChromeTracingProfileConverter.taskName(span.getTask().getType());
+            name = "task: " + taskName;
+            record(taskHistograms, taskName, durationInUs);
+        }
+        if (traceWriter != null) {
+            beginEvent(span.getId(), span.getThreadId(), name, project, variant);
+            endEvent(TimeUnit.MILLISECONDS.toMicros(span.getStartTimeInMs()), durationInUs);
+        }
+    }
+
+    /** Writes out everything exported so far. */
+    void flush() throws IOException {
+        if (traceWriter != null) {
+            traceWriter.flush();
+        }
+        if (metricsFile != null && metricsChanged) {
+            writeMetrics(metricsFile);
+            metricsChanged = false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (traceWriter != null) {
+                traceWriter.endArray();
+                traceWriter.close();
+            }
+        }
+    }
+
+    private void beginEvent(
+            long id,
+            long threadId,
+            @NonNull String name,
+            @NonNull String project,
+            @Nullable String variant)
+            throws IOException {
+        assert traceWriter != null;
+        traceWriter
+                .beginObject()
+                .name("pid").value(1)
+                .name("tid").value(threadId)
+                .name("id").value(id)
+                .name("name").value(name)
+                .name("args")
+                .beginObject()
+                .name("span_id").value(id)
+                .name("project").value(project);
+        if (variant != null) {
+            traceWriter.name("variant").value(variant);
+        }
+    }
+
+    private void endEvent(long startTimeInUs, long durationInUs) throws IOException {
+        assert traceWriter != null;
+        traceWriter
+                .endObject()
+                .name("ph").value("X")
+                .name("ts").value(startTimeInUs)
+                // Make the span visible.
+                .name("dur").value(Math.max(durationInUs, 1))
+                .endObject();
+    }
+
+    private void record(
+            @NonNull Map<String, Histogram> histograms, @NonNull String name, long durationInUs) {
+        histograms.computeIfAbsent(name, k -> new Histogram()).record(durationInUs);
+        metricsChanged = true;
+    }
+
+    /** Writes the histograms, replacing the file at once so that readers never see partial data. */
+    private void writeMetrics(@NonNull Path file) throws IOException {
+        StringBuilder metrics = new StringBuilder();
+        appendHistograms(
+                metrics, TASK_METRIC, "Duration of the Android tasks.", "task", taskHistograms);
+        appendHistograms(
+                metrics,
+                TRANSFORM_METRIC,
+                "Duration of the Android transforms.",
+                "transform",
+                transformHistograms);
+        metrics.append("# EOF\n");
+
+        Path absoluteFile = file.toAbsolutePath();
+        Files.createDirectories(absoluteFile.getParent());
+        Path tempFile =
+                absoluteFile.resolveSibling(absoluteFile.getFileName().toString() + ".tmp");
+        Files.write(tempFile, metrics.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile, absoluteFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void appendHistograms(
+            @NonNull StringBuilder out,
+            @NonNull String metric,
+            @NonNull String help,
+            @NonNull String label,
+            @NonNull Map<String, Histogram> histograms) {
+        out.append("# TYPE ").append(metric).append(" histogram\n");
+        out.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            String labelValue = escapeLabelValue(entry.getKey());
+            Histogram histogram = entry.getValue();
+            long cumulativeCount = 0;
+            for (int i = 0; i <= BUCKETS.length; i++) {
+                cumulativeCount += histogram.counts[i];
+                out.append(metric).append("_bucket{").append(label).append("=\"");
+                out.append(labelValue).append("\",le=\"");
+                out.append(i < BUCKETS.length ? formatSeconds(BUCKETS[i]) : "+Inf");
+                out.append("\"} ").append(cumulativeCount).append('\n');
+            }
+            out.append(metric).append("_sum{").append(label).append("=\"").append(labelValue);
+            out.append("\"} ").append(formatSeconds(histogram.sumInUs / 1e6)).append('\n');
+            out.append(metric).append("_count{").append(label).append("=\"").append(labelValue);
+            out.append("\"} ").append(cumulativeCount).append('\n');
+        }
+    }
+
+    @NonNull
+    private static String formatSeconds(double seconds) {
+        return Double.toString(seconds);
+    }
+
+    @NonNull
+    private static String escapeLabelValue(@NonNull String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /** Counts of durations per bucket, the last bucket being unbounded. */
+    private static final class Histogram {
+        @NonNull private final long[] counts = new long[BUCKETS.length + 1];
+        private long sumInUs = 0;
+
+        void record(long durationInUs) {
+            double seconds = durationInUs / 1e6;
+            int bucket = 0;
+            while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+                bucket++;
+            }
+            counts[bucket]++;
+            sumInUs += durationInUs;
+        }
+    }
+}
@@ -18,14 +18,12 @@ package com.android.builder.profile;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
-import com.google.wireless.android.sdk.stats.GradleBuildProfileSpan;
 import com.google.wireless.android.sdk.stats.GradleBuildProfileSpan.ExecutionType;
 import com.google.wireless.android.sdk.stats.GradleTransformExecution;
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -45,14 +43,15 @@ public final class ThreadRecorder implements Recorder {
 
     /**
      * Do not put anything else than JDK classes in the ThreadLocal as it prevents that class and
-     * therefore the plugin classloader to be gc'ed leading to OOM or PermGen issues.
+     * therefore the plugin classloader to be gc'ed leading to OOM or PermGen issues. The spans of
+     * each thread are instead recorded in a {@link SpanBuffer} owned by the {@link
+     * ProcessProfileWriter} of the build.
      */
-    protected final ThreadLocal<Deque<Long>> recordStacks =
-            ThreadLocal.withInitial(ArrayDeque::new);
-
     protected final ThreadLocal<Long> threadId =
             ThreadLocal.withInitial(THREAD_ID_ALLOCATOR::getAndIncrement);
 
+    private final LongSupplier threadIdSupplier = () -> threadId.get();
+
     public static Recorder get() {
         return ProcessProfileWriterFactory.getFactory().isInitialized() ? RECORDER : NO_OP_RECORDER;
     }
@@ -74,15 +73,15 @@ public final class ThreadRecorder implements Recorder {
             @NonNull String projectPath,
             @Nullable String variant,
             @NonNull VoidBlock block) {
-        ProfileRecordWriter profileRecordWriter = ProcessProfileWriter.get();
-        GradleBuildProfileSpan.Builder currentRecord =
-                create(profileRecordWriter, executionType, null);
+        ProcessProfileWriter profileRecordWriter = ProcessProfileWriter.get();
+        SpanBuffer spanBuffer = profileRecordWriter.getSpanBuffer(threadIdSupplier);
+        int currentRecord = create(profileRecordWriter, spanBuffer, executionType, null);
         try {
             block.call();
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         } finally {
-            write(profileRecordWriter, currentRecord, projectPath, variant);
+            write(spanBuffer, currentRecord, projectPath, variant);
         }
     }
 
@@ -94,64 +93,38 @@ public final class ThreadRecorder implements Recorder {
             @NonNull String projectPath,
             @Nullable String variant,
             @NonNull Block<T> block) {
-        ProfileRecordWriter profileRecordWriter = ProcessProfileWriter.get();
+        ProcessProfileWriter profileRecordWriter = ProcessProfileWriter.get();
+        SpanBuffer spanBuffer = profileRecordWriter.getSpanBuffer(threadIdSupplier);
 
-        GradleBuildProfileSpan.Builder currentRecord =
-                create(profileRecordWriter, executionType, transform);
+        int currentRecord = create(profileRecordWriter, spanBuffer, executionType, transform);
         try {
             return block.call();
         } catch (Exception e) {
             block.handleException(e);
         } finally {
-            write(profileRecordWriter, currentRecord, projectPath, variant);
+            write(spanBuffer, currentRecord, projectPath, variant);
         }
         // we always return null when an exception occurred and was not rethrown.
         return null;
     }
 
-    private GradleBuildProfileSpan.Builder create(
+    private static int create(
             @NonNull ProfileRecordWriter profileRecordWriter,
+            @NonNull SpanBuffer spanBuffer,
             @NonNull ExecutionType executionType,
             @Nullable GradleTransformExecution transform) {
         long thisRecordId = profileRecordWriter.allocateRecordId();
-
-        // am I a child ?
-        @Nullable
-        Long parentId = recordStacks.get().peek();
-
-        long startTimeInMs = System.currentTimeMillis();
-
-        final GradleBuildProfileSpan.Builder currentRecord =
-                GradleBuildProfileSpan.newBuilder()
-                        .setId(thisRecordId)
-                        .setType(executionType)
-                        .setStartTimeInMs(startTimeInMs);
-
-        if (transform != null) {
-            currentRecord.setTransform(transform);
-        }
-
-        if (parentId != null) {
-            currentRecord.setParentId(parentId);
-        }
-
-        currentRecord.setThreadId(threadId.get());
-        recordStacks.get().push(thisRecordId);
-        return currentRecord;
+        return spanBuffer.start(thisRecordId, executionType, transform);
     }
 
-    private void write(
-            @NonNull ProfileRecordWriter profileRecordWriter,
-            @NonNull GradleBuildProfileSpan.Builder currentRecord,
+    private static void write(
+            @NonNull SpanBuffer spanBuffer,
+            int currentRecord,
             @NonNull String projectPath,
             @Nullable String variant) {
-        // pop this record from the stack.
-        if (recordStacks.get().pop() != currentRecord.getId()) {
+        if (!spanBuffer.end(currentRecord, projectPath, variant)) {
             Logger.getLogger(ThreadRecorder.class.getName())
                     .log(Level.SEVERE, "Profiler stack corrupted");
         }
-        currentRecord.setDurationInMs(
-                System.currentTimeMillis() - currentRecord.getStartTimeInMs());
-        profileRecordWriter.writeRecord(projectPath, variant, currentRecord);
     }
 }
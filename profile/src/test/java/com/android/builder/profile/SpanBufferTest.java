@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.profile;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.wireless.android.sdk.stats.GradleBuildProfileSpan.ExecutionType;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/** Tests for the {@link SpanBuffer} class. */
+public class SpanBufferTest {
+
+    @Test
+    public void testNestedSpans() {
+        SpanBuffer buffer = new SpanBuffer(42);
+        int parent = buffer.start(1, ExecutionType.TASK_EXECUTION, null);
+        assertThat(buffer.getCurrentSpanId()).isEqualTo(1);
+        int child = buffer.start(2, ExecutionType.SOME_RANDOM_PROCESSING, null);
+        assertThat(buffer.getCurrentSpanId()).isEqualTo(2);
+
+        // Open spans are not visible.
+        assertThat(getSpans(buffer)).isEmpty();
+
+        assertThat(buffer.end(child, ":child", "debug")).isTrue();
+        assertThat(getSpans(buffer)).hasSize(1);
+        assertThat(buffer.end(parent, ":parent", null)).isTrue();
+        assertThat(buffer.getCurrentSpanId()).isEqualTo(0);
+
+        List<SpanBuffer.Span> spans = getSpans(buffer);
+        assertThat(spans).hasSize(2);
+        // Spans are in the order they were ended.
+        SpanBuffer.Span childSpan = spans.get(0);
+        SpanBuffer.Span parentSpan = spans.get(1);
+        assertThat(parentSpan.id).isEqualTo(1);
+        assertThat(parentSpan.parentId).isEqualTo(0);
+        assertThat(parentSpan.type).isEqualTo(ExecutionType.TASK_EXECUTION);
+        assertThat(parentSpan.project).isEqualTo(":parent");
+        assertThat(parentSpan.variant).isNull();
+        assertThat(parentSpan.threadId).isEqualTo(42);
+        assertThat(childSpan.id).isEqualTo(2);
+        assertThat(childSpan.parentId).isEqualTo(1);
+        assertThat(childSpan.project).isEqualTo(":child");
+        assertThat(childSpan.variant).isEqualTo("debug");
+
+        assertThat(childSpan.startNanos).isAtLeast(parentSpan.startNanos);
+        assertThat(childSpan.endNanos).isAtMost(parentSpan.endNanos);
+        if (parentSpan.cpuNanos != SpanBuffer.UNSUPPORTED) {
+            assertThat(childSpan.cpuNanos).isAtMost(parentSpan.cpuNanos);
+        }
+    }
+
+    @Test
+    public void testManySpans() {
+        SpanBuffer buffer = new SpanBuffer(1);
+        for (int i = 1; i <= 10_000; i++) {
+            int span = buffer.start(i, ExecutionType.SOME_RANDOM_PROCESSING, null);
+            assertThat(buffer.end(span, ":project", null)).isTrue();
+        }
+
+        List<SpanBuffer.Span> spans = getSpans(buffer);
+        assertThat(spans).hasSize(10_000);
+        for (int i = 0; i < spans.size(); i++) {
+            assertThat(spans.get(i).id).isEqualTo(i + 1);
+        }
+    }
+
+    @Test
+    public void testReadSpansIncrementally() {
+        SpanBuffer buffer = new SpanBuffer(1);
+        int parent = buffer.start(1, ExecutionType.SOME_RANDOM_PROCESSING, null);
+        int child = buffer.start(2, ExecutionType.SOME_RANDOM_PROCESSING, null);
+        buffer.end(child, ":project", null);
+
+        List<SpanBuffer.Span> spans = new ArrayList<>();
+        int read = buffer.forEachSpan(0, spans::add);
+        assertThat(read).isEqualTo(1);
+        assertThat(spans).hasSize(1);
+
+        buffer.end(parent, ":project", null);
+        spans.clear();
+        assertThat(buffer.forEachSpan(read, spans::add)).isEqualTo(2);
+        assertThat(spans).hasSize(1);
+        assertThat(spans.get(0).id).isEqualTo(1);
+    }
+
+    @Test
+    public void testCorruptedStack() {
+        SpanBuffer buffer = new SpanBuffer(1);
+        int parent = buffer.start(1, ExecutionType.SOME_RANDOM_PROCESSING, null);
+        buffer.start(2, ExecutionType.SOME_RANDOM_PROCESSING, null);
+        assertThat(buffer.end(parent, ":project", null)).isFalse();
+    }
+
+    private static List<SpanBuffer.Span> getSpans(SpanBuffer buffer) {
+        List<SpanBuffer.Span> spans = new ArrayList<>();
+        buffer.forEachSpan(0, spans::add);
+        return spans;
+    }
+}
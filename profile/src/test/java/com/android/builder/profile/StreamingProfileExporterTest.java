@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.profile;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.tools.build.gradle.internal.profile.GradleTaskExecutionType;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.google.wireless.android.sdk.stats.GradleBuildProfileSpan;
+import com.google.wireless.android.sdk.stats.GradleBuildProfileSpan.ExecutionType;
+import com.google.wireless.android.sdk.stats.GradleTaskExecution;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for the {@link StreamingProfileExporter} class. */
+public class StreamingProfileExporterTest {
+
+    private Path traceFile;
+    private Path metricsFile;
+
+    @Before
+    public void setUp() {
+        FileSystem fileSystem = Jimfs.newFileSystem(Configuration.unix());
+        traceFile = fileSystem.getPath("/tmp/trace/trace.json");
+        metricsFile = fileSystem.getPath("/tmp/metrics/build.prom");
+    }
+
+    @Test
+    public void testStreamSpans() throws Exception {
+        StreamingProfileExporter exporter =
+                new StreamingProfileExporter(
+                        traceFile, null, System.currentTimeMillis(), System.nanoTime());
+        SpanBuffer buffer = new SpanBuffer(3);
+        int span = buffer.start(1, ExecutionType.SOME_RANDOM_PROCESSING, null);
+        buffer.end(span, ":app", "debug");
+        buffer.forEachSpan(0, s -> export(exporter, s));
+        exporter.flush();
+
+        // The trace is readable before the end of the build, without the closing bracket.
+        String trace = new String(Files.readAllBytes(traceFile), StandardCharsets.UTF_8);
+        assertThat(trace).startsWith("[");
+        assertThat(trace).endsWith("}");
+        assertThat(trace).contains("\"name\":\"some random processing\"");
+        assertThat(trace).contains("\"tid\":3");
+        assertThat(trace).contains("\"project\":\":app\"");
+        assertThat(trace).contains("\"variant\":\"debug\"");
+
+        exporter.close();
+        trace = new String(Files.readAllBytes(traceFile), StandardCharsets.UTF_8);
+        assertThat(trace).endsWith("]");
+    }
+
+    @Test
+    public void testTaskHistograms() throws Exception {
+        StreamingProfileExporter exporter =
+                new StreamingProfileExporter(
+                        null, metricsFile, System.currentTimeMillis(), System.nanoTime());
+        exporter.export(":app", "debug", taskSpan(1, 3));
+        exporter.export(":app", "release", taskSpan(2, 700));
+        exporter.export(":lib", null, taskSpan(3, 400_000));
+        exporter.flush();
+
+        List<String> metrics = Files.readAllLines(metricsFile);
+        String task = ChromeTracingProfileConverter.taskName(
+                GradleTaskExecutionType.JAVA_COMPILE.getNumber());
+        String labels = "{task=\"" + task + "\",le=";
+        assertThat(metrics)
+                .containsAllOf(
+                        "# TYPE android_gradle_task_duration_seconds histogram",
+                        "android_gradle_task_duration_seconds_bucket" + labels + "\"0.005\"} 1",
+                        "android_gradle_task_duration_seconds_bucket" + labels + "\"0.5\"} 1",
+                        "android_gradle_task_duration_seconds_bucket" + labels + "\"1.0\"} 2",
+                        "android_gradle_task_duration_seconds_bucket" + labels + "\"300.0\"} 2",
+                        "android_gradle_task_duration_seconds_bucket" + labels + "\"+Inf\"} 3",
+                        "android_gradle_task_duration_seconds_count{task=\"" + task + "\"} 3",
+                        "# TYPE android_gradle_transform_duration_seconds histogram")
+                .inOrder();
+        assertThat(metrics.get(metrics.size() - 1)).isEqualTo("# EOF");
+        exporter.close();
+    }
+
+    private static GradleBuildProfileSpan taskSpan(long id, long durationInMs) {
+        return GradleBuildProfileSpan.newBuilder()
+                .setId(id)
+                .setType(ExecutionType.TASK_EXECUTION)
+                .setStartTimeInMs(System.currentTimeMillis())
+                .setDurationInMs(durationInMs)
+                .setTask(
+                        GradleTaskExecution.newBuilder()
+                                .setType(GradleTaskExecutionType.JAVA_COMPILE.getNumber()))
+                .build();
+    }
+
+    private static void export(StreamingProfileExporter exporter, SpanBuffer.Span span) {
+        try {
+            exporter.export(span);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+}